@@ -7,6 +7,7 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -142,6 +143,7 @@ public abstract class AppProcess implements Closeable {
 
     @Override
     public void close() {
+        setWarmPool(0, 0);
         mContext = null;
         if (mManager == null || !mManager.asBinder().pingBinder()) return;
         try {
@@ -210,15 +212,53 @@ public abstract class AppProcess implements Closeable {
         linkDeathTo(requireManager(), binder);
     }
 
-    private final Map<String, Object> locks = new HashMap<>();
+    private static final class TokenLock {
+        int mHolders = 0;
+    }
+
+    // Only tokens someone is binding right now have a lock, see releaseLock()
+    private final Map<String, TokenLock> locks = new HashMap<>();
 
-    private synchronized Object buildLock(String token) {
-        Object lock = locks.get(token);
-        if (lock == null) lock = new Object();
-        locks.put(token, lock);
+    private synchronized TokenLock buildLock(String token) {
+        TokenLock lock = locks.get(token);
+        if (lock == null) {
+            lock = new TokenLock();
+            locks.put(token, lock);
+        }
+        lock.mHolders++;
         return lock;
     }
 
+    private synchronized void releaseLock(String token, TokenLock lock) {
+        if (--lock.mHolders == 0) locks.remove(token);
+    }
+
+    private @Nullable WarmProcessPool mWarmPool = null;
+
+    /*
+     * Keeps up to size already started processes around, so isolatedServiceBinder() misses can
+     * create the service in one of them instead of starting a process cold. Idle ones exit after
+     * idleTimeoutMillis; the pool refills whenever one is used. size 0 turns it off
+     * */
+    public synchronized void setWarmPool(int size, long idleTimeoutMillis) {
+        if (mWarmPool != null) {
+            mWarmPool.close();
+            mWarmPool = null;
+        }
+        if (size <= 0) return;
+        ComponentName componentName = new ComponentName(requireContext().getPackageName(), ProcessManager.class.getName());
+        mWarmPool = new WarmProcessPool(() -> NewProcessReceiver.start(mContext, this, componentName), size, idleTimeoutMillis);
+    }
+
+    private synchronized @Nullable WarmProcessPool getWarmPool() {
+        return mWarmPool;
+    }
+
+    private @NonNull Context requireContext() {
+        if (mContext == null) throw new IllegalStateException("please call init() first.");
+        return mContext;
+    }
+
     public IBinder isolatedServiceBinder(@NonNull ComponentName componentName, boolean useCache) {
         if (!useCache) isolatedServiceBinderUnchecked(componentName);
         return isolatedServiceBinder(componentName);
@@ -226,27 +266,63 @@ public abstract class AppProcess implements Closeable {
 
     public IBinder isolatedServiceBinder(@NonNull ComponentName componentName) {
         String token = componentName.flattenToString();
-        synchronized (buildLock(token)) {
-            IBinder existsBinder = mChildProcess.get(token);
-            if (existsBinder != null) return existsBinder;
-            final IBinder binder = isolatedServiceBinderUnchecked(componentName);
-            if (binder == null) return null;
-            mChildProcess.put(token, binder);
-            try {
-                binder.linkToDeath(() -> {
-                    IBinder curBinder = mChildProcess.get(token);
-                    if (curBinder == null || curBinder != binder) return;
-                    mChildProcess.remove(token);
-                }, 0);
-            } catch (RemoteException e) {
-                e.printStackTrace();
+        TokenLock lock = buildLock(token);
+        try {
+            synchronized (lock) {
+                IBinder existsBinder = mChildProcess.get(token);
+                if (existsBinder != null) return existsBinder;
+                final IBinder binder = isolatedServiceBinderUnchecked(componentName);
+                if (binder == null) return null;
+                mChildProcess.put(token, binder);
+                try {
+                    binder.linkToDeath(() -> {
+                        IBinder curBinder = mChildProcess.get(token);
+                        if (curBinder == null || curBinder != binder) return;
+                        mChildProcess.remove(token);
+                    }, 0);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+                return binder;
             }
-            return binder;
+        } finally {
+            releaseLock(token, lock);
         }
     }
 
     private IBinder isolatedServiceBinderUnchecked(@NonNull ComponentName componentName) {
-        return NewProcessReceiver.start(mContext, this, componentName);
+        long start = SystemClock.elapsedRealtime();
+        IBinder binder = warmServiceBinder(componentName);
+        boolean warm = binder != null;
+        if (!warm) binder = NewProcessReceiver.start(mContext, this, componentName);
+        Log.d("AppProcess", (warm ? "warm" : "cold") + " bind of " + componentName.flattenToShortString()
+                + " took " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return binder;
+    }
+
+    /*
+     * Creates the service in a process from the warm pool, or returns null to start one cold
+     * */
+    private @Nullable IBinder warmServiceBinder(@NonNull ComponentName componentName) {
+        WarmProcessPool pool = getWarmPool();
+        if (pool == null) return null;
+        IProcessManager host = pool.take();
+        if (host == null) return null;
+        // A warm host already is a ProcessManager, which is what newManager() asks for
+        if (ProcessManager.class.getName().equals(componentName.getClassName())
+                && Objects.equals(mContext.getPackageName(), componentName.getPackageName()))
+            return host.asBinder();
+        try {
+            ParcelableBinder binder = host.serviceBinder(componentName);
+            if (binder != null && binder.getBinder() != null) return binder.getBinder();
+        } catch (RemoteException | RuntimeException e) {
+            Log.e("AppProcess", "warm bind of " + componentName.flattenToShortString() + " failed", e);
+        }
+        try {
+            host.exit(0);
+        } catch (Exception ignored) {
+        }
+        return null;
     }
 
     public static class Default extends AppProcess {
@@ -264,6 +340,7 @@ public abstract class AppProcess implements Closeable {
 
         @Override
         public void close() {
+            setWarmPool(0, 0);
             mManager = null;
         }
     }
@@ -16,6 +16,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -94,6 +95,7 @@ public class ProcessManager extends IProcessManager.Stub {
             Process process = builder.start();
 
             synchronized (mServiceProcesses) {
+                pruneExitedProcesses();
                 mServiceProcesses.add(process);
             }
 
@@ -103,6 +105,20 @@ public class ProcessManager extends IProcessManager.Stub {
         }
     }
 
+    // Only live processes need destroying on exit; without this the list grows for as long as
+    // the server runs
+    private void pruneExitedProcesses() {
+        Iterator<Process> iterator = mServiceProcesses.iterator();
+        while (iterator.hasNext()) {
+            try {
+                iterator.next().exitValue();
+                iterator.remove();
+            } catch (IllegalThreadStateException ignored) {
+                // Still running
+            }
+        }
+    }
+
     @Override
     public ParcelableBinder serviceBinder(ComponentName componentName) {
         return serviceBinder(null, null, componentName);
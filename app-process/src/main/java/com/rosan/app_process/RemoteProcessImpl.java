@@ -4,12 +4,31 @@ import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class RemoteProcessImpl extends IRemoteProcess.Stub {
+    private static final Field FILTER_IN = filterField(FilterInputStream.class, "in");
+
+    private static final Field FILTER_OUT = filterField(FilterOutputStream.class, "out");
+
+    // Only for streams that aren't backed by an fd; idle threads are shared and time out
+    private static final ExecutorService TRANSFER_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "RemoteProcessTransfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final @NonNull Process mProcess;
 
     private ParcelFileDescriptor mInputStream;
@@ -74,26 +93,76 @@ public class RemoteProcessImpl extends IRemoteProcess.Stub {
         }
     }
 
+    /**
+     * Hands out the read end of {@code inputStream}, taking ownership of it. For a child process's
+     * pipe that's a dup of its own fd, so reads go straight to the child; anything else is
+     * copied through a new pipe on {@link #TRANSFER_EXECUTOR}.
+     */
     public static ParcelFileDescriptor parcelable(InputStream inputStream) throws IOException {
+        // ProcessPipeInputStream.processExited() drains the pipe into memory under this lock
+        // once the child exits; dup and close under it too, so it can't steal the client's data
+        synchronized (inputStream) {
+            ParcelFileDescriptor fd = dupUnderlying(inputStream);
+            if (fd != null) {
+                inputStream.close();
+                return fd;
+            }
+        }
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
-        transferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
+        transfer(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
         return pipe[0];
     }
 
+    /**
+     * Hands out the write end of {@code outputStream}, taking ownership of it, like
+     * {@link #parcelable(InputStream)}. Our own copy of the fd is closed, so the child sees EOF
+     * as soon as the client closes its end.
+     */
     public static ParcelFileDescriptor parcelable(OutputStream outputStream) throws IOException {
+        synchronized (outputStream) {
+            ParcelFileDescriptor fd = dupUnderlying(outputStream);
+            if (fd != null) {
+                outputStream.close();
+                return fd;
+            }
+        }
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
-        transferThread(new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), outputStream);
+        transfer(new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), outputStream);
         return pipe[1];
     }
 
-    public static void transferThread(InputStream inputStream, OutputStream outputStream) {
-        new Thread(() -> {
+    /**
+     * Dups the fd behind a stream if it's a chain of filter streams over a file stream, which
+     * is what {@link Process} hands out for the child's stdio.
+     */
+    private static @Nullable ParcelFileDescriptor dupUnderlying(Object stream) {
+        if (FILTER_IN == null || FILTER_OUT == null) return null;
+        Object inner = stream;
+        try {
+            for (int depth = 0; depth < 4 && inner != null; depth++) {
+                if (inner instanceof FileInputStream)
+                    return ParcelFileDescriptor.dup(((FileInputStream) inner).getFD());
+                if (inner instanceof FileOutputStream)
+                    return ParcelFileDescriptor.dup(((FileOutputStream) inner).getFD());
+                if (inner instanceof FilterInputStream) inner = FILTER_IN.get(inner);
+                else if (inner instanceof FilterOutputStream) inner = FILTER_OUT.get(inner);
+                else return null;
+            }
+        } catch (IOException | IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static void transfer(InputStream inputStream, OutputStream outputStream) {
+        TRANSFER_EXECUTOR.execute(() -> {
             byte[] bytes = new byte[8192];
             int len = 0;
             try {
                 while ((len = inputStream.read(bytes)) > 0) {
                     outputStream.write(bytes, 0, len);
-                    outputStream.flush();
+                    // Only flush once caught up, so a burst of output isn't pushed 8 KB at a time
+                    if (inputStream.available() <= 0) outputStream.flush();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -109,6 +178,17 @@ public class RemoteProcessImpl extends IRemoteProcess.Stub {
                     e.printStackTrace();
                 }
             }
-        }).start();
+        });
+    }
+
+    private static @Nullable Field filterField(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 }
@@ -0,0 +1,190 @@
+package com.rosan.app_process;
+
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Idle processes that are already started and initialized (each one a ProcessManager), so a
+ * service can be created in one straight from its ComponentName, skipping the app_process
+ * boot, ActivityThread.systemMain() and the broadcast round trip of a cold start
+ * */
+final class WarmProcessPool implements Closeable {
+    private static final String TAG = "WarmProcessPool";
+
+    interface Spawner {
+        /*
+         * Starts a new process and returns its ProcessManager, or null on failure
+         * */
+        @Nullable IBinder spawn();
+    }
+
+    private static final class Host {
+        final @NonNull IProcessManager mManager;
+
+        final long mIdleSince = SystemClock.elapsedRealtime();
+
+        Host(@NonNull IProcessManager manager) {
+            mManager = manager;
+        }
+
+        boolean isAlive() {
+            return mManager.asBinder().isBinderAlive();
+        }
+    }
+
+    private final @NonNull Spawner mSpawner;
+
+    private final int mSize;
+
+    private final long mIdleTimeoutMillis;
+
+    // Spawning blocks for a whole cold start, so it never runs on the caller's thread
+    private final ScheduledExecutorService mExecutor;
+
+    private final ArrayDeque<Host> mIdle = new ArrayDeque<>();
+
+    private int mSpawning = 0;
+
+    private boolean mClosed = false;
+
+    WarmProcessPool(@NonNull Spawner spawner, int size, long idleTimeoutMillis) {
+        mSpawner = spawner;
+        mSize = size;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor = executor;
+        long period = Math.max(idleTimeoutMillis / 2, 1000);
+        mExecutor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        refill();
+    }
+
+    /*
+     * Hands an idle process over to the caller, or null if none is ready and the caller has to
+     * start one cold. Either way the pool is topped up in the background
+     * */
+    @Nullable IProcessManager take() {
+        Host host = null;
+        synchronized (this) {
+            while (!mIdle.isEmpty()) {
+                Host candidate = mIdle.pollFirst();
+                if (candidate.isAlive()) {
+                    host = candidate;
+                    break;
+                }
+            }
+        }
+        refill();
+        return host == null ? null : host.mManager;
+    }
+
+    private void refill() {
+        int missing;
+        synchronized (this) {
+            if (mClosed) return;
+            missing = mSize - mIdle.size() - mSpawning;
+            if (missing <= 0) return;
+            mSpawning += missing;
+        }
+        for (int i = 0; i < missing; i++) {
+            try {
+                mExecutor.execute(this::spawnOne);
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile
+                synchronized (this) {
+                    mSpawning--;
+                }
+            }
+        }
+    }
+
+    private void spawnOne() {
+        long start = SystemClock.elapsedRealtime();
+        IBinder binder = null;
+        try {
+            binder = mSpawner.spawn();
+        } catch (Throwable e) {
+            Log.e(TAG, "spawn failed", e);
+        }
+        IProcessManager manager = binder == null ? null : IProcessManager.Stub.asInterface(binder);
+        if (manager != null) {
+            try {
+                // Like newManager(): the host goes away with us
+                AppProcess.linkDeathToThis(manager);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "linkDeathTo failed", e);
+                exit(manager);
+                manager = null;
+            }
+        }
+        synchronized (this) {
+            mSpawning--;
+            if (manager != null && !mClosed) {
+                mIdle.addLast(new Host(manager));
+                Log.d(TAG, "warmed a process in " + (SystemClock.elapsedRealtime() - start) + " ms, " + mIdle.size() + " idle");
+                return;
+            }
+        }
+        if (manager != null) exit(manager);
+    }
+
+    private void evictIdle() {
+        List<Host> evicted = new ArrayList<>();
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            Iterator<Host> iterator = mIdle.iterator();
+            while (iterator.hasNext()) {
+                Host host = iterator.next();
+                if (!host.isAlive() || now - host.mIdleSince >= mIdleTimeoutMillis) {
+                    iterator.remove();
+                    evicted.add(host);
+                }
+            }
+        }
+        for (Host host : evicted) {
+            exit(host.mManager);
+        }
+    }
+
+    private static void exit(@NonNull IProcessManager manager) {
+        if (!manager.asBinder().pingBinder()) return;
+        try {
+            manager.exit(0);
+        } catch (Exception ignored) {
+            // exit() kills the process before it can reply
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Host> hosts;
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            hosts = new ArrayList<>(mIdle);
+            mIdle.clear();
+        }
+        mExecutor.shutdown();
+        for (Host host : hosts) {
+            exit(host.mManager);
+        }
+    }
+}
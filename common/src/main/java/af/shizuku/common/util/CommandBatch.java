@@ -0,0 +1,120 @@
+package af.shizuku.common.util;
+
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Wire format of the server's command batch transaction (ShizukuService, code TRANSACTION), shared
+ * by the server and the manager modules that can't depend on :server.
+ *
+ * Request, after the interface token: int flags (FLAG_*), long per-command timeout in ms (0 for
+ * the server's default), then the commands as a count followed by one String array (argv) each.
+ *
+ * Reply, after writeNoException(): a count, then per command int status (STATUS_*), int exit
+ * code, int truncated, String stdout and String stderr, in request order.
+ * */
+public final class CommandBatch {
+
+    public static final int TRANSACTION = 10008;
+
+    // Run the commands concurrently instead of one after another
+    public static final int FLAG_PARALLEL = 1;
+    // Skip the remaining commands once one fails (non-zero exit, or didn't run)
+    public static final int FLAG_STOP_ON_FAILURE = 1 << 1;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_SKIPPED = 1;
+    public static final int STATUS_FAILED_TO_START = 2;
+    public static final int STATUS_TIMED_OUT = 3;
+    public static final int STATUS_BLOCKED = 4;
+
+    // The whole reply has to fit the binder transaction buffer, so a batch is kept small
+    public static final int MAX_COMMANDS = 64;
+
+    public static final class Result {
+
+        public final int status;
+        public final int exitCode;
+        public final boolean truncated;
+        public final @NonNull String stdout;
+        public final @NonNull String stderr;
+
+        public Result(int status, int exitCode, boolean truncated, @Nullable String stdout, @Nullable String stderr) {
+            this.status = status;
+            this.exitCode = exitCode;
+            this.truncated = truncated;
+            this.stdout = stdout != null ? stdout : "";
+            this.stderr = stderr != null ? stderr : "";
+        }
+
+        public static Result notRun(int status) {
+            return new Result(status, -1, false, null, null);
+        }
+
+        public boolean isSuccess() {
+            return status == STATUS_OK && exitCode == 0;
+        }
+    }
+
+    private CommandBatch() {
+    }
+
+    public static void writeRequest(@NonNull Parcel data, int flags, long timeoutMillis, @NonNull List<String[]> commands) {
+        if (commands.size() > MAX_COMMANDS) {
+            throw new IllegalArgumentException("At most " + MAX_COMMANDS + " commands per batch, got " + commands.size());
+        }
+        data.writeInt(flags);
+        data.writeLong(timeoutMillis);
+        data.writeInt(commands.size());
+        for (String[] command : commands) {
+            data.writeStringArray(command);
+        }
+    }
+
+    /*
+     * Reads the commands that follow the flags and timeout of a request
+     * */
+    @NonNull
+    public static List<String[]> readCommands(@NonNull Parcel data) {
+        int count = data.readInt();
+        if (count < 0 || count > MAX_COMMANDS) {
+            throw new IllegalArgumentException("Invalid batch size " + count);
+        }
+        List<String[]> commands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            commands.add(data.createStringArray());
+        }
+        return commands;
+    }
+
+    public static void writeResults(@NonNull Parcel reply, @NonNull List<Result> results) {
+        reply.writeInt(results.size());
+        for (Result result : results) {
+            reply.writeInt(result.status);
+            reply.writeInt(result.exitCode);
+            reply.writeInt(result.truncated ? 1 : 0);
+            reply.writeString(result.stdout);
+            reply.writeString(result.stderr);
+        }
+    }
+
+    @NonNull
+    public static List<Result> readResults(@NonNull Parcel reply) {
+        int count = reply.readInt();
+        List<Result> results = new ArrayList<>(Math.max(count, 0));
+        for (int i = 0; i < count; i++) {
+            int status = reply.readInt();
+            int exitCode = reply.readInt();
+            boolean truncated = reply.readInt() != 0;
+            String stdout = reply.readString();
+            String stderr = reply.readString();
+            results.add(new Result(status, exitCode, truncated, stdout, stderr));
+        }
+        return results;
+    }
+}
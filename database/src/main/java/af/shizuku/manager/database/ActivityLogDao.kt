@@ -7,6 +7,9 @@ import androidx.room.Delete
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.RawQuery
+import androidx.room.Transaction
+import androidx.sqlite.db.SupportSQLiteQuery
 import kotlinx.coroutines.flow.Flow
 
 /**
@@ -31,9 +34,30 @@ interface ActivityLogDao {
     fun clear()
 
     /**
-     * Delete activity logs except for the most recent ones.
+     * Inserts [logs] and adds them to the hourly per-package counts, in one transaction.
      */
-    @Query("DELETE FROM activity_logs WHERE id NOT IN (SELECT id FROM (SELECT id FROM activity_logs ORDER BY timestamp DESC, id DESC LIMIT :limit))")
+    @Transaction
+    fun insertAllCounted(logs: List<ActivityLogRoom>) {
+        insertAll(logs)
+        logs.groupingBy { ActivityLogHourlyRoom.hourOf(it.timestamp) to it.packageName }
+            .eachCount()
+            .forEach { (key, count) ->
+                ensureHourly(key.first, key.second)
+                addHourly(key.first, key.second, count)
+            }
+    }
+
+    /**
+     * One page of logs, newest first; build the query with [ActivityLogQuery.toSql].
+     */
+    @RawQuery
+    fun getPage(query: SupportSQLiteQuery): List<ActivityLogRoom>
+
+    /**
+     * Delete activity logs except for the most recent ones. Only the rows past [limit] are
+     * selected, so this stays cheap with a large retention and little to delete.
+     */
+    @Query("DELETE FROM activity_logs WHERE id IN (SELECT id FROM activity_logs ORDER BY timestamp DESC, id DESC LIMIT -1 OFFSET :limit)")
     fun deleteExcess(limit: Int): Int
 
     /**
@@ -50,4 +74,29 @@ interface ActivityLogDao {
 
     @Query("SELECT * FROM activity_logs ORDER BY timestamp ASC LIMIT 1")
     fun getOldest(): ActivityLogRoom?
+
+    // INSERT OR IGNORE then UPDATE rather than an upsert, which needs SQLite 3.24 (API 30)
+    @Query("INSERT OR IGNORE INTO activity_log_hourly (hourStart, packageName, count) VALUES (:hourStart, :packageName, 0)")
+    fun ensureHourly(hourStart: Long, packageName: String)
+
+    @Query("UPDATE activity_log_hourly SET count = count + :count WHERE hourStart = :hourStart AND packageName = :packageName")
+    fun addHourly(hourStart: Long, packageName: String, count: Int)
+
+    /**
+     * Hourly counts of every package for the hours starting in [since, until).
+     */
+    @Query("SELECT * FROM activity_log_hourly WHERE hourStart >= :since AND hourStart < :until ORDER BY hourStart, packageName")
+    fun getHourly(since: Long, until: Long): List<ActivityLogHourlyRoom>
+
+    /**
+     * Hourly counts of [packageName] for the hours starting in [since, until).
+     */
+    @Query("SELECT * FROM activity_log_hourly WHERE packageName = :packageName AND hourStart >= :since AND hourStart < :until ORDER BY hourStart")
+    fun getHourlyForPackage(packageName: String, since: Long, until: Long): List<ActivityLogHourlyRoom>
+
+    @Query("DELETE FROM activity_log_hourly WHERE hourStart < :hourStart")
+    fun deleteHourlyBefore(hourStart: Long): Int
+
+    @Query("DELETE FROM activity_log_hourly")
+    fun clearHourly()
 }
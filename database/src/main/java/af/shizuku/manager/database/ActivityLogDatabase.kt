@@ -3,17 +3,20 @@ package af.shizuku.manager.database
 import android.content.Context
 import androidx.room.Database
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
 
 /**
  * Room database for activity logs.
  * 
- * This database stores activity log entries for tracking application actions.
+ * This database stores activity log entries for tracking application actions, and the hourly
+ * per-package counts derived from them.
  */
 @Database(
-    entities = [ActivityLogRoom::class],
-    version = 1,
+    entities = [ActivityLogRoom::class, ActivityLogHourlyRoom::class],
+    version = 2,
     exportSchema = false
 )
 abstract class ActivityLogDatabase : RoomDatabase() {
@@ -26,6 +29,23 @@ abstract class ActivityLogDatabase : RoomDatabase() {
     companion object {
         private const val DATABASE_NAME = "shizuku_activity_logs.db"
 
+        // Composite indices for filtered paging, and the hourly counts seeded from existing rows
+        private val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP INDEX IF EXISTS index_activity_logs_packageName")
+                db.execSQL("DROP INDEX IF EXISTS index_activity_logs_action")
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_activity_logs_packageName_timestamp ON activity_logs (packageName, timestamp)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_activity_logs_action_timestamp ON activity_logs (action, timestamp)")
+                db.execSQL("CREATE TABLE IF NOT EXISTS activity_log_hourly (hourStart INTEGER NOT NULL, packageName TEXT NOT NULL, count INTEGER NOT NULL, PRIMARY KEY(hourStart, packageName))")
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_activity_log_hourly_packageName_hourStart ON activity_log_hourly (packageName, hourStart)")
+                db.execSQL(
+                    "INSERT OR IGNORE INTO activity_log_hourly (hourStart, packageName, count) " +
+                        "SELECT (timestamp / ${ActivityLogHourlyRoom.HOUR_MS}) * ${ActivityLogHourlyRoom.HOUR_MS}, packageName, COUNT(*) " +
+                        "FROM activity_logs GROUP BY 1, 2"
+                )
+            }
+        }
+
         @Volatile
         private var instance: ActivityLogDatabase? = null
 
@@ -45,7 +65,8 @@ abstract class ActivityLogDatabase : RoomDatabase() {
 
         private fun buildDatabase(context: Context): ActivityLogDatabase =
             buildRoomDatabaseWithStorageFallback(
-                context, DATABASE_NAME, ActivityLogDatabase::class.java, "ActivityLogDatabase"
+                context, DATABASE_NAME, ActivityLogDatabase::class.java, "ActivityLogDatabase",
+                MIGRATION_1_2
             )
 
         /**
@@ -0,0 +1,95 @@
+package af.shizuku.manager.database
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.launch
+
+/**
+ * The activity log as a list screen shows it: [ActivityLogManager.logs] as the live head, then
+ * older rows read with [ActivityLogManager.queryPage] a page at a time as [loadMore] is called,
+ * so the list scrolls through the whole retained history rather than stopping at the in-memory
+ * head.
+ *
+ * The head keeps moving while older pages are shown: new records push its oldest ones out. The
+ * head as it was when the first page was read is kept, so those don't drop out of the list.
+ * Call [loadMore] from the main thread.
+ */
+class ActivityLogHistory(
+    private val scope: CoroutineScope,
+    private val pageSize: Int = PAGE_SIZE
+) {
+
+    private class Older(
+        val generation: Int,
+        val snapshot: List<ActivityLogRecord>,
+        val rows: List<ActivityLogRecord>,
+        val next: ActivityLogCursor?
+    )
+
+    private val older = MutableStateFlow<Older?>(null)
+    private var loading: Job? = null
+
+    val records: StateFlow<List<ActivityLogRecord>> =
+        combine(ActivityLogManager.logs, older) { head, older ->
+            if (older == null || older.generation != ActivityLogManager.generation) head
+            else splice(head, older.snapshot, older.rows)
+        }.stateIn(scope, SharingStarted.Eagerly, ActivityLogManager.logs.value)
+
+    /** Reads the next older page, unless one is being read or the end was reached. */
+    fun loadMore() {
+        if (loading?.isActive == true) return
+        val generation = ActivityLogManager.generation
+        val current = older.value?.takeIf { it.generation == generation }
+        if (current != null && current.next == null) return
+        val snapshot = current?.snapshot ?: ActivityLogManager.logs.value
+        val tail = snapshot.lastOrNull() ?: return
+
+        loading = scope.launch {
+            val loaded = if (current == null) {
+                // Rows logged in the same millisecond as the head's last one come back too; drop
+                // the ones the head already has
+                val page = ActivityLogManager.queryPage(ActivityLogQuery(until = tail.timestamp + 1), pageSize = pageSize)
+                val kept = snapshot.filter { it.timestamp == tail.timestamp }.toSet()
+                Older(generation, snapshot, page.records.filterNot { it in kept }, page.next)
+            } else {
+                val page = ActivityLogManager.queryPage(after = current.next, pageSize = pageSize)
+                Older(generation, snapshot, current.rows + page.records, page.next)
+            }
+            if (ActivityLogManager.generation == generation) older.value = loaded
+        }
+    }
+
+    companion object {
+        const val PAGE_SIZE = 100
+
+        /** How close to the end of the list a screen should call [loadMore]. */
+        const val LOAD_MORE_THRESHOLD = 20
+
+        /**
+         * [head] followed by what has dropped out of it since [snapshot] was taken, then [rows].
+         * The head only gains records at the front and loses them at the back, so what's left of
+         * the snapshot in it is a prefix of the snapshot.
+         */
+        internal fun splice(
+            head: List<ActivityLogRecord>,
+            snapshot: List<ActivityLogRecord>,
+            rows: List<ActivityLogRecord>
+        ): List<ActivityLogRecord> {
+            val newest = snapshot.firstOrNull() ?: return head + rows
+            var overlap = 0
+            for (i in head.indices) {
+                val kept = head.size - i
+                if (head[i] == newest && kept <= snapshot.size && head.subList(i, head.size) == snapshot.subList(0, kept)) {
+                    overlap = kept
+                    break
+                }
+            }
+            return head + snapshot.subList(overlap, snapshot.size) + rows
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package af.shizuku.manager.database
+
+import androidx.room.Entity
+import androidx.room.Index
+
+/**
+ * Room entity for the per-package hourly event counts kept next to the activity log.
+ *
+ * Updated in the same transaction as the log rows (see [ActivityLogDao.insertAllCounted]) and
+ * trimmed on its own schedule, so it keeps weeks of history after the rows it counts are gone.
+ *
+ * @property hourStart Start of the hour in milliseconds since the epoch, a multiple of [HOUR_MS] (UTC).
+ * @property packageName Package name of the application.
+ * @property count Number of events logged for the package in that hour.
+ */
+@Entity(
+    tableName = "activity_log_hourly",
+    primaryKeys = ["hourStart", "packageName"],
+    indices = [
+        Index(value = ["packageName", "hourStart"])
+    ]
+)
+data class ActivityLogHourlyRoom(
+    val hourStart: Long,
+    val packageName: String,
+    val count: Int
+) {
+    companion object {
+        const val HOUR_MS = 60 * 60 * 1000L
+
+        fun hourOf(timestamp: Long): Long = Math.floorDiv(timestamp, HOUR_MS) * HOUR_MS
+    }
+}
@@ -16,9 +16,7 @@ import kotlinx.coroutines.withContext
 import java.io.File
 import java.io.FileWriter
 import java.text.SimpleDateFormat
-import java.util.Collections
 import java.util.Date
-import java.util.LinkedList
 import java.util.Locale
 import java.util.concurrent.atomic.AtomicBoolean
 
@@ -45,11 +43,35 @@ interface ActivityLogSettings {
 
 /**
  * Manager for activity logs with Room database persistence.
+ *
+ * [log] only touches memory: the newest records (up to [MAX_IN_MEMORY]) live in a ring buffer,
+ * and [logs] republishes it at most every [PUBLISH_INTERVAL_MS], however many records arrived
+ * meanwhile. Rows reach Room through a [WriteBehindQueue] as batched `insertAll` transactions,
+ * and the table is trimmed back to the retention limit every [TRIM_INTERVAL_MS] rather than on
+ * every insert. The database is read once at startup; after that the buffer is the source of
+ * truth for [logs].
+ *
+ * Retention can go far past what's kept in memory: older history is read a page at a time with
+ * [queryPage] (list screens do that through [ActivityLogHistory]), and [hourlyCounts] summarizes
+ * it per package and hour for [HOURLY_RETENTION_MS].
  */
 object ActivityLogManager {
     private const val TAG = "ActivityLogManager"
+
+    private const val MAX_BATCH = 64
+    private const val FLUSH_DELAY_MS = 1000L
+    // Rows waiting for a write past this are dropped, oldest first; only reached if writes stall
+    private const val MAX_PENDING = 5000
+    private const val MAX_RETENTION = 100_000
+    private const val MAX_IN_MEMORY = 500
+    private const val HOURLY_RETENTION_MS = 90 * 24 * ActivityLogHourlyRoom.HOUR_MS
+    private const val PUBLISH_INTERVAL_MS = 250L
+    private const val TRIM_INTERVAL_MS = 60_000L
+    private const val DEFAULT_PAGE_SIZE = 100
+    private const val EXPORT_PAGE_SIZE = 1000
     
-    private val records = Collections.synchronizedList(LinkedList<ActivityLogRecord>())
+    // Newest first
+    private val records = ArrayDeque<ActivityLogRecord>()
     
     private var database: ActivityLogDatabase? = null
     private var dao: ActivityLogDao? = null
@@ -60,14 +82,23 @@ object ActivityLogManager {
         handleDatabaseError(exception)
     }
     private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO + exceptionHandler)
+
+    private val writer = WriteBehindQueue<ActivityLogRoom>(scope, MAX_BATCH, FLUSH_DELAY_MS, MAX_PENDING) { writeBatch(it) }
     
     private val isInitialized = AtomicBoolean(false)
-    private val isCleaningUp = AtomicBoolean(false)
+    private val publishScheduled = AtomicBoolean(false)
+    private val needsTrim = AtomicBoolean(false)
     
     private val _logs = MutableStateFlow<List<ActivityLogRecord>>(emptyList())
     val logs: StateFlow<List<ActivityLogRecord>> = _logs.asStateFlow()
     
+    @Volatile
     private var retentionCount = 100
+
+    // Bumped by clear(), so pages read before it are dropped
+    @Volatile
+    internal var generation = 0
+        private set
     private var appContext: Context? = null
     private var settings: ActivityLogSettings? = null
     
@@ -101,13 +132,20 @@ object ActivityLogManager {
                     dao = database?.activityLogDao()
                     retentionCount = settings.getActivityLogRetention()
                     loadFromDatabase()
-                    cleanupOldRecords()
+                    trim()
                 } catch (e: Exception) {
                     Timber.tag(TAG).w(e, "Failed to initialize ActivityLog database")
                     database = null
                     dao = null
                 }
 
+                scope.launch {
+                    while (true) {
+                        delay(TRIM_INTERVAL_MS)
+                        if (needsTrim.getAndSet(false)) trim()
+                    }
+                }
+
                 Timber.tag(TAG).d("ActivityLogManager initialized")
             } catch (e: Exception) {
                 Timber.tag(TAG).w(e, "Failed to initialize ActivityLogManager")
@@ -115,36 +153,26 @@ object ActivityLogManager {
         }
     }
     
-    private fun loadFromDatabase() {
-        if (dao == null) return
+    private suspend fun loadFromDatabase() {
+        val d = dao ?: return
 
-        scope.launch {
-            var retryCount = 0
-            while (retryCount < 3) {
-                try {
-                    dao!!.getAll().collect { dbLogs ->
-                        synchronized(records) {
-                            records.clear()
-                            dbLogs.forEach { log ->
-                                records.add(
-                                    ActivityLogRecord(
-                                        timestamp = log.timestamp,
-                                        appName = log.appName,
-                                        packageName = log.packageName,
-                                        action = log.action
-                                    )
-                                )
-                            }
-                            _logs.value = records.toList()
-                        }
-                    }
-                    return@launch
-                } catch (e: Exception) {
-                    retryCount++
-                    delay(500)
-                    if (retryCount >= 3) {
-                        handleDatabaseError(e)
-                    }
+        var retryCount = 0
+        while (retryCount < 3) {
+            try {
+                val stored = d.getLimited(memoryCount()).first().map { it.toRecord() }
+                synchronized(records) {
+                    // Whatever was logged while this loaded is newer, and may have been written already
+                    val logged = records.toHashSet()
+                    stored.filterNot { it in logged }.forEach { records.addLast(it) }
+                    trimMemory()
+                }
+                publish()
+                return
+            } catch (e: Exception) {
+                retryCount++
+                delay(500)
+                if (retryCount >= 3) {
+                    handleDatabaseError(e)
                 }
             }
         }
@@ -166,55 +194,63 @@ object ActivityLogManager {
             action = action
         )
         
+        append(record)
+        writer.add(record.toRoom())
+    }
+
+    private fun append(record: ActivityLogRecord) {
         synchronized(records) {
-            if (records.size >= retentionCount) {
-                records.removeAt(records.size - 1)
-            }
-            records.add(0, record)
-            _logs.value = records.toList()
+            records.addFirst(record)
+            trimMemory()
         }
-        
-        saveToDatabase(record)
-        
-        if (!isCleaningUp.get()) {
-            cleanupOldRecords()
+        schedulePublish()
+    }
+
+    private fun memoryCount() = minOf(retentionCount, MAX_IN_MEMORY)
+
+    // Callers hold the records lock
+    private fun trimMemory() {
+        val max = memoryCount()
+        while (records.size > max) records.removeLast()
+    }
+
+    private fun schedulePublish() {
+        if (publishScheduled.getAndSet(true)) return
+        scope.launch {
+            delay(PUBLISH_INTERVAL_MS)
+            publishScheduled.set(false)
+            publish()
         }
     }
+
+    private fun publish() {
+        _logs.value = synchronized(records) { records.toList() }
+    }
     
-    private fun saveToDatabase(record: ActivityLogRecord) {
+    private fun writeBatch(batch: List<ActivityLogRoom>) {
         val d = dao ?: return
-        scope.launch {
-            try {
-                val roomLog = ActivityLogRoom(
-                    timestamp = record.timestamp,
-                    appName = record.appName,
-                    packageName = record.packageName,
-                    action = record.action
-                )
-                d.insert(roomLog)
-            } catch (e: android.database.sqlite.SQLiteCantOpenDatabaseException) {
-                Timber.tag(TAG).w("Error saving log: SQLiteCantOpenDatabaseException")
-                handleDatabaseError(e)
-            } catch (e: android.database.sqlite.SQLiteDatabaseCorruptException) {
-                Timber.tag(TAG).w("Error saving log: SQLiteDatabaseCorruptException")
-                handleDatabaseError(e)
-            } catch (e: Exception) {
-                Timber.tag(TAG).w(e, "Error saving log")
-            }
+        try {
+            d.insertAllCounted(batch)
+            needsTrim.set(true)
+        } catch (e: android.database.sqlite.SQLiteCantOpenDatabaseException) {
+            Timber.tag(TAG).w("Error saving logs: SQLiteCantOpenDatabaseException")
+            handleDatabaseError(e)
+        } catch (e: android.database.sqlite.SQLiteDatabaseCorruptException) {
+            Timber.tag(TAG).w("Error saving logs: SQLiteDatabaseCorruptException")
+            handleDatabaseError(e)
+        } catch (e: Exception) {
+            Timber.tag(TAG).w(e, "Error saving ${batch.size} logs")
         }
     }
     
-    private fun cleanupOldRecords() {
-        if (isCleaningUp.getAndSet(true)) return
-        
-        scope.launch {
-            try {
+    private suspend fun trim() {
+        try {
+            writer.exclusive {
                 dao?.deleteExcess(retentionCount)
-            } catch (e: Exception) {
-                handleDatabaseError(e)
-            } finally {
-                isCleaningUp.set(false)
+                dao?.deleteHourlyBefore(System.currentTimeMillis() - HOURLY_RETENTION_MS)
             }
+        } catch (e: Exception) {
+            handleDatabaseError(e)
         }
     }
     
@@ -225,12 +261,17 @@ object ActivityLogManager {
     fun clear() {
         synchronized(records) {
             records.clear()
-            _logs.value = emptyList()
         }
+        generation++
+        _logs.value = emptyList()
+        writer.discardPending()
         
         scope.launch {
             try {
-                dao?.clear()
+                writer.exclusive {
+                    dao?.clear()
+                    dao?.clearHourly()
+                }
             } catch (e: Exception) {
                 Timber.tag(TAG).e(e, "Error clearing logs")
             }
@@ -238,30 +279,78 @@ object ActivityLogManager {
     }
     
     fun updateRetentionCount(count: Int) {
-        val newRetention = count.coerceIn(10, 1000)
+        val newRetention = count.coerceIn(10, MAX_RETENTION)
         retentionCount = newRetention
         settings?.setActivityLogRetention(newRetention)
-        cleanupOldRecords()
+        synchronized(records) {
+            trimMemory()
+        }
+        schedulePublish()
+        scope.launch { trim() }
     }
     
     fun getRetentionCount(): Int = retentionCount
+
+    /**
+     * Reads one page of stored logs matching [query], newest first. Pass [ActivityLogPage.next]
+     * back as [after] for the following page. Rows still waiting to be written are flushed before
+     * the first page, so it includes everything logged so far.
+     */
+    suspend fun queryPage(
+        query: ActivityLogQuery = ActivityLogQuery(),
+        after: ActivityLogCursor? = null,
+        pageSize: Int = DEFAULT_PAGE_SIZE
+    ): ActivityLogPage = withContext(Dispatchers.IO) {
+        val d = dao ?: return@withContext ActivityLogPage(emptyList(), null)
+        if (after == null) writer.flush()
+        val rows = d.getPage(query.toSql(after, pageSize))
+        val next = if (rows.size < pageSize) null else rows.last().let { ActivityLogCursor(it.timestamp, it.id) }
+        ActivityLogPage(rows.map { it.toRecord() }, next)
+    }
+
+    /**
+     * Per-package event counts for each hour starting in [since, until), optionally for one
+     * [packageName] only. Kept for [HOURLY_RETENTION_MS], independent of [retentionCount].
+     */
+    suspend fun hourlyCounts(
+        since: Long,
+        until: Long,
+        packageName: String? = null
+    ): List<ActivityLogHourlyRoom> = withContext(Dispatchers.IO) {
+        val d = dao ?: return@withContext emptyList()
+        writer.flush()
+        if (packageName == null) d.getHourly(since, until) else d.getHourlyForPackage(packageName, since, until)
+    }
     
     suspend fun exportToJson(directory: File, filename: String? = null): File? = withContext(Dispatchers.IO) {
         try {
-            val logs = dao?.getAll()?.first() ?: emptyList()
-            if (logs.isEmpty()) return@withContext null
+            val d = dao ?: return@withContext null
+            writer.flush()
+            // Page through the table so a large log is never held in memory at once
+            val query = ActivityLogQuery()
+            var rows = d.getPage(query.toSql(null, EXPORT_PAGE_SIZE))
+            if (rows.isEmpty()) return@withContext null
             
             val exportFile = File(directory, filename ?: "activity_logs_${getTimestampFilename()}.json")
-            FileWriter(exportFile).use { writer ->
+            FileWriter(exportFile).buffered().use { writer ->
                 writer.appendLine("[")
-                logs.forEachIndexed { index, log ->
-                    writer.appendLine("  {")
-                    writer.appendLine("    \"timestamp\": ${log.timestamp},")
-                    writer.appendLine("    \"appName\": \"${escapeJson(log.appName)}\",")
-                    writer.appendLine("    \"packageName\": \"${escapeJson(log.packageName)}\",")
-                    writer.appendLine("    \"action\": \"${escapeJson(log.action)}\"")
-                    writer.appendLine("  }${if (index < logs.size - 1) "," else ""}")
+                var first = true
+                while (rows.isNotEmpty()) {
+                    rows.forEach { log ->
+                        if (!first) writer.appendLine(",")
+                        first = false
+                        writer.appendLine("  {")
+                        writer.appendLine("    \"timestamp\": ${log.timestamp},")
+                        writer.appendLine("    \"appName\": \"${escapeJson(log.appName)}\",")
+                        writer.appendLine("    \"packageName\": \"${escapeJson(log.packageName)}\",")
+                        writer.appendLine("    \"action\": \"${escapeJson(log.action)}\"")
+                        writer.append("  }")
+                    }
+                    if (rows.size < EXPORT_PAGE_SIZE) break
+                    val last = rows.last()
+                    rows = d.getPage(query.toSql(ActivityLogCursor(last.timestamp, last.id), EXPORT_PAGE_SIZE))
                 }
+                writer.appendLine()
                 writer.appendLine("]")
             }
             exportFile
@@ -270,6 +359,20 @@ object ActivityLogManager {
         }
     }
 
+    private fun ActivityLogRecord.toRoom() = ActivityLogRoom(
+        timestamp = timestamp,
+        appName = appName,
+        packageName = packageName,
+        action = action
+    )
+
+    private fun ActivityLogRoom.toRecord() = ActivityLogRecord(
+        timestamp = timestamp,
+        appName = appName,
+        packageName = packageName,
+        action = action
+    )
+
     private fun getTimestampFilename(): String {
         return SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(Date())
     }
@@ -345,17 +448,8 @@ object ActivityLogManager {
                     }
                 )
                 
-                synchronized(records) {
-                    records.add(0, recoveryRecord)
-                    _logs.value = records.toList()
-                }
-                
-                dao?.insert(ActivityLogRoom(
-                    timestamp = recoveryRecord.timestamp,
-                    appName = recoveryRecord.appName,
-                    packageName = recoveryRecord.packageName,
-                    action = recoveryRecord.action
-                ))
+                append(recoveryRecord)
+                dao?.insert(recoveryRecord.toRoom())
             } catch (resetError: Exception) {
                 Timber.tag(TAG).e(resetError, "CRITICAL: Failed to autofix database!")
             } finally {
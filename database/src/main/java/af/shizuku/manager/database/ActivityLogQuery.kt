@@ -0,0 +1,69 @@
+package af.shizuku.manager.database
+
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteQuery
+
+/**
+ * Filter for [ActivityLogManager.queryPage]. Every field is optional; [since] is inclusive and
+ * [until] exclusive, both in milliseconds since the epoch.
+ */
+data class ActivityLogQuery(
+    val since: Long? = null,
+    val until: Long? = null,
+    val packageName: String? = null,
+    val action: String? = null
+) {
+
+    /**
+     * The page of at most [limit] rows after [after], newest first. Pages are keyed on
+     * (timestamp, id) rather than an OFFSET, so reading deep into a large log costs the same as
+     * reading the first page, and rows logged meanwhile don't shift later pages.
+     */
+    fun toSql(after: ActivityLogCursor?, limit: Int): SupportSQLiteQuery {
+        val where = ArrayList<String>()
+        val args = ArrayList<Any>()
+        packageName?.let {
+            where.add("packageName = ?")
+            args.add(it)
+        }
+        action?.let {
+            where.add("action = ?")
+            args.add(it)
+        }
+        since?.let {
+            where.add("timestamp >= ?")
+            args.add(it)
+        }
+        until?.let {
+            where.add("timestamp < ?")
+            args.add(it)
+        }
+        after?.let {
+            // Not a row value comparison, which needs SQLite 3.15 (API 26)
+            where.add("(timestamp < ? OR (timestamp = ? AND id < ?))")
+            args.add(it.timestamp)
+            args.add(it.timestamp)
+            args.add(it.id)
+        }
+        val sql = buildString {
+            append("SELECT * FROM activity_logs")
+            if (where.isNotEmpty()) where.joinTo(this, " AND ", prefix = " WHERE ")
+            append(" ORDER BY timestamp DESC, id DESC LIMIT ?")
+        }
+        args.add(limit)
+        return SimpleSQLiteQuery(sql, args.toArray())
+    }
+}
+
+/**
+ * Position just past the last row of a page; pass it back to get the next one.
+ */
+data class ActivityLogCursor(val timestamp: Long, val id: Long)
+
+/**
+ * One page from [ActivityLogManager.queryPage]. [next] is null on the last page.
+ */
+data class ActivityLogPage(
+    val records: List<ActivityLogRecord>,
+    val next: ActivityLogCursor?
+)
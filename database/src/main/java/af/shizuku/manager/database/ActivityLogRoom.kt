@@ -17,10 +17,12 @@ import androidx.room.Index
  */
 @Entity(
     tableName = "activity_logs",
+    // The filtered indices end in timestamp (and, implicitly, the id rowid), so a filtered page in
+    // [ActivityLogDao.getPage] is a range scan in index order with no sort step.
     indices = [
         Index(value = ["timestamp"]),
-        Index(value = ["packageName"]),
-        Index(value = ["action"])
+        Index(value = ["packageName", "timestamp"]),
+        Index(value = ["action", "timestamp"])
     ]
 )
 data class ActivityLogRoom(
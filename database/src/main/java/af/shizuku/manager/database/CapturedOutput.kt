@@ -0,0 +1,127 @@
+package af.shizuku.manager.database
+
+import timber.log.Timber
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.SequenceInputStream
+
+/**
+ * Captured output of one stream of a process, see [ProcessCaptureEngine].
+ *
+ * The first [memoryLimit] bytes stay in memory. The rest goes to a temp file in [spillDir], or
+ * is dropped if there's none, in which case [truncated] is set. [close] deletes the temp file.
+ */
+class CapturedOutput internal constructor(
+    private val memoryLimit: Int,
+    private val spillDir: File?,
+) : Closeable {
+
+    private val memory = ByteArrayOutputStream(minOf(memoryLimit, INITIAL_CAPACITY))
+    private var spillFile: File? = null
+    private var spill: OutputStream? = null
+
+    /** Bytes kept, in memory and spilled. */
+    var size = 0L
+        @Synchronized get
+        private set
+
+    /** Whether output was dropped: past [memoryLimit] with nowhere to spill, or cut off. */
+    var truncated = false
+        @Synchronized get
+        private set
+
+    @Synchronized
+    internal fun append(data: ByteArray, offset: Int, length: Int) {
+        var position = offset
+        var remaining = length
+        val room = memoryLimit - memory.size()
+        if (room > 0) {
+            val n = minOf(room, remaining)
+            memory.write(data, position, n)
+            position += n
+            remaining -= n
+            size += n
+        }
+        if (remaining == 0) return
+        val out = spill ?: openSpill()
+        if (out == null) {
+            truncated = true
+            return
+        }
+        try {
+            out.write(data, position, remaining)
+            size += remaining
+        } catch (e: IOException) {
+            Timber.w(e, "CapturedOutput: spill write failed")
+            truncated = true
+            closeSpill()
+        }
+    }
+
+    private fun openSpill(): OutputStream? {
+        if (spillDir == null || truncated) return null
+        return try {
+            val file = File.createTempFile("capture", ".out", spillDir)
+            spillFile = file
+            FileOutputStream(file).buffered(SPILL_BUFFER_SIZE).also { spill = it }
+        } catch (e: IOException) {
+            Timber.w(e, "CapturedOutput: can't spill to $spillDir")
+            null
+        }
+    }
+
+    private fun closeSpill() {
+        try {
+            spill?.close()
+        } catch (_: IOException) {
+        }
+        spill = null
+    }
+
+    /** Marks the output as cut off before the stream ended. */
+    @Synchronized
+    internal fun markTruncated() {
+        truncated = true
+    }
+
+    /** Flushes the spill file; no more output follows. */
+    @Synchronized
+    internal fun finish() {
+        closeSpill()
+    }
+
+    /** Whether part of the output lives in a temp file. */
+    val isSpilled: Boolean
+        @Synchronized get() = spillFile != null
+
+    /** Reads back everything kept, memory first, then the spill file. */
+    @Synchronized
+    fun openStream(): InputStream {
+        spill?.flush()
+        val head = ByteArrayInputStream(memory.toByteArray())
+        val file = spillFile ?: return head
+        return SequenceInputStream(head, FileInputStream(file))
+    }
+
+    /** Everything kept, decoded as UTF-8. Reads the whole spill file, if any, into memory. */
+    fun text(): String = openStream().use { String(it.readBytes(), Charsets.UTF_8) }
+
+    @Synchronized
+    override fun close() {
+        closeSpill()
+        spillFile?.delete()
+        spillFile = null
+    }
+
+    private companion object {
+        const val INITIAL_CAPACITY = 256
+        const val SPILL_BUFFER_SIZE = 64 * 1024
+    }
+}
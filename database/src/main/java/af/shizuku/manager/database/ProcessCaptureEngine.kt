@@ -0,0 +1,418 @@
+package af.shizuku.manager.database
+
+import android.os.RemoteException
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
+import kotlinx.coroutines.suspendCancellableCoroutine
+import timber.log.Timber
+import java.io.Closeable
+import java.io.File
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.resume
+
+/**
+ * Drains the stdout and stderr of many running processes on one thread.
+ *
+ * Every stream backed by a file descriptor (Shizuku's remote processes hand out pipe fds) is
+ * watched with `poll(2)` and read only when it has data, so any number of running commands
+ * costs one poller thread instead of two blocked drain threads each. Exit codes are collected
+ * on a small shared pool once both streams end. Streams without an fd fall back to a pooled
+ * blocking drain.
+ *
+ * If the process exits while something it started (a background job, say) still holds its
+ * output pipes open, the streams are cut off [CaptureOptions.exitGraceMs] later and the result
+ * is marked [CaptureResult.truncated], rather than waiting forever.
+ */
+class ProcessCaptureEngine internal constructor(private val io: Io) {
+
+    /** How the poller thread waits for output. */
+    internal interface Io {
+
+        /** Whether [input] can be handed to [await]; other streams are drained on a thread of their own. */
+        fun canWatch(input: InputStream): Boolean
+
+        /**
+         * Blocks until one of [inputs] has data or has ended, [wake] is called, or [timeoutMs]
+         * passes (-1: no limit), and sets [ready] for the ones a read won't block on.
+         */
+        @Throws(IOException::class)
+        fun await(inputs: List<InputStream>, ready: BooleanArray, timeoutMs: Int)
+
+        fun wake()
+    }
+
+    /** Tuning for one capture. */
+    data class CaptureOptions(
+        /** Bytes of each stream kept in memory, see [CapturedOutput]. */
+        val memoryLimit: Int = DEFAULT_MEMORY_LIMIT,
+        /** Where output past [memoryLimit] goes; dropped if null. */
+        val spillDir: File? = null,
+        /** Kills the process after this long; 0 for no limit. */
+        val timeoutMs: Long = 0,
+        /** How long the streams may stay open after the process exits. */
+        val exitGraceMs: Long = DEFAULT_EXIT_GRACE_MS,
+    )
+
+    /**
+     * Streaming output, called on the poller thread as data arrives; it must not block.
+     * [stream] is [STDOUT] or [STDERR].
+     */
+    fun interface OutputListener {
+        fun onOutput(stream: Int, data: ByteArray, offset: Int, length: Int)
+    }
+
+    /** Outcome of a capture. Closing it deletes any spill files. */
+    class CaptureResult internal constructor(
+        val exitCode: Int,
+        val stdout: CapturedOutput,
+        val stderr: CapturedOutput,
+        val cancelled: Boolean,
+        val timedOut: Boolean,
+    ) : Closeable {
+        val truncated get() = stdout.truncated || stderr.truncated
+
+        override fun close() {
+            stdout.close()
+            stderr.close()
+        }
+    }
+
+    /** One running capture. */
+    inner class Capture internal constructor(
+        val process: Process,
+        internal val options: CaptureOptions,
+        internal val listener: OutputListener?,
+    ) {
+        internal val stdout = CapturedOutput(options.memoryLimit, options.spillDir)
+        internal val stderr = CapturedOutput(options.memoryLimit, options.spillDir)
+        internal val openSources = AtomicInteger(2)
+        internal val startedAt = now()
+
+        // Poller thread only
+        internal var lastExitCheck = startedAt
+        internal var exitedAt = 0L
+
+        private val cancelled = AtomicBoolean()
+
+        @Volatile
+        private var timedOut = false
+
+        internal val future = CompletableFuture<CaptureResult>()
+
+        /** Kills the process; the result keeps whatever was captured until then. */
+        fun cancel() {
+            if (future.isDone || !cancelled.compareAndSet(false, true)) return
+            try {
+                process.destroy()
+            } catch (e: Exception) {
+                Timber.v(e, "ProcessCaptureEngine: destroy failed")
+            }
+        }
+
+        internal fun timeOut() {
+            timedOut = true
+            cancel()
+        }
+
+        /** Blocks until the streams have ended and the exit code is known. */
+        fun await(): CaptureResult = future.get()
+
+        /** Like [await], but cancels the capture if the calling coroutine is cancelled. */
+        suspend fun awaitSuspending(): CaptureResult = suspendCancellableCoroutine { continuation ->
+            future.whenComplete { result, _ -> continuation.resume(result) }
+            continuation.invokeOnCancellation { cancel() }
+        }
+
+        internal fun onSourceClosed() {
+            if (openSources.decrementAndGet() == 0) {
+                completer.execute(::complete)
+            }
+        }
+
+        private fun complete() {
+            val exitCode = try {
+                process.waitFor()
+            } catch (e: Exception) {
+                Timber.v(e, "ProcessCaptureEngine: waitFor failed")
+                -1
+            }
+            stdout.finish()
+            stderr.finish()
+            future.complete(CaptureResult(exitCode, stdout, stderr, cancelled.get(), timedOut))
+        }
+    }
+
+    private inner class Source(
+        val capture: Capture,
+        val stream: Int,
+        val input: InputStream,
+    ) {
+        val output get() = if (stream == STDOUT) capture.stdout else capture.stderr
+
+        /**
+         * Reads what's available, which never blocks after [Io.await] reported it ready.
+         *
+         * @return false once the stream has ended.
+         */
+        fun read(): Boolean {
+            val n = try {
+                input.read(readBuffer)
+            } catch (e: Exception) {
+                Timber.v(e, "ProcessCaptureEngine: read failed")
+                -1
+            }
+            if (n <= 0) return false
+            deliver(capture, stream, readBuffer, n)
+            return true
+        }
+
+        fun close() {
+            try {
+                input.close()
+            } catch (_: Exception) {
+            }
+            capture.onSourceClosed()
+        }
+    }
+
+    // Poller thread only
+    private val sources = ArrayList<Source>()
+    private val readBuffer = ByteArray(READ_BUFFER_SIZE)
+
+    private val pending = ConcurrentLinkedQueue<Source>()
+
+    // Collects exit codes and fires timeouts; waitFor() only blocks briefly once the streams ended
+    private val completer = ScheduledThreadPoolExecutor(COMPLETER_THREADS) { r ->
+        Thread(r, "ProcessCaptureComplete").apply { isDaemon = true }
+    }
+
+    // Streams without an fd, which can't be polled
+    private val fallbackDrains = Executors.newCachedThreadPool { r ->
+        Thread(r, "ProcessCaptureDrain").apply { isDaemon = true }
+    }
+
+    init {
+        Thread(::loop, "ProcessCapturePoller").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Starts draining [process]. The caller still owns its stdin and should write to or close it.
+     */
+    fun capture(
+        process: Process,
+        options: CaptureOptions = CaptureOptions(),
+        listener: OutputListener? = null,
+    ): Capture {
+        val capture = Capture(process, options, listener)
+        watch(capture, STDOUT, process.inputStream)
+        watch(capture, STDERR, process.errorStream)
+        if (options.timeoutMs > 0) {
+            val timeout = completer.schedule(capture::timeOut, options.timeoutMs, TimeUnit.MILLISECONDS)
+            capture.future.whenComplete { _, _ -> timeout.cancel(false) }
+        }
+        return capture
+    }
+
+    private fun watch(capture: Capture, stream: Int, input: InputStream) {
+        if (!io.canWatch(input)) {
+            fallbackDrains.execute { drainBlocking(capture, stream, input) }
+            return
+        }
+        pending.add(Source(capture, stream, input))
+        io.wake()
+    }
+
+    private fun drainBlocking(capture: Capture, stream: Int, input: InputStream) {
+        val buffer = ByteArray(READ_BUFFER_SIZE)
+        try {
+            input.use {
+                while (true) {
+                    val n = it.read(buffer)
+                    if (n <= 0) break
+                    deliver(capture, stream, buffer, n)
+                }
+            }
+        } catch (e: Exception) {
+            Timber.v(e, "ProcessCaptureEngine: drain failed")
+        }
+        capture.onSourceClosed()
+    }
+
+    private fun deliver(capture: Capture, stream: Int, data: ByteArray, length: Int) {
+        (if (stream == STDOUT) capture.stdout else capture.stderr).append(data, 0, length)
+        val listener = capture.listener ?: return
+        try {
+            listener.onOutput(stream, data, 0, length)
+        } catch (e: Exception) {
+            Timber.w(e, "ProcessCaptureEngine: output listener failed")
+        }
+    }
+
+    private fun loop() {
+        while (true) {
+            try {
+                poll()
+            } catch (e: Exception) {
+                // Shouldn't happen; don't leave anyone waiting on streams we can no longer watch
+                Timber.e(e, "ProcessCaptureEngine: poll failed, cutting off ${sources.size} streams")
+                for (source in sources) {
+                    source.output.markTruncated()
+                    source.close()
+                }
+                sources.clear()
+            }
+        }
+    }
+
+    private fun poll() {
+        while (true) {
+            sources.add(pending.poll() ?: break)
+        }
+        val ready = BooleanArray(sources.size)
+        val timeout = if (sources.isEmpty()) -1 else EXIT_CHECK_INTERVAL_MS.toInt()
+        io.await(sources.map(Source::input), ready, timeout)
+
+        val closed = ArrayList<Source>()
+        for (i in sources.indices) {
+            val source = sources[i]
+            if (ready[i] && !source.read()) {
+                closed.add(source)
+            }
+        }
+        if (closed.isNotEmpty()) {
+            sources.removeAll(closed.toSet())
+            closed.forEach(Source::close)
+        }
+        cutOffExited()
+    }
+
+    /**
+     * Ends the streams of processes that exited more than [CaptureOptions.exitGraceMs] ago but
+     * whose pipes something else still holds open.
+     */
+    private fun cutOffExited() {
+        if (sources.isEmpty()) return
+        val now = now()
+        val expired = ArrayList<Source>()
+        for (source in sources) {
+            val capture = source.capture
+            if (capture.exitedAt == 0L) {
+                if (now - capture.lastExitCheck < EXIT_CHECK_INTERVAL_MS) continue
+                capture.lastExitCheck = now
+                if (!hasExited(capture.process)) continue
+                capture.exitedAt = now
+            }
+            if (now - capture.exitedAt >= capture.options.exitGraceMs) {
+                expired.add(source)
+            }
+        }
+        if (expired.isEmpty()) return
+        Timber.w("ProcessCaptureEngine: output pipes still open after exit, cutting off ${expired.size} streams")
+        sources.removeAll(expired.toSet())
+        for (source in expired) {
+            source.output.markTruncated()
+            source.close()
+        }
+    }
+
+    private class PollIo : Io {
+
+        private val wakeRead: FileDescriptor
+        private val wakeWrite: FileDescriptor
+        private val wakeScheduled = AtomicBoolean()
+        private val wakeBuffer = ByteArray(64)
+
+        init {
+            val pipe = Os.pipe()
+            wakeRead = pipe[0]
+            wakeWrite = pipe[1]
+        }
+
+        override fun canWatch(input: InputStream) = (input as? FileInputStream)?.fd?.valid() == true
+
+        override fun await(inputs: List<InputStream>, ready: BooleanArray, timeoutMs: Int) {
+            val fds = Array(inputs.size + 1) { StructPollfd() }
+            fds[0].fd = wakeRead
+            fds[0].events = OsConstants.POLLIN.toShort()
+            for (i in inputs.indices) {
+                fds[i + 1].fd = (inputs[i] as FileInputStream).fd
+                fds[i + 1].events = OsConstants.POLLIN.toShort()
+            }
+            try {
+                Os.poll(fds, timeoutMs)
+                if (fds[0].revents.toInt() != 0) {
+                    wakeScheduled.set(false)
+                    // Drained before the caller reads pending, so a wake() racing with this isn't lost
+                    Os.read(wakeRead, wakeBuffer, 0, wakeBuffer.size)
+                }
+            } catch (e: ErrnoException) {
+                if (e.errno == OsConstants.EINTR) return
+                throw IOException(e)
+            }
+            val mask = OsConstants.POLLIN or OsConstants.POLLHUP or OsConstants.POLLERR or OsConstants.POLLNVAL
+            for (i in inputs.indices) {
+                ready[i] = fds[i + 1].revents.toInt() and mask != 0
+            }
+        }
+
+        override fun wake() {
+            if (!wakeScheduled.compareAndSet(false, true)) return
+            try {
+                Os.write(wakeWrite, WAKE_BYTE, 0, 1)
+            } catch (e: Exception) {
+                Timber.e(e, "ProcessCaptureEngine: wake failed")
+            }
+        }
+    }
+
+    companion object {
+        const val STDOUT = 1
+        const val STDERR = 2
+
+        const val DEFAULT_MEMORY_LIMIT = 1024 * 1024
+        const val DEFAULT_EXIT_GRACE_MS = 1500L
+
+        private const val READ_BUFFER_SIZE = 64 * 1024
+        private const val COMPLETER_THREADS = 2
+        private const val EXIT_CHECK_INTERVAL_MS = 500L
+        private val WAKE_BYTE = byteArrayOf(1)
+
+        /** The engine every caller shares. */
+        val shared by lazy { ProcessCaptureEngine(PollIo()) }
+
+        // Not SystemClock, which a paused test clock would stop
+        private fun now() = System.nanoTime() / 1_000_000
+
+        /**
+         * Whether [process] is known to have exited. A remote process relays the server's
+         * IllegalThreadStateException as a plain IllegalArgumentException, so that and any
+         * other failure count as still running; only a dead binder means the process is gone.
+         */
+        internal fun hasExited(process: Process): Boolean = try {
+            process.exitValue()
+            true
+        } catch (_: IllegalArgumentException) {
+            false
+        } catch (_: IllegalStateException) {
+            false
+        } catch (e: Exception) {
+            Timber.v(e, "ProcessCaptureEngine: exitValue failed")
+            generateSequence<Throwable>(e) { it.cause }.any { it is RemoteException }
+        }
+    }
+}
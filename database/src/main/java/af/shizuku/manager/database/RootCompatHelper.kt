@@ -3,12 +3,19 @@ package af.shizuku.manager.database
 import android.content.Context
 import android.content.pm.PackageManager
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
 import rikka.shizuku.Shizuku
 import timber.log.Timber
 
 object RootCompatHelper {
 
+    private const val MAX_CONCURRENT_SETUPS = 8
+
     private fun escapeSed(s: String) = s
         .replace("\\", "\\\\")
         .replace("|", "\\|")
@@ -118,23 +125,23 @@ object RootCompatHelper {
 
         val pm = context.packageManager
         val installedPackages = pm.getInstalledPackages(PackageManager.GET_PERMISSIONS)
-        var processedCount = 0
-
         val automatable = GLOBAL_SETTINGS_APPS.keys + if (isShizukuRoot()) ROOT_PREFS_APPS.keys else emptySet()
 
-        for (pkgInfo in installedPackages) {
-            val pkg = pkgInfo.packageName
-            if (pkg == context.packageName) continue
+        // Only count apps we actually auto-configured. Non-automatable apps (the vast majority of
+        // what's installed) can't be set up from here — we don't know their SU-path storage format
+        // — so they must NOT inflate the count, or the "configured N apps" toast claims to have
+        // set up every app on the device.
+        val targets = installedPackages.map { it.packageName }
+            .filter { it != context.packageName && it in automatable }
 
-            // Only count apps we actually auto-configured. Non-automatable apps (the vast majority of
-            // what's installed) can't be set up from here — we don't know their SU-path storage format
-            // — so they must NOT inflate the count, or the "configured N apps" toast claims to have
-            // set up every app on the device.
-            if (pkg in automatable && autoSetup(context, pkg, effectiveSuPath)) {
-                processedCount++
-            }
+        // Each app is independent, so set them up concurrently; waiting on a command takes no
+        // thread (see capturePrivileged), the semaphore just keeps the burst of processes sane
+        val permits = Semaphore(MAX_CONCURRENT_SETUPS)
+        coroutineScope {
+            targets.map { pkg ->
+                async { permits.withPermit { autoSetup(context, pkg, effectiveSuPath) } }
+            }.awaitAll().count { it }
         }
-        processedCount
     }
 
     /**
@@ -293,11 +300,12 @@ object RootCompatHelper {
         return Triple(result.exitCode, result.stdout, result.stderr)
     }
 
-    private fun executePrivileged(cmd: Array<String>): Boolean {
+    private suspend fun executePrivileged(cmd: Array<String>): Boolean {
         if (!Shizuku.pingBinder()) {
             Timber.w("RootCompatHelper: Shizuku binder not available, skipping command")
             return false
         }
-        return ShizukuProcessUtils.runPrivilegedCapture(cmd, joinTimeoutMs = 500).exitCode == 0
+        val options = ProcessCaptureEngine.CaptureOptions(exitGraceMs = 500)
+        return ShizukuProcessUtils.capturePrivileged(cmd, options).exitCode == 0
     }
 }
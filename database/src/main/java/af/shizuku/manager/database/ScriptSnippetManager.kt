@@ -5,6 +5,7 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.withContext
 import timber.log.Timber
+import java.io.File
 
 /** Result of running a saved snippet through the privileged shell channel. */
 data class ScriptRunResult(val exitCode: Int, val stdout: String, val stderr: String)
@@ -12,15 +13,20 @@ data class ScriptRunResult(val exitCode: Int, val stdout: String, val stderr: St
 /**
  * Manager for saved script snippets (Scripting & Snippets, #11) — persistence plus running a
  * snippet through the same privileged shell channel the rest of the app uses, via the shared
- * [ShizukuProcessUtils.runPrivilegedCapture].
+ * [ShizukuProcessUtils.capturePrivileged].
  */
 object ScriptSnippetManager {
 
     @Volatile
     private var dao: ScriptSnippetDao? = null
 
+    // Where a snippet's output past ProcessCaptureEngine's in-memory limit spills to
+    @Volatile
+    private var spillDir: File? = null
+
     fun initialize(context: Context) {
         if (dao != null) return
+        spillDir = context.applicationContext.cacheDir
         dao = ScriptSnippetDatabase.getInstance(context.applicationContext).scriptSnippetDao()
     }
 
@@ -66,10 +72,12 @@ object ScriptSnippetManager {
 
     /**
      * Runs [script] via `sh -c` through Shizuku's privileged process API and captures stdout,
-     * stderr, and the exit code, via the shared [ShizukuProcessUtils.runPrivilegedCapture].
+     * stderr, and the exit code, via the shared [ShizukuProcessUtils.capturePrivileged].
+     * Cancelling the caller kills the script.
      */
-    suspend fun run(script: String): ScriptRunResult = withContext(Dispatchers.IO) {
-        val result = ShizukuProcessUtils.runPrivilegedCapture(arrayOf("sh", "-c", script), joinTimeoutMs = 5000)
-        ScriptRunResult(result.exitCode, result.stdout, result.stderr)
+    suspend fun run(script: String): ScriptRunResult {
+        val options = ProcessCaptureEngine.CaptureOptions(spillDir = spillDir, exitGraceMs = 5000)
+        val result = ShizukuProcessUtils.capturePrivileged(arrayOf("sh", "-c", script), options)
+        return ScriptRunResult(result.exitCode, result.stdout, result.stderr)
     }
 }
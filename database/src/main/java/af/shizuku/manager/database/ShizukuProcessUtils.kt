@@ -1,73 +1,138 @@
 package af.shizuku.manager.database
 
+import af.shizuku.common.util.CommandBatch
+import android.os.Parcel
 import java.io.OutputStream
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import rikka.shizuku.Shizuku
+import rikka.shizuku.ShizukuApiConstants
 import timber.log.Timber
 
-/** Result of a privileged command run through [ShizukuProcessUtils.runPrivilegedCapture]. */
-data class ShizukuCaptureResult(val exitCode: Int, val stdout: String, val stderr: String)
+/**
+ * Result of a privileged command run through [ShizukuProcessUtils.runPrivilegedCapture].
+ * [truncated] is set if output was dropped or cut off, see [ProcessCaptureEngine].
+ */
+data class ShizukuCaptureResult(
+    val exitCode: Int,
+    val stdout: String,
+    val stderr: String,
+    val truncated: Boolean = false,
+)
 
 /**
  * Shared helper for running commands through `Shizuku.newProcess` and capturing their output.
  * Extracted from the copy-pasted drain logic that used to live separately in
  * `RootCompatHelper` (executePrivileged/streamToPrivilegedFile/runPrivilegedCapture) and
- * `ScriptSnippetManager.run`.
+ * `ScriptSnippetManager.run`. Output is drained by the shared [ProcessCaptureEngine], so
+ * running many commands at once doesn't take two threads each.
  */
 object ShizukuProcessUtils {
 
     /**
-     * Runs [cmd] via Shizuku's privileged process API, draining stdout/stderr on background
-     * threads so a full pipe buffer can't hang the child. If [writeStdin] is given it's invoked
-     * with the process's stdin before waiting (the lambda must close it, e.g. via `.use { }`, so
-     * the child sees EOF); otherwise stdin is closed immediately. [joinTimeoutMs] bounds how long
-     * we wait for the drain threads once the process exits.
+     * Runs [cmd] via Shizuku's privileged process API and blocks until it's done. If
+     * [writeStdin] is given it's invoked with the process's stdin before waiting (the lambda
+     * must close it, e.g. via `.use { }`, so the child sees EOF); otherwise stdin is closed
+     * immediately. [joinTimeoutMs] bounds how long output may keep coming once the process
+     * exits, for when something it started still holds its pipes.
      */
     fun runPrivilegedCapture(
         cmd: Array<String>,
-        joinTimeoutMs: Long = 1500,
+        joinTimeoutMs: Long = ProcessCaptureEngine.DEFAULT_EXIT_GRACE_MS,
         writeStdin: ((OutputStream) -> Unit)? = null
     ): ShizukuCaptureResult {
         if (!Shizuku.pingBinder()) {
             return ShizukuCaptureResult(-1, "", "Shizuku binder not available")
         }
         return try {
-            val process = Shizuku.newProcess(cmd, null, null)
-            // StringBuffer (not StringBuilder) on purpose: the drain threads append() while the
-            // caller thread may read toString() on the join-timeout path below. StringBuffer's
-            // per-method synchronization makes that concurrent access safe (a torn read of a
-            // StringBuilder can throw AIOOBE / return corrupt text); worst case here is a partial
-            // but well-formed snapshot, which the "may be truncated" warning already covers.
-            val out = StringBuffer()
-            val err = StringBuffer()
-            val outT = Thread {
-                try {
-                    process.inputStream.bufferedReader().use { out.append(it.readText()) }
-                } catch (e: Exception) {
-                    Timber.v(e, "runPrivilegedCapture: stdout drain failed")
-                }
-            }
-            val errT = Thread {
-                try {
-                    process.errorStream.bufferedReader().use { err.append(it.readText()) }
-                } catch (e: Exception) {
-                    Timber.v(e, "runPrivilegedCapture: stderr drain failed")
-                }
-            }
-            outT.start(); errT.start()
-            if (writeStdin != null) {
-                writeStdin(process.outputStream)
-            } else {
-                try { process.outputStream.close() } catch (_: Exception) {}
-            }
-            val exitCode = process.waitFor()
-            outT.join(joinTimeoutMs); errT.join(joinTimeoutMs)
-            if (outT.isAlive || errT.isAlive) {
-                Timber.w("runPrivilegedCapture: drain thread still running after ${joinTimeoutMs}ms join timeout; output may be truncated")
-            }
-            ShizukuCaptureResult(exitCode, out.toString(), err.toString())
+            val capture = startPrivilegedCapture(cmd, ProcessCaptureEngine.CaptureOptions(exitGraceMs = joinTimeoutMs))
+            feedStdin(capture.process, writeStdin)
+            capture.await().toShizukuResult()
         } catch (e: Exception) {
             Timber.w(e, "runPrivilegedCapture failed")
             ShizukuCaptureResult(-1, "", e.message ?: e.javaClass.simpleName)
         }
     }
+
+    /**
+     * Suspending [runPrivilegedCapture]: waiting takes no thread, so callers can run many at
+     * once. Cancelling the coroutine kills the process. [listener] gets output as it arrives.
+     */
+    suspend fun capturePrivileged(
+        cmd: Array<String>,
+        options: ProcessCaptureEngine.CaptureOptions = ProcessCaptureEngine.CaptureOptions(),
+        listener: ProcessCaptureEngine.OutputListener? = null,
+        writeStdin: ((OutputStream) -> Unit)? = null
+    ): ShizukuCaptureResult {
+        return try {
+            val capture = withContext(Dispatchers.IO) {
+                if (!Shizuku.pingBinder()) return@withContext null
+                startPrivilegedCapture(cmd, options, listener).also { feedStdin(it.process, writeStdin) }
+            } ?: return ShizukuCaptureResult(-1, "", "Shizuku binder not available")
+            val result = capture.awaitSuspending()
+            // Output past the memory limit may have to be read back from a spill file
+            withContext(Dispatchers.IO) { result.toShizukuResult() }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Timber.w(e, "capturePrivileged failed")
+            ShizukuCaptureResult(-1, "", e.message ?: e.javaClass.simpleName)
+        }
+    }
+
+    /**
+     * Runs [commands] inside the server in a single binder call instead of one `newProcess` per
+     * command. [flags] are [CommandBatch] flags; [timeoutMs] applies to each command (0 for the
+     * server's default). stdin is closed and each stream is capped, so this suits short steps like
+     * `setprop`, not commands that need input or produce a lot of output.
+     *
+     * Returns one result per command, or null if Shizuku isn't available or the running server
+     * predates the batch call; callers then fall back to running the commands one by one.
+     */
+    fun runPrivilegedBatch(
+        commands: List<Array<String>>,
+        flags: Int = 0,
+        timeoutMs: Long = 0,
+    ): List<CommandBatch.Result>? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        return try {
+            val binder = Shizuku.getBinder()
+            if (binder == null || !Shizuku.pingBinder()) return null
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR)
+            CommandBatch.writeRequest(data, flags, timeoutMs, commands)
+            if (!binder.transact(CommandBatch.TRANSACTION, data, reply, 0)) return null
+            reply.readException()
+            CommandBatch.readResults(reply)
+        } catch (e: Exception) {
+            Timber.w(e, "runPrivilegedBatch failed")
+            null
+        } finally {
+            reply.recycle()
+            data.recycle()
+        }
+    }
+
+    private fun startPrivilegedCapture(
+        cmd: Array<String>,
+        options: ProcessCaptureEngine.CaptureOptions,
+        listener: ProcessCaptureEngine.OutputListener? = null,
+    ): ProcessCaptureEngine.Capture {
+        val process = Shizuku.newProcess(cmd, null, null)
+        return ProcessCaptureEngine.shared.capture(process, options, listener)
+    }
+
+    private fun feedStdin(process: Process, writeStdin: ((OutputStream) -> Unit)?) {
+        if (writeStdin != null) {
+            writeStdin(process.outputStream)
+        } else {
+            try { process.outputStream.close() } catch (_: Exception) {}
+        }
+    }
+
+    private fun ProcessCaptureEngine.CaptureResult.toShizukuResult() = use {
+        if (truncated) Timber.w("runPrivilegedCapture: output truncated")
+        ShizukuCaptureResult(exitCode, stdout.text(), stderr.text(), truncated)
+    }
 }
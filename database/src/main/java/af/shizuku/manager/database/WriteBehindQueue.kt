@@ -0,0 +1,104 @@
+package af.shizuku.manager.database
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
+import timber.log.Timber
+
+/**
+ * Collects items and hands them to [write] in batches: as soon as [maxBatch] are pending, or
+ * [maxDelayMs] after the first item of a batch arrived, whichever comes first. Only one [write]
+ * runs at a time.
+ *
+ * At most [maxPending] items wait; past that the oldest are dropped. For a log with a retention
+ * limit no larger than that, those are rows the next trim would delete anyway.
+ */
+internal class WriteBehindQueue<T>(
+    scope: CoroutineScope,
+    private val maxBatch: Int,
+    private val maxDelayMs: Long,
+    private val maxPending: Int,
+    private val write: suspend (List<T>) -> Unit,
+) {
+
+    private val pending = ArrayDeque<T>()
+    private val wake = Channel<Unit>(Channel.CONFLATED)
+    private val writeLock = Mutex()
+
+    /** Items dropped because [maxPending] were already waiting. */
+    var dropped = 0L
+        @Synchronized get
+        private set
+
+    init {
+        scope.launch { run() }
+    }
+
+    fun add(item: T) {
+        val size = synchronized(this) {
+            if (pending.size >= maxPending) {
+                pending.removeFirst()
+                dropped++
+            }
+            pending.addLast(item)
+            pending.size
+        }
+        if (size == 1 || size >= maxBatch) {
+            wake.trySend(Unit)
+        }
+    }
+
+    /** Forgets everything not written yet. */
+    fun discardPending() {
+        synchronized(this) {
+            pending.clear()
+        }
+    }
+
+    /** Writes everything pending now, without waiting for the batch delay. */
+    suspend fun flush() {
+        writeLock.withLock {
+            while (true) {
+                val batch = take()
+                if (batch.isEmpty()) break
+                write(batch)
+            }
+        }
+    }
+
+    /** Runs [block] while no batch is being written, e.g. to clear or trim the table. */
+    suspend fun <R> exclusive(block: suspend () -> R): R = writeLock.withLock { block() }
+
+    private fun take(): List<T> = synchronized(this) {
+        List(minOf(pending.size, maxBatch)) { pending.removeFirst() }
+    }
+
+    private fun pendingSize() = synchronized(this) { pending.size }
+
+    private suspend fun run() {
+        while (true) {
+            wake.receive()
+            if (pendingSize() < maxBatch) {
+                // Give the rest of the batch a chance to arrive
+                withTimeoutOrNull(maxDelayMs) {
+                    while (pendingSize() < maxBatch) {
+                        wake.receive()
+                    }
+                }
+            }
+            try {
+                flush()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Timber.w(e, "WriteBehindQueue: write failed")
+                // What's left would otherwise wait for the next add() to fill a batch
+                if (pendingSize() > 0) wake.trySend(Unit)
+            }
+        }
+    }
+}
@@ -123,4 +123,69 @@ class ActivityLogDaoTest {
     fun getOldest_returns_null_when_empty() = runTest {
         dao.getOldest() shouldBe null
     }
+
+    @Test
+    fun getPage_walks_filtered_logs_newest_first_with_ties() = runTest {
+        dao.insertAll((1..7).map {
+            // Two rows per timestamp, so pages have to break ties on id
+            ActivityLogRoom(timestamp = (it / 2) * 1000L, appName = "App", packageName = if (it == 4) "other" else "pkg", action = "ACTION")
+        })
+        val query = ActivityLogQuery(packageName = "pkg")
+
+        val first = dao.getPage(query.toSql(null, 4))
+        first shouldHaveSize 4
+        val second = dao.getPage(query.toSql(ActivityLogCursor(first.last().timestamp, first.last().id), 4))
+        second shouldHaveSize 2
+
+        val ids = (first + second).map { it.id }
+        ids shouldBe listOf(7L, 6L, 5L, 3L, 2L, 1L)
+    }
+
+    @Test
+    fun getPage_applies_time_range_and_action() = runTest {
+        dao.insertAll(listOf(
+            ActivityLogRoom(timestamp = 1000L, appName = "App", packageName = "pkg", action = "START"),
+            ActivityLogRoom(timestamp = 2000L, appName = "App", packageName = "pkg", action = "STOP"),
+            ActivityLogRoom(timestamp = 3000L, appName = "App", packageName = "pkg", action = "START"),
+            ActivityLogRoom(timestamp = 4000L, appName = "App", packageName = "pkg", action = "START")
+        ))
+
+        val page = dao.getPage(ActivityLogQuery(since = 1000L, until = 4000L, action = "START").toSql(null, 10))
+        page.map { it.timestamp } shouldBe listOf(3000L, 1000L)
+    }
+
+    @Test
+    fun insertAllCounted_adds_to_hourly_counts() = runTest {
+        val hour = ActivityLogHourlyRoom.HOUR_MS
+        dao.insertAllCounted(listOf(
+            ActivityLogRoom(timestamp = 10L, appName = "App", packageName = "pkg", action = "A"),
+            ActivityLogRoom(timestamp = 20L, appName = "App", packageName = "pkg", action = "B"),
+            ActivityLogRoom(timestamp = hour + 5, appName = "App", packageName = "pkg", action = "A")
+        ))
+        dao.insertAllCounted(listOf(
+            ActivityLogRoom(timestamp = 30L, appName = "App", packageName = "pkg", action = "A"),
+            ActivityLogRoom(timestamp = 40L, appName = "Other", packageName = "other", action = "A")
+        ))
+
+        dao.getCount() shouldBe 5
+        dao.getHourly(0L, 2 * hour) shouldBe listOf(
+            ActivityLogHourlyRoom(0L, "other", 1),
+            ActivityLogHourlyRoom(0L, "pkg", 3),
+            ActivityLogHourlyRoom(hour, "pkg", 1)
+        )
+        dao.getHourlyForPackage("pkg", hour, 2 * hour) shouldBe listOf(ActivityLogHourlyRoom(hour, "pkg", 1))
+
+        dao.deleteHourlyBefore(hour) shouldBe 2
+        dao.getHourly(0L, 2 * hour) shouldHaveSize 1
+    }
+
+    @Test
+    fun deleteExcess_keeps_the_newest() = runTest {
+        dao.insertAll((1..5).map {
+            ActivityLogRoom(timestamp = it * 1000L, appName = "App", packageName = "pkg", action = "ACTION")
+        })
+
+        dao.deleteExcess(3) shouldBe 2
+        dao.getAll().first().map { it.timestamp } shouldBe listOf(5000L, 4000L, 3000L)
+    }
 }
@@ -0,0 +1,23 @@
+package af.shizuku.manager.database
+
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+
+class ActivityLogHistoryTest {
+
+    // Newest first, like the head and the pages
+    private fun records(vararg timestamps: Long) = timestamps.map { ActivityLogRecord(it, "App", "pkg", "call") }
+
+    @Test
+    fun unchanged_head_is_followed_by_the_pages() {
+        val head = records(9, 8, 7)
+        ActivityLogHistory.splice(head, head, records(6, 5)) shouldBe records(9, 8, 7, 6, 5)
+    }
+
+    @Test
+    fun records_pushed_out_of_the_head_stay_in_the_list() {
+        val snapshot = records(9, 8, 7)
+        val head = records(11, 10, 9)
+        ActivityLogHistory.splice(head, snapshot, records(6, 5)) shouldBe records(11, 10, 9, 8, 7, 6, 5)
+    }
+}
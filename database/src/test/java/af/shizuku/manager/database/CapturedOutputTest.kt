@@ -0,0 +1,71 @@
+package af.shizuku.manager.database
+
+import io.kotest.matchers.shouldBe
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class CapturedOutputTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private fun CapturedOutput.append(text: String) {
+        val bytes = text.toByteArray()
+        append(bytes, 0, bytes.size)
+    }
+
+    @Test
+    fun output_within_limit_stays_in_memory() {
+        CapturedOutput(16, folder.root).use { output ->
+            output.append("hello ")
+            output.append("world")
+            output.finish()
+
+            output.text() shouldBe "hello world"
+            output.size shouldBe 11L
+            output.isSpilled shouldBe false
+            output.truncated shouldBe false
+        }
+    }
+
+    @Test
+    fun output_past_limit_spills_to_file() {
+        val text = "0123456789".repeat(100)
+        val output = CapturedOutput(64, folder.root)
+        text.chunked(7).forEach { output.append(it) }
+        output.finish()
+
+        output.text() shouldBe text
+        output.size shouldBe text.length.toLong()
+        output.isSpilled shouldBe true
+        output.truncated shouldBe false
+
+        output.close()
+        folder.root.listFiles()!!.size shouldBe 0
+    }
+
+    @Test
+    fun output_past_limit_without_spill_dir_is_truncated() {
+        CapturedOutput(8, null).use { output ->
+            output.append("0123")
+            output.append("456789")
+            output.finish()
+
+            output.text() shouldBe "01234567"
+            output.size shouldBe 8L
+            output.truncated shouldBe true
+        }
+    }
+
+    @Test
+    fun multibyte_characters_split_across_the_spill_boundary_decode_intact() {
+        val text = "ä".repeat(20)
+        CapturedOutput(7, folder.root).use { output ->
+            output.append(text)
+            output.finish()
+
+            output.text() shouldBe text
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package af.shizuku.manager.database
+
+import android.os.DeadObjectException
+import io.kotest.matchers.shouldBe
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class ProcessCaptureEngineTest {
+
+    private class FakeProcess(private val exitValue: () -> Int) : Process() {
+        override fun getOutputStream(): OutputStream = OutputStream.nullOutputStream()
+        override fun getInputStream(): InputStream = InputStream.nullInputStream()
+        override fun getErrorStream(): InputStream = InputStream.nullInputStream()
+        override fun waitFor(): Int = exitValue()
+        override fun exitValue(): Int = exitValue.invoke()
+        override fun destroy() {}
+    }
+
+    @Test
+    fun running_remote_process_is_not_taken_for_exited() {
+        // What a remote process throws for the server's IllegalThreadStateException
+        val process = FakeProcess { throw IllegalArgumentException("process hasn't exited") }
+        ProcessCaptureEngine.hasExited(process) shouldBe false
+    }
+
+    @Test
+    fun running_local_process_is_not_taken_for_exited() {
+        ProcessCaptureEngine.hasExited(FakeProcess { throw IllegalThreadStateException() }) shouldBe false
+        ProcessCaptureEngine.hasExited(FakeProcess { throw IllegalStateException() }) shouldBe false
+    }
+
+    @Test
+    fun exit_code_or_dead_binder_means_exited() {
+        ProcessCaptureEngine.hasExited(FakeProcess { 0 }) shouldBe true
+        ProcessCaptureEngine.hasExited(FakeProcess { throw DeadObjectException() }) shouldBe true
+        ProcessCaptureEngine.hasExited(FakeProcess { throw RuntimeException(DeadObjectException()) }) shouldBe true
+    }
+
+    // The tests below run real processes on the host, like CommandBatchRunnerTest - only POSIX sh,
+    // mkfifo, printf, seq and sleep are needed.
+
+    @get:Rule
+    val temp = TemporaryFolder()
+
+    // poll(2) isn't reachable from the host JVM, so each watched stream is read ahead on a
+    // thread of its own; await() then knows which ones a read won't block on.
+    private class ReadaheadStream(private val source: InputStream, private val onReady: () -> Unit) : InputStream() {
+        private val chunks = ArrayDeque<ByteArray>()
+        private var ended = false
+
+        init {
+            Thread {
+                val buffer = ByteArray(8192)
+                while (true) {
+                    val n = try {
+                        source.read(buffer)
+                    } catch (_: Exception) {
+                        -1
+                    }
+                    synchronized(this) {
+                        if (n < 0) ended = true else chunks.addLast(buffer.copyOf(n))
+                    }
+                    onReady()
+                    if (n < 0) break
+                }
+            }.apply {
+                isDaemon = true
+                start()
+            }
+        }
+
+        val isReady get() = synchronized(this) { chunks.isNotEmpty() || ended }
+
+        override fun read(): Int {
+            val one = ByteArray(1)
+            return if (read(one, 0, 1) < 0) -1 else one[0].toInt() and 0xff
+        }
+
+        @Synchronized
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val chunk = chunks.removeFirstOrNull() ?: return if (ended) -1 else 0
+            val n = minOf(len, chunk.size)
+            chunk.copyInto(b, off, 0, n)
+            if (n < chunk.size) chunks.addFirst(chunk.copyOfRange(n, chunk.size))
+            return n
+        }
+    }
+
+    private class ReadaheadIo : ProcessCaptureEngine.Io {
+        private val signal = Semaphore(0)
+
+        override fun canWatch(input: InputStream) = input is ReadaheadStream
+
+        override fun await(inputs: List<InputStream>, ready: BooleanArray, timeoutMs: Int) {
+            if (inputs.none { (it as ReadaheadStream).isReady }) {
+                if (timeoutMs < 0) signal.acquire() else signal.tryAcquire(timeoutMs.toLong(), TimeUnit.MILLISECONDS)
+            }
+            signal.drainPermits()
+            for (i in inputs.indices) {
+                ready[i] = (inputs[i] as ReadaheadStream).isReady
+            }
+        }
+
+        override fun wake() {
+            signal.release()
+        }
+    }
+
+    private val io = ReadaheadIo()
+    private val engine = ProcessCaptureEngine(io)
+
+    /**
+     * `sh -c [script]` with stdout and stderr on fifos rather than the JDK's own pipes, which it
+     * closes itself once the process exits: here, like on Android, whatever the script leaves
+     * running keeps them open.
+     */
+    private inner class FifoProcess(script: String) : Process() {
+        private val process: Process
+        private val stdout: InputStream
+        private val stderr: InputStream
+
+        init {
+            val out = fifo()
+            val err = fifo()
+            process = ProcessBuilder("sh", "-c", "exec >'$out' 2>'$err'; $script").start()
+            // Opened in the order the script opens them, each blocking until the other end is there
+            stdout = ReadaheadStream(FileInputStream(out), io::wake)
+            stderr = ReadaheadStream(FileInputStream(err), io::wake)
+        }
+
+        override fun getOutputStream(): OutputStream = process.outputStream
+        override fun getInputStream(): InputStream = stdout
+        override fun getErrorStream(): InputStream = stderr
+        override fun waitFor(): Int = process.waitFor()
+        override fun exitValue(): Int = process.exitValue()
+        override fun destroy() = process.destroy()
+    }
+
+    private fun fifo(): File {
+        val file = File(temp.root, "fifo${temp.root.list()!!.size}")
+        ProcessBuilder("mkfifo", file.path).start().waitFor() shouldBe 0
+        return file
+    }
+
+    private fun ProcessCaptureEngine.Capture.awaitWithin(seconds: Long = 10) = future.get(seconds, TimeUnit.SECONDS)
+
+    private fun elapsedMs(start: Long) = (System.nanoTime() - start) / 1_000_000
+
+    @Test
+    fun both_streams_and_exit_code_are_captured() {
+        engine.capture(FifoProcess("printf out; printf err >&2; exit 3")).awaitWithin().use { result ->
+            result.exitCode shouldBe 3
+            result.stdout.text() shouldBe "out"
+            result.stderr.text() shouldBe "err"
+            result.truncated shouldBe false
+            result.cancelled shouldBe false
+            result.timedOut shouldBe false
+        }
+    }
+
+    @Test
+    fun streams_without_an_fd_are_drained_too() {
+        val process = ProcessBuilder("sh", "-c", "printf out; printf err >&2").start()
+        engine.capture(process).awaitWithin().use { result ->
+            result.exitCode shouldBe 0
+            result.stdout.text() shouldBe "out"
+            result.stderr.text() shouldBe "err"
+        }
+    }
+
+    @Test
+    fun background_child_holding_stdout_is_cut_off_after_the_grace() {
+        val start = System.nanoTime()
+        val options = ProcessCaptureEngine.CaptureOptions(exitGraceMs = 200)
+        engine.capture(FifoProcess("sleep 5 & printf done"), options).awaitWithin().use { result ->
+            (elapsedMs(start) < 4000) shouldBe true
+            result.exitCode shouldBe 0
+            result.stdout.text() shouldBe "done"
+            result.truncated shouldBe true
+        }
+    }
+
+    @Test
+    fun timeout_kills_the_process_and_keeps_its_output() {
+        val start = System.nanoTime()
+        val options = ProcessCaptureEngine.CaptureOptions(timeoutMs = 200, exitGraceMs = 200)
+        engine.capture(FifoProcess("printf before; exec sleep 30"), options).awaitWithin().use { result ->
+            (elapsedMs(start) < 5000) shouldBe true
+            result.timedOut shouldBe true
+            result.cancelled shouldBe true
+            (result.exitCode != 0) shouldBe true
+            result.stdout.text() shouldBe "before"
+        }
+    }
+
+    @Test
+    fun cancel_stops_a_running_capture() {
+        val started = CountDownLatch(1)
+        val capture = engine.capture(FifoProcess("printf x; exec sleep 30")) { _, _, _, _ -> started.countDown() }
+        started.await(5, TimeUnit.SECONDS) shouldBe true
+        capture.cancel()
+        capture.awaitWithin().use { result ->
+            result.cancelled shouldBe true
+            result.timedOut shouldBe false
+            result.stdout.text() shouldBe "x"
+        }
+    }
+
+    @Test
+    fun output_past_the_memory_limit_spills_and_reads_back_whole() {
+        val spillDir = temp.newFolder("spill")
+        val expected = (1..20000).joinToString("\n", postfix = "\n").toByteArray()
+        val options = ProcessCaptureEngine.CaptureOptions(memoryLimit = 1024, spillDir = spillDir)
+        val received = StringBuilder()
+        val capture = engine.capture(FifoProcess("seq 1 20000"), options) { stream, data, offset, length ->
+            if (stream == ProcessCaptureEngine.STDOUT) received.append(String(data, offset, length))
+        }
+        val result = capture.awaitWithin()
+        result.stdout.isSpilled shouldBe true
+        result.stdout.size shouldBe expected.size.toLong()
+        result.stdout.openStream().use { it.readBytes() } shouldBe expected
+        received.toString() shouldBe String(expected)
+        result.truncated shouldBe false
+
+        result.close()
+        spillDir.list()!!.size shouldBe 0
+    }
+
+    @Test
+    fun output_past_the_memory_limit_is_dropped_without_a_spill_dir() {
+        val options = ProcessCaptureEngine.CaptureOptions(memoryLimit = 1024)
+        engine.capture(FifoProcess("seq 1 20000"), options).awaitWithin().use { result ->
+            result.stdout.isSpilled shouldBe false
+            result.stdout.size shouldBe 1024L
+            result.stdout.text() shouldBe (1..20000).joinToString("\n").take(1024)
+            result.truncated shouldBe true
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package af.shizuku.manager.database
+
+import io.kotest.matchers.shouldBe
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class WriteBehindQueueTest {
+
+    private val batches = mutableListOf<List<Int>>()
+
+    private fun queue(scope: CoroutineScope, maxPending: Int = 100) =
+        WriteBehindQueue<Int>(scope, maxBatch = 4, maxDelayMs = 1000, maxPending = maxPending) { batches.add(it) }
+
+    @Test
+    fun full_batch_is_written_without_waiting() = runTest {
+        val queue = queue(backgroundScope)
+        runCurrent()
+        (1..4).forEach(queue::add)
+        runCurrent()
+
+        batches shouldBe listOf(listOf(1, 2, 3, 4))
+    }
+
+    @Test
+    fun partial_batch_is_written_after_the_delay() = runTest {
+        val queue = queue(backgroundScope)
+        runCurrent()
+        queue.add(1)
+        queue.add(2)
+        advanceTimeBy(999)
+        runCurrent()
+        batches shouldBe emptyList()
+
+        advanceTimeBy(2)
+        runCurrent()
+        batches shouldBe listOf(listOf(1, 2))
+    }
+
+    @Test
+    fun flush_writes_everything_pending_in_batches() = runTest {
+        val queue = queue(backgroundScope)
+        (1..6).forEach(queue::add)
+        queue.flush()
+
+        batches shouldBe listOf(listOf(1, 2, 3, 4), listOf(5, 6))
+    }
+
+    @Test
+    fun oldest_items_are_dropped_past_max_pending() = runTest {
+        val queue = queue(backgroundScope, maxPending = 3)
+        (1..5).forEach(queue::add)
+        queue.flush()
+
+        batches shouldBe listOf(listOf(3, 4, 5))
+        queue.dropped shouldBe 2L
+    }
+
+    @Test
+    fun discarded_items_are_never_written() = runTest {
+        val queue = queue(backgroundScope)
+        queue.add(1)
+        queue.discardPending()
+        queue.add(2)
+        queue.flush()
+
+        batches shouldBe listOf(listOf(2))
+    }
+}
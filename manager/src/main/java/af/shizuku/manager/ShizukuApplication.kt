@@ -361,9 +361,9 @@ class ShizukuApplication : Application(), Configuration.Provider {
     }
 
     /**
-     * Keeps AppIconCache honest: trims it under memory pressure (it's sized to 1/4 of max heap
-     * and never shrinks on its own otherwise) and drops entries for apps that update/uninstall
-     * so a changed icon doesn't keep showing the stale cached one.
+     * Keeps AppIconCache honest: trims its memory tier under memory pressure (it never shrinks
+     * on its own otherwise) and drops entries, in memory and on disk, for apps that
+     * update/uninstall so a changed icon doesn't keep showing the stale cached one.
      */
     private fun registerIconCacheMaintenance() {
         registerComponentCallbacks(object : android.content.ComponentCallbacks2 {
@@ -381,9 +381,18 @@ class ShizukuApplication : Application(), Configuration.Provider {
             override fun onReceive(context: Context, intent: Intent) {
                 val packageName = intent.data?.schemeSpecificPart ?: return
                 af.shizuku.manager.utils.AppIconCache.invalidate(packageName)
+                // Lets the server reconcile its permission config for just this package
+                if (intent.action != Intent.ACTION_PACKAGE_CHANGED && Shizuku.pingBinder()) {
+                    try {
+                        moe.shizuku.server.IShizukuService.Stub.asInterface(Shizuku.getBinder()).dispatchPackageChanged(intent)
+                    } catch (e: Throwable) {
+                        Timber.w(e, "dispatchPackageChanged failed")
+                    }
+                }
             }
         }
         val filter = android.content.IntentFilter().apply {
+            addAction(Intent.ACTION_PACKAGE_ADDED)
             addAction(Intent.ACTION_PACKAGE_REMOVED)
             addAction(Intent.ACTION_PACKAGE_REPLACED)
             addAction(Intent.ACTION_PACKAGE_CHANGED)
@@ -84,6 +84,8 @@ public class ShizukuSettings {
 
         // Legacy Compatibility (Shizuku+ additions)
         public static final String KEY_ADB_PROXY_ENABLED = "adb_proxy_enabled";
+        public static final String KEY_ADB_PROXY_MAX_CONNECTIONS = "adb_proxy_max_connections";
+        public static final String KEY_ADB_PROXY_PERSISTENT_SHELL = "adb_proxy_persistent_shell";
         public static final String KEY_BINDER_FIREWALL_ENABLED = "binder_firewall_enabled";
         public static final String KEY_BINDER_LOGGING_ENABLED = "binder_logging_enabled";
         public static final String KEY_SHADOW_BINDER_ENABLED = "shadow_binder_enabled";
@@ -763,6 +765,17 @@ public class ShizukuSettings {
         if (p != null) p.edit().putBoolean(Keys.KEY_ADB_PROXY_ENABLED, enable).apply();
     }
 
+    public static int getAdbProxyMaxConnections() {
+        SharedPreferences p = getPreferences();
+        return p != null ? Math.max(1, p.getInt(Keys.KEY_ADB_PROXY_MAX_CONNECTIONS, 16)) : 16;
+    }
+
+    public static boolean isAdbProxyPersistentShellEnabled() {
+        SharedPreferences p = getPreferences();
+        // Off unless asked for: commands on the persistent shell read /dev/null for stdin
+        return p != null && p.getBoolean(Keys.KEY_ADB_PROXY_PERSISTENT_SHELL, false);
+    }
+
     public static boolean isOnDeviceAdbTcpEnabled() {
         SharedPreferences p = getPreferences();
         return p != null && p.getBoolean(Keys.KEY_ON_DEVICE_ADB_TCP, false);
@@ -12,6 +12,7 @@ import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
 import androidx.lifecycle.repeatOnLifecycle
 import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import coil3.load
@@ -23,7 +24,7 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import af.shizuku.core.ui.EmptyStateView
 import af.shizuku.manager.databinding.ItemActivityLogBinding
-import af.shizuku.manager.database.ActivityLogManager
+import af.shizuku.manager.database.ActivityLogHistory
 import af.shizuku.manager.database.ActivityLogRecord
 import af.shizuku.manager.utils.AppIconCache
 import java.util.Date
@@ -57,9 +58,19 @@ class ActivityLogFragment : Fragment() {
 
         binding.list.adapter = adapter
 
+        // The live head only holds the newest few hundred records; older ones are paged in from
+        // the database as the list nears its end
+        val history = ActivityLogHistory(viewLifecycleOwner.lifecycleScope)
+        binding.list.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+                val last = (recyclerView.layoutManager as? LinearLayoutManager)?.findLastVisibleItemPosition() ?: return
+                if (dy > 0 && last >= adapter.itemCount - ActivityLogHistory.LOAD_MORE_THRESHOLD) history.loadMore()
+            }
+        })
+
         viewLifecycleOwner.lifecycleScope.launch {
             viewLifecycleOwner.repeatOnLifecycle(Lifecycle.State.STARTED) {
-                ActivityLogManager.logs.collectLatest { records ->
+                history.records.collectLatest { records ->
                     adapter.submitList(records)
                     val isEmpty = records.isEmpty()
                     emptyStateView.visibility = if (isEmpty) View.VISIBLE else View.GONE
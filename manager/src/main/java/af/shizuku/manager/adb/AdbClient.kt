@@ -12,45 +12,102 @@ import af.shizuku.manager.adb.AdbProtocol.A_OPEN
 import af.shizuku.manager.adb.AdbProtocol.A_STLS
 import af.shizuku.manager.adb.AdbProtocol.A_STLS_VERSION
 import af.shizuku.manager.adb.AdbProtocol.A_VERSION
+import af.shizuku.manager.adb.AdbProtocol.A_VERSION_SKIP_CHECKSUM
 import af.shizuku.manager.adb.AdbProtocol.A_WRTE
+import af.shizuku.manager.adb.AdbProtocol.DELAYED_ACK_WINDOW
+import af.shizuku.manager.adb.AdbProtocol.FEATURE_DELAYED_ACK
+import af.shizuku.manager.adb.AdbProtocol.FEATURE_SHELL_V2
+import af.shizuku.manager.adb.AdbProtocol.MAX_PAYLOAD
 import rikka.core.util.BuildUtils
 import timber.log.Timber
+import java.io.BufferedOutputStream
 import java.io.Closeable
 import java.io.DataInputStream
-import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.OutputStream
 import java.net.InetSocketAddress
 import java.net.Socket
+import java.net.SocketTimeoutException
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
 import javax.net.ssl.SSLSocket
+import kotlin.concurrent.withLock
 
 private const val TAG = "AdbClient"
 
+/**
+ * An authenticated connection to adbd that carries any number of concurrent streams.
+ *
+ * [connect] does the CNXN/STLS/AUTH handshake on the calling thread, then hands the socket to a
+ * reader thread that routes each packet to its stream by local id. Streams follow adb's flow
+ * control: a stream sends at most one A_WRTE until the other side A_OKAYs it, and we only A_OKAY
+ * an incoming A_WRTE once the consumer has taken it, so a slow reader throttles its own stream
+ * without stalling the others. Headers are encoded into reused buffers and payloads are read
+ * into pooled arrays, so steady-state traffic doesn't allocate per packet.
+ *
+ * The A_CNXN exchange negotiates the max payload (up to [MAX_PAYLOAD] instead of the legacy
+ * 4 KiB), skipping checksums, and the `delayed_ack` and `shell_v2` features. With delayed_ack
+ * the one-packet window becomes a byte window of [DELAYED_ACK_WINDOW] each way, so bulk
+ * transfers no longer pay a round trip per packet.
+ */
 class AdbClient(
     private val host: String,
     private val port: Int,
     private val key: AdbKey,
 ) : Closeable {
     private var socket: Socket? = null
-    private var plainInputStream: DataInputStream? = null
-    private var plainOutputStream: DataOutputStream? = null
+    private var tlsSocket: SSLSocket? = null
 
-    private var useTls = false
+    @Volatile
+    private var input: DataInputStream? = null
 
-    private var tlsSocket: SSLSocket? = null
-    private var tlsInputStream: DataInputStream? = null
-    private var tlsOutputStream: DataOutputStream? = null
+    @Volatile
+    private var output: OutputStream? = null
+
+    @Volatile
+    private var closed = false
+
+    private var reader: Thread? = null
+
+    // Largest payload adbd accepts from us, from its A_CNXN
+    @Volatile
+    private var maxPayload = A_MAXDATA
+
+    // 0 until adbd's A_CNXN arrives
+    @Volatile
+    private var protocolVersion = 0
+
+    /**
+     * Features both we and adbd support, known once [connect] returns.
+     */
+    @Volatile
+    var features: Set<String> = emptySet()
+        private set
+
+    private val delayedAck get() = FEATURE_DELAYED_ACK in features
+
+    private val streams = ConcurrentHashMap<Int, Stream>()
+    private val nextLocalId = AtomicInteger()
 
-    private val inputStream get() =
-        (if (useTls) tlsInputStream else plainInputStream)
-            ?: throw IllegalStateException("inputStream is null - AdbClient not connected or closed")
-    private val outputStream get() =
-        (if (useTls) tlsOutputStream else plainOutputStream)
-            ?: throw IllegalStateException("outputStream is null - AdbClient not connected or closed")
+    // Only the handshake and then the reader thread read, so one header buffer is enough
+    private val readHeader = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+    private val writeLock = Any()
+    private val writeHeader = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+    private val ackPayload = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+    private val payloads = PayloadPool()
 
     fun connect() {
         require(port in 1..65535) { "port out of range: $port" }
-        useTls = false // Reset TLS state for each connection attempt
+        closed = false
+        protocolVersion = 0
+        maxPayload = A_MAXDATA
+        features = emptySet()
         val s = Socket()
         socket = s
         val address = InetSocketAddress(host, port)
@@ -58,22 +115,20 @@ class AdbClient(
         try {
             s.connect(address, 5000)
             s.tcpNoDelay = true
-            s.soTimeout = 15000 // 15 seconds read timeout to prevent infinite hangs
+            s.soTimeout = HANDSHAKE_TIMEOUT_MS // don't hang forever on an adbd that never answers
             s.keepAlive = true
 
-            val pin = DataInputStream(s.getInputStream())
-            plainInputStream = pin
-            val pout = DataOutputStream(s.getOutputStream())
-            plainOutputStream = pout
+            input = DataInputStream(s.getInputStream())
+            output = BufferedOutputStream(s.getOutputStream(), OUTPUT_BUFFER_SIZE)
 
-            write(A_CNXN, A_VERSION, A_MAXDATA, "host::")
+            send(A_CNXN, A_VERSION, MAX_PAYLOAD, AdbProtocol.banner("host"))
 
-            var message = read()
+            var message = readMessage()
             if (message.command == A_STLS) {
                 if (!BuildUtils.atLeast29) {
                     error("Connect to adb with TLS is not supported before Android 9")
                 }
-                write(A_STLS, A_STLS_VERSION, 0)
+                send(A_STLS, A_STLS_VERSION, 0)
 
                 val sslContext = key.sslContext
                 val ts = sslContext.socketFactory.createSocket(s, host, port, true) as SSLSocket
@@ -81,124 +136,481 @@ class AdbClient(
                 ts.startHandshake()
                 Timber.tag(TAG).d("Handshake succeeded.")
 
-                tlsInputStream = DataInputStream(ts.inputStream)
-                tlsOutputStream = DataOutputStream(ts.outputStream)
-                useTls = true
+                input = DataInputStream(ts.inputStream)
+                // Header and payload go out as one TLS record on flush
+                output = BufferedOutputStream(ts.outputStream, OUTPUT_BUFFER_SIZE)
 
-                message = read()
+                message = readMessage()
             } else if (message.command == A_AUTH) {
                 if (message.command != A_AUTH && message.arg0 != ADB_AUTH_TOKEN) error("not A_AUTH ADB_AUTH_TOKEN")
-                write(A_AUTH, ADB_AUTH_SIGNATURE, 0, key.sign(message.data))
+                send(A_AUTH, ADB_AUTH_SIGNATURE, 0, key.sign(message.data))
 
-                message = read()
+                message = readMessage()
                 if (message.command != A_CNXN) {
-                    write(A_AUTH, ADB_AUTH_RSAPUBLICKEY, 0, key.adbPublicKey)
-                    message = read()
+                    send(A_AUTH, ADB_AUTH_RSAPUBLICKEY, 0, key.adbPublicKey)
+                    message = readMessage()
                 }
             }
 
             if (message.command != A_CNXN) error("not A_CNXN")
+            protocolVersion = minOf(A_VERSION, message.arg0)
+            if (message.arg1 > 0) maxPayload = minOf(message.arg1, MAX_PAYLOAD)
+            features = AdbProtocol.negotiateFeatures(message.data)
+            Timber.tag(TAG).d("connected: version %x, max payload %d, features %s", protocolVersion, maxPayload, features)
+
+            // Streams time out individually from here on; an idle connection is not an error
+            s.soTimeout = 0
+            reader = Thread({ readLoop() }, "AdbClient-$port").apply {
+                isDaemon = true
+                start()
+            }
         } catch (e: Exception) {
             close()
             throw e
         }
     }
 
+    /**
+     * Opens a stream to [destination] (`shell:...`, `sync:`, `tcpip:5555`, ...) and waits for
+     * adbd to accept it. A stream adbd refuses comes back already closed, reading nothing.
+     * Safe to call from several threads at once.
+     */
+    fun open(destination: String, timeoutMillis: Long = STREAM_TIMEOUT_MS): Stream {
+        checkConnected()
+        var localId = nextLocalId.incrementAndGet()
+        if (localId == 0) localId = nextLocalId.incrementAndGet()
+        val stream = Stream(localId, destination)
+        streams[localId] = stream
+        try {
+            // With delayed_ack, arg1 offers adbd our receive window for this stream
+            send(A_OPEN, localId, if (delayedAck) DELAYED_ACK_WINDOW else 0, destination)
+            stream.awaitOpen(timeoutMillis)
+        } catch (e: Throwable) {
+            stream.close()
+            throw e
+        }
+        return stream
+    }
+
+    /**
+     * Runs [cmd] and passes its output to [listener] until adbd closes the stream. The chunk is
+     * only valid during the call; it goes back to the buffer pool afterwards.
+     */
     fun command(
         cmd: String,
-        listener: ((ByteArray) -> Unit)? = null,
+        listener: ((ByteArray, Int, Int) -> Unit)? = null,
     ) {
-        val localId = 1
-        write(A_OPEN, localId, 0, cmd)
+        open(cmd).use { stream ->
+            while (stream.read { data, offset, length -> listener?.invoke(data, offset, length) }) {
+                // keep draining
+            }
+        }
+    }
+
+    /**
+     * Runs [command] through `shell,v2` when adbd supports it, passing stdout and stderr
+     * separately, or through a plain `shell:` stream with everything on [stdout] otherwise.
+     *
+     * @return the command's exit code, or -1 if adbd doesn't report it (no shell_v2).
+     */
+    fun shell(
+        command: String,
+        stdout: ((ByteArray, Int, Int) -> Unit)? = null,
+        stderr: ((ByteArray, Int, Int) -> Unit)? = stdout,
+    ): Int {
+        if (FEATURE_SHELL_V2 !in features) {
+            command("shell:$command", stdout)
+            return -1
+        }
+        val decoder = AdbShellV2.Decoder { id, data, offset, length ->
+            when (id) {
+                AdbShellV2.ID_STDOUT -> stdout?.invoke(data, offset, length)
+                AdbShellV2.ID_STDERR -> stderr?.invoke(data, offset, length)
+            }
+        }
+        open(AdbShellV2.destination(command)).use { stream ->
+            while (stream.read(consumer = decoder::feed)) {
+                // keep draining
+            }
+        }
+        return decoder.exitCode
+    }
+
+    private fun checkConnected() {
+        if (closed || output == null || reader?.isAlive != true) {
+            throw IllegalStateException("AdbClient not connected or closed")
+        }
+    }
+
+    private fun send(command: Int, arg0: Int, arg1: Int, data: String) {
+        val bytes = "$data\u0000".toByteArray()
+        send(command, arg0, arg1, bytes, 0, bytes.size)
+    }
+
+    private fun send(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null, offset: Int = 0, length: Int = data?.size ?: 0) {
+        synchronized(writeLock) {
+            writeLocked(command, arg0, arg1, data, offset, length)
+        }
+    }
+
+    /**
+     * A_OKAY for a stream; with delayed_ack it carries how many bytes were consumed.
+     */
+    private fun sendOkay(localId: Int, remoteId: Int, ackedBytes: Int) {
+        synchronized(writeLock) {
+            if (delayedAck) {
+                ackPayload.clear()
+                ackPayload.putInt(ackedBytes)
+                writeLocked(A_OKAY, localId, remoteId, ackPayload.array(), 0, 4)
+            } else {
+                writeLocked(A_OKAY, localId, remoteId, null, 0, 0)
+            }
+        }
+    }
+
+    private fun writeLocked(command: Int, arg0: Int, arg1: Int, data: ByteArray?, offset: Int, length: Int) {
+        val os = output
+        if (os == null) {
+            Timber.tag(TAG).w("write called on closed/unconnected AdbClient - dropping ${AdbMessage.commandName(command)}")
+            return
+        }
+        writeHeader.clear()
+        AdbMessage.writeHeader(writeHeader, command, arg0, arg1, data, offset, length,
+            checksum = protocolVersion < A_VERSION_SKIP_CHECKSUM)
+        os.write(writeHeader.array(), 0, AdbMessage.HEADER_LENGTH)
+        if (data != null && length > 0) {
+            os.write(data, offset, length)
+        }
+        os.flush()
+        Timber.tag(TAG).v("write %s %d %d (%d bytes)", AdbMessage.commandName(command), arg0, arg1, length)
+    }
+
+    internal class Packet(
+        val command: Int,
+        val arg0: Int,
+        val arg1: Int,
+        val data: ByteArray?,
+        val length: Int,
+    )
+
+    private fun readPacket(): Packet {
+        val stream = input ?: throw EOFException("AdbClient closed")
+        stream.readFully(readHeader.array(), 0, AdbMessage.HEADER_LENGTH)
+        readHeader.clear()
+        val command = readHeader.int
+        val arg0 = readHeader.int
+        val arg1 = readHeader.int
+        val length = readHeader.int
+        val checksum = readHeader.int
+        val magic = readHeader.int
+        if (command != magic.inv()) {
+            throw IOException("bad message header command=${AdbMessage.commandName(command)} magic=$magic")
+        }
+        // Don't trust the length before it's bounded; a corrupt header would allocate unboundedly
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw IOException("bad message length $length for ${AdbMessage.commandName(command)}")
+        }
+        val data = if (length > 0) payloads.acquire(length) else null
+        if (data != null) {
+            try {
+                stream.readFully(data, 0, length)
+            } catch (e: Throwable) {
+                payloads.release(data)
+                throw e
+            }
+            // Before adbd's A_CNXN we don't know the version yet; it only sends 0 if it skips
+            val verify = checksum != 0 || (protocolVersion != 0 && protocolVersion < A_VERSION_SKIP_CHECKSUM)
+            if (verify && AdbMessage.crc32(data, 0, length) != checksum) {
+                payloads.release(data)
+                throw IOException("bad checksum for ${AdbMessage.commandName(command)}")
+            }
+        }
+        Timber.tag(TAG).v("read %s %d %d (%d bytes)", AdbMessage.commandName(command), arg0, arg1, length)
+        return Packet(command, arg0, arg1, data, length)
+    }
+
+    private fun readMessage(): AdbMessage {
+        val packet = readPacket()
+        val data = packet.data?.copyOf(packet.length)
+        packet.data?.let(payloads::release)
+        return AdbMessage(packet.command, packet.arg0, packet.arg1, data)
+    }
+
+    private fun readLoop() {
+        var failure: Throwable? = null
+        try {
+            while (!closed) {
+                dispatch(readPacket())
+            }
+        } catch (e: Throwable) {
+            if (!closed) {
+                Timber.tag(TAG).w(e, "connection lost")
+                failure = e
+            }
+        } finally {
+            val cause = failure ?: EOFException("AdbClient closed")
+            for (stream in streams.values) {
+                stream.onConnectionLost(cause)
+            }
+            streams.clear()
+            if (failure != null) close()
+        }
+    }
 
-        var message = read()
-        when (message.command) {
+    private fun dispatch(packet: Packet) {
+        // Replies to our streams carry our local id in arg1
+        val stream = streams[packet.arg1]
+        when (packet.command) {
             A_OKAY -> {
-                while (true) {
-                    message = read()
-                    val remoteId = message.arg0
-                    if (message.command == A_WRTE) {
-                        message.data?.let { listener?.invoke(it) }
-                        write(A_OKAY, localId, remoteId)
-                    } else if (message.command == A_CLSE) {
-                        write(A_CLSE, localId, remoteId)
-                        break
-                    } else {
-                        error("not A_WRTE or A_CLSE")
-                    }
+                // With delayed_ack the payload is the number of bytes adbd consumed (or, on
+                // the reply to A_OPEN, its initial window)
+                val acked = if (packet.data != null && packet.length == 4) {
+                    ByteBuffer.wrap(packet.data, 0, 4).order(ByteOrder.LITTLE_ENDIAN).int
+                } else {
+                    -1
+                }
+                packet.data?.let(payloads::release)
+                stream?.onOkay(packet.arg0, acked)
+            }
+            A_WRTE -> {
+                if (stream == null) {
+                    packet.data?.let(payloads::release)
+                    send(A_CLSE, 0, packet.arg0)
+                } else {
+                    stream.onWrite(packet)
                 }
             }
             A_CLSE -> {
-                val remoteId = message.arg0
-                write(A_CLSE, localId, remoteId)
+                if (stream != null) {
+                    if (stream.onRemoteClose()) {
+                        send(A_CLSE, stream.localId, packet.arg0)
+                    }
+                    streams.remove(packet.arg1, stream)
+                }
             }
             else -> {
-                error("not A_OKAY or A_CLSE")
+                packet.data?.let(payloads::release)
+                Timber.tag(TAG).w("unexpected %s on stream %d", AdbMessage.commandName(packet.command), packet.arg1)
             }
         }
     }
 
-    private fun write(
-        command: Int,
-        arg0: Int,
-        arg1: Int,
-        data: ByteArray? = null,
-    ) = write(AdbMessage(command, arg0, arg1, data))
+    /**
+     * One adb stream. [read] and [write] may be used from different threads, but each by one
+     * thread at a time.
+     */
+    inner class Stream internal constructor(
+        val localId: Int,
+        val destination: String,
+    ) : Closeable {
 
-    private fun write(
-        command: Int,
-        arg0: Int,
-        arg1: Int,
-        data: String,
-    ) = write(AdbMessage(command, arg0, arg1, data))
+        @Volatile
+        var remoteId = 0
+            private set
 
-    private fun write(message: AdbMessage) {
-        val os = if (useTls) tlsOutputStream else plainOutputStream
-        if (os == null) {
-            Timber.tag(TAG).w("write called on closed/unconnected AdbClient - dropping ${message.toStringShort()}")
-            return
+        private val lock = ReentrantLock()
+        private val changed = lock.newCondition()
+
+        private var opened = false
+        private var remoteClosed = false
+        private var localClosed = false
+        private var failure: Throwable? = null
+
+        // Without delayed_ack adb allows one unacknowledged A_WRTE per stream and an A_OKAY
+        // grants the next one. With it, A_OKAYs grant bytes, and we may write while any are left.
+        private var canWrite = false
+        private var sendWindow = 0
+        private val inbox = ArrayDeque<Packet>(2)
+
+        internal fun awaitOpen(timeoutMillis: Long) {
+            lock.withLock {
+                awaitLocked(timeoutMillis) { opened || remoteClosed }
+                failure?.let(::rethrow)
+            }
+        }
+
+        /**
+         * Waits for the next chunk adbd wrote to this stream and passes it to [consumer], then
+         * acknowledges it so adbd may send the next.
+         *
+         * @return `false` once the stream is closed and everything it carried has been read.
+         */
+        fun read(timeoutMillis: Long = STREAM_TIMEOUT_MS, consumer: (ByteArray, Int, Int) -> Unit): Boolean {
+            val packet = lock.withLock {
+                awaitLocked(timeoutMillis) { inbox.isNotEmpty() || remoteClosed || localClosed }
+                // Whatever arrived before the connection dropped is still delivered
+                inbox.pollFirst() ?: run {
+                    failure?.let(::rethrow)
+                    return false
+                }
+            }
+            try {
+                consumer(packet.data ?: EMPTY, 0, packet.length)
+            } finally {
+                packet.data?.let(payloads::release)
+            }
+            if (lock.withLock { !remoteClosed && !localClosed }) {
+                sendOkay(localId, remoteId, packet.length)
+            }
+            return true
+        }
+
+        fun write(data: ByteArray, offset: Int = 0, length: Int = data.size, timeoutMillis: Long = STREAM_TIMEOUT_MS) {
+            var position = offset
+            val end = offset + length
+            while (position < end) {
+                val chunk = minOf(end - position, maxPayload)
+                lock.withLock {
+                    awaitLocked(timeoutMillis) { canWrite || remoteClosed || localClosed }
+                    if (!canWrite || remoteClosed || localClosed) {
+                        failure?.let(::rethrow)
+                        throw EOFException("stream $destination closed")
+                    }
+                    if (delayedAck) {
+                        // adbd does the same: the last packet may overshoot the window
+                        sendWindow -= chunk
+                        canWrite = sendWindow > 0
+                    } else {
+                        canWrite = false
+                    }
+                }
+                send(A_WRTE, localId, remoteId, data, position, chunk)
+                position += chunk
+            }
+        }
+
+        private inline fun awaitLocked(timeoutMillis: Long, ready: () -> Boolean) {
+            var remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+            while (!ready()) {
+                if (remaining <= 0) throw SocketTimeoutException("no reply on stream $destination in $timeoutMillis ms")
+                remaining = changed.awaitNanos(remaining)
+            }
+        }
+
+        private fun rethrow(cause: Throwable): Nothing {
+            // Keep the type: callers tell an expected disconnect (EOF, socket reset) from a bug by it
+            throw if (cause is IOException) cause else IOException("connection lost", cause)
+        }
+
+        internal fun onOkay(remoteId: Int, ackedBytes: Int) {
+            lock.withLock {
+                if (!opened) {
+                    opened = true
+                    this.remoteId = remoteId
+                }
+                if (delayedAck && ackedBytes >= 0) {
+                    sendWindow += ackedBytes
+                    canWrite = sendWindow > 0
+                } else {
+                    canWrite = true
+                }
+                changed.signalAll()
+            }
+        }
+
+        internal fun onWrite(packet: Packet) {
+            lock.withLock {
+                if (!localClosed) {
+                    inbox.addLast(packet)
+                    changed.signalAll()
+                    return
+                }
+            }
+            packet.data?.let(payloads::release)
+        }
+
+        /**
+         * @return whether adbd is still owed our A_CLSE.
+         */
+        internal fun onRemoteClose(): Boolean = lock.withLock {
+            remoteClosed = true
+            changed.signalAll()
+            val reply = opened && !localClosed
+            localClosed = localClosed || reply
+            reply
+        }
+
+        internal fun onConnectionLost(cause: Throwable) {
+            lock.withLock {
+                if (failure == null && !remoteClosed) failure = cause
+                remoteClosed = true
+                changed.signalAll()
+            }
+        }
+
+        override fun close() {
+            val pending: List<Packet>
+            val reply: Boolean
+            lock.withLock {
+                reply = opened && !localClosed && !remoteClosed
+                localClosed = true
+                pending = inbox.toList()
+                inbox.clear()
+                changed.signalAll()
+            }
+            pending.forEach { packet -> packet.data?.let(payloads::release) }
+            if (reply) {
+                try {
+                    send(A_CLSE, localId, remoteId)
+                } catch (e: IOException) {
+                    Timber.tag(TAG).d(e, "close stream $destination")
+                }
+            }
+            // adbd doesn't answer our A_CLSE with its own, so stop routing right away
+            streams.remove(localId, this)
         }
-        os.write(message.toByteArray())
-        os.flush()
-        Timber.tag(TAG).d("write ${message.toStringShort()}")
     }
 
-    private fun read(): AdbMessage {
-        val buffer = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+    /**
+     * Payload arrays reused between packets, in power-of-two size classes from 4 KiB up to
+     * [MAX_PAYLOAD], so small packets on a 1 MiB connection don't each pin a 1 MiB array.
+     */
+    private class PayloadPool {
+        private val classes = Array(CLASS_COUNT) { ArrayDeque<ByteArray>(PER_CLASS) }
 
-        inputStream.readFully(buffer.array(), 0, 24)
+        private fun classOf(length: Int): Int {
+            if (length <= MIN_SIZE) return 0
+            return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT
+        }
+
+        fun acquire(length: Int): ByteArray {
+            val index = classOf(length)
+            if (index >= CLASS_COUNT) return ByteArray(length)
+            val free = classes[index]
+            synchronized(free) {
+                free.pollFirst()?.let { return it }
+            }
+            return ByteArray(MIN_SIZE shl index)
+        }
+
+        fun release(buffer: ByteArray) {
+            val index = classOf(buffer.size)
+            if (index >= CLASS_COUNT || buffer.size != MIN_SIZE shl index) return
+            val free = classes[index]
+            synchronized(free) {
+                if (free.size < PER_CLASS) free.addLast(buffer)
+            }
+        }
 
-        val command = buffer.int
-        val arg0 = buffer.int
-        val arg1 = buffer.int
-        val dataLength = buffer.int
-        val checksum = buffer.int
-        val magic = buffer.int
-        val data: ByteArray?
-        if (dataLength >= 0) {
-            data = ByteArray(dataLength)
-            inputStream.readFully(data, 0, dataLength)
-        } else {
-            data = null
+        private companion object {
+            const val MIN_SHIFT = 12
+            const val MIN_SIZE = 1 shl MIN_SHIFT
+            const val CLASS_COUNT = 20 - MIN_SHIFT + 1 // up to MAX_PAYLOAD
+            const val PER_CLASS = 4
         }
-        val message = AdbMessage(command, arg0, arg1, dataLength, checksum, magic, data)
-        message.validateOrThrow()
-        Timber.tag(TAG).d("read ${message.toStringShort()}")
-        return message
     }
 
     override fun close() {
-        try {
-            plainInputStream?.close()
-        } catch (e: Throwable) {
-        } finally {
-            plainInputStream = null
+        closed = true
+        synchronized(writeLock) {
+            output = null
         }
+        input = null
         try {
-            plainOutputStream?.close()
-        } catch (e: Throwable) {
+            tlsSocket?.close()
+        } catch (e: Exception) {
         } finally {
-            plainOutputStream = null
+            tlsSocket = null
         }
         try {
             socket?.close()
@@ -206,26 +618,13 @@ class AdbClient(
         } finally {
             socket = null
         }
+        reader = null
+    }
 
-        if (useTls) {
-            try {
-                tlsInputStream?.close()
-            } catch (e: Throwable) {
-            } finally {
-                tlsInputStream = null
-            }
-            try {
-                tlsOutputStream?.close()
-            } catch (e: Throwable) {
-            } finally {
-                tlsOutputStream = null
-            }
-            try {
-                tlsSocket?.close()
-            } catch (e: Exception) {
-            } finally {
-                tlsSocket = null
-            }
-        }
+    private companion object {
+        const val HANDSHAKE_TIMEOUT_MS = 15000 // 15 seconds read timeout to prevent infinite hangs
+        const val STREAM_TIMEOUT_MS = 15000L
+        const val OUTPUT_BUFFER_SIZE = AdbMessage.HEADER_LENGTH + 4 * A_MAXDATA
+        val EMPTY = ByteArray(0)
     }
 }
@@ -98,7 +98,15 @@ class AdbMessage(
     }
 
     fun toStringShort(): String {
-        val commandString = when (command) {
+        val commandString = commandName(command)
+        return "command=$commandString, arg0=$arg0, arg1=$arg1, data_length=$data_length, data_crc32=$data_crc32, magic=$magic, data=${data?.contentToString()}"
+    }
+
+    companion object {
+
+        const val HEADER_LENGTH = 24
+
+        fun commandName(command: Int) = when (command) {
             A_SYNC -> "A_SYNC"
             A_CNXN -> "A_CNXN"
             A_AUTH -> "A_AUTH"
@@ -109,24 +117,37 @@ class AdbMessage(
             A_STLS -> "A_STLS"
             else -> command.toString()
         }
-        return "command=$commandString, arg0=$arg0, arg1=$arg1, data_length=$data_length, data_crc32=$data_crc32, magic=$magic, data=${data?.contentToString()}"
-    }
-
-    companion object {
-
-        const val HEADER_LENGTH = 24
-
 
         private fun crc32(data: ByteArray?): Int {
             if (data == null) return 0
+            return crc32(data, 0, data.size)
+        }
+
+        fun crc32(data: ByteArray, offset: Int, length: Int): Int {
             var res = 0
-            for (b in data) {
-                if (b >= 0)
-                    res += b
-                else
-                    res += b + 256
+            for (i in offset until offset + length) {
+                res += data[i].toInt() and 0xff
             }
             return res
         }
+
+        /**
+         * Writes the header of a message carrying [length] bytes of [data] from [offset] into
+         * [header], which must be little-endian with [HEADER_LENGTH] bytes remaining. Lets a
+         * writer reuse one header buffer and send the payload straight from the caller's array
+         * instead of building a message object and copying both into a new array.
+         */
+        fun writeHeader(
+            header: ByteBuffer, command: Int, arg0: Int, arg1: Int, data: ByteArray?, offset: Int, length: Int,
+            checksum: Boolean = true,
+        ) {
+            header.putInt(command)
+            header.putInt(arg0)
+            header.putInt(arg1)
+            header.putInt(length)
+            // Peers at A_VERSION_SKIP_CHECKSUM or later ignore it, so don't walk the payload
+            header.putInt(if (!checksum || data == null || length == 0) 0 else crc32(data, offset, length))
+            header.putInt(command.inv())
+        }
     }
 }
@@ -0,0 +1,277 @@
+package af.shizuku.manager.adb
+
+import rikka.shizuku.Shizuku
+import rikka.shizuku.ShizukuRemoteProcess
+import timber.log.Timber
+import java.io.Closeable
+import java.io.InputStream
+import java.security.SecureRandom
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * One long-lived `sh` that runs commands back to back, so a burst of short `shell:` commands
+ * doesn't pay for a new remote process each.
+ *
+ * Each command is handed to `sh -c` as a single-quoted argument with stdin from /dev/null,
+ * followed by an end marker on both stdout (with the exit code) and stderr. Quoted, nothing in
+ * the command can swallow the markers the way a stray quote or heredoc would if it were spliced
+ * into the script. The marker starts with a control character and carries a random nonce, so
+ * command output can't fake it. Only one command runs at a time; [tryRun] returns `false` while
+ * busy so the caller can fall back to a dedicated process instead of queueing behind a
+ * long-running one. A command still running after [jobTimeoutMs] is failed and the shell killed,
+ * the next command gets a new one.
+ */
+class AdbPersistentShell(
+    private val executor: Executor,
+    private val jobTimeoutMs: Long = DEFAULT_JOB_TIMEOUT_MS,
+) : Closeable {
+
+    interface Job {
+
+        /**
+         * Output of the running command, [id] being [AdbShellV2.ID_STDOUT] or
+         * [AdbShellV2.ID_STDERR]. May block; the shell waits.
+         */
+        fun onOutput(id: Int, data: ByteArray, offset: Int, length: Int)
+
+        /**
+         * The command finished, or -1 if the shell died under it.
+         */
+        fun onExit(exitCode: Int)
+    }
+
+    private val nonce = ByteArray(8).also(SecureRandom()::nextBytes).joinToString("") { "%02x".format(it) }
+    private val marker = "${MARKER_START}SPE$nonce".toByteArray()
+
+    private val lock = Any()
+    private var process: ShizukuRemoteProcess? = null
+    private var current: Job? = null
+    private var deadline: ScheduledFuture<*>? = null
+    private var exitCode = -1
+    private var stdoutDone = false
+    private var stderrDone = false
+    private var closed = false
+
+    /**
+     * Starts [command] if the shell is idle, spawning it first if needed.
+     *
+     * @return `false` if busy or the shell can't be started.
+     */
+    fun tryRun(command: String, job: Job): Boolean {
+        val p = synchronized(lock) {
+            if (closed || current != null) return false
+            val p = process ?: spawnLocked() ?: return false
+            current = job
+            exitCode = -1
+            stdoutDone = false
+            stderrDone = false
+            deadline = timer.schedule({ expire(p, job) }, jobTimeoutMs, TimeUnit.MILLISECONDS)
+            p
+        }
+        val script = "sh -c ${quote(command)} </dev/null\n" +
+            "printf '\\036SPE$nonce:%d\\n' $?\n" +
+            "printf '\\036SPE$nonce\\n' >&2\n"
+        try {
+            p.outputStream.write(script.toByteArray())
+            p.outputStream.flush()
+        } catch (e: Exception) {
+            // The pumps see the shell go away and fail the job
+            Timber.tag(TAG).w(e, "persistent shell is gone")
+            p.destroy()
+        }
+        return true
+    }
+
+    /**
+     * Stops [job] if it's running; the shell goes with it, the next command gets a new one.
+     */
+    fun cancel(job: Job) {
+        val p = synchronized(lock) {
+            if (current !== job) return
+            process
+        }
+        p?.destroy()
+    }
+
+    /**
+     * Takes [job] off the shell without reporting an exit for it; the shell is killed under it
+     * and the next command gets a new one. No more output reaches [job] once this returns.
+     *
+     * @return `false` if [job] isn't running on the shell.
+     */
+    fun abandon(job: Job): Boolean {
+        val p = synchronized(lock) {
+            if (current !== job) return false
+            detachLocked()
+        }
+        p?.destroy()
+        return true
+    }
+
+    // Lets go of the shell right away: a background child of the command may keep its pipes,
+    // and with them the pumps, alive long after the shell is killed
+    private fun detachLocked(): ShizukuRemoteProcess? {
+        val p = process
+        process = null
+        current = null
+        deadline?.cancel(false)
+        deadline = null
+        return p
+    }
+
+    private fun expire(p: ShizukuRemoteProcess, job: Job) {
+        synchronized(lock) {
+            if (process !== p || current !== job) return
+            detachLocked()
+        }
+        Timber.tag(TAG).w("command on the persistent shell timed out after %d ms", jobTimeoutMs)
+        p.destroy()
+        job.onExit(-1)
+    }
+
+    private fun spawnLocked(): ShizukuRemoteProcess? {
+        val p = try {
+            Shizuku.newProcess(arrayOf("sh"), null, null)
+        } catch (e: Exception) {
+            Timber.tag(TAG).w(e, "failed to start persistent shell")
+            return null
+        }
+        try {
+            executor.execute { pump(p, p.inputStream, AdbShellV2.ID_STDOUT) }
+            executor.execute { pump(p, p.errorStream, AdbShellV2.ID_STDERR) }
+        } catch (e: RejectedExecutionException) {
+            // One pump may have started; it exits once the process is gone
+            p.destroy()
+            return null
+        }
+        process = p
+        return p
+    }
+
+    private fun pump(p: ShizukuRemoteProcess, input: InputStream, id: Int) {
+        val scanner = Scanner(p, id)
+        val buf = ByteArray(PUMP_BUFFER_SIZE)
+        try {
+            while (true) {
+                val r = input.read(buf)
+                if (r <= 0) break
+                scanner.feed(buf, 0, r)
+            }
+        } catch (e: Exception) {
+            Timber.tag(TAG).d(e, "persistent shell pump %d", id)
+        }
+        p.destroy()
+        // The other pump of this shell, or a shell already replaced, has nothing left to fail
+        val job = synchronized(lock) {
+            if (process !== p) return
+            process = null
+            deadline?.cancel(false)
+            deadline = null
+            current.also { current = null }
+        }
+        job?.onExit(-1)
+    }
+
+    private fun onMarker(p: ShizukuRemoteProcess, id: Int, code: Int) {
+        val job = synchronized(lock) {
+            if (process !== p) return
+            if (id == AdbShellV2.ID_STDOUT) {
+                stdoutDone = true
+                exitCode = code
+            } else {
+                stderrDone = true
+            }
+            if (!stdoutDone || !stderrDone) return
+            deadline?.cancel(false)
+            deadline = null
+            current.also { current = null }
+        }
+        job?.onExit(exitCode)
+    }
+
+    /**
+     * Splits one output stream into command output and end markers, which may be cut
+     * anywhere by the pipe. Bytes that might start a marker are held back until it's clear
+     * whether they do.
+     */
+    private inner class Scanner(private val p: ShizukuRemoteProcess, private val id: Int) {
+        private var matched = 0
+        private var readingCode = false
+        private var code = 0
+
+        fun feed(data: ByteArray, offset: Int, length: Int) {
+            val end = offset + length
+            var plainStart = offset
+            var i = offset
+            while (i < end) {
+                val b = data[i]
+                if (readingCode) {
+                    // ":<exit code>\n" on stdout, just "\n" on stderr
+                    if (b == NEWLINE) {
+                        readingCode = false
+                        onMarker(p, id, code)
+                    } else if (b in ZERO..NINE) {
+                        code = code * 10 + (b - ZERO)
+                    }
+                    i++
+                    plainStart = i
+                } else if (b == marker[matched]) {
+                    if (matched == 0) emit(data, plainStart, i - plainStart)
+                    matched++
+                    i++
+                    plainStart = i
+                    if (matched == marker.size) {
+                        matched = 0
+                        readingCode = true
+                        code = 0
+                    }
+                } else if (matched > 0) {
+                    // Not a marker after all; what we held back was output. The marker's first
+                    // byte appears nowhere else in it, so b can only start a new match.
+                    emit(marker, 0, matched)
+                    matched = 0
+                } else {
+                    i++
+                }
+            }
+            emit(data, plainStart, end - plainStart)
+        }
+
+        private fun emit(data: ByteArray, offset: Int, length: Int) {
+            if (length <= 0) return
+            // Output of a shell given up on belongs to no job, even once the next one started
+            val job = synchronized(lock) { if (process === p) current else null }
+            job?.onOutput(id, data, offset, length)
+        }
+    }
+
+    override fun close() {
+        val p = synchronized(lock) {
+            closed = true
+            process
+        }
+        p?.destroy()
+    }
+
+    private companion object {
+        const val TAG = "AdbPersistentShell"
+        const val DEFAULT_JOB_TIMEOUT_MS = 10 * 60 * 1000L
+        const val PUMP_BUFFER_SIZE = 64 * 1024
+        const val MARKER_START = '\u001e'
+        const val NEWLINE: Byte = 0x0a
+        const val ZERO: Byte = 0x30
+        const val NINE: Byte = 0x39
+
+        // Deadlines of every connection's shell; expire() only flips state and kills a process
+        val timer = ScheduledThreadPoolExecutor(1) { r ->
+            Thread(r, "AdbPersistentShellTimer").apply { isDaemon = true }
+        }.apply { removeOnCancelPolicy = true }
+
+        /** [command] as one single-quoted `sh` word, each `'` in it written as `'\''`. */
+        fun quote(command: String) = "'" + command.replace("'", "'\\''") + "'"
+    }
+}
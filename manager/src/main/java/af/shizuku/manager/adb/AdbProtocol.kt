@@ -11,12 +11,52 @@ object AdbProtocol {
     const val A_WRTE = 0x45545257
     const val A_STLS = 0x534C5453
 
-    const val A_VERSION = 0x01000000
+    const val A_VERSION_MIN = 0x01000000
+
+    // From this version on, peers leave data_crc32 at 0 and don't check it
+    const val A_VERSION_SKIP_CHECKSUM = 0x01000001
+    const val A_VERSION = A_VERSION_SKIP_CHECKSUM
+
+    // Max payload a peer may assume before the A_CNXN exchange tells it otherwise
     const val A_MAXDATA = 4096
 
+    // What we advertise; the connection uses the smaller of this and the peer's
+    const val MAX_PAYLOAD = 1024 * 1024
+
     const val A_STLS_VERSION = 0x01000000
 
     const val ADB_AUTH_TOKEN = 1
     const val ADB_AUTH_SIGNATURE = 2
     const val ADB_AUTH_RSAPUBLICKEY = 3
+
+    // A_CNXN banner features, used when both ends list them
+    const val FEATURE_SHELL_V2 = "shell_v2"
+    const val FEATURE_DELAYED_ACK = "delayed_ack"
+
+    val SUPPORTED_FEATURES = setOf(FEATURE_SHELL_V2, FEATURE_DELAYED_ACK)
+
+    // With delayed_ack, how many unacknowledged bytes we let a peer send us on one stream
+    const val DELAYED_ACK_WINDOW = 2 * MAX_PAYLOAD
+
+    /**
+     * Banner for our side of A_CNXN: `<system type>::features=<a,b,c>`.
+     */
+    fun banner(systemType: String) = "$systemType::features=${SUPPORTED_FEATURES.joinToString(",")}"
+
+    /**
+     * Features listed in a peer's A_CNXN banner (`device::ro.product.name=x;features=a,b`) that
+     * we support too.
+     */
+    fun negotiateFeatures(banner: ByteArray?): Set<String> {
+        if (banner == null) return emptySet()
+        val text = String(banner).trimEnd('\u0000')
+        val properties = text.split(':').getOrNull(2) ?: return emptySet()
+        for (property in properties.split(';')) {
+            if (property.startsWith("features=")) {
+                return property.substring("features=".length).split(',')
+                    .filterTo(HashSet()) { it in SUPPORTED_FEATURES }
+            }
+        }
+        return emptySet()
+    }
 }
@@ -0,0 +1,395 @@
+package af.shizuku.manager.adb
+
+import timber.log.Timber
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.CancelledKeyException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Selector-based server for the ADB wire protocol.
+ *
+ * One loop thread accepts connections, reads and frames packets and flushes queued output for
+ * every connection. Complete packets are handed to the connection's [Handler] on a pooled
+ * thread, one at a time and in order, so a handler may block (on an authorization prompt, or
+ * on a process's stdin) without holding up the loop or other connections. At most
+ * [maxConnections] are served at once; further ones are closed as soon as they're accepted.
+ *
+ * Backpressure runs both ways: a connection whose handler falls behind stops being read, and
+ * [Connection.write] blocks while too much of a connection's output is still unsent.
+ */
+class AdbProxyServer(
+    private val address: InetSocketAddress,
+    private val maxConnections: Int,
+    private val handlerFactory: (Connection) -> Handler,
+) : Closeable {
+
+    interface Handler {
+
+        /**
+         * Called for each packet in arrival order, never concurrently for one connection. May
+         * block; throwing closes the connection.
+         */
+        fun onMessage(message: AdbMessage)
+
+        /**
+         * Called once when the connection is gone, after the last [onMessage].
+         */
+        fun onClosed() {}
+    }
+
+    private val selector = Selector.open()
+    private val serverChannel = ServerSocketChannel.open()
+    private val loopTasks = ConcurrentLinkedQueue<Runnable>()
+    private val connections = ConcurrentHashMap.newKeySet<Connection>()
+
+    // Each connection drains on at most one of these at a time
+    private val dispatcher = ThreadPoolExecutor(
+        maxConnections, maxConnections, 30, TimeUnit.SECONDS, LinkedBlockingQueue(),
+    ) { r -> Thread(r, "AdbProxyDispatch").apply { isDaemon = true } }.apply {
+        allowCoreThreadTimeOut(true)
+    }
+
+    @Volatile
+    private var running = false
+    private var thread: Thread? = null
+
+    val connectionCount get() = connections.size
+
+    /**
+     * The bound port, useful when [address] asked for an ephemeral one.
+     */
+    val localPort get() = serverChannel.socket().localPort
+
+    /**
+     * Binds and starts the loop.
+     *
+     * @throws IOException if the address can't be bound; nothing is left open then.
+     */
+    fun start() {
+        try {
+            serverChannel.configureBlocking(false)
+            serverChannel.socket().reuseAddress = true
+            serverChannel.bind(address, BACKLOG)
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT)
+        } catch (e: IOException) {
+            runCatching { serverChannel.close() }
+            runCatching { selector.close() }
+            dispatcher.shutdown()
+            throw e
+        }
+        running = true
+        thread = Thread({ loop() }, "AdbProxyServer").apply {
+            isDaemon = true
+            start()
+        }
+        Timber.tag(TAG).i("listening on %s, at most %d connections", address, maxConnections)
+    }
+
+    private fun loop() {
+        try {
+            while (running) {
+                selector.select()
+                while (true) {
+                    val task = loopTasks.poll() ?: break
+                    task.run()
+                }
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    val connection = key.attachment() as Connection?
+                    try {
+                        if (!key.isValid) continue
+                        if (key.isAcceptable) {
+                            accept()
+                            continue
+                        }
+                        if (key.isReadable) connection!!.onReadable()
+                        if (key.isValid && key.isWritable) connection!!.onWritable()
+                    } catch (e: IOException) {
+                        Timber.tag(TAG).d(e, "connection error")
+                        connection?.close()
+                    } catch (e: CancelledKeyException) {
+                        connection?.close()
+                    }
+                }
+            }
+        } catch (e: Throwable) {
+            if (running) Timber.tag(TAG).e(e, "event loop failed")
+        } finally {
+            running = false
+            for (connection in connections) {
+                connection.close()
+            }
+            runCatching { serverChannel.close() }
+            runCatching { selector.close() }
+        }
+    }
+
+    private fun accept() {
+        val channel = serverChannel.accept() ?: return
+        if (connections.size >= maxConnections) {
+            Timber.tag(TAG).w("refusing connection, %d already open", maxConnections)
+            runCatching { channel.close() }
+            return
+        }
+        channel.configureBlocking(false)
+        channel.socket().tcpNoDelay = true
+        val connection = Connection(channel)
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection)
+        connections.add(connection)
+        try {
+            connection.handler = handlerFactory(connection)
+        } catch (e: Exception) {
+            Timber.tag(TAG).e(e, "failed to create handler")
+            connection.close()
+        }
+    }
+
+    private fun onLoop(task: Runnable) {
+        if (Thread.currentThread() === thread) {
+            task.run()
+        } else {
+            loopTasks.add(task)
+            selector.wakeup()
+        }
+    }
+
+    override fun close() {
+        if (!running) return
+        running = false
+        selector.wakeup()
+        for (connection in connections) {
+            connection.close()
+        }
+        dispatcher.shutdown()
+    }
+
+    inner class Connection internal constructor(private val channel: SocketChannel) {
+
+        internal lateinit var key: SelectionKey
+        internal var handler: Handler? = null
+
+        // Loop thread only
+        private var input = ByteBuffer.allocate(INITIAL_INPUT_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        private var readPaused = false
+
+        // Packets (and finally CLOSED) waiting for the handler
+        private val inbox = ConcurrentLinkedQueue<Any>()
+        private val inboxSize = AtomicInteger()
+        private val draining = AtomicBoolean()
+
+        // Guarded by outLock
+        private val outLock = Object()
+        private val outbox = ArrayDeque<ByteBuffer>()
+        private var outBytes = 0
+        private val header = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+        private val gather = arrayOf(header, header)
+
+        @Volatile
+        var isOpen = true
+            private set
+
+        /**
+         * Largest data_length accepted from the client; a packet over it closes the connection.
+         * Starts at the pre-handshake [AdbProtocol.A_MAXDATA], which CNXN and AUTH fit in; the
+         * handler raises it to the max payload negotiated in A_CNXN once the connection is up.
+         */
+        @Volatile
+        var maxPayload = AdbProtocol.A_MAXDATA
+
+        internal fun onReadable() {
+            if (channel.read(input) < 0) {
+                close()
+                return
+            }
+            input.flip()
+            var needed = 0
+            while (input.remaining() >= AdbMessage.HEADER_LENGTH) {
+                val start = input.position()
+                val command = input.getInt(start)
+                val length = input.getInt(start + 12)
+                if (command != input.getInt(start + 20).inv()) {
+                    throw IOException("bad message header command=${AdbMessage.commandName(command)}")
+                }
+                // Bound the length before trusting it, a corrupt header would allocate unboundedly
+                val limit = maxPayload
+                if (length < 0 || length > limit) {
+                    throw IOException("ADB message data_length $length exceeds max $limit")
+                }
+                if (input.remaining() < AdbMessage.HEADER_LENGTH + length) {
+                    needed = AdbMessage.HEADER_LENGTH + length
+                    break
+                }
+                val arg0 = input.getInt(start + 4)
+                val arg1 = input.getInt(start + 8)
+                val crc = input.getInt(start + 16)
+                val data = if (length > 0) ByteArray(length) else null
+                input.position(start + AdbMessage.HEADER_LENGTH)
+                data?.let(input::get)
+                enqueue(AdbMessage(command, arg0, arg1, length, crc, command.inv(), data))
+            }
+            input.compact()
+            if (needed > input.capacity()) {
+                val bigger = ByteBuffer.allocate(maxOf(needed, input.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN)
+                input.flip()
+                bigger.put(input)
+                input = bigger
+            }
+        }
+
+        private fun enqueue(message: AdbMessage) {
+            inbox.add(message)
+            if (inboxSize.incrementAndGet() >= INBOX_HIGH_WATER && !readPaused) {
+                // The handler is behind; stop reading so the client's TCP window fills up instead
+                readPaused = true
+                key.interestOps(key.interestOps() and SelectionKey.OP_READ.inv())
+            }
+            scheduleDrain()
+        }
+
+        private fun scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    dispatcher.execute { drain() }
+                } catch (e: Exception) {
+                    draining.set(false)
+                    Timber.tag(TAG).w(e, "dispatcher rejected connection")
+                }
+            }
+        }
+
+        private fun drain() {
+            try {
+                while (true) {
+                    val item = inbox.poll() ?: break
+                    if (item === CLOSED) {
+                        handler?.onClosed()
+                        continue
+                    }
+                    if (inboxSize.decrementAndGet() == INBOX_LOW_WATER) {
+                        onLoop {
+                            if (readPaused && key.isValid) {
+                                readPaused = false
+                                key.interestOps(key.interestOps() or SelectionKey.OP_READ)
+                            }
+                        }
+                    }
+                    if (isOpen) handler?.onMessage(item as AdbMessage)
+                }
+            } catch (e: Exception) {
+                Timber.tag(TAG).d(e, "handler failed")
+                close()
+            } finally {
+                draining.set(false)
+                if (inbox.isNotEmpty()) scheduleDrain()
+            }
+        }
+
+        /**
+         * Queues one packet. Tries to send it right away; if the socket can't take all of it, the
+         * rest is copied and flushed by the loop. Blocks while more than [OUTPUT_HIGH_WATER]
+         * bytes are waiting.
+         *
+         * @throws IOException if the connection is closed.
+         */
+        fun write(
+            command: Int, arg0: Int, arg1: Int, data: ByteArray? = null, offset: Int = 0, length: Int = data?.size ?: 0,
+            checksum: Boolean = true,
+        ) {
+            synchronized(outLock) {
+                if (!isOpen) throw IOException("connection closed")
+                header.clear()
+                AdbMessage.writeHeader(header, command, arg0, arg1, data, offset, length, checksum)
+                header.flip()
+                val payload = if (data != null && length > 0) ByteBuffer.wrap(data, offset, length) else null
+
+                if (outbox.isEmpty()) {
+                    if (payload == null) {
+                        channel.write(header)
+                    } else {
+                        gather[0] = header
+                        gather[1] = payload
+                        channel.write(gather)
+                    }
+                }
+                val remaining = header.remaining() + (payload?.remaining() ?: 0)
+                if (remaining > 0) {
+                    // The caller may reuse its array as soon as we return, so keep a copy
+                    val rest = ByteBuffer.allocate(remaining)
+                    rest.put(header)
+                    payload?.let(rest::put)
+                    rest.flip()
+                    val wasEmpty = outbox.isEmpty()
+                    outbox.addLast(rest)
+                    outBytes += remaining
+                    if (wasEmpty) {
+                        onLoop {
+                            if (key.isValid) key.interestOps(key.interestOps() or SelectionKey.OP_WRITE)
+                        }
+                    }
+                }
+                while (isOpen && outBytes > OUTPUT_HIGH_WATER) {
+                    outLock.wait()
+                }
+                if (!isOpen) throw IOException("connection closed")
+            }
+        }
+
+        internal fun onWritable() {
+            synchronized(outLock) {
+                while (outbox.isNotEmpty()) {
+                    val buffer = outbox.peekFirst()!!
+                    outBytes -= channel.write(buffer)
+                    if (buffer.hasRemaining()) break
+                    outbox.removeFirst()
+                }
+                if (outbox.isEmpty()) {
+                    key.interestOps(key.interestOps() and SelectionKey.OP_WRITE.inv())
+                }
+                outLock.notifyAll()
+            }
+        }
+
+        fun close() {
+            synchronized(outLock) {
+                if (!isOpen) return
+                isOpen = false
+                outbox.clear()
+                outBytes = 0
+                outLock.notifyAll()
+            }
+            connections.remove(this)
+            runCatching { channel.close() }
+            inbox.add(CLOSED)
+            scheduleDrain()
+        }
+    }
+
+    private companion object {
+        const val TAG = "AdbProxyServer"
+        const val BACKLOG = 16
+        const val INITIAL_INPUT_SIZE = 16 * 1024
+
+        const val INBOX_HIGH_WATER = 64
+        const val INBOX_LOW_WATER = 16
+        const val OUTPUT_HIGH_WATER = 4 * 1024 * 1024
+
+        val CLOSED = Any()
+    }
+}
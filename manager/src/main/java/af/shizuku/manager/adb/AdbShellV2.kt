@@ -0,0 +1,94 @@
+package af.shizuku.manager.adb
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Framing of `shell,v2` streams: every chunk is `[id: u8][length: u32le][data]`, which keeps
+ * stdout and stderr apart and carries the exit code, unlike a plain `shell:` stream.
+ */
+object AdbShellV2 {
+
+    const val ID_STDIN = 0
+    const val ID_STDOUT = 1
+    const val ID_STDERR = 2
+    const val ID_EXIT = 3
+    const val ID_CLOSE_STDIN = 4
+    const val ID_WINDOW_SIZE_CHANGE = 5
+
+    const val HEADER_LENGTH = 5
+
+    /**
+     * Destination that runs [command] without a pty (`shell,v2,raw:`), or an interactive shell
+     * if it's empty.
+     */
+    fun destination(command: String) =
+        if (command.isEmpty()) "shell,v2,pty:" else "shell,v2,raw:$command"
+
+    /**
+     * Parses `shell[,arg...]:command`.
+     *
+     * @return the command and whether the v2 protocol was asked for, or `null` if [destination]
+     * isn't a shell service.
+     */
+    fun parseDestination(destination: String): Pair<String, Boolean>? {
+        if (!destination.startsWith("shell")) return null
+        val colon = destination.indexOf(':')
+        if (colon < 0) return null
+        val args = destination.substring("shell".length, colon)
+        if (args.isNotEmpty() && !args.startsWith(",")) return null
+        val v2 = args.split(',').contains("v2")
+        return destination.substring(colon + 1) to v2
+    }
+
+    fun writeHeader(buffer: ByteArray, id: Int, length: Int) {
+        ByteBuffer.wrap(buffer, 0, HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+            .put(id.toByte())
+            .putInt(length)
+    }
+
+    /**
+     * Reassembles packets from a byte stream that may split or merge them arbitrarily, passing
+     * each piece of data to [onData] as it arrives rather than buffering whole packets.
+     */
+    class Decoder(private val onData: (id: Int, data: ByteArray, offset: Int, length: Int) -> Unit) {
+
+        private val header = ByteArray(HEADER_LENGTH)
+        private var headerFilled = 0
+        private var id = 0
+        private var remaining = 0
+
+        var exitCode = -1
+            private set
+
+        fun feed(data: ByteArray, offset: Int, length: Int) {
+            var position = offset
+            val end = offset + length
+            while (position < end) {
+                if (headerFilled < HEADER_LENGTH) {
+                    val n = minOf(HEADER_LENGTH - headerFilled, end - position)
+                    System.arraycopy(data, position, header, headerFilled, n)
+                    headerFilled += n
+                    position += n
+                    if (headerFilled < HEADER_LENGTH) return
+                    id = header[0].toInt() and 0xff
+                    remaining = ByteBuffer.wrap(header, 1, 4).order(ByteOrder.LITTLE_ENDIAN).int
+                    if (remaining < 0) throw IllegalArgumentException("bad shell v2 packet length $remaining")
+                    if (remaining == 0) {
+                        headerFilled = 0
+                        onData(id, data, position, 0)
+                    }
+                    continue
+                }
+                val n = minOf(remaining, end - position)
+                if (id == ID_EXIT) {
+                    exitCode = data[position].toInt() and 0xff
+                }
+                onData(id, data, position, n)
+                position += n
+                remaining -= n
+                if (remaining == 0) headerFilled = 0
+            }
+        }
+    }
+}
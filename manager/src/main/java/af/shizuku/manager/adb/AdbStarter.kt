@@ -54,8 +54,9 @@ object AdbStarter {
             Timber.tag(TAG).w("startAdb called with invalid port $port — skipping")
             return
         }
-        suspend fun AdbClient.runCommand(cmd: String) {
-            command(cmd) { log?.invoke(String(it)) }
+        suspend fun AdbClient.runShell(cmd: String) {
+            val exitCode = shell(cmd, { data, offset, length -> log?.invoke(String(data, offset, length)) })
+            if (exitCode > 0) Timber.tag(TAG).w("starter exited with $exitCode")
         }
 
         try {
@@ -97,7 +98,7 @@ object AdbStarter {
                 AdbClient("127.0.0.1", activePort, key).use { client ->
                     connectWithRetry(client)
                     log?.invoke("Successfully connected on port $activePort...\n")
-                    client.runCommand("shell:${Starter.internalCommand}")
+                    client.runShell(Starter.internalCommand)
                     ShizukuSettings.setLastPort(activePort)
                     ActivityLogManager.log("Shizuku", context.packageName, "Service started via ADB on port $activePort")
                     ShizukuStateMachine.update()
@@ -7,170 +7,511 @@ import android.util.Base64
 import rikka.shizuku.Shizuku
 import rikka.shizuku.ShizukuRemoteProcess
 import timber.log.Timber
-import java.io.DataInputStream
-import java.io.DataOutputStream
-import java.net.Socket
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.SecureRandom
 import java.security.Signature
 import java.security.interfaces.RSAPublicKey
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
+/**
+ * One client of the local ADB proxy, speaking the device side of the protocol: the A_CNXN and
+ * A_AUTH handshake, then `shell:` streams backed by Shizuku processes.
+ *
+ * Packets arrive one at a time from [AdbProxyServer]. Non-interactive commands run on a
+ * per-connection [AdbPersistentShell] when [usePersistentShell] is set and it's idle, and in a
+ * process of their own otherwise. The persistent shell gives commands /dev/null for stdin, so one
+ * the client sends input to is moved to a process of its own, see [ShellStream.onStdin].
+ */
 class FakeAdbClientHandler(
     private val context: Context,
-    private val socket: Socket
-) {
+    private val connection: AdbProxyServer.Connection,
+    usePersistentShell: Boolean,
+) : AdbProxyServer.Handler {
     companion object {
         private const val TAG = "FakeAdbClient"
         private const val PREFS_NAME = "fake_adb_keys"
-        private const val MAX_ADB_PAYLOAD_SIZE = 16 * 1024 * 1024 // 16MB, well above real adb's ~1MB max payload
 
-        // Multiplexing
-        private val localIdCounter = AtomicInteger(1)
+        // A pipe holds 64 KiB, so a single read never returns more
+        private const val PUMP_BUFFER_SIZE = 64 * 1024
+        private const val MAX_PUMPS = 128
+
+        // Pumps of every connection share these threads, at most MAX_PUMPS of them: two output
+        // pumps per running command and per persistent shell, and a stdin writer per stream with
+        // client input in flight, returned to the pool when done rather than a new thread each
+        private val pumpExecutor = ThreadPoolExecutor(
+            0, MAX_PUMPS, 30, TimeUnit.SECONDS, SynchronousQueue(),
+        ) { r -> Thread(r, "FakeAdbPump").apply { isDaemon = true } }
     }
 
-    private val inputStream = DataInputStream(socket.getInputStream())
-    private val outputStream = DataOutputStream(socket.getOutputStream())
+    private enum class State { CONNECTING, AUTHENTICATING, ONLINE }
+
+    // Only touched from onMessage
+    private var state = State.CONNECTING
+    private val random = SecureRandom()
+    private val token = ByteArray(20)
+
+    // Stream ids are per connection, like adbd's
+    private val localIdCounter = AtomicInteger(1)
 
     private val prefs: SharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
 
-    // We only support one active session per connection, but could support multiple
-    private val activeProcesses = ConcurrentHashMap<Int, ShizukuRemoteProcess>()
+    private val streams = ConcurrentHashMap<Int, ShellStream>()
+    private val persistentShell = if (usePersistentShell) AdbPersistentShell(pumpExecutor) else null
+
+    // Negotiated from the client's A_CNXN, see AdbProtocol
+    private var protocolVersion = AdbProtocol.A_VERSION_MIN
+    private var maxPayload = AdbProtocol.A_MAXDATA
+    private var features: Set<String> = emptySet()
+    private val delayedAck get() = AdbProtocol.FEATURE_DELAYED_ACK in features
 
-    fun loop() {
-        // Wait for CNXN
-        var msg = readMessage()
+    override fun onMessage(message: AdbMessage) {
+        when (state) {
+            State.CONNECTING -> onConnect(message)
+            State.AUTHENTICATING -> onAuth(message)
+            State.ONLINE -> onStreamMessage(message)
+        }
+    }
+
+    override fun onClosed() {
+        for (stream in streams.values) {
+            stream.close()
+        }
+        streams.clear()
+        persistentShell?.close()
+    }
+
+    private fun onConnect(msg: AdbMessage) {
         if (msg.command != AdbProtocol.A_CNXN) {
             Timber.tag(TAG).e("Expected CNXN, got ${msg.command}")
+            connection.close()
             return
         }
+        protocolVersion = minOf(AdbProtocol.A_VERSION, msg.arg0)
+        if (msg.arg1 > 0) maxPayload = minOf(msg.arg1, AdbProtocol.MAX_PAYLOAD)
+        features = AdbProtocol.negotiateFeatures(msg.data)
+        Timber.tag(TAG).d("Client version %x, max payload %d, features %s", protocolVersion, maxPayload, features)
 
         // Send AUTH(TOKEN)
-        val token = ByteArray(20)
-        java.security.SecureRandom().nextBytes(token)
+        random.nextBytes(token)
         writeMessage(AdbMessage(AdbProtocol.A_AUTH, AdbProtocol.ADB_AUTH_TOKEN, 0, token))
+        state = State.AUTHENTICATING
+    }
 
-        var authenticated = false
-        while (!authenticated) {
-            msg = readMessage()
-            if (msg.command == AdbProtocol.A_AUTH) {
-                if (msg.arg0 == AdbProtocol.ADB_AUTH_SIGNATURE) {
-                    val signature = msg.data!!
-                    if (verifySignature(token, signature)) {
-                        authenticated = true
-                        writeMessage(AdbMessage(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.A_MAXDATA, "device::"))
-                    } else {
-                        // Send another token, prompt client to try next key or send public key
-                        java.security.SecureRandom().nextBytes(token)
-                        writeMessage(AdbMessage(AdbProtocol.A_AUTH, AdbProtocol.ADB_AUTH_TOKEN, 0, token))
-                    }
-                } else if (msg.arg0 == AdbProtocol.ADB_AUTH_RSAPUBLICKEY) {
-                    val pubKeyStr = String(msg.data!!).trimEnd('\u0000')
-                    Timber.tag(TAG).i("Received public key: $pubKeyStr")
+    private fun onAuth(msg: AdbMessage) {
+        if (msg.command != AdbProtocol.A_AUTH) {
+            Timber.tag(TAG).e("Expected AUTH, got ${msg.command}")
+            connection.close()
+            return
+        }
+        if (msg.arg0 == AdbProtocol.ADB_AUTH_SIGNATURE) {
+            val signature = msg.data!!
+            if (verifySignature(token, signature)) {
+                online()
+            } else {
+                // Send another token, prompt client to try next key or send public key
+                random.nextBytes(token)
+                writeMessage(AdbMessage(AdbProtocol.A_AUTH, AdbProtocol.ADB_AUTH_TOKEN, 0, token))
+            }
+        } else if (msg.arg0 == AdbProtocol.ADB_AUTH_RSAPUBLICKEY) {
+            val pubKeyStr = String(msg.data!!).trimEnd('\u0000')
+            Timber.tag(TAG).i("Received public key: $pubKeyStr")
 
-                    if (isKeyAuthorized(pubKeyStr)) {
-                        authenticated = true
-                        writeMessage(AdbMessage(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.A_MAXDATA, "device::"))
-                    } else {
-                        // Prompt user
-                        val allowed = promptUserForPairingBlocking(pubKeyStr)
-                        if (allowed) {
-                            authorizeKey(pubKeyStr)
-                            authenticated = true
-                            writeMessage(AdbMessage(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.A_MAXDATA, "device::"))
-                        } else {
-                            Timber.tag(TAG).w("User denied pairing for key: $pubKeyStr")
-                            return
-                        }
-                    }
-                }
+            if (isKeyAuthorized(pubKeyStr)) {
+                online()
             } else {
-                Timber.tag(TAG).e("Expected AUTH, got ${msg.command}")
+                // Prompt user; only this connection waits, the server keeps serving others
+                val allowed = promptUserForPairingBlocking(pubKeyStr)
+                if (allowed) {
+                    authorizeKey(pubKeyStr)
+                    online()
+                } else {
+                    Timber.tag(TAG).w("User denied pairing for key: $pubKeyStr")
+                    connection.close()
+                }
+            }
+        }
+    }
+
+    private fun online() {
+        state = State.ONLINE
+        // Negotiated in onConnect; the client sends nothing bigger from here on
+        connection.maxPayload = maxOf(maxPayload, AdbProtocol.A_MAXDATA)
+        writeMessage(connectMessage())
+        Timber.tag(TAG).i("Client authenticated.")
+    }
+
+    private fun onStreamMessage(msg: AdbMessage) {
+        // Packets from the client carry its stream id in arg0 and ours in arg1
+        when (msg.command) {
+            AdbProtocol.A_OPEN -> {
+                val remoteId = msg.arg0
+                val destination = String(msg.data!!).trimEnd('\u0000')
+                val shell = AdbShellV2.parseDestination(destination)
+                if (shell != null) {
+                    val (cmd, v2) = shell
+                    // With delayed_ack, arg1 is the window the client offers us
+                    openShell(remoteId, cmd, v2 && AdbProtocol.FEATURE_SHELL_V2 in features, msg.arg1)
+                } else {
+                    Timber.tag(TAG).w("Unsupported destination: $destination")
+                    writePacket(AdbProtocol.A_CLSE, 0, remoteId)
+                }
+            }
+            AdbProtocol.A_OKAY -> {
+                val data = msg.data
+                val acked = if (data != null && data.size == 4) {
+                    ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).int
+                } else {
+                    -1
+                }
+                streams[msg.arg1]?.onOkay(acked)
+            }
+            AdbProtocol.A_WRTE -> {
+                val stream = streams[msg.arg1]
+                val data = msg.data ?: ByteArray(0)
+                if (stream == null) {
+                    writePacket(AdbProtocol.A_CLSE, 0, msg.arg0)
+                } else {
+                    // Acknowledged once it's written to the command, see ShellStream.onStdin
+                    stream.onStdin(data)
+                }
+            }
+            AdbProtocol.A_CLSE -> {
+                // Like adbd, don't echo the client's close
+                streams.remove(msg.arg1)?.close()
+            }
+        }
+    }
+
+    private fun openShell(remoteId: Int, cmd: String, v2: Boolean, clientWindow: Int) {
+        val localId = localIdCounter.getAndIncrement()
+        val stream = ShellStream(localId, remoteId, v2, clientWindow)
+        streams[localId] = stream
+        // Acknowledge the OPEN before any output can follow it; with delayed_ack this also
+        // offers our stdin window
+        writeOkay(localId, remoteId, AdbProtocol.DELAYED_ACK_WINDOW)
+        stream.start(cmd)
+    }
+
+    /**
+     * One shell command on one adb stream.
+     *
+     * The command runs on the connection's persistent shell when possible, else in a process of
+     * its own whose stdout and stderr are pumped concurrently on [pumpExecutor], so neither can
+     * fill its pipe and stall the process while the other is drained. With shell,v2 every chunk
+     * is framed with its stream id and the exit code follows at the end; a plain shell: stream
+     * gets both mixed. Each chunk takes credit before it's written: one packet per A_OKAY, or
+     * with delayed_ack as many bytes as the client has acknowledged, so a slow client holds the
+     * command back instead of being flooded.
+     */
+    private inner class ShellStream(
+        val localId: Int,
+        val remoteId: Int,
+        private val v2: Boolean,
+        clientWindow: Int,
+    ) : AdbPersistentShell.Job {
+        private val lock = ReentrantLock()
+        private val changed = lock.newCondition()
+        private var canWrite = true
+        private var sendWindow = clientWindow
+
+        @Volatile
+        private var closed = false
+        private val pumpsLeft = AtomicInteger(2)
+
+        // Null while on the persistent shell
+        @Volatile
+        private var process: ShizukuRemoteProcess? = null
+
+        // Client input not yet written to the command, guarded by lock. One task at a time on
+        // pumpExecutor writes it, in order.
+        private val stdinQueue = ArrayDeque<ByteArray>()
+        private var stdinWriting = false
+
+        private var command = ""
+
+        // Where the command stands on the persistent shell, guarded by lock: whether any of its
+        // output went to the client, and whether it was taken off the shell to get its stdin
+        private var shellOutputSent = false
+        private var movedOffShell = false
+        private var heldShellExit: Int? = null
+
+        // Room for the shell,v2 header in front of output from the persistent shell, one per
+        // output stream since both deliver concurrently
+        private val stdoutBuffer by lazy { ByteArray(minOf(maxPayload, PUMP_BUFFER_SIZE)) }
+        private val stderrBuffer by lazy { ByteArray(minOf(maxPayload, PUMP_BUFFER_SIZE)) }
+
+        private val stdin = if (v2) {
+            AdbShellV2.Decoder { id, data, offset, length ->
+                when (id) {
+                    AdbShellV2.ID_STDIN -> process?.outputStream?.write(data, offset, length)
+                    AdbShellV2.ID_CLOSE_STDIN -> process?.outputStream?.close()
+                }
+            }
+        } else {
+            null
+        }
+
+        fun start(cmd: String) {
+            command = cmd
+            // An interactive shell needs its stdin, which the persistent shell doesn't forward
+            if (cmd.isNotEmpty() && persistentShell?.tryRun(cmd, this) == true) return
+            startProcess(cmd)
+        }
+
+        private fun startProcess(cmd: String) {
+            val process = try {
+                val commandArray = if (cmd.isEmpty()) arrayOf("sh") else arrayOf("sh", "-c", cmd)
+                Shizuku.newProcess(commandArray, null, null)
+            } catch (e: Exception) {
+                Timber.tag(TAG).e(e, "Failed to start shell process")
+                abort()
                 return
             }
+            this.process = process
+            try {
+                pumpExecutor.execute { pump(process, process.inputStream, AdbShellV2.ID_STDOUT) }
+                pumpExecutor.execute { pump(process, process.errorStream, AdbShellV2.ID_STDERR) }
+            } catch (e: RejectedExecutionException) {
+                Timber.tag(TAG).w("Too many running commands, closing stream $localId")
+                abort()
+            }
         }
 
-        Timber.tag(TAG).i("Client authenticated. Entering multiplex loop.")
-
-        while (true) {
-            msg = readMessage()
-            when (msg.command) {
-                AdbProtocol.A_OPEN -> {
-                    val remoteId = msg.arg0
-                    val destination = String(msg.data!!).trimEnd('\u0000')
-                    if (destination.startsWith("shell:")) {
-                        val cmd = destination.substring(6)
-                        startShellProcess(remoteId, cmd)
-                    } else {
-                        Timber.tag(TAG).w("Unsupported destination: $destination")
-                        writeMessage(AdbMessage(AdbProtocol.A_CLSE, 0, remoteId, ByteArray(0)))
+        private fun abort() {
+            if (streams.remove(localId, this)) {
+                close()
+                writePacket(AdbProtocol.A_CLSE, localId, remoteId)
+            }
+        }
+
+        /**
+         * Queues client input for the command. It's written off the connection's dispatch thread,
+         * so a command that doesn't read its stdin only stalls its own stream, and acknowledged
+         * with A_OKAY once written, so the client can't send more than the command takes.
+         *
+         * A command on the persistent shell reads /dev/null. If it hasn't produced output yet,
+         * it's taken off the shell and started again in a process of its own that gets the input;
+         * past that point the input can't be delivered and is dropped.
+         */
+        fun onStdin(data: ByteArray) {
+            val startWriter = lock.withLock {
+                if (closed) return
+                stdinQueue.addLast(data)
+                !stdinWriting.also { stdinWriting = true }
+            }
+            if (!startWriter) return
+            try {
+                pumpExecutor.execute(::writeStdin)
+            } catch (e: RejectedExecutionException) {
+                Timber.tag(TAG).w("Too many running commands, closing stream $localId")
+                abort()
+            }
+        }
+
+        private fun writeStdin() {
+            while (true) {
+                val data = lock.withLock {
+                    val next = if (closed) null else stdinQueue.removeFirstOrNull()
+                    if (next == null) {
+                        stdinQueue.clear()
+                        stdinWriting = false
+                        return
                     }
+                    next
                 }
-                AdbProtocol.A_WRTE -> {
-                    val localId = msg.arg0
-                    val remoteId = msg.arg1
-                    val process = activeProcesses[localId]
-                    if (process != null) {
-                        try {
-                            process.outputStream.write(msg.data!!)
-                            process.outputStream.flush()
-                            writeMessage(AdbMessage(AdbProtocol.A_OKAY, localId, remoteId, ByteArray(0)))
-                        } catch (e: Exception) {
-                            Timber.tag(TAG).e(e, "Error writing to process stdin")
+                val process = process ?: moveOffShell()
+                if (process == null) {
+                    Timber.tag(TAG).w("Dropping %d bytes of stdin for stream %d, its command already ran on the persistent shell", data.size, localId)
+                } else {
+                    try {
+                        if (stdin != null) {
+                            stdin.feed(data, 0, data.size)
+                        } else {
+                            process.outputStream.write(data)
                         }
+                        process.outputStream.flush()
+                    } catch (e: Exception) {
+                        Timber.tag(TAG).e(e, "Error writing to process stdin")
                     }
                 }
-                AdbProtocol.A_CLSE -> {
-                    val localId = msg.arg0
-                    val process = activeProcesses.remove(localId)
-                    process?.destroy()
+                if (closed) continue
+                try {
+                    writeOkay(localId, remoteId, data.size)
+                } catch (e: Exception) {
+                    if (!closed) Timber.tag(TAG).d(e, "stdin of stream $localId")
+                    close()
                 }
             }
         }
-    }
 
-    private fun startShellProcess(remoteId: Int, cmd: String) {
-        val localId = localIdCounter.getAndIncrement()
-        try {
-            // Acknowledge the OPEN
-            writeMessage(AdbMessage(AdbProtocol.A_OKAY, localId, remoteId, ByteArray(0)))
+        /**
+         * Restarts the command in a process of its own if it's on the persistent shell and no
+         * output of it went out yet.
+         *
+         * @return the new process, or `null` if the command can't be moved.
+         */
+        private fun moveOffShell(): ShizukuRemoteProcess? {
+            val shell = persistentShell ?: return null
+            lock.withLock {
+                if (closed || shellOutputSent || movedOffShell) return null
+                movedOffShell = true
+            }
+            if (!shell.abandon(this)) {
+                // Finished on the shell meanwhile; its exit was held back above or is on the way
+                val exitCode = lock.withLock {
+                    movedOffShell = false
+                    heldShellExit
+                }
+                if (exitCode != null) finish(exitCode)
+                return null
+            }
+            Timber.tag(TAG).d("Moving stream %d off the persistent shell for its stdin", localId)
+            startProcess(command)
+            return process
+        }
 
-            val commandArray = if (cmd.isEmpty()) arrayOf("sh") else arrayOf("sh", "-c", cmd)
-            val process = Shizuku.newProcess(commandArray, null, null)
-            activeProcesses[localId] = process
+        fun onOkay(ackedBytes: Int) {
+            lock.withLock {
+                if (delayedAck && ackedBytes >= 0) {
+                    sendWindow += ackedBytes
+                } else {
+                    canWrite = true
+                }
+                changed.signalAll()
+            }
+        }
 
-            // Read stdout
-            Thread {
-                val buf = ByteArray(AdbProtocol.A_MAXDATA)
-                try {
-                    while (true) {
-                        val r = process.inputStream.read(buf)
-                        if (r <= 0) break
-                        writeMessage(AdbMessage(AdbProtocol.A_WRTE, localId, remoteId, buf.copyOf(r)))
-                        // Wait for OKAY from client (we ignore it for simplicity, but strictly we should wait)
-                        // readMessage() is blocking on main loop, so we can't read OKAY here!
-                        // Actually, ADB requires us to wait for OKAY before sending another WRTE.
-                        // We will just blast WRTEs for now (fake adb clients might not care).
+        /**
+         * Blocks until the client lets us send [length] more bytes.
+         *
+         * @return `false` if the stream closed meanwhile.
+         */
+        private fun acquire(length: Int): Boolean {
+            lock.withLock {
+                while (!closed && !(if (delayedAck) sendWindow > 0 else canWrite)) {
+                    changed.await()
+                }
+                if (closed) return false
+                // Like adbd, the packet that exhausts the window may overshoot it
+                if (delayedAck) sendWindow -= length else canWrite = false
+                return true
+            }
+        }
+
+        private fun pump(process: ShizukuRemoteProcess, input: InputStream, id: Int) {
+            // shell,v2 keeps a 5-byte packet header in front of each chunk of output
+            val headerLength = if (v2) AdbShellV2.HEADER_LENGTH else 0
+            val buf = ByteArray(minOf(maxPayload, PUMP_BUFFER_SIZE))
+            try {
+                while (!closed) {
+                    val r = input.read(buf, headerLength, buf.size - headerLength)
+                    if (r <= 0) break
+                    if (v2) AdbShellV2.writeHeader(buf, id, r)
+                    if (!acquire(headerLength + r)) break
+                    writePacket(AdbProtocol.A_WRTE, localId, remoteId, buf, 0, headerLength + r)
+                }
+            } catch (e: Exception) {
+                // IOException once the client or the process goes away; a dead binder otherwise
+                if (!closed) Timber.tag(TAG).d(e, "pump $id of stream $localId")
+            } finally {
+                if (pumpsLeft.decrementAndGet() == 0) {
+                    finish(runCatching { process.waitFor() }.getOrDefault(-1))
+                }
+            }
+        }
+
+        override fun onOutput(id: Int, data: ByteArray, offset: Int, length: Int) {
+            lock.withLock {
+                if (movedOffShell) return
+                shellOutputSent = true
+            }
+            val headerLength = if (v2) AdbShellV2.HEADER_LENGTH else 0
+            val buf = if (id == AdbShellV2.ID_STDERR) stderrBuffer else stdoutBuffer
+            var position = offset
+            val end = offset + length
+            try {
+                while (position < end) {
+                    val n = minOf(end - position, buf.size - headerLength)
+                    if (!acquire(headerLength + n)) return
+                    if (v2) {
+                        AdbShellV2.writeHeader(buf, id, n)
+                        System.arraycopy(data, position, buf, headerLength, n)
+                        writePacket(AdbProtocol.A_WRTE, localId, remoteId, buf, 0, headerLength + n)
+                    } else {
+                        writePacket(AdbProtocol.A_WRTE, localId, remoteId, data, position, n)
                     }
-                } catch (e: Exception) {}
+                    position += n
+                }
+            } catch (e: Exception) {
+                // The client went away; let the shell go on to the next command without us
+                if (!closed) Timber.tag(TAG).d(e, "output of stream $localId")
+                close()
+            }
+        }
 
-                // Read stderr (optional, usually multiplexed in ADB but we can just blast it)
-                try {
-                    while (true) {
-                        val r = process.errorStream.read(buf)
-                        if (r <= 0) break
-                        writeMessage(AdbMessage(AdbProtocol.A_WRTE, localId, remoteId, buf.copyOf(r)))
+        override fun onExit(exitCode: Int) {
+            lock.withLock {
+                if (movedOffShell) {
+                    // Maybe moving, see moveOffShell
+                    heldShellExit = exitCode
+                    return
+                }
+            }
+            finish(exitCode)
+        }
+
+        private fun finish(exitCode: Int) {
+            try {
+                if (v2) {
+                    val exit = ByteArray(AdbShellV2.HEADER_LENGTH + 1)
+                    AdbShellV2.writeHeader(exit, AdbShellV2.ID_EXIT, 1)
+                    exit[AdbShellV2.HEADER_LENGTH] = exitCode.toByte()
+                    if (acquire(exit.size)) {
+                        writePacket(AdbProtocol.A_WRTE, localId, remoteId, exit)
                     }
-                } catch (e: Exception) {}
+                }
+                if (streams.remove(localId, this)) {
+                    writePacket(AdbProtocol.A_CLSE, localId, remoteId)
+                }
+            } catch (e: Exception) {
+                if (!closed) Timber.tag(TAG).d(e, "finish stream $localId")
+            } finally {
+                close()
+            }
+        }
+
+        fun close() {
+            lock.withLock {
+                closed = true
+                changed.signalAll()
+            }
+            process?.destroy()
+            persistentShell?.cancel(this)
+        }
+    }
 
-                process.waitFor()
-                process.destroy()
-                activeProcesses.remove(localId)
-                writeMessage(AdbMessage(AdbProtocol.A_CLSE, localId, remoteId, ByteArray(0)))
-            }.start()
+    private fun connectMessage() =
+        AdbMessage(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.MAX_PAYLOAD, AdbProtocol.banner("device"))
 
-        } catch (e: Exception) {
-            Timber.tag(TAG).e(e, "Failed to start shell process")
-            writeMessage(AdbMessage(AdbProtocol.A_CLSE, localId, remoteId, ByteArray(0)))
+    /**
+     * A_OKAY for a stream. With delayed_ack it carries how many bytes it acknowledges (or, in
+     * reply to A_OPEN, the initial window); without, it's empty.
+     */
+    private fun writeOkay(localId: Int, remoteId: Int, ackedBytes: Int) {
+        if (delayedAck) {
+            val payload = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(ackedBytes).array()
+            writePacket(AdbProtocol.A_OKAY, localId, remoteId, payload)
+        } else {
+            writePacket(AdbProtocol.A_OKAY, localId, remoteId)
         }
     }
 
@@ -223,35 +564,15 @@ class FakeAdbClientHandler(
         return FakeAdbPairingActivity.requestPairingSync(context, pubKeyStr)
     }
 
-    private fun readMessage(): AdbMessage {
-        val header = ByteArray(24)
-        inputStream.readFully(header)
-        val buf = java.nio.ByteBuffer.wrap(header).order(java.nio.ByteOrder.LITTLE_ENDIAN)
-        val command = buf.int
-        val arg0 = buf.int
-        val arg1 = buf.int
-        val data_length = buf.int
-        val data_crc32 = buf.int
-        val magic = buf.int
-
-        var data: ByteArray? = null
-        if (data_length > 0) {
-            // data_length comes straight off the wire before CRC/magic are verified, so a
-            // corrupt or hostile peer can claim an arbitrary size here; without a cap this
-            // allocates unboundedly and OOMs the process (Sentry SHIZUKUPLUS-8F, 825MB alloc).
-            if (data_length > MAX_ADB_PAYLOAD_SIZE) {
-                throw java.io.IOException("ADB message data_length $data_length exceeds max $MAX_ADB_PAYLOAD_SIZE")
-            }
-            data = ByteArray(data_length)
-            inputStream.readFully(data)
-        }
-        return AdbMessage(command, arg0, arg1, data_length, data_crc32, magic, data)
+    private fun writeMessage(msg: AdbMessage) {
+        writePacket(msg.command, msg.arg0, msg.arg1, msg.data)
     }
 
-    private fun writeMessage(msg: AdbMessage) {
-        synchronized(outputStream) {
-            outputStream.write(msg.toByteArray())
-            outputStream.flush()
-        }
+    /**
+     * Queues a packet on the connection, see [AdbProxyServer.Connection.write].
+     */
+    private fun writePacket(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null, offset: Int = 0, length: Int = data?.size ?: 0) {
+        connection.write(command, arg0, arg1, data, offset, length,
+            checksum = protocolVersion < AdbProtocol.A_VERSION_SKIP_CHECKSUM)
     }
 }
@@ -41,6 +41,58 @@ object AuthorizationManager {
         }
     }
 
+    // Last getApplicationsDelta result, keyed by "userId:packageName", and the version it's
+    // current to. Guarded by this object.
+    private val cachedApplications = LinkedHashMap<String, PackageInfo>()
+    private var cachedVersion = 0L
+
+    private fun key(userId: Int, packageName: String) = "$userId:$packageName"
+
+    /**
+     * All users' applications, fetched as a delta against [cachedApplications].
+     *
+     * @return null if the server predates BINDER_TRANSACTION_getApplicationsDelta.
+     */
+    @Synchronized
+    private fun getApplicationsCached(): List<PackageInfo>? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        try {
+            data.writeInterfaceToken("moe.shizuku.server.IShizukuService")
+            data.writeInt(-1)
+            data.writeLong(cachedVersion)
+            val binder = Shizuku.getBinder()
+                ?: throw IllegalStateException("Shizuku binder not available")
+            val handled = try {
+                binder.transact(ServerConstants.BINDER_TRANSACTION_getApplicationsDelta, data, reply, 0)
+            } catch (e: Throwable) {
+                throw RuntimeException(e)
+            }
+            if (!handled) return null
+            reply.readException()
+            val version = reply.readLong()
+            val full = reply.readInt() != 0
+            @Suppress("UNCHECKED_CAST")
+            val updated = (ParcelableListSlice.CREATOR.createFromParcel(reply) as ParcelableListSlice<PackageInfo>).list
+                ?: emptyList()
+            if (full) cachedApplications.clear()
+            for (pi in updated) {
+                val userId = (pi.applicationInfo?.uid ?: 0) / 100000
+                cachedApplications[key(userId, pi.packageName)] = pi
+            }
+            repeat(reply.readInt()) {
+                val userId = reply.readInt()
+                val packageName = reply.readString() ?: return@repeat
+                cachedApplications.remove(key(userId, packageName))
+            }
+            cachedVersion = version
+            return ArrayList(cachedApplications.values)
+        } finally {
+            reply.recycle()
+            data.recycle()
+        }
+    }
+
     fun getPackages(): List<PackageInfo> {
         val packages: MutableList<PackageInfo> = ArrayList()
         try {
@@ -62,7 +114,7 @@ object AuthorizationManager {
                     packages.add(pi)
                 }
             } else {
-                packages.addAll(getApplications(-1))
+                packages.addAll(getApplicationsCached() ?: getApplications(-1))
             }
         } catch (e: Throwable) {
             LOGGER.w(e, "getPackages failed, possibly due to ghost stock server")
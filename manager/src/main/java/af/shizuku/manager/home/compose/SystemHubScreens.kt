@@ -5,6 +5,7 @@ import androidx.compose.foundation.background
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.foundation.shape.RoundedCornerShape
 import androidx.compose.material3.*
 import androidx.compose.runtime.*
@@ -23,7 +24,7 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.withContext
 import af.shizuku.manager.R
-import af.shizuku.manager.database.ActivityLogManager
+import af.shizuku.manager.database.ActivityLogHistory
 import af.shizuku.manager.database.ActivityLogRecord
 import af.shizuku.manager.utils.AppIconCache
 import rikka.shizuku.Shizuku
@@ -131,7 +132,17 @@ fun MetricCard(title: String, value: String) {
 
 @Composable
 fun ActivityLogScreen() {
-    val logs by ActivityLogManager.logs.collectAsState(initial = emptyList())
+    // Older records than the in-memory head are paged in from the database near the end of the list
+    val scope = rememberCoroutineScope()
+    val history = remember(scope) { ActivityLogHistory(scope) }
+    val logs by history.records.collectAsState()
+    val listState = rememberLazyListState()
+    LaunchedEffect(listState, history) {
+        snapshotFlow { listState.layoutInfo.let { (it.visibleItemsInfo.lastOrNull()?.index ?: -1) to it.totalItemsCount } }
+            .collect { (last, total) ->
+                if (total > 0 && last >= total - ActivityLogHistory.LOAD_MORE_THRESHOLD) history.loadMore()
+            }
+    }
     // Include the date, not just the time - logs persist across days (matches the RecyclerView
     // implementation of this same screen in ActivityLogActivity.kt).
     val dateFormat = remember {
@@ -149,6 +160,7 @@ fun ActivityLogScreen() {
     } else {
         LazyColumn(
             modifier = Modifier.fillMaxSize(),
+            state = listState,
             contentPadding = PaddingValues(16.dp),
             verticalArrangement = Arrangement.spacedBy(8.dp)
         ) {
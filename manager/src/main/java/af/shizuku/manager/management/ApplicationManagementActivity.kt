@@ -22,6 +22,7 @@ import androidx.appcompat.content.res.AppCompatResources
 import androidx.core.view.doOnLayout
 import androidx.core.widget.doOnTextChanged
 import androidx.recyclerview.widget.ItemTouchHelper
+import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import androidx.recyclerview.widget.RecyclerView.AdapterDataObserver
 import com.google.android.material.chip.Chip
@@ -36,12 +37,18 @@ import af.shizuku.manager.databinding.SwipeHintOverlayBinding
 import timber.log.Timber
 import af.shizuku.manager.management.AppViewHolder.Callbacks
 import af.shizuku.manager.database.ActivityLogManager
+import af.shizuku.manager.utils.AppIconCache
 import af.shizuku.manager.utils.ShizukuStateMachine
 import rikka.lifecycle.Status
 import rikka.recyclerview.addEdgeSpacing
 import rikka.recyclerview.fixEdgeEffect
+import kotlinx.coroutines.Job
 import java.util.Objects
 
+// Rows whose icons are warmed ahead of the scroll, and on first display
+private const val ICON_PREFETCH_AHEAD = 12
+private const val ICON_PREFETCH_INITIAL = 24
+
 open class ApplicationManagementActivity : AppBarActivity(), AppViewHolder.Callbacks {
 
     private val viewModel: AppsViewModel by viewModels()
@@ -49,6 +56,8 @@ open class ApplicationManagementActivity : AppBarActivity(), AppViewHolder.Callb
     private lateinit var recyclerView: RecyclerView
     private var firstLoad = true
     private var backCallback: androidx.activity.OnBackPressedCallback? = null
+    private var iconPrefetchJob: Job? = null
+    private var iconPrefetchFrom = RecyclerView.NO_POSITION
 
     private val stateListener: (ShizukuStateMachine.State) -> Unit = {
         if (ShizukuStateMachine.isDead() && !isFinishing) finish()
@@ -115,6 +124,7 @@ open class ApplicationManagementActivity : AppBarActivity(), AppViewHolder.Callb
                 Status.SUCCESS -> {
                     val data = it.data ?: emptyList()
                     adapter.updateData(data)
+                    prefetchIcons(0, ICON_PREFETCH_INITIAL)
 
                     // Show empty state when filtered results are empty
                     val hasData = data.isNotEmpty()
@@ -177,10 +187,37 @@ open class ApplicationManagementActivity : AppBarActivity(), AppViewHolder.Callb
             }
         })
 
+        recyclerView.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrolled(rv: RecyclerView, dx: Int, dy: Int) {
+                val layoutManager = rv.layoutManager as? LinearLayoutManager ?: return
+                when {
+                    dy > 0 -> prefetchIcons(layoutManager.findLastVisibleItemPosition() + 1, ICON_PREFETCH_AHEAD)
+                    dy < 0 -> prefetchIcons(layoutManager.findFirstVisibleItemPosition() - ICON_PREFETCH_AHEAD, ICON_PREFETCH_AHEAD)
+                }
+            }
+        })
+
         setupSwipe(recyclerView)
         ShizukuStateMachine.addListener(stateListener)
     }
 
+    /**
+     * Warms [AppIconCache] for the [count] rows from [from], so they bind from memory instead of
+     * decoding when they scroll into view. Restarted only when the range moves by a row.
+     */
+    private fun prefetchIcons(from: Int, count: Int) {
+        val start = from.coerceAtLeast(0)
+        if (start == iconPrefetchFrom && iconPrefetchJob?.isActive == true) return
+        val items = adapter.getItems<Any>()
+        val infos = (start until minOf(start + count, items.size)).mapNotNull {
+            (items[it] as? PackageInfo)?.applicationInfo
+        }
+        iconPrefetchJob?.cancel()
+        iconPrefetchFrom = start
+        if (infos.isEmpty()) return
+        iconPrefetchJob = AppIconCache.prefetch(this, infos, resources.getDimensionPixelSize(R.dimen.app_list_icon_size))
+    }
+
     // ----- Options menu: sort -----
 
     override fun onCreateOptionsMenu(menu: Menu): Boolean {
@@ -469,6 +506,7 @@ open class ApplicationManagementActivity : AppBarActivity(), AppViewHolder.Callb
     // ----- Lifecycle -----
 
     override fun onDestroy() {
+        iconPrefetchJob?.cancel()
         ShizukuStateMachine.removeListener(stateListener)
         super.onDestroy()
     }
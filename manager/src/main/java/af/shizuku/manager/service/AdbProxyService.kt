@@ -4,32 +4,23 @@ import android.app.Service
 import android.content.Intent
 import android.os.IBinder
 import timber.log.Timber
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.Job
-import kotlinx.coroutines.SupervisorJob
-import kotlinx.coroutines.cancel
-import kotlinx.coroutines.currentCoroutineContext
-import kotlinx.coroutines.isActive
-import kotlinx.coroutines.launch
 import af.shizuku.manager.ShizukuSettings
+import af.shizuku.manager.adb.AdbProxyServer
+import af.shizuku.manager.adb.FakeAdbClientHandler
+import af.shizuku.manager.database.ShizukuProcessUtils
 import af.shizuku.manager.utils.EnvironmentUtils
 import rikka.shizuku.Shizuku
-import java.io.BufferedReader
-import java.io.InputStreamReader
-import java.io.PrintWriter
+import java.io.IOException
 import java.net.InetAddress
-import java.net.ServerSocket
-import java.net.Socket
-import java.net.SocketException
+import java.net.InetSocketAddress
 
 /**
  * Local ADB-bypass proxy that accepts connections on 127.0.0.1:15555.
  *
- * This provides a simple line-based command protocol (NOT the ADB wire protocol)
- * for on-device apps to send privileged shell commands via Shizuku.
- * Each line sent is treated as a shell command; output lines are sent back.
- * Connection ends when client closes the socket or sends "exit".
+ * It speaks the device side of the ADB wire protocol, so on-device tools can `adb connect`
+ * to it and run privileged shell commands via Shizuku. All connections are served by one
+ * [AdbProxyServer] event loop, at most [ShizukuSettings.getAdbProxyMaxConnections] at a time;
+ * see [FakeAdbClientHandler] for what each one does.
  *
  * For real ADB tool compatibility without WiFi, use [enableAdbTcp] which
  * configures adbd to listen on TCP/IP via Shizuku's privileged shell.
@@ -39,8 +30,6 @@ class AdbProxyService : Service() {
     companion object {
         private const val TAG = "AdbProxyService"
         const val PROXY_PORT = 15555
-        private const val MAX_CMD_LEN = 8192
-        private const val TIMEOUT_MS = 30_000 // 30s per command
 
         private fun execShellCommand(cmd: Array<String>): Boolean {
             // Entire body in try-catch: pingBinder() can throw IllegalStateException on some
@@ -63,6 +52,19 @@ class AdbProxyService : Service() {
             } catch (e: Exception) { false }
         }
 
+        /**
+         * Runs [cmds] in order and returns whether each succeeded. Through Shizuku that's one
+         * batch call to the server; with root, or a server without the batch call, each command
+         * is run on its own via [execShellCommand].
+         */
+        private fun execShellBatch(vararg cmds: Array<String>): BooleanArray {
+            val results = ShizukuProcessUtils.runPrivilegedBatch(cmds.asList())
+            if (results != null && results.size == cmds.size) {
+                return BooleanArray(cmds.size) { results[it].isSuccess }
+            }
+            return BooleanArray(cmds.size) { execShellCommand(cmds[it]) }
+        }
+
         /** Configures adbd TCP mode via Shizuku or Root. */
         fun enableAdbTcp(port: Int = 5555): Boolean {
             if (!Shizuku.pingBinder() && !com.topjohnwu.superuser.Shell.getShell().isRoot) {
@@ -70,25 +72,25 @@ class AdbProxyService : Service() {
                 return false
             }
             return try {
-                // Step 1: Set the TCP port property
-                execShellCommand(arrayOf("setprop", "service.adb.tcp.port", port.toString()))
-
-                // Also set the persistent property so TCP mode survives reboots
-                execShellCommand(arrayOf("setprop", "persist.adb.tcp.port", port.toString()))
-
-                // Step 2: Restart adbd — try multiple approaches for vendor compatibility
-                // Primary: ctl.restart is the most compatible init signal (works on AOSP, Samsung, Xiaomi)
-                val restartViaCtl = execShellCommand(arrayOf("setprop", "ctl.restart", "adbd"))
+                // Step 1: Set the TCP port property, and the persistent one so TCP mode survives
+                // reboots. Step 2: Restart adbd - ctl.restart is the most compatible init signal
+                // (works on AOSP, Samsung, Xiaomi). All three go to the server in one call.
+                val (_, _, restartViaCtl) = execShellBatch(
+                    arrayOf("setprop", "service.adb.tcp.port", port.toString()),
+                    arrayOf("setprop", "persist.adb.tcp.port", port.toString()),
+                    arrayOf("setprop", "ctl.restart", "adbd"),
+                )
 
                 if (!restartViaCtl || EnvironmentUtils.isSamsung()) {
-                    // Samsung specific: sometimes ctl.restart is ignored, toggling the property forces a restart
-                    execShellCommand(arrayOf("setprop", "adb.network.port", port.toString()))
-
-                    // Fallback A: explicit stop/start (AOSP init services)
-                    val stopped = execShellCommand(arrayOf("stop", "adbd"))
-                    if (stopped) {
-                        execShellCommand(arrayOf("start", "adbd"))
-                    } else {
+                    // Samsung specific: sometimes ctl.restart is ignored, toggling the property forces a restart.
+                    // Fallback A: explicit stop/start (AOSP init services). `start` on a service
+                    // that never stopped is a no-op, so it's batched along unconditionally.
+                    val (_, stopped, _) = execShellBatch(
+                        arrayOf("setprop", "adb.network.port", port.toString()),
+                        arrayOf("stop", "adbd"),
+                        arrayOf("start", "adbd"),
+                    )
+                    if (!stopped) {
                         // Fallback B: pkill lets init auto-restart the daemon
                         execShellCommand(arrayOf("pkill", "adbd"))
                     }
@@ -109,17 +111,15 @@ class AdbProxyService : Service() {
                 return false
             }
             return try {
-                // Set port to -1 (disabled) and restart adbd
-                execShellCommand(arrayOf("setprop", "service.adb.tcp.port", "-1"))
-
-                // Clear the persistent property too
-                execShellCommand(arrayOf("setprop", "persist.adb.tcp.port", ""))
-
+                // Set port to -1 (disabled), clear the persistent property too, and restart adbd
+                val (_, _, restarted) = execShellBatch(
+                    arrayOf("setprop", "service.adb.tcp.port", "-1"),
+                    arrayOf("setprop", "persist.adb.tcp.port", ""),
+                    arrayOf("setprop", "ctl.restart", "adbd"),
+                )
                 // Use same multi-fallback restart
-                val restarted = execShellCommand(arrayOf("setprop", "ctl.restart", "adbd"))
                 if (!restarted) {
-                    execShellCommand(arrayOf("stop", "adbd"))
-                    execShellCommand(arrayOf("start", "adbd"))
+                    execShellBatch(arrayOf("stop", "adbd"), arrayOf("start", "adbd"))
                 }
                 Timber.tag(TAG).i("adbd TCP mode disabled")
                 true
@@ -130,9 +130,7 @@ class AdbProxyService : Service() {
         }
     }
 
-    private val serviceScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
-    private var serverSocket: ServerSocket? = null
-    private var serverJob: Job? = null
+    private var server: AdbProxyServer? = null
     private var isProxyRunning = false
 
     override fun onBind(intent: Intent?): IBinder? = null
@@ -149,55 +147,28 @@ class AdbProxyService : Service() {
 
     private fun startAdbProxy() {
         Timber.tag(TAG).i("Starting Local Command Proxy on 127.0.0.1:$PROXY_PORT")
-        isProxyRunning = true
-        serverJob = serviceScope.launch {
-            runCatching {
-                // Bind only to loopback — never exposed to network
-                val socket = ServerSocket(PROXY_PORT, 8, InetAddress.getByName("127.0.0.1"))
-                socket.soTimeout = 0 // Block indefinitely waiting for connections
-                serverSocket = socket
-                Timber.tag(TAG).i("Proxy listening on 127.0.0.1:$PROXY_PORT")
-                while (isActive) {
-                    try {
-                        val client = socket.accept()
-                        launch { handleClient(client) }
-                    } catch (e: SocketException) {
-                        if (isActive) Timber.tag(TAG).e(e, "Server socket error")
-                        break
-                    }
-                }
-            }.onFailure { e ->
-                Timber.tag(TAG).e(e, "Proxy failed to start")
-                isProxyRunning = false
-            }
-        }
-    }
-
-    private suspend fun handleClient(socket: Socket) {
-        socket.use {
-            socket.soTimeout = 0
-            try {
-                val handler = af.shizuku.manager.adb.FakeAdbClientHandler(this@AdbProxyService, socket)
-                handler.loop()
-            } catch (e: SocketException) {
-                // Client disconnected — normal
-            } catch (e: Exception) {
-                Timber.tag(TAG).e(e, "Client error")
-            }
+        try {
+            // Bind only to loopback — never exposed to network
+            val address = InetSocketAddress(InetAddress.getByName("127.0.0.1"), PROXY_PORT)
+            val persistentShell = ShizukuSettings.isAdbProxyPersistentShellEnabled()
+            server = AdbProxyServer(address, ShizukuSettings.getAdbProxyMaxConnections()) { connection ->
+                FakeAdbClientHandler(this, connection, persistentShell)
+            }.also { it.start() }
+            isProxyRunning = true
+        } catch (e: IOException) {
+            Timber.tag(TAG).e(e, "Proxy failed to start")
         }
     }
 
     private fun stopAdbProxy() {
         Timber.tag(TAG).i("Stopping Local Command Proxy")
         isProxyRunning = false
-        serverJob?.cancel()
-        runCatching { serverSocket?.close() }
-        serverSocket = null
+        runCatching { server?.close() }
+        server = null
     }
 
     override fun onDestroy() {
         stopAdbProxy()
-        serviceScope.cancel()
         super.onDestroy()
     }
 }
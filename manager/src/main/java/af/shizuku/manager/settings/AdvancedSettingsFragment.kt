@@ -20,6 +20,7 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import af.shizuku.manager.database.ActivityLogManager
 import af.shizuku.manager.database.AppContextManager
 import androidx.preference.TwoStatePreference
 
@@ -75,6 +76,11 @@ class AdvancedSettingsFragment : BaseSettingsFragment() {
             true
         }
 
+        findPreference<Preference>(KEY_ACTIVITY_LOG_RETENTION)?.setOnPreferenceChangeListener { _, newValue ->
+            ActivityLogManager.updateRetentionCount(newValue as Int)
+            true
+        }
+
         findPreference<TwoStatePreference>(KEY_ENABLE_ACTIVITY_LOG)?.setOnPreferenceChangeListener { _, _ ->
             ShizukuSettings.syncAllPlusFeaturesToServer()
             true
@@ -4,9 +4,11 @@ import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -17,6 +19,8 @@ import moe.shizuku.server.IShizukuService;
 import rikka.rish.RishConfig;
 import rikka.shizuku.Shizuku;
 import rikka.shizuku.ShizukuApiConstants;
+import rikka.shizuku.server.BinderMetrics;
+import rikka.shizuku.server.ServerConstants;
 import af.shizuku.manager.utils.Logger;
 import timber.log.Timber;
 
@@ -45,13 +49,15 @@ public class PlusShell {
         LOGGER.i("  vm [start|stop|delete|status] [name]   Manage a specific VM");
         LOGGER.i("  aicore [touch|swipe|text|dump|pixel]   AI Automation & Intelligence");
         LOGGER.i("  storage [ls|cat|rm|mkdir|stat] [path]  Manage privileged storage");
-        LOGGER.i("  am [freeze|unfreeze|stop|clear|kill-all] [pkg]  Manage app state");
+        LOGGER.i("  am [freeze|unfreeze|stop|clear|kill-all] [pkg...]  Manage app state");
         LOGGER.i("  wm [immersive|dex-high-refresh] [on|off]  Manage display and windows");
         LOGGER.i("  su [command]              Run command via SU Bridge");
         LOGGER.i("  reboot [recovery|download] Reboot to specialized modes");
         LOGGER.i("  appops [pkg]              Elevate permissions for package");
         LOGGER.i("  log                       View the privileged activity log (server-side)");
         LOGGER.i("  doctor                    Run system diagnostics");
+        LOGGER.i("  metrics [--reset] [N]     Top N binder calls and callers by count and latency");
+        LOGGER.i("  firewall                  Show compiled binder firewall rules and hit counts");
         LOGGER.i("  spoof                     View current device identity spoofing");
         LOGGER.i("  help                      Show this help message");
     }
@@ -172,7 +178,7 @@ public class PlusShell {
 
     private static void handleAm(String[] args, IBinder binder) throws RemoteException {
         if (args.length < 2) {
-            LOGGER.w("Usage: plus am [freeze|unfreeze|stop|kill-all] [package_name]");
+            LOGGER.w("Usage: plus am [freeze|unfreeze|stop|kill-all] [package_name...]");
             return;
         }
 
@@ -186,6 +192,23 @@ public class PlusShell {
         String command = args[1];
         String packageName = args.length > 2 ? args[2] : null;
 
+        if ((command.equals("freeze") || command.equals("unfreeze")) && args.length > 3) {
+            // Several packages: one batch IPC instead of one call per package
+            List<String> packages = Arrays.asList(args).subList(2, args.length);
+            boolean freeze = command.equals("freeze");
+            boolean[] results = transactPackageBatch(am.asBinder(), freeze
+                    ? ServerConstants.BINDER_TRANSACTION_AM_PLUS_freezeApps
+                    : ServerConstants.BINDER_TRANSACTION_AM_PLUS_unfreezeApps, packages);
+            for (int i = 0; i < packages.size(); i++) {
+                if (results != null && i < results.length && results[i]) {
+                    LOGGER.i((freeze ? "App frozen: " : "App unfrozen: ") + packages.get(i));
+                } else {
+                    LOGGER.e("Failed to " + command + " app: " + packages.get(i));
+                }
+            }
+            return;
+        }
+
         switch (command) {
             case "freeze":
                 if (packageName == null) LOGGER.w("Usage: plus am freeze [package]");
@@ -224,6 +247,27 @@ public class PlusShell {
         }
     }
 
+    /**
+     * Calls one of ActivityManagerPlus's batch transactions. Returns null if the server doesn't
+     * implement it (an older Shizuku+ server).
+     */
+    private static boolean[] transactPackageBatch(IBinder binder, int code, List<String> packages) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ServerConstants.ACTIVITY_MANAGER_PLUS_DESCRIPTOR);
+            data.writeStringList(packages);
+            if (!binder.transact(code, data, reply, 0)) {
+                return null;
+            }
+            reply.readException();
+            return reply.createBooleanArray();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
     private static void handleWm(String[] args, IBinder binder) throws RemoteException {
         if (args.length < 3) {
             LOGGER.w("Usage: plus wm [immersive|dex-high-refresh] [on|off]");
@@ -402,6 +446,121 @@ public class PlusShell {
         }
     }
 
+    private static class MetricsRow {
+        int kind;
+        String service;
+        int id;
+        String name;
+        long count, errors, totalNanos, maxNanos, p50, p90, p99;
+    }
+
+    private static void handleMetrics(String[] args, IBinder binder) throws RemoteException {
+        int flags = 0;
+        int top = 15;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--reset")) {
+                flags |= BinderMetrics.FLAG_RESET;
+            } else {
+                try {
+                    top = Integer.parseInt(args[i]);
+                } catch (NumberFormatException e) {
+                    LOGGER.w("Usage: plus metrics [--reset] [N]");
+                    return;
+                }
+            }
+        }
+
+        List<MetricsRow> rows = new ArrayList<>();
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            data.writeInt(flags);
+            if (!binder.transact(ServerConstants.BINDER_TRANSACTION_getBinderMetrics, data, reply, 0)) {
+                LOGGER.w("Binder metrics are not supported by the running server.");
+                return;
+            }
+            reply.readException();
+            int count = reply.readInt();
+            for (int i = 0; i < count; i++) {
+                MetricsRow row = new MetricsRow();
+                row.kind = reply.readInt();
+                row.service = reply.readString();
+                row.id = reply.readInt();
+                row.name = reply.readString();
+                row.count = reply.readLong();
+                row.errors = reply.readLong();
+                row.totalNanos = reply.readLong();
+                row.maxNanos = reply.readLong();
+                row.p50 = reply.readLong();
+                row.p90 = reply.readLong();
+                row.p99 = reply.readLong();
+                if (row.count > 0) rows.add(row);
+            }
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+
+        rows.sort((a, b) -> Long.compare(b.count, a.count));
+        LOGGER.i("Binder calls by transaction (latency in microseconds):");
+        LOGGER.i("  %-40s %8s %6s %8s %8s %8s %8s %8s", "service/method", "calls", "errors", "mean", "p50", "p90", "p99", "max");
+        printMetricsRows(rows, BinderMetrics.KIND_CODE, top);
+        LOGGER.i("");
+        LOGGER.i("Binder calls by calling uid:");
+        LOGGER.i("  %-40s %8s %6s %8s %8s %8s %8s %8s", "uid", "calls", "errors", "mean", "p50", "p90", "p99", "max");
+        printMetricsRows(rows, BinderMetrics.KIND_UID, top);
+        if ((flags & BinderMetrics.FLAG_RESET) != 0) {
+            LOGGER.i("");
+            LOGGER.i("Counters reset.");
+        }
+    }
+
+    private static void printMetricsRows(List<MetricsRow> rows, int kind, int top) {
+        int printed = 0;
+        for (MetricsRow row : rows) {
+            if (row.kind != kind) continue;
+            if (printed++ >= top) break;
+            String label;
+            if (kind == BinderMetrics.KIND_UID) {
+                label = row.id == -1 ? row.name : String.valueOf(row.id);
+            } else {
+                label = row.service.isEmpty() ? row.name : row.service + "/" + row.name;
+            }
+            LOGGER.i("  %-40s %8d %6d %8d %8d %8d %8d %8d", label, row.count, row.errors,
+                    row.totalNanos / row.count / 1000, row.p50 / 1000, row.p90 / 1000, row.p99 / 1000, row.maxNanos / 1000);
+        }
+        if (printed == 0) {
+            LOGGER.i("  (no calls recorded)");
+        }
+    }
+
+    private static void handleFirewall(IBinder binder) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            if (!binder.transact(ServerConstants.BINDER_TRANSACTION_getFirewallRules, data, reply, 0)) {
+                LOGGER.w("Firewall rules are not available from the running server.");
+                return;
+            }
+            reply.readException();
+            boolean enabled = reply.readInt() != 0;
+            List<String> rules = reply.createStringArrayList();
+            LOGGER.i("Binder Firewall: " + (enabled ? "ACTIVE" : "DISABLED"));
+            LOGGER.i("%10s  %s", "hits", "rule (action descriptor codes uid)");
+            if (rules != null) {
+                for (String rule : rules) {
+                    LOGGER.i(rule);
+                }
+            }
+            LOGGER.i("Note: custom rules are read from the firewall_rules setting.");
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
     private static void handleSpoof(IBinder binder) throws RemoteException {
         IShizukuService service = IShizukuService.Stub.asInterface(binder);
         boolean enabled = service.isPlusFeatureEnabled("spoof_device");
@@ -478,6 +637,12 @@ public class PlusShell {
                 case "doctor":
                     handleDoctor(binder);
                     break;
+                case "metrics":
+                    handleMetrics(args, binder);
+                    break;
+                case "firewall":
+                    handleFirewall(binder);
+                    break;
                 default:
                     LOGGER.w("Unknown command: " + args[0]);
                     printHelp();
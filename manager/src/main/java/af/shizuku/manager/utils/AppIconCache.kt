@@ -13,62 +13,136 @@ import kotlinx.coroutines.*
 import me.zhanghai.android.appiconloader.AppIconLoader
 import af.shizuku.manager.R
 import rikka.core.util.BuildUtils
+import java.io.File
 import java.lang.ref.WeakReference
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 
+/**
+ * Two-tier cache of app icons, keyed by package, user and pixel size.
+ *
+ * The memory tier is an LRU of bitmaps keyed by one packed Long: each package name gets a small
+ * int id the first time it's seen, which also indexes the keys cached for it, so [invalidate]
+ * doesn't have to scan the cache. Below it, [IconDiskCache] keeps every icon already scaled and
+ * compressed, so after a process restart a list binds from small PNG decodes instead of running
+ * every icon through [AppIconLoader] again. [prefetch] warms the memory tier for rows about to
+ * scroll into view.
+ */
 object AppIconCache {
 
     private const val TAG = "AppIconCache"
 
-    private class AppIconLruCache constructor(maxSize: Int) : LruCache<Triple<String, Int, Int>, Bitmap>(maxSize) {
-        override fun sizeOf(key: Triple<String, Int, Int>, bitmap: Bitmap): Int {
+    // Bump when the way icons are rendered changes, to orphan what's on disk
+    private const val DISK_DIR = "app_icons_v1"
+
+    private class AppIconLruCache constructor(maxSize: Int) : LruCache<Long, Bitmap>(maxSize) {
+        override fun sizeOf(key: Long, bitmap: Bitmap): Int {
             return bitmap.byteCount / 1024
         }
     }
 
-    private val lruCache: LruCache<Triple<String, Int, Int>, Bitmap>
+    private class PackageKeys(val id: Int) {
+        val keys = ArrayList<Long>(2)
+    }
+
+    private val lruCache: LruCache<Long, Bitmap>
     private val labelCache = LruCache<String, String>(500)
 
+    // Guarded by itself
+    private val packageKeys = HashMap<String, PackageKeys>()
+
     private val backgroundExecutor: Executor = Executors.newFixedThreadPool(1.coerceAtLeast(Runtime.getRuntime().availableProcessors() / 2))
     private val dispatcher: CoroutineDispatcher = backgroundExecutor.asCoroutineDispatcher()
 
     private val scope = CoroutineScope(SupervisorJob() + dispatcher)
 
+    // Compressing to disk never holds up a decode someone is waiting for
+    private val diskExecutor: Executor = Executors.newSingleThreadExecutor()
+
+    @Volatile
+    private var diskCache: IconDiskCache? = null
+
     private val appIconLoaders = java.util.concurrent.ConcurrentHashMap<Int, AppIconLoader>()
 
     init {
+        // An eighth of the heap: with the disk tier behind it, a miss costs a small decode
         val maxMemory = Runtime.getRuntime().maxMemory() / 1024
-        val availableCacheSize = (maxMemory / 4).toInt()
+        val availableCacheSize = (maxMemory / 8).toInt()
         lruCache = AppIconLruCache(availableCacheSize)
     }
 
+    private fun diskCache(context: Context): IconDiskCache {
+        return diskCache ?: synchronized(this) {
+            diskCache ?: IconDiskCache(File(context.applicationContext.cacheDir, DISK_DIR)).also { diskCache = it }
+        }
+    }
+
+    // (package id, userId, size) packed into one Long; user ids and pixel sizes fit 16 bits.
+    // With track, an unseen package gets an id and the key is recorded for invalidate().
+    private fun key(packageName: String, userId: Int, size: Int, track: Boolean): Long? = synchronized(packageKeys) {
+        var entry = packageKeys[packageName]
+        if (entry == null) {
+            if (!track) return null
+            entry = PackageKeys(packageKeys.size)
+            packageKeys[packageName] = entry
+        }
+        val key = (entry.id.toLong() shl 32) or ((userId.toLong() and 0xFFFF) shl 16) or (size.toLong() and 0xFFFF)
+        if (track && key !in entry.keys) entry.keys.add(key)
+        key
+    }
+
     private fun get(packageName: String, userId: Int, size: Int): Bitmap? {
-        return lruCache[Triple(packageName, userId, size)]
+        val key = key(packageName, userId, size, track = false) ?: return null
+        return lruCache[key]
     }
 
     private fun put(packageName: String, userId: Int, size: Int, bitmap: Bitmap) {
-        if (get(packageName, userId, size) == null) {
-            lruCache.put(Triple(packageName, userId, size), bitmap)
+        val key = key(packageName, userId, size, track = true)!!
+        if (lruCache[key] == null) {
+            lruCache.put(key, bitmap)
         }
     }
 
+    /**
+     * Identifies the installed version of [info] for the disk tier. The APK's modification time
+     * changes with every install or update, like the version code, but is available straight
+     * from the ApplicationInfo. 0 if it can't be read, which keeps the icon off disk.
+     */
+    private fun versionStamp(info: ApplicationInfo): Long {
+        val sourceDir = info.sourceDir ?: return 0L
+        return versionStamp(File(sourceDir).lastModified(), Build.FINGERPRINT)
+    }
+
+    /**
+     * [lastModified] alone misses an OTA: system images are built with fixed file times, so a
+     * system app's APK changes in place and keeps its mtime. Mixing in the build [fingerprint]
+     * costs one more decode per icon after an OTA.
+     */
+    internal fun versionStamp(lastModified: Long, fingerprint: String?): Long {
+        if (lastModified == 0L) return 0L
+        return lastModified * 31 + (fingerprint?.hashCode() ?: 0)
+    }
+
     /**
      * Drops every cached bitmap/label for [packageName] — call on
      * ACTION_PACKAGE_REMOVED/REPLACED/CHANGED, otherwise an app that changes its icon on update
-     * keeps showing the old one for as long as the LRU happens to hold it.
+     * keeps showing the old one for as long as the LRU happens to hold it. Only that package's
+     * own entries are touched, in memory and on disk.
      */
     fun invalidate(packageName: String) {
-        lruCache.snapshot().keys
-            .filter { it.first == packageName }
-            .forEach { lruCache.remove(it) }
+        val keys = synchronized(packageKeys) {
+            val entry = packageKeys[packageName]
+            entry?.keys?.toList().also { entry?.keys?.clear() }
+        }
+        keys?.forEach { lruCache.remove(it) }
         labelCache.remove(packageName)
+        diskCache?.let { disk -> diskExecutor.execute { disk.invalidate(packageName) } }
     }
 
     /**
-     * Reacts to system memory pressure (see ComponentCallbacks2). This cache is sized to a
-     * quarter of max heap and otherwise never shrinks on its own, so without this hook it can
-     * itself become a contributor to the low-memory condition it should be backing off from.
+     * Reacts to system memory pressure (see ComponentCallbacks2). This cache otherwise never
+     * shrinks on its own, so without this hook it can itself become a contributor to the
+     * low-memory condition it should be backing off from. The disk tier is left alone.
      */
     fun trimMemory(level: Int) {
         if (level >= android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE ||
@@ -94,6 +168,15 @@ object AppIconCache {
         if (cachedBitmap != null) {
             return cachedBitmap
         }
+        val stamp = versionStamp(info)
+        val disk = diskCache(context)
+        if (stamp != 0L) {
+            val stored = disk.read(info.packageName, userId, size, stamp)
+            if (stored != null) {
+                put(info.packageName, userId, size, stored)
+                return stored
+            }
+        }
         var loader = appIconLoaders[size]
         if (loader == null) {
             val shrinkNonAdaptiveIcons = BuildUtils.atLeast30 && context.applicationInfo.loadIcon(context.packageManager) is AdaptiveIconDrawable
@@ -113,10 +196,39 @@ object AppIconCache {
         }
         if (bitmap != null) {
             put(info.packageName, userId, size, bitmap)
+            if (stamp != 0L) {
+                diskExecutor.execute { disk.write(info.packageName, userId, size, stamp, bitmap) }
+            }
         }
         return bitmap
     }
 
+    /**
+     * Loads the icons of [infos] at [size] into memory in the background, from disk where
+     * possible, so rows about to be bound find them there. Icons already in memory are skipped.
+     * Cancel the returned job when the range it was started for is no longer coming up.
+     */
+    fun prefetch(context: Context, infos: List<ApplicationInfo>, size: Int): Job {
+        val appContext = context.applicationContext
+        return scope.launch {
+            for (info in infos) {
+                ensureActive()
+                val userId = info.uid / 100000
+                if (get(info.packageName, userId, size) != null) continue
+                // The scope has no exception handler, so one bad package must not escape it
+                try {
+                    getOrLoadBitmap(appContext, info, userId, size)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: SecurityException) {
+                    Timber.tag(TAG).w("Skipping badged icon for ${info.packageName}: ${e.message}")
+                } catch (e: Throwable) {
+                    Timber.tag(TAG).e(e, "Failed to load icon for ${info.packageName}")
+                }
+            }
+        }
+    }
+
     @JvmStatic
     fun loadIconBitmapAsync(context: Context,
                             info: ApplicationInfo, userId: Int,
@@ -0,0 +1,68 @@
+package af.shizuku.manager.utils
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import timber.log.Timber
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * Disk tier of [AppIconCache]: icons already scaled to the size they're shown at, stored as PNG
+ * under `<root>/<packageName>/<userId>_<size>_<stamp>.png`. [stamp] identifies the installed
+ * version of the package, so an updated app simply misses and is decoded again.
+ *
+ * One directory per package makes dropping a package's icons a single delete, whatever the
+ * size of the cache. Files are written to a temp name and renamed into place, so a reader never
+ * sees half an icon.
+ */
+internal class IconDiskCache(private val root: File) {
+
+    private fun file(packageName: String, userId: Int, size: Int, stamp: Long) =
+        File(File(root, packageName), "${userId}_${size}_$stamp.png")
+
+    fun read(packageName: String, userId: Int, size: Int, stamp: Long): Bitmap? {
+        val file = file(packageName, userId, size, stamp)
+        if (!file.isFile) return null
+        val bitmap = BitmapFactory.decodeFile(file.path)
+        if (bitmap == null) {
+            Timber.tag(TAG).w("Dropping unreadable icon ${file.name} of $packageName")
+            file.delete()
+        }
+        return bitmap
+    }
+
+    fun write(packageName: String, userId: Int, size: Int, stamp: Long, bitmap: Bitmap) {
+        val file = file(packageName, userId, size, stamp)
+        val dir = file.parentFile ?: return
+        val temp = File(dir, file.name + ".tmp")
+        // Runs on the disk executor, where anything thrown would take the process down
+        try {
+            if (!dir.isDirectory && !dir.mkdirs()) return
+
+            // Icons of other versions at this size are dead weight now
+            val prefix = "${userId}_${size}_"
+            dir.listFiles()?.forEach {
+                if (it.name.startsWith(prefix) && it.name != file.name) it.delete()
+            }
+
+            FileOutputStream(temp).use { bitmap.compress(Bitmap.CompressFormat.PNG, 100, it) }
+            if (!temp.renameTo(file)) temp.delete()
+        } catch (e: IOException) {
+            Timber.tag(TAG).w(e, "Failed to store icon of $packageName")
+            temp.delete()
+        } catch (e: RuntimeException) {
+            // A recycled bitmap, or a SecurityException from the file system
+            Timber.tag(TAG).w(e, "Failed to store icon of $packageName")
+            temp.delete()
+        }
+    }
+
+    fun invalidate(packageName: String) {
+        File(root, packageName).deleteRecursively()
+    }
+
+    private companion object {
+        const val TAG = "IconDiskCache"
+    }
+}
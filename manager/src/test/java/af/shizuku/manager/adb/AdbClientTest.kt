@@ -0,0 +1,193 @@
+package af.shizuku.manager.adb
+
+import io.kotest.matchers.shouldBe
+import io.mockk.mockk
+import org.junit.After
+import org.junit.Test
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class AdbClientTest {
+
+    /**
+     * Stands in for adbd on a loopback socket: answers the handshake, then lets the test script
+     * every packet and records what the client sends.
+     */
+    private class FakeAdbd : Closeable {
+        private val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        private lateinit var socket: Socket
+        private val received = LinkedBlockingQueue<AdbMessage>()
+
+        val port get() = server.localPort
+
+        fun accept() {
+            socket = server.accept().apply { soTimeout = 10_000 }
+            val input = DataInputStream(socket.getInputStream())
+            input.receive().command shouldBe AdbProtocol.A_CNXN
+            // No features: one unacknowledged A_WRTE per stream, plain A_OKAYs
+            send(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.MAX_PAYLOAD, "device::\u0000".toByteArray())
+            thread(isDaemon = true) {
+                try {
+                    while (true) received.put(input.receive())
+                } catch (e: IOException) {
+                    // client went away
+                }
+            }
+        }
+
+        @Synchronized
+        fun send(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null) {
+            socket.getOutputStream().write(AdbMessage(command, arg0, arg1, data).toByteArray())
+        }
+
+        fun next(): AdbMessage = received.poll(10, TimeUnit.SECONDS) ?: error("client sent nothing")
+
+        private fun DataInputStream.receive(): AdbMessage {
+            val header = ByteArray(AdbMessage.HEADER_LENGTH)
+            readFully(header)
+            val buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN)
+            val command = buffer.int
+            val arg0 = buffer.int
+            val arg1 = buffer.int
+            val length = buffer.int
+            val data = if (length > 0) ByteArray(length).also(::readFully) else null
+            return AdbMessage(command, arg0, arg1, data)
+        }
+
+        override fun close() {
+            if (::socket.isInitialized) socket.close()
+            server.close()
+        }
+    }
+
+    private val adbd = FakeAdbd()
+    private val client = AdbClient("127.0.0.1", adbd.port, mockk())
+    private val executor = Executors.newCachedThreadPool()
+
+    @After
+    fun tearDown() {
+        client.close()
+        adbd.close()
+        executor.shutdownNow()
+    }
+
+    private fun connect() {
+        val connecting = executor.submit { client.connect() }
+        adbd.accept()
+        connecting.get(10, TimeUnit.SECONDS)
+    }
+
+    private fun <T> Future<T>.await(): T = get(10, TimeUnit.SECONDS)
+
+    private fun AdbMessage.text() = String(data!!).trimEnd('\u0000')
+
+    private fun AdbClient.Stream.readText(): String? {
+        var text: String? = null
+        if (!read { data, offset, length -> text = String(data, offset, length) }) return null
+        return text
+    }
+
+    /** Opens [destinations] concurrently and returns each stream with the local id adbd saw. */
+    private fun openAll(vararg destinations: String, remoteIds: List<Int>): Map<String, AdbClient.Stream> {
+        val opening = destinations.associateWith { destination -> executor.submit<AdbClient.Stream> { client.open(destination) } }
+        val localIds = destinations.associate {
+            val open = adbd.next()
+            open.command shouldBe AdbProtocol.A_OPEN
+            open.text() to open.arg0
+        }
+        // Accept them in the reverse of the order they were asked for
+        destinations.indices.reversed().forEach { i ->
+            adbd.send(AdbProtocol.A_OKAY, remoteIds[i], localIds.getValue(destinations[i]))
+        }
+        return opening.mapValues { (destination, future) ->
+            future.await().also { it.localId shouldBe localIds.getValue(destination) }
+        }
+    }
+
+    @Test
+    fun `interleaved packets on two streams reach the right stream`() {
+        connect()
+        val streams = openAll("shell:a", "shell:b", remoteIds = listOf(101, 102))
+        val a = streams.getValue("shell:a")
+        val b = streams.getValue("shell:b")
+
+        adbd.send(AdbProtocol.A_WRTE, 102, b.localId, "b1".toByteArray())
+        adbd.send(AdbProtocol.A_WRTE, 101, a.localId, "a1".toByteArray())
+        adbd.send(AdbProtocol.A_WRTE, 102, b.localId, "b2".toByteArray())
+        adbd.send(AdbProtocol.A_CLSE, 101, a.localId)
+        adbd.send(AdbProtocol.A_WRTE, 102, b.localId, "b3".toByteArray())
+        adbd.send(AdbProtocol.A_CLSE, 102, b.localId)
+
+        a.readText() shouldBe "a1"
+        a.readText() shouldBe null
+        listOf(b.readText(), b.readText(), b.readText(), b.readText()) shouldBe listOf("b1", "b2", "b3", null)
+
+        // Acks race with the closes, but each close is answered on the right stream
+        val closes = generateSequence { adbd.next() }
+            .filter { it.command == AdbProtocol.A_CLSE }
+            .take(2)
+            .map { it.arg0 to it.arg1 }
+            .toSet()
+        closes shouldBe setOf(a.localId to 101, b.localId to 102)
+    }
+
+    @Test
+    fun `a write waiting for its ack fails when adbd closes the stream`() {
+        connect()
+        val stream = openAll("shell:cat", remoteIds = listOf(201)).getValue("shell:cat")
+
+        stream.write("first".toByteArray())
+        adbd.next().command shouldBe AdbProtocol.A_WRTE
+
+        // No A_OKAY for the first write, so this one has to wait
+        val pending = executor.submit { stream.write("second".toByteArray()) }
+        Thread.sleep(100)
+        pending.isDone shouldBe false
+
+        adbd.send(AdbProtocol.A_CLSE, 201, stream.localId)
+        val failure = runCatching { pending.await() }.exceptionOrNull()?.cause
+        (failure is EOFException) shouldBe true
+
+        val reply = adbd.next()
+        reply.command shouldBe AdbProtocol.A_CLSE
+        reply.arg0 shouldBe stream.localId
+        stream.readText() shouldBe null
+    }
+
+    @Test
+    fun `a write waiting for its ack fails when the stream is closed locally`() {
+        connect()
+        val streams = openAll("shell:cat", "shell:other", remoteIds = listOf(301, 302))
+        val stream = streams.getValue("shell:cat")
+
+        stream.write("first".toByteArray())
+        adbd.next().command shouldBe AdbProtocol.A_WRTE
+
+        val pending = executor.submit { stream.write("second".toByteArray()) }
+        Thread.sleep(100)
+        stream.close()
+        val failure = runCatching { pending.await() }.exceptionOrNull()?.cause
+        (failure is EOFException) shouldBe true
+
+        val reply = adbd.next()
+        reply.command shouldBe AdbProtocol.A_CLSE
+        reply.arg0 shouldBe stream.localId
+
+        // The other stream is unaffected
+        val other = streams.getValue("shell:other")
+        adbd.send(AdbProtocol.A_WRTE, 302, other.localId, "still here".toByteArray())
+        other.readText() shouldBe "still here"
+    }
+}
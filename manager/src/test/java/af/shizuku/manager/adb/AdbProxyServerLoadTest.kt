@@ -0,0 +1,147 @@
+package af.shizuku.manager.adb
+
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.io.DataInputStream
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class AdbProxyServerLoadTest {
+
+    /**
+     * Answers A_CNXN, and every A_OPEN with its destination echoed back on a stream that's
+     * closed right away.
+     */
+    private class EchoHandler(private val connection: AdbProxyServer.Connection) : AdbProxyServer.Handler {
+        private var nextId = 1
+
+        override fun onMessage(message: AdbMessage) {
+            when (message.command) {
+                AdbProtocol.A_CNXN -> {
+                    connection.maxPayload = minOf(message.arg1, AdbProtocol.MAX_PAYLOAD)
+                    connection.write(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, AdbProtocol.MAX_PAYLOAD, message.data)
+                }
+                AdbProtocol.A_OPEN -> {
+                    val localId = nextId++
+                    connection.write(AdbProtocol.A_OKAY, localId, message.arg0)
+                    connection.write(AdbProtocol.A_WRTE, localId, message.arg0, message.data)
+                    connection.write(AdbProtocol.A_CLSE, localId, message.arg0)
+                }
+            }
+        }
+    }
+
+    private fun server(maxConnections: Int) =
+        AdbProxyServer(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), maxConnections, ::EchoHandler)
+            .also { it.start() }
+
+    private fun Socket.send(command: Int, arg0: Int, arg1: Int, data: String) {
+        getOutputStream().write(AdbMessage(command, arg0, arg1, data).toByteArray())
+    }
+
+    private fun DataInputStream.receive(): AdbMessage {
+        val header = ByteArray(AdbMessage.HEADER_LENGTH)
+        readFully(header)
+        val buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN)
+        val command = buffer.int
+        val arg0 = buffer.int
+        val arg1 = buffer.int
+        val length = buffer.int
+        val data = if (length > 0) ByteArray(length).also(::readFully) else null
+        return AdbMessage(command, arg0, arg1, data)
+    }
+
+    private fun connect(server: AdbProxyServer) =
+        Socket(InetAddress.getLoopbackAddress(), server.localPort).apply { soTimeout = 10_000 }
+
+    private fun handshake(socket: Socket, maxPayload: Int = AdbProtocol.MAX_PAYLOAD): DataInputStream {
+        val input = DataInputStream(socket.getInputStream())
+        socket.send(AdbProtocol.A_CNXN, AdbProtocol.A_VERSION, maxPayload, "host::")
+        input.receive().command shouldBe AdbProtocol.A_CNXN
+        return input
+    }
+
+    @Test
+    fun `many concurrent clients are all served`() {
+        val clients = 64
+        val requests = 50
+        server(clients).use { server ->
+            val pool = Executors.newFixedThreadPool(clients)
+            try {
+                val results = (0 until clients).map { client ->
+                    pool.submit<Int> {
+                        connect(server).use { socket ->
+                            val input = handshake(socket)
+                            var completed = 0
+                            for (i in 0 until requests) {
+                                val destination = "echo:$client/$i"
+                                socket.send(AdbProtocol.A_OPEN, i + 1, 0, destination)
+                                input.receive().command shouldBe AdbProtocol.A_OKAY
+                                val write = input.receive()
+                                write.command shouldBe AdbProtocol.A_WRTE
+                                write.arg1 shouldBe i + 1
+                                String(write.data!!).trimEnd('\u0000') shouldBe destination
+                                input.receive().command shouldBe AdbProtocol.A_CLSE
+                                completed++
+                            }
+                            completed
+                        }
+                    }
+                }
+                results.sumOf { it.get(60, TimeUnit.SECONDS) } shouldBe clients * requests
+            } finally {
+                pool.shutdownNow()
+            }
+        }
+    }
+
+    @Test
+    fun `connections over the limit are refused until one closes`() {
+        server(2).use { server ->
+            val first = connect(server)
+            connect(server).use { second ->
+                handshake(first)
+                handshake(second)
+
+                connect(server).use { refused ->
+                    runCatching { refused.getInputStream().read() }.getOrDefault(-1) shouldBe -1
+                }
+
+                first.close()
+                val deadline = System.currentTimeMillis() + 10_000
+                while (server.connectionCount > 1 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10)
+                }
+                connect(server).use { handshake(it) }
+            }
+        }
+    }
+
+    @Test
+    fun `a packet over the connection's max payload closes it`() {
+        server(4).use { server ->
+            // Before A_CNXN only the small pre-handshake size is allowed
+            connect(server).use { socket ->
+                socket.send(AdbProtocol.A_OPEN, 1, 0, "x".repeat(8 * 1024))
+                runCatching { socket.getInputStream().read() }.getOrDefault(-1) shouldBe -1
+            }
+
+            connect(server).use { socket ->
+                val input = handshake(socket, maxPayload = 16 * 1024)
+                val destination = "y".repeat(8 * 1024)
+                socket.send(AdbProtocol.A_OPEN, 1, 0, destination)
+                input.receive().command shouldBe AdbProtocol.A_OKAY
+                String(input.receive().data!!).trimEnd('\u0000') shouldBe destination
+                input.receive().command shouldBe AdbProtocol.A_CLSE
+
+                socket.send(AdbProtocol.A_OPEN, 2, 0, "z".repeat(32 * 1024))
+                runCatching { input.read() }.getOrDefault(-1) shouldBe -1
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package af.shizuku.manager.adb
+
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class AdbShellV2Test {
+
+    private fun packet(id: Int, data: ByteArray): ByteArray {
+        val packet = ByteArray(AdbShellV2.HEADER_LENGTH + data.size)
+        AdbShellV2.writeHeader(packet, id, data.size)
+        data.copyInto(packet, AdbShellV2.HEADER_LENGTH)
+        return packet
+    }
+
+    @Test
+    fun `decoder reassembles packets split at any byte`() {
+        val stream = packet(AdbShellV2.ID_STDOUT, "hello ".toByteArray()) +
+            packet(AdbShellV2.ID_STDERR, "oops".toByteArray()) +
+            packet(AdbShellV2.ID_STDOUT, "world".toByteArray()) +
+            packet(AdbShellV2.ID_EXIT, byteArrayOf(3))
+
+        for (step in 1..stream.size) {
+            val stdout = ByteArrayOutputStream()
+            val stderr = ByteArrayOutputStream()
+            val decoder = AdbShellV2.Decoder { id, data, offset, length ->
+                when (id) {
+                    AdbShellV2.ID_STDOUT -> stdout.write(data, offset, length)
+                    AdbShellV2.ID_STDERR -> stderr.write(data, offset, length)
+                }
+            }
+            for (offset in stream.indices step step) {
+                decoder.feed(stream, offset, minOf(step, stream.size - offset))
+            }
+            stdout.toString() shouldBe "hello world"
+            stderr.toString() shouldBe "oops"
+            decoder.exitCode shouldBe 3
+        }
+    }
+
+    @Test
+    fun `destinations are parsed with their v2 flag`() {
+        AdbShellV2.parseDestination("shell:ls -l") shouldBe ("ls -l" to false)
+        AdbShellV2.parseDestination(AdbShellV2.destination("id")) shouldBe ("id" to true)
+        AdbShellV2.parseDestination("shell,v2,pty:") shouldBe ("" to true)
+        AdbShellV2.parseDestination("shellx:id") shouldBe null
+        AdbShellV2.parseDestination("sync:") shouldBe null
+    }
+
+    @Test
+    fun `only features both sides support are negotiated`() {
+        val banner = "device::ro.product.name=x;features=cmd,shell_v2,stat_v2,delayed_ack\u0000".toByteArray()
+        AdbProtocol.negotiateFeatures(banner) shouldBe setOf(AdbProtocol.FEATURE_SHELL_V2, AdbProtocol.FEATURE_DELAYED_ACK)
+        AdbProtocol.negotiateFeatures("device::".toByteArray()) shouldBe emptySet()
+        AdbProtocol.negotiateFeatures(AdbProtocol.banner("host").toByteArray()) shouldBe AdbProtocol.SUPPORTED_FEATURES
+    }
+}
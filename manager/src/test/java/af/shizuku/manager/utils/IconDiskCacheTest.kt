@@ -0,0 +1,89 @@
+package af.shizuku.manager.utils
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import io.kotest.matchers.shouldBe
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.GraphicsMode
+import java.io.File
+
+// Native graphics, so the PNGs are really encoded and decoded
+@RunWith(RobolectricTestRunner::class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+class IconDiskCacheTest {
+
+    @get:Rule
+    val temp = TemporaryFolder()
+
+    private val cache by lazy { IconDiskCache(temp.root) }
+
+    private fun icon(color: Int) = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888).apply { eraseColor(color) }
+
+    private fun files(packageName: String) = File(temp.root, packageName).list()?.sorted() ?: emptyList()
+
+    @Test
+    fun written_icon_reads_back() {
+        cache.write("pkg", 0, 8, 42, icon(Color.RED))
+
+        val bitmap = cache.read("pkg", 0, 8, 42)!!
+        bitmap.width shouldBe 8
+        bitmap.getPixel(3, 3) shouldBe Color.RED
+        files("pkg") shouldBe listOf("0_8_42.png")
+    }
+
+    @Test
+    fun other_stamp_size_or_user_misses() {
+        cache.write("pkg", 0, 8, 42, icon(Color.RED))
+
+        cache.read("pkg", 0, 8, 43) shouldBe null
+        cache.read("pkg", 0, 16, 42) shouldBe null
+        cache.read("pkg", 10, 8, 42) shouldBe null
+        cache.read("other", 0, 8, 42) shouldBe null
+    }
+
+    @Test
+    fun new_stamp_prunes_only_the_old_one_at_that_size() {
+        cache.write("pkg", 0, 8, 1, icon(Color.RED))
+        cache.write("pkg", 0, 16, 1, icon(Color.RED))
+        cache.write("pkg", 10, 8, 1, icon(Color.RED))
+
+        cache.write("pkg", 0, 8, 2, icon(Color.BLUE))
+
+        files("pkg") shouldBe listOf("0_16_1.png", "0_8_2.png", "10_8_1.png")
+        cache.read("pkg", 0, 8, 2)!!.getPixel(0, 0) shouldBe Color.BLUE
+    }
+
+    @Test
+    fun invalidate_drops_only_that_package() {
+        cache.write("pkg", 0, 8, 1, icon(Color.RED))
+        cache.write("other", 0, 8, 1, icon(Color.RED))
+
+        cache.invalidate("pkg")
+
+        cache.read("pkg", 0, 8, 1) shouldBe null
+        files("pkg") shouldBe emptyList()
+        (cache.read("other", 0, 8, 1) != null) shouldBe true
+    }
+
+    @Test
+    fun unreadable_icon_is_dropped() {
+        val file = File(File(temp.root, "pkg").apply { mkdirs() }, "0_8_1.png")
+        file.writeText("not a png")
+
+        cache.read("pkg", 0, 8, 1) shouldBe null
+        file.exists() shouldBe false
+    }
+
+    @Test
+    fun stamp_changes_with_the_build_but_not_without_an_mtime() {
+        val before = AppIconCache.versionStamp(1230768000000, "google/raven/raven:14/AP1A/1:user/release-keys")
+        val after = AppIconCache.versionStamp(1230768000000, "google/raven/raven:15/AP3A/2:user/release-keys")
+
+        (before != after) shouldBe true
+        AppIconCache.versionStamp(0, "google/raven/raven:15/AP3A/2:user/release-keys") shouldBe 0L
+    }
+}
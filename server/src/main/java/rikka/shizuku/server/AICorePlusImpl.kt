@@ -5,6 +5,7 @@ import android.graphics.Color
 import android.graphics.Rect
 import android.os.Bundle
 import android.os.IBinder
+import android.os.Parcel
 import android.util.Log
 import af.shizuku.server.IAICorePlus
 
@@ -192,4 +193,7 @@ class AICorePlusImpl(
             null
         }
     }
+
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_AI_CORE, code) { super.onTransact(code, data, reply, flags) }
 }
@@ -0,0 +1,173 @@
+package rikka.shizuku.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring of the server's recent activity (intercepted {@code su} calls and the like),
+ * for {@code getRecentLogs} and for forwarding to the manager.
+ * <p>
+ * Writers claim a sequence number with one atomic increment and publish an immutable record into
+ * its slot; nothing is locked and nothing is formatted on the logging path. Readers walk the last
+ * {@link #capacity} sequence numbers and skip any slot that has since been overwritten or isn't
+ * published yet, so a snapshot taken while writers run is merely missing those records. A reader
+ * that keeps a cursor uses {@link #publishedSince} instead, which stops at the first record still
+ * being written so advancing the cursor never skips it.
+ */
+final class ActivityLogBuffer {
+
+    static final int ACTION_SU = 1;
+
+    private static final String[] ACTION_NAMES = {
+            null,
+            "su",
+    };
+
+    static final class Record {
+
+        final long sequence;
+        final long timeMillis;
+        final String packageName;
+        final int action;
+        @Nullable
+        final String detail;
+
+        Record(long sequence, long timeMillis, String packageName, int action, @Nullable String detail) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.packageName = packageName;
+            this.action = action;
+            this.detail = detail;
+        }
+
+        /**
+         * The action as the manager has always received it, e.g. {@code "su ls /data"}.
+         */
+        @NonNull
+        String describeAction() {
+            String name = action > 0 && action < ACTION_NAMES.length ? ACTION_NAMES[action] : "action#" + action;
+            return detail != null ? name + " " + detail : name;
+        }
+
+        boolean sameEvent(@NonNull Record other) {
+            // Package names are interned, so identity is enough for them
+            return packageName == other.packageName && action == other.action
+                    && (detail == null ? other.detail == null : detail.equals(other.detail));
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Record> slots;
+    private final AtomicLong next = new AtomicLong();
+
+    // The same few packages log over and over; keep one copy of each name.
+    private final ConcurrentHashMap<String, String> packageNames = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    ActivityLogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the sequence number of the new record.
+     */
+    long add(@NonNull String packageName, int action, @Nullable String detail) {
+        long sequence = claim();
+        publish(sequence, packageName, action, detail);
+        return sequence;
+    }
+
+    // add() in two steps, so tests can hold a record between being claimed and stored.
+    long claim() {
+        return next.getAndIncrement();
+    }
+
+    void publish(long sequence, @NonNull String packageName, int action, @Nullable String detail) {
+        String interned = packageNames.get(packageName);
+        if (interned == null) {
+            String existing = packageNames.putIfAbsent(packageName, packageName);
+            interned = existing != null ? existing : packageName;
+        }
+        slots.set((int) (sequence & mask), new Record(sequence, System.currentTimeMillis(), interned, action, detail));
+    }
+
+    /**
+     * @return the sequence number the next record will get.
+     */
+    long nextSequence() {
+        return next.get();
+    }
+
+    /**
+     * @return the records still held with a sequence number of at least {@code from}, oldest first.
+     */
+    @NonNull
+    List<Record> since(long from) {
+        long end = next.get();
+        long start = Math.max(from, end - capacity);
+        List<Record> result = new ArrayList<>((int) Math.max(0, end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Record record = slots.get((int) (sequence & mask));
+            if (record != null && record.sequence == sequence) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #since}, but ends before the first record that has been claimed and not stored
+     * yet. Everything up to the last record returned is final, so a cursor moved past it can't
+     * lose the record still being written; records overwritten by newer ones are skipped.
+     */
+    @NonNull
+    List<Record> publishedSince(long from) {
+        long end = next.get();
+        long start = Math.max(from, end - capacity);
+        List<Record> result = new ArrayList<>((int) Math.max(0, end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Record record = slots.get((int) (sequence & mask));
+            if (record == null || record.sequence < sequence) break;
+            if (record.sequence == sequence) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Formats the newest {@code max} held records as {@code [HH:mm:ss] package: action}, oldest
+     * first.
+     */
+    @NonNull
+    List<String> format(int max) {
+        List<Record> records = since(Math.max(0, next.get() - max));
+        List<String> lines = new ArrayList<>(records.size());
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+        Date date = new Date();
+        for (Record record : records) {
+            date.setTime(record.timeMillis);
+            lines.add("[" + time.format(date) + "] " + record.packageName + ": " + record.describeAction());
+        }
+        return lines;
+    }
+}
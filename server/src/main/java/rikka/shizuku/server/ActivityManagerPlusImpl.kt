@@ -1,11 +1,88 @@
 package rikka.shizuku.server
 
+import android.app.ActivityManager
+import android.content.Context
+import android.os.IBinder
+import android.os.Parcel
 import android.os.Process
+import android.os.ServiceManager
+import android.system.Os
+import android.system.OsConstants
+import android.util.Log
 import af.shizuku.server.IActivityManagerPlus
 import rikka.hidden.compat.ActivityManagerApis
 import af.shizuku.common.util.UserHandleCompat
+import java.io.File
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
 
 class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
+
+    companion object {
+        private const val TAG = "ActivityManagerPlus"
+
+        // PackageManager.COMPONENT_ENABLED_STATE_*
+        private const val ENABLED_STATE_ENABLED = 1
+        private const val ENABLED_STATE_DISABLED = 2
+        private const val ENABLED_STATE_DISABLED_USER = 3
+        private const val ENABLED_STATE_DISABLED_UNTIL_USED = 4
+
+        // UsageStatsManager.STANDBY_BUCKET_RESTRICTED
+        private const val STANDBY_BUCKET_RESTRICTED = 45
+
+        private const val SHELL_PACKAGE = "com.android.shell"
+
+        private val packageManager = CachedService("package", "android.content.pm.IPackageManager")
+        private val activityManager = CachedService(Context.ACTIVITY_SERVICE, "android.app.IActivityManager")
+        private val usageStatsManager = CachedService("usagestats", "android.app.usage.IUsageStatsManager")
+    }
+
+    /**
+     * A system service's binder proxy plus the reflected methods called on it, resolved once and
+     * reused until the remote side dies. Methods are matched by name and parameter count, since
+     * the exact hidden signatures drift between releases.
+     */
+    private class CachedService(private val name: String, private val interfaceName: String) {
+
+        @Volatile
+        private var binder: IBinder? = null
+
+        @Volatile
+        private var service: Any? = null
+
+        private val methods = ConcurrentHashMap<String, Method>()
+
+        fun get(): Any? {
+            val cached = service
+            if (cached != null && binder?.isBinderAlive == true) return cached
+            synchronized(this) {
+                service?.let { if (binder?.isBinderAlive == true) return it }
+                val b = ServiceManager.getService(name) ?: return null
+                val s = Class.forName("$interfaceName\$Stub")
+                    .getMethod("asInterface", IBinder::class.java)
+                    .invoke(null, b) ?: return null
+                binder = b
+                service = s
+                return s
+            }
+        }
+
+        fun method(methodName: String, paramCount: Int): Method {
+            return methods.getOrPut("$methodName/$paramCount") {
+                val s = get() ?: throw IllegalStateException("$name service unavailable")
+                s.javaClass.methods.firstOrNull { it.name == methodName && it.parameterTypes.size == paramCount }
+                    ?: throw NoSuchMethodException("$interfaceName.$methodName with $paramCount parameters")
+            }
+        }
+
+        fun invoke(methodName: String, vararg args: Any?): Any? {
+            val s = get() ?: throw IllegalStateException("$name service unavailable")
+            return method(methodName, args.size).invoke(s, *args)
+        }
+    }
+
+    private fun currentUserId(): Int = UserHandleCompat.getUserId(Process.myUid())
+
     override fun deepForceStop(packageName: String?): Boolean {
         if (packageName == null) return false
         try {
@@ -18,6 +95,19 @@ class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
 
     override fun setAppStandbyBucket(packageName: String?, bucket: Int): Boolean {
         if (packageName == null) return false
+        // 50 (NEVER) can't be set by callers; treat it as the strictest settable bucket, as the
+        // old "am set-standby-bucket restricted" mapping did.
+        val target = if (bucket == 50) STANDBY_BUCKET_RESTRICTED else bucket
+        return try {
+            usageStatsManager.invoke("setAppStandbyBucket", packageName, target, currentUserId())
+            true
+        } catch (e: Throwable) {
+            Log.w(TAG, "setAppStandbyBucket via binder failed for $packageName, falling back to am", e)
+            setAppStandbyBucketViaShell(packageName, target)
+        }
+    }
+
+    private fun setAppStandbyBucketViaShell(packageName: String, bucket: Int): Boolean {
         return try {
             val bucketStr = when (bucket) {
                 10 -> "active"
@@ -25,11 +115,9 @@ class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
                 30 -> "frequent"
                 40 -> "rare"
                 45 -> "restricted"
-                50 -> "restricted"
                 else -> bucket.toString()
             }
-            val process = Runtime.getRuntime().exec(arrayOf("am", "set-standby-bucket", packageName, bucketStr))
-            process.waitFor() == 0
+            ShellPool.exec("am", "set-standby-bucket", packageName, bucketStr).isSuccess
         } catch (e: Exception) {
             false
         }
@@ -37,8 +125,7 @@ class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
 
     override fun killAllBackgroundProcesses(): Boolean {
         return try {
-            val process = Runtime.getRuntime().exec(arrayOf("am", "kill-all"))
-            process.waitFor() == 0
+            ShellPool.exec("am", "kill-all").isSuccess
         } catch (e: Exception) {
             false
         }
@@ -46,44 +133,61 @@ class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
 
     override fun freezeApp(packageName: String?): Boolean {
         if (packageName == null) return false
-        return try {
-            // Use pm disable-user which works for shell on user 0
-            val process = Runtime.getRuntime().exec(arrayOf("pm", "disable-user", "--user", "0", packageName))
-            process.waitFor() == 0
-        } catch (e: Exception) {
-            false
-        }
+        // Same state "pm disable-user" sets
+        return setEnabledSetting(packageName, ENABLED_STATE_DISABLED_USER)
     }
 
     override fun unfreezeApp(packageName: String?): Boolean {
         if (packageName == null) return false
-        return try {
-            val process = Runtime.getRuntime().exec(arrayOf("pm", "enable", "--user", "0", packageName))
-            process.waitFor() == 0
-        } catch (e: Exception) {
-            false
-        }
+        return setEnabledSetting(packageName, ENABLED_STATE_ENABLED)
     }
 
     override fun isAppFrozen(packageName: String?): Boolean {
         if (packageName == null) return false
         return try {
-            val process = Runtime.getRuntime().exec(arrayOf("pm", "list", "packages", "-d", packageName))
-            val output = process.inputStream.bufferedReader().use { it.readText() }
-            process.waitFor()
-            output.contains(packageName)
-        } catch (e: Exception) {
-            false
+            isDisabledState(getEnabledSetting(packageName))
+        } catch (e: Throwable) {
+            Log.w(TAG, "getApplicationEnabledSetting failed for $packageName, falling back to pm", e)
+            try {
+                ShellPool.exec("pm", "list", "packages", "-d", packageName).lines.contains("package:$packageName")
+            } catch (e: Exception) {
+                false
+            }
+        }
+    }
+
+    private fun setEnabledSetting(packageName: String, state: Int): Boolean {
+        return try {
+            packageManager.invoke("setApplicationEnabledSetting", packageName, state, 0, currentUserId(), SHELL_PACKAGE)
+            true
+        } catch (e: Throwable) {
+            Log.w(TAG, "setApplicationEnabledSetting($state) via binder failed for $packageName, falling back to pm", e)
+            try {
+                val command = if (state == ENABLED_STATE_ENABLED) "enable" else "disable-user"
+                ShellPool.exec("pm", command, "--user", currentUserId().toString(), packageName).isSuccess
+            } catch (e: Exception) {
+                false
+            }
         }
     }
 
+    private fun getEnabledSetting(packageName: String): Int {
+        return packageManager.invoke("getApplicationEnabledSetting", packageName, currentUserId()) as Int
+    }
+
+    // Everything "pm list packages -d" reports: ApplicationInfo.enabled is false in all of these.
+    private fun isDisabledState(state: Int): Boolean {
+        return state == ENABLED_STATE_DISABLED ||
+            state == ENABLED_STATE_DISABLED_USER ||
+            state == ENABLED_STATE_DISABLED_UNTIL_USED
+    }
+
     override fun setAppProcessLimit(limit: Int) {
         try {
             // This setting is internal to ActivityManagerService but can be set via 'am' on some builds
             // Fallback to global setting if command fails
-            val process = Runtime.getRuntime().exec(arrayOf("settings", "put", "global", "max_phantom_processes", limit.toString()))
-            process.waitFor()
-            Runtime.getRuntime().exec(arrayOf("am", "set-process-limit", limit.toString())).waitFor()
+            ShellPool.exec("settings", "put", "global", "max_phantom_processes", limit.toString())
+            ShellPool.exec("am", "set-process-limit", limit.toString())
         } catch (e: Exception) {
             // Ignore
         }
@@ -91,14 +195,31 @@ class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
 
     override fun getRunningProcesses(): List<String> {
         return try {
-            val process = Runtime.getRuntime().exec(arrayOf("am", "stack", "list")) // Dummy check for am access
-            process.waitFor()
-            
-            // Use 'ps' which is more reliable for raw listing via shell
-            val psProcess = Runtime.getRuntime().exec(arrayOf("ps", "-A", "-o", "NAME,RSS,PID"))
-            psProcess.inputStream.bufferedReader().use { it.readLines() }
+            @Suppress("UNCHECKED_CAST")
+            val processes = activityManager.invoke("getRunningAppProcesses") as List<ActivityManager.RunningAppProcessInfo>?
+            // Keep the "NAME RSS PID" shape of the ps output this used to return, reading RSS
+            // from /proc instead of forking ps. Only app processes are listed now.
+            val pageKb = Os.sysconf(OsConstants._SC_PAGESIZE) / 1024
+            val result = ArrayList<String>((processes?.size ?: 0) + 1)
+            result.add("NAME RSS PID")
+            processes?.forEach { result.add("${it.processName} ${readRssPages(it.pid) * pageKb} ${it.pid}") }
+            result
+        } catch (e: Throwable) {
+            Log.w(TAG, "getRunningAppProcesses via binder failed, falling back to ps", e)
+            try {
+                ShellPool.exec("ps", "-A", "-o", "NAME,RSS,PID").lines
+            } catch (e: Exception) {
+                emptyList()
+            }
+        }
+    }
+
+    private fun readRssPages(pid: Int): Long {
+        return try {
+            // statm: size resident shared text lib data dt, in pages
+            File("/proc/$pid/statm").readText().split(' ')[1].trim().toLong()
         } catch (e: Exception) {
-            emptyList()
+            0
         }
     }
 
@@ -107,8 +228,7 @@ class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
         return try {
             // pm trim-caches trims to a target free space, but we use pm clear for absolute clearing
             // Note: pm clear wipes data AND cache. For just cache, we can use pm trim-caches with a huge value.
-            val process = Runtime.getRuntime().exec(arrayOf("pm", "trim-caches", "4096G"))
-            process.waitFor() == 0
+            ShellPool.exec("pm", "trim-caches", "4096G").isSuccess
         } catch (e: Exception) {
             false
         }
@@ -117,10 +237,73 @@ class ActivityManagerPlusImpl : IActivityManagerPlus.Stub() {
     override fun clearAppData(packageName: String?): Boolean {
         if (packageName == null) return false
         return try {
-            val process = Runtime.getRuntime().exec(arrayOf("pm", "clear", "--user", "0", packageName))
-            process.waitFor() == 0
-        } catch (e: Exception) {
-            false
+            // No observer: AMS returns once the clear is accepted, the wipe itself finishes
+            // asynchronously in PackageManager (pm clear blocks on an observer for it).
+            activityManager.invoke("clearApplicationUserData", packageName, false, null, currentUserId()) as Boolean
+        } catch (e: Throwable) {
+            Log.w(TAG, "clearApplicationUserData via binder failed for $packageName, falling back to pm", e)
+            try {
+                ShellPool.exec("pm", "clear", "--user", currentUserId().toString(), packageName).isSuccess
+            } catch (e: Exception) {
+                false
+            }
+        }
+    }
+
+    /**
+     * Batch variants, so automation acting on dozens of packages pays for one IPC instead of one
+     * per package. They aren't in the AIDL; see ServerConstants.BINDER_TRANSACTION_AM_PLUS_*.
+     * The caller already passed getActivityManagerPlus()'s permission check to hold this binder.
+     */
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_ACTIVITY_MANAGER, code) {
+            onBatchTransact(code, data, reply) || super.onTransact(code, data, reply, flags)
+        }
+
+    private fun onBatchTransact(code: Int, data: Parcel, reply: Parcel?): Boolean {
+        when (code) {
+            ServerConstants.BINDER_TRANSACTION_AM_PLUS_freezeApps,
+            ServerConstants.BINDER_TRANSACTION_AM_PLUS_unfreezeApps -> {
+                data.enforceInterface(ServerConstants.ACTIVITY_MANAGER_PLUS_DESCRIPTOR)
+                val packages = data.createStringArrayList() ?: emptyList<String>()
+                val result = if (code == ServerConstants.BINDER_TRANSACTION_AM_PLUS_freezeApps) {
+                    freezeApps(packages)
+                } else {
+                    unfreezeApps(packages)
+                }
+                reply?.writeNoException()
+                reply?.writeBooleanArray(result)
+                return true
+            }
+            ServerConstants.BINDER_TRANSACTION_AM_PLUS_areAppsFrozen -> {
+                data.enforceInterface(ServerConstants.ACTIVITY_MANAGER_PLUS_DESCRIPTOR)
+                val result = areAppsFrozen(data.createStringArrayList() ?: emptyList<String>())
+                reply?.writeNoException()
+                reply?.writeBooleanArray(result)
+                return true
+            }
+            ServerConstants.BINDER_TRANSACTION_AM_PLUS_setAppsStandbyBucket -> {
+                data.enforceInterface(ServerConstants.ACTIVITY_MANAGER_PLUS_DESCRIPTOR)
+                val packages = data.createStringArrayList() ?: emptyList<String>()
+                val bucket = data.readInt()
+                val result = setAppsStandbyBucket(packages, bucket)
+                reply?.writeNoException()
+                reply?.writeBooleanArray(result)
+                return true
+            }
         }
+        return false
     }
+
+    fun freezeApps(packageNames: List<String>): BooleanArray =
+        BooleanArray(packageNames.size) { freezeApp(packageNames[it]) }
+
+    fun unfreezeApps(packageNames: List<String>): BooleanArray =
+        BooleanArray(packageNames.size) { unfreezeApp(packageNames[it]) }
+
+    fun areAppsFrozen(packageNames: List<String>): BooleanArray =
+        BooleanArray(packageNames.size) { isAppFrozen(packageNames[it]) }
+
+    fun setAppsStandbyBucket(packageNames: List<String>, bucket: Int): BooleanArray =
+        BooleanArray(packageNames.size) { setAppStandbyBucket(packageNames[it], bucket) }
 }
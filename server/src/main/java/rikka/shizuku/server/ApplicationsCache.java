@@ -0,0 +1,381 @@
+package rikka.shizuku.server;
+
+import static rikka.shizuku.server.ServerConstants.MANAGER_APPLICATION_ID;
+import static rikka.shizuku.server.ServerConstants.PERMISSION;
+
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import af.shizuku.common.compat.Android17Compat;
+import af.shizuku.common.compat.InstalledPackagesCompat;
+import af.shizuku.common.util.UserHandleCompat;
+import kotlin.collections.ArraysKt;
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.hidden.compat.UserManagerApis;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * The packages {@code getApplications} reports (requesters of the Shizuku permission, V3 clients
+ * and anything with a permission decision on record), kept per user between calls.
+ * <p>
+ * Every call used to re-list all installed packages with {@code GET_META_DATA | GET_PERMISSIONS}.
+ * Now a user is listed once; after that only packages PackageManager reports as changed (its
+ * getChangedPackages sequence, or {@code dispatchPackageChanged} from the manager) are re-read.
+ * Each change is stamped with a version, so {@link #getDelta} can send a client only what changed
+ * since the version it last saw instead of the whole list. Packages reported only because the
+ * config has a decision for their uid are looked up once too, and again only when they change.
+ */
+final class ApplicationsCache {
+
+    private static final Logger LOGGER = new Logger("ApplicationsCache");
+
+    private static final int PACKAGE_FLAGS = PackageManager.GET_META_DATA | PackageManager.GET_PERMISSIONS;
+
+    // Changes kept for deltas; a client further behind than this gets the full list.
+    private static final int MAX_CHANGES = 1024;
+
+    private static final class UserState {
+
+        // Packages that request the permission or declare V3 support. These don't depend on
+        // the config, so they only change with the package itself.
+        final Map<String, PackageInfo> candidates = new HashMap<>();
+
+        // Every other package looked up for a config entry, mapped to null if it isn't
+        // installed. Dropped with the package's next change, like the candidates.
+        final Map<String, PackageInfo> others = new HashMap<>();
+
+        // getChangedPackages sequence the candidates are current to, or -1 if change tracking
+        // isn't available and the user has to be re-listed every time.
+        int sequence = -1;
+    }
+
+    private static final class Change {
+
+        final long version;
+        final int userId;
+        final String packageName;
+
+        Change(long version, int userId, String packageName) {
+            this.version = version;
+            this.userId = userId;
+            this.packageName = packageName;
+        }
+    }
+
+    static final class Delta {
+
+        final long version;
+
+        // true: updated is the complete list and the client should drop everything else.
+        final boolean full;
+
+        // Packages added or changed since the requested version (or all of them, if full).
+        final List<PackageInfo> updated;
+
+        // Packages no longer reported, as parallel user id / package name lists.
+        final List<Integer> removedUserIds;
+        final List<String> removedPackageNames;
+
+        Delta(long version, boolean full, List<PackageInfo> updated, List<Integer> removedUserIds, List<String> removedPackageNames) {
+            this.version = version;
+            this.full = full;
+            this.updated = updated;
+            this.removedUserIds = removedUserIds;
+            this.removedPackageNames = removedPackageNames;
+        }
+    }
+
+    private final ShizukuConfigManager configManager;
+
+    private final Map<Integer, UserState> users = new HashMap<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+
+    // Uids whose config entry changed, to be turned into package changes on the next query.
+    // Concurrent rather than guarded by this, so the config lock never waits on a running query.
+    private final Set<Integer> pendingConfigUids = ConcurrentHashMap.newKeySet();
+
+    // Starts from the monotonic clock so a version handed out by an earlier server process is
+    // always older than anything this one can serve a delta for.
+    private long version = System.nanoTime();
+    private long oldestVersion = version;
+
+    ApplicationsCache(@NonNull ShizukuConfigManager configManager) {
+        this.configManager = configManager;
+    }
+
+    @NonNull
+    synchronized List<PackageInfo> getApplications(@NonNull List<Integer> userIds) {
+        List<PackageInfo> result = new ArrayList<>();
+        refresh(userIds);
+        for (int userId : userIds) {
+            collect(userId, users.get(userId), result);
+        }
+        return result;
+    }
+
+    /**
+     * @param since the version from the client's previous call, or anything older (e.g. 0) to get
+     *              the full list.
+     */
+    @NonNull
+    synchronized Delta getDelta(@NonNull List<Integer> userIds, long since) {
+        boolean rescanned = refresh(userIds);
+        if (rescanned || since < oldestVersion || since > version) {
+            List<PackageInfo> all = new ArrayList<>();
+            for (int userId : userIds) {
+                collect(userId, users.get(userId), all);
+            }
+            return new Delta(version, true, all, new ArrayList<>(), new ArrayList<>());
+        }
+
+        // Latest change per package; the package's current state is what gets sent anyway
+        Map<String, Change> changed = new LinkedHashMap<>();
+        Iterator<Change> it = changes.descendingIterator();
+        while (it.hasNext()) {
+            Change change = it.next();
+            if (change.version <= since) break;
+            if (!userIds.contains(change.userId)) continue;
+            changed.put(change.userId + ":" + change.packageName, change);
+        }
+
+        List<PackageInfo> updated = new ArrayList<>();
+        List<Integer> removedUserIds = new ArrayList<>();
+        List<String> removedPackageNames = new ArrayList<>();
+        for (Change change : changed.values()) {
+            PackageInfo pi = resolve(change.userId, users.get(change.userId), change.packageName);
+            if (pi != null) {
+                updated.add(pi);
+            } else {
+                removedUserIds.add(change.userId);
+                removedPackageNames.add(change.packageName);
+            }
+        }
+        return new Delta(version, false, updated, removedUserIds, removedPackageNames);
+    }
+
+    /**
+     * Re-reads {@code packageName} in {@code userId} after the manager reports it was installed,
+     * updated or removed.
+     */
+    synchronized void onPackageChanged(@NonNull String packageName, int userId) {
+        UserState state = users.get(userId);
+        if (state != null) {
+            reload(userId, state, packageName);
+        }
+    }
+
+    /**
+     * Called by the config manager when the entry for {@code uid} changes; cheap, since it runs
+     * under the config lock. The affected packages are looked up on the next query.
+     */
+    void onConfigChanged(int uid) {
+        pendingConfigUids.add(uid);
+    }
+
+    /**
+     * Brings {@code userIds} up to date, recording a change for every package that moved.
+     *
+     * @return whether any user had to be listed from scratch, so no delta can cover it.
+     */
+    private boolean refresh(List<Integer> userIds) {
+        boolean rescanned = false;
+
+        List<Integer> existingUserIds = UserManagerApis.getUserIdsNoThrow();
+        for (Iterator<Integer> it = users.keySet().iterator(); it.hasNext(); ) {
+            int userId = it.next();
+            if (!existingUserIds.contains(userId)) {
+                // A removed user's packages just vanish; no client can be brought up to date
+                // with a delta for that.
+                it.remove();
+                oldestVersion = ++version;
+            }
+        }
+
+        for (int userId : userIds) {
+            UserState state = users.get(userId);
+            if (state == null) {
+                state = new UserState();
+                state.sequence = currentSequence(userId);
+                for (PackageInfo pi : InstalledPackagesCompat.getInstalledPackagesNoThrow(PACKAGE_FLAGS, userId)) {
+                    if (isCandidate(pi)) {
+                        state.candidates.put(pi.packageName, pi);
+                    }
+                }
+                users.put(userId, state);
+                rescanned = true;
+                continue;
+            }
+
+            if (state.sequence != -1) {
+                try {
+                    ChangedPackages changed = PackageChangeCursor.getChangedPackages(state.sequence, userId);
+                    if (changed != null) {
+                        for (String packageName : changed.getPackageNames()) {
+                            reload(userId, state, packageName);
+                        }
+                        state.sequence = changed.getSequenceNumber();
+                    }
+                    continue;
+                } catch (Throwable tr) {
+                    LOGGER.w("getChangedPackages failed for user %d, re-listing from now on: %s", userId, tr);
+                    state.sequence = -1;
+                }
+            }
+
+            // No change tracking: re-list, but still only record what actually differs
+            Map<String, PackageInfo> previous = new HashMap<>(state.candidates);
+            state.candidates.clear();
+            state.others.clear();
+            for (PackageInfo pi : InstalledPackagesCompat.getInstalledPackagesNoThrow(PACKAGE_FLAGS, userId)) {
+                if (!isCandidate(pi)) continue;
+                state.candidates.put(pi.packageName, pi);
+                PackageInfo old = previous.remove(pi.packageName);
+                if (old == null || old.lastUpdateTime != pi.lastUpdateTime || old.applicationInfo.uid != pi.applicationInfo.uid) {
+                    record(userId, pi.packageName);
+                }
+            }
+            for (String packageName : previous.keySet()) {
+                record(userId, packageName);
+            }
+        }
+
+        for (Iterator<Integer> pending = pendingConfigUids.iterator(); pending.hasNext(); ) {
+            int uid = pending.next();
+            pending.remove();
+            int userId = UserHandleCompat.getUserId(uid);
+            if (!users.containsKey(userId)) continue;
+            Set<String> packages = new HashSet<>(PackageManagerApis.getPackagesForUidNoThrow(uid));
+            ShizukuConfig.PackageEntry entry = configManager.find(uid);
+            if (entry != null && entry.packages != null) {
+                packages.addAll(entry.packages);
+            }
+            for (String packageName : packages) {
+                record(userId, packageName);
+            }
+        }
+        return rescanned;
+    }
+
+    private void reload(int userId, UserState state, String packageName) {
+        PackageInfo pi = Android17Compat.getPackageInfo(packageName, PACKAGE_FLAGS, userId);
+        if (isCandidate(pi)) {
+            state.candidates.put(packageName, pi);
+            state.others.remove(packageName);
+        } else {
+            state.candidates.remove(packageName);
+            if (state.others.containsKey(packageName)) {
+                state.others.put(packageName, pi);
+            }
+        }
+        record(userId, packageName);
+    }
+
+    private void record(int userId, String packageName) {
+        changes.addLast(new Change(++version, userId, packageName));
+        while (changes.size() > MAX_CHANGES) {
+            oldestVersion = changes.removeFirst().version;
+        }
+    }
+
+    private static int currentSequence(int userId) {
+        try {
+            return PackageChangeCursor.currentSequenceNumber(userId);
+        } catch (Throwable tr) {
+            return -1;
+        }
+    }
+
+    private static boolean isCandidate(@Nullable PackageInfo pi) {
+        if (pi == null || pi.applicationInfo == null) return false;
+        if (pi.requestedPermissions != null && (
+                ArraysKt.contains(pi.requestedPermissions, PERMISSION) ||
+                ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_LEGACY) ||
+                ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_ORIGINAL))) {
+            return true;
+        }
+        return pi.applicationInfo.metaData != null
+                && pi.applicationInfo.metaData.getBoolean("af.shizuku.client.V3_SUPPORT", false);
+    }
+
+    /**
+     * Adds everything reported for {@code userId}: the candidates, plus packages that are only
+     * there because the config has a permission decision for their uid.
+     */
+    private void collect(int userId, UserState state, List<PackageInfo> out) {
+        for (PackageInfo pi : state.candidates.values()) {
+            if (isReported(pi)) {
+                out.add(pi);
+            }
+        }
+        for (ShizukuConfig.PackageEntry entry : configManager.getEntries()) {
+            if (UserHandleCompat.getUserId(entry.uid) != userId) continue;
+            if ((entry.flags & ConfigManager.MASK_PERMISSION) == 0) continue;
+            List<String> packages = entry.packages != null && !entry.packages.isEmpty()
+                    ? entry.packages : PackageManagerApis.getPackagesForUidNoThrow(entry.uid);
+            for (String packageName : packages) {
+                if (state.candidates.containsKey(packageName)) continue;
+                PackageInfo pi = lookupOther(userId, state, packageName);
+                if (pi != null && pi.applicationInfo != null && pi.applicationInfo.uid == entry.uid && isReported(pi)) {
+                    out.add(pi);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the current PackageInfo of {@code packageName} if it's reported, else {@code null}.
+     */
+    @Nullable
+    private PackageInfo resolve(int userId, UserState state, String packageName) {
+        PackageInfo pi = state.candidates.get(packageName);
+        if (pi == null) {
+            pi = lookupOther(userId, state, packageName);
+            if (pi == null || pi.applicationInfo == null) return null;
+        }
+        return isReported(pi) ? pi : null;
+    }
+
+    @Nullable
+    private static PackageInfo lookupOther(int userId, UserState state, String packageName) {
+        if (state.others.containsKey(packageName)) {
+            return state.others.get(packageName);
+        }
+        PackageInfo pi = Android17Compat.getPackageInfo(packageName, PACKAGE_FLAGS, userId);
+        state.others.put(packageName, pi);
+        return pi;
+    }
+
+    private boolean isReported(PackageInfo pi) {
+        if (Objects.equals(MANAGER_APPLICATION_ID, pi.packageName)) return false;
+        if (pi.applicationInfo == null) return false;
+
+        int flags = 0;
+        ShizukuConfig.PackageEntry entry = configManager.find(pi.applicationInfo.uid);
+        if (entry != null) {
+            // An empty packages list means no package name was ever recorded for this
+            // uid (e.g. an entry written before updateFlagsForUid started recording
+            // them) - treat that as unrestricted rather than as "matches nothing", or
+            // this package silently vanishes from the authorized-apps list entirely.
+            if (entry.packages != null && !entry.packages.isEmpty() && !entry.packages.contains(pi.packageName))
+                return false;
+            flags = entry.flags & ConfigManager.MASK_PERMISSION;
+        }
+        return flags != 0 || isCandidate(pi);
+    }
+}
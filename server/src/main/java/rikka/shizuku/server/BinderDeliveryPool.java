@@ -0,0 +1,383 @@
+package rikka.shizuku.server;
+
+import android.os.Binder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Delivers the server binder to apps in batches, on a small bounded pool.
+ * <p>
+ * Each delivery is a content provider round trip into the target app, which can take seconds
+ * if the app is cold-starting or frozen. Server start used to fan these out on the common
+ * ForkJoin pool through a parallel stream, which has no bound, no deadline and no order, and
+ * the manager path slept a thread for a second before its retry. Here every delivery runs on
+ * one of {@link #MAX_WORKERS} workers in the order it was added, a delivery that hasn't
+ * answered within {@link #DEADLINE_MS} of starting counts as a failed attempt, and retries are
+ * scheduled on a timer instead of blocking anything.
+ * <p>
+ * A binder call can't be interrupted, so a delivery past its deadline still holds its worker
+ * until the call returns. The pool adds a worker for each one stuck like that, up to
+ * {@link #MAX_HUNG_REPLACEMENTS}, so the deliveries queued behind it still get to run.
+ */
+final class BinderDeliveryPool {
+
+    private static final Logger LOGGER = new Logger("BinderDeliveryPool");
+
+    static final int MAX_WORKERS = 4;
+    static final long DEADLINE_MS = 5000;
+    static final int MAX_HUNG_REPLACEMENTS = 16;
+
+    /**
+     * Manager: one retry, 1s after force-stopping it ("for unknown reason, sometimes this could
+     * happen, kill Shizuku app and try again could work").
+     */
+    static final RetryPolicy MANAGER = new RetryPolicy(true, 1000);
+
+    /**
+     * Clients: retries without force-stop, see the #386 note in {@code ShizukuService.sendBinderToClient}.
+     * A provider that isn't published yet usually is a moment later.
+     */
+    static final RetryPolicy CLIENT = new RetryPolicy(false, 500, 2000);
+
+    interface Sender {
+        boolean send(@NonNull Binder binder, @NonNull String packageName, int userId);
+    }
+
+    interface Killer {
+        void forceStop(@NonNull String packageName, int userId);
+    }
+
+    interface Listener {
+        void onFinished(@NonNull Batch batch);
+    }
+
+    static final class RetryPolicy {
+
+        final boolean forceStopFirst;
+        final long[] delaysMillis;
+
+        RetryPolicy(boolean forceStopFirst, long... delaysMillis) {
+            this.forceStopFirst = forceStopFirst;
+            this.delaysMillis = delaysMillis;
+        }
+    }
+
+    private final Sender sender;
+    private final Killer killer;
+    private final int maxWorkers;
+    private final long deadlineMillis;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledThreadPoolExecutor timer;
+
+    // Guarded by this.
+    private int hungWorkers;
+
+    BinderDeliveryPool(@NonNull Sender sender, @NonNull Killer killer) {
+        this(sender, killer, MAX_WORKERS, DEADLINE_MS);
+    }
+
+    BinderDeliveryPool(@NonNull Sender sender, @NonNull Killer killer, int maxWorkers, long deadlineMillis) {
+        this.sender = sender;
+        this.killer = killer;
+        this.maxWorkers = maxWorkers;
+        this.deadlineMillis = deadlineMillis;
+
+        workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory("ShizukuDelivery"));
+        // Deliveries come in bursts (server start, manager restarts); don't keep idle threads around
+        workers.allowCoreThreadTimeOut(true);
+
+        timer = new ScheduledThreadPoolExecutor(1, threadFactory("ShizukuDeliveryTimer"));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @NonNull
+    Batch newBatch(@NonNull String name, @NonNull Binder binder, @Nullable Listener listener) {
+        return new Batch(name, binder, listener);
+    }
+
+    /**
+     * @return workers still stuck in a call whose attempt already timed out.
+     */
+    synchronized int hungWorkers() {
+        return hungWorkers;
+    }
+
+    private synchronized void onWorkerHung() {
+        hungWorkers++;
+        resizeLocked();
+    }
+
+    private synchronized void onWorkerRecovered() {
+        hungWorkers--;
+        resizeLocked();
+    }
+
+    private void resizeLocked() {
+        int size = maxWorkers + Math.min(hungWorkers, MAX_HUNG_REPLACEMENTS);
+        // The core size may never exceed the maximum, so grow the maximum first and shrink it last
+        if (size > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(size);
+            workers.setCorePoolSize(size);
+        } else {
+            workers.setCorePoolSize(size);
+            workers.setMaximumPoolSize(size);
+        }
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * A set of deliveries whose completion is tracked together. Add every delivery, then
+     * {@link #seal()}; the listener runs once all of them have succeeded or run out of retries.
+     */
+    final class Batch {
+
+        final String name;
+        private final Binder binder;
+        @Nullable private final Listener listener;
+        private final long startNanos = System.nanoTime();
+
+        private int total;
+        private int delivered;
+        private int failed;
+        private boolean sealed;
+        private boolean finished;
+        private long firstDeliveredNanos = -1;
+        private long finishedNanos = -1;
+
+        private Batch(String name, Binder binder, @Nullable Listener listener) {
+            this.name = name;
+            this.binder = binder;
+            this.listener = listener;
+        }
+
+        void add(@NonNull String packageName, int userId, @NonNull RetryPolicy policy) {
+            synchronized (this) {
+                if (sealed) throw new IllegalStateException("batch " + name + " is sealed");
+                total++;
+            }
+            new Delivery(this, packageName, userId, policy).attempt();
+        }
+
+        void seal() {
+            boolean finish;
+            synchronized (this) {
+                sealed = true;
+                finish = checkFinishedLocked();
+            }
+            if (finish) onFinished();
+        }
+
+        synchronized int total() {
+            return total;
+        }
+
+        synchronized int delivered() {
+            return delivered;
+        }
+
+        synchronized int failed() {
+            return failed;
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return ms from batch creation to the first successful delivery, or -1 if none yet.
+         */
+        synchronized long timeToFirstMillis() {
+            return firstDeliveredNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstDeliveredNanos - startNanos);
+        }
+
+        /**
+         * @return ms from batch creation until every delivery settled, or -1 if not finished.
+         */
+        synchronized long timeToAllMillis() {
+            return finishedNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(finishedNanos - startNanos);
+        }
+
+        private void onSettled(Delivery delivery, boolean success) {
+            boolean first = false;
+            boolean finish;
+            synchronized (this) {
+                if (success) {
+                    delivered++;
+                    if (firstDeliveredNanos < 0) {
+                        firstDeliveredNanos = System.nanoTime();
+                        first = true;
+                    }
+                } else {
+                    failed++;
+                }
+                finish = checkFinishedLocked();
+            }
+            if (first) {
+                LOGGER.i("%s: first binder delivered to %s in user %d after %d ms",
+                        name, delivery.packageName, delivery.userId, timeToFirstMillis());
+            }
+            if (finish) onFinished();
+        }
+
+        private boolean checkFinishedLocked() {
+            if (finished || !sealed || delivered + failed < total) return false;
+            finished = true;
+            finishedNanos = System.nanoTime();
+            return true;
+        }
+
+        private void onFinished() {
+            LOGGER.i("%s: %d/%d binders delivered (%d failed) after %d ms",
+                    name, delivered(), total(), failed(), timeToAllMillis());
+            if (listener != null) {
+                try {
+                    listener.onFinished(this);
+                } catch (Throwable tr) {
+                    LOGGER.w(tr, "%s: listener", name);
+                }
+            }
+        }
+    }
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int TIMED_OUT = 2;
+
+    private final class Delivery {
+
+        final Batch batch;
+        final String packageName;
+        final int userId;
+        final RetryPolicy policy;
+
+        // Guarded by this. An attempt settles exactly once: by its result or by its deadline.
+        private int attempt = -1;
+        private boolean settled;
+        @Nullable private Future<?> deadline;
+
+        Delivery(Batch batch, String packageName, int userId, RetryPolicy policy) {
+            this.batch = batch;
+            this.packageName = packageName;
+            this.userId = userId;
+            this.policy = policy;
+        }
+
+        void attempt() {
+            int current;
+            synchronized (this) {
+                current = ++attempt;
+                settled = false;
+            }
+            try {
+                workers.execute(() -> run(current));
+            } catch (RejectedExecutionException e) {
+                settle(current, false);
+            }
+        }
+
+        private void run(int current) {
+            // Armed only now: time spent queued behind other deliveries isn't this one's fault
+            AtomicInteger state = new AtomicInteger(RUNNING);
+            Future<?> timeout;
+            try {
+                timeout = timer.schedule(() -> onDeadline(current, state), deadlineMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                settle(current, false);
+                return;
+            }
+            synchronized (this) {
+                if (attempt == current && !settled) {
+                    deadline = timeout;
+                }
+            }
+
+            boolean success;
+            try {
+                success = sender.send(batch.binder, packageName, userId);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "%s: deliver to %s in user %d", batch.name, packageName, userId);
+                success = false;
+            }
+            if (!state.compareAndSet(RUNNING, DONE)) {
+                // The deadline already failed this attempt and counted this worker as hung
+                onWorkerRecovered();
+            }
+            settle(current, success);
+        }
+
+        private void onDeadline(int current, AtomicInteger state) {
+            if (!state.compareAndSet(RUNNING, TIMED_OUT)) return;
+            LOGGER.w("%s: delivery to %s in user %d timed out after %d ms",
+                    batch.name, packageName, userId, deadlineMillis);
+            onWorkerHung();
+            settle(current, false);
+        }
+
+        private void settle(int current, boolean success) {
+            Future<?> timeout;
+            synchronized (this) {
+                // A late answer from an attempt that already timed out doesn't count
+                if (attempt != current || settled) return;
+                settled = true;
+                timeout = deadline;
+                deadline = null;
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            if (success) {
+                if (current > 0) {
+                    LOGGER.i("%s: retry #%d succeeded for %s in user %d", batch.name, current, packageName, userId);
+                }
+                batch.onSettled(this, true);
+                return;
+            }
+            if (current >= policy.delaysMillis.length) {
+                LOGGER.w("%s: giving up on %s in user %d after %d attempts", batch.name, packageName, userId, current + 1);
+                batch.onSettled(this, false);
+                return;
+            }
+
+            if (policy.forceStopFirst) {
+                LOGGER.e("kill %s in user %d and try again", packageName, userId);
+                try {
+                    killer.forceStop(packageName, userId);
+                } catch (Throwable tr) {
+                    LOGGER.e(tr, "kill failed for %s in user %d", packageName, userId);
+                }
+            }
+            try {
+                timer.schedule(this::attempt, policy.delaysMillis[current], TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                batch.onSettled(this, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package rikka.shizuku.server;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interface descriptors of the binders clients proxy calls to, keyed by binder identity.
+ * <p>
+ * {@link IBinder#getInterfaceDescriptor} on a proxy is a transaction to the remote process, and
+ * the shadow layer used to make one for every proxied call just to learn which interface it was.
+ * A binder's descriptor never changes, and the process hands out one proxy object per remote
+ * binder, so the answer is cached per object and dropped when the remote side dies.
+ */
+final class BinderDescriptorCache {
+
+    private static final class Entry implements IBinder.DeathRecipient {
+
+        final IBinder binder;
+        final String descriptor;
+        private final Map<IBinder, Entry> owner;
+
+        Entry(IBinder binder, String descriptor, Map<IBinder, Entry> owner) {
+            this.binder = binder;
+            this.descriptor = descriptor;
+            this.owner = owner;
+        }
+
+        @Override
+        public void binderDied() {
+            owner.remove(binder, this);
+        }
+    }
+
+    private final int maxSize;
+
+    // Binder and BinderProxy don't override equals/hashCode, so this is an identity map.
+    private final ConcurrentHashMap<IBinder, Entry> entries = new ConcurrentHashMap<>();
+
+    BinderDescriptorCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return {@code binder}'s interface descriptor, or {@code null} if it has none.
+     */
+    @Nullable
+    String get(@NonNull IBinder binder) throws RemoteException {
+        Entry entry = entries.get(binder);
+        if (entry != null) return entry.descriptor;
+
+        String descriptor = binder.getInterfaceDescriptor();
+        if (descriptor == null) return null;
+
+        if (entries.size() >= maxSize) {
+            // Callers cycle through a handful of services; this only trips on pathological churn
+            clear();
+        }
+        entry = new Entry(binder, descriptor, entries);
+        if (entries.putIfAbsent(binder, entry) == null) {
+            try {
+                binder.linkToDeath(entry, 0);
+            } catch (RemoteException e) {
+                // Already dead; don't keep it
+                entries.remove(binder, entry);
+            }
+        }
+        return descriptor;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        for (Entry entry : entries.values()) {
+            if (entries.remove(entry.binder, entry)) {
+                try {
+                    entry.binder.unlinkToDeath(entry, 0);
+                } catch (Throwable ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package rikka.shizuku.server
+
+import android.os.Binder
+import android.os.Parcel
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Per-transaction-code and per-calling-uid counters and latency histograms for the server's
+ * binders (ShizukuService itself, which covers newProcess and transactRemote, and each Plus
+ * service).
+ *
+ * Recording is a table probe plus a handful of atomic adds: a [Stat] is allocated the first time
+ * a (service, code) or uid is seen and never again, so steady-state traffic allocates nothing.
+ * Latencies go into log-linear buckets (four per power of two, like HdrHistogram with two
+ * significant bits), which keeps percentiles within 25% at any scale.
+ */
+object BinderMetrics {
+
+    const val SERVICE_SHIZUKU = 0
+    const val SERVICE_AI_CORE = 1
+    const val SERVICE_WINDOW_MANAGER = 2
+    const val SERVICE_CONTINUITY_BRIDGE = 3
+    const val SERVICE_OVERLAY_MANAGER = 4
+    const val SERVICE_NETWORK_GOVERNOR = 5
+    const val SERVICE_ACTIVITY_MANAGER = 6
+    const val SERVICE_STORAGE_PROXY = 7
+    const val SERVICE_VIRTUAL_MACHINE_MANAGER = 8
+
+    // Service names, and the AIDL stub whose TRANSACTION_* fields name its codes.
+    private val SERVICES = arrayOf(
+        "shizuku" to "moe.shizuku.server.IShizukuService\$Stub",
+        "ai_core" to "af.shizuku.server.IAICorePlus\$Stub",
+        "window_manager" to "af.shizuku.server.IWindowManagerPlus\$Stub",
+        "continuity_bridge" to "af.shizuku.server.IContinuityBridge\$Stub",
+        "overlay_manager" to "af.shizuku.server.IOverlayManagerPlus\$Stub",
+        "network_governor" to "af.shizuku.server.INetworkGovernorPlus\$Stub",
+        "activity_manager" to "af.shizuku.server.IActivityManagerPlus\$Stub",
+        "storage_proxy" to "af.shizuku.server.IStorageProxy\$Stub",
+        "virtual_machine_manager" to "af.shizuku.server.IVirtualMachineManager\$Stub",
+    )
+
+    const val KIND_CODE = 0
+    const val KIND_UID = 1
+
+    /** getBinderMetrics flag: zero everything after taking the snapshot. */
+    const val FLAG_RESET = 1
+
+    private const val SUB_BUCKET_BITS = 2
+    private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+    private const val BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+
+    internal class Stat {
+        val count = AtomicLong()
+        val errors = AtomicLong()
+        val totalNanos = AtomicLong()
+        val maxNanos = AtomicLong()
+        val buckets = AtomicLongArray(BUCKETS)
+
+        fun record(nanos: Long, failed: Boolean) {
+            count.incrementAndGet()
+            if (failed) errors.incrementAndGet()
+            totalNanos.addAndGet(nanos)
+            var max = maxNanos.get()
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get()
+            }
+            buckets.incrementAndGet(bucketOf(nanos))
+        }
+
+        /** Upper bound of the bucket holding the [quantile]th sample, capped at the max seen. */
+        fun percentile(quantile: Double): Long {
+            val total = count.get()
+            if (total == 0L) return 0
+            val rank = Math.ceil(total * quantile).toLong().coerceAtLeast(1)
+            var seen = 0L
+            for (i in 0 until BUCKETS) {
+                seen += buckets.get(i)
+                if (seen >= rank) return minOf(upperBoundOf(i), maxNanos.get())
+            }
+            return maxNanos.get()
+        }
+
+        fun reset() {
+            count.set(0)
+            errors.set(0)
+            totalNanos.set(0)
+            maxNanos.set(0)
+            for (i in 0 until BUCKETS) buckets.set(i, 0)
+        }
+    }
+
+    /**
+     * Open-addressed, insert-only map from a non-negative long key to a [Stat]. Once full, new
+     * keys share [overflow] rather than growing.
+     */
+    internal class StatTable(capacity: Int) {
+        private val mask = capacity - 1
+        private val keys = AtomicLongArray(capacity).also { for (i in 0 until capacity) it.set(i, EMPTY) }
+        private val stats = AtomicReferenceArray<Stat>(capacity)
+        val overflow = Stat()
+
+        init {
+            require(capacity and mask == 0) { "capacity must be a power of two" }
+        }
+
+        operator fun get(key: Long): Stat {
+            var index = (mix(key) and mask.toLong()).toInt()
+            repeat(mask + 1) {
+                var current = keys.get(index)
+                if (current == EMPTY && !keys.compareAndSet(index, EMPTY, key)) {
+                    current = keys.get(index)
+                }
+                if (current == EMPTY || current == key) {
+                    return statAt(index)
+                }
+                index = (index + 1) and mask
+            }
+            return overflow
+        }
+
+        private fun statAt(index: Int): Stat {
+            stats.get(index)?.let { return it }
+            val stat = Stat()
+            return if (stats.compareAndSet(index, null, stat)) stat else stats.get(index)
+        }
+
+        fun forEach(action: (key: Long, stat: Stat) -> Unit) {
+            for (i in 0..mask) {
+                val stat = stats.get(i) ?: continue
+                action(keys.get(i), stat)
+            }
+        }
+
+        private companion object {
+            const val EMPTY = -1L
+
+            fun mix(key: Long): Long {
+                var h = key * -0x61c8864680b583ebL
+                h = h xor (h ushr 32)
+                return h
+            }
+        }
+    }
+
+    private val byCode = StatTable(512)
+    private val byUid = StatTable(1024)
+
+    @JvmStatic
+    fun record(service: Int, code: Int, startNanos: Long, failed: Boolean) {
+        val nanos = System.nanoTime() - startNanos
+        val uid = Binder.getCallingUid()
+        byCode[(service.toLong() shl 32) or (code.toLong() and 0xffffffffL)].record(nanos, failed)
+        byUid[uid.toLong() and 0xffffffffL].record(nanos, failed)
+    }
+
+    /**
+     * Runs a stub's onTransact and records it. Inline, so wrapping costs no lambda allocation.
+     */
+    inline fun measure(service: Int, code: Int, transact: () -> Boolean): Boolean {
+        val start = System.nanoTime()
+        var failed = true
+        try {
+            val handled = transact()
+            failed = false
+            return handled
+        } finally {
+            record(service, code, start, failed)
+        }
+    }
+
+    /**
+     * Writes every row as (kind, service, id, name, count, errors, totalNanos, maxNanos, p50, p90,
+     * p99), preceded by the row count. For [KIND_UID] rows the service is empty and the id is the
+     * uid; overflow rows (tables full) have id -1.
+     */
+    @JvmStatic
+    fun writeTo(reply: Parcel, flags: Int) {
+        val rows = ArrayList<Row>()
+        byCode.forEach { key, stat ->
+            val service = (key ushr 32).toInt()
+            val code = key.toInt()
+            rows.add(Row(KIND_CODE, serviceName(service), code, codeName(service, code), stat))
+        }
+        byUid.forEach { key, stat -> rows.add(Row(KIND_UID, "", key.toInt(), "", stat)) }
+        if (byCode.overflow.count.get() > 0) rows.add(Row(KIND_CODE, "", -1, "other", byCode.overflow))
+        if (byUid.overflow.count.get() > 0) rows.add(Row(KIND_UID, "", -1, "other", byUid.overflow))
+
+        reply.writeInt(rows.size)
+        for (row in rows) {
+            val stat = row.stat
+            reply.writeInt(row.kind)
+            reply.writeString(row.service)
+            reply.writeInt(row.id)
+            reply.writeString(row.name)
+            reply.writeLong(stat.count.get())
+            reply.writeLong(stat.errors.get())
+            reply.writeLong(stat.totalNanos.get())
+            reply.writeLong(stat.maxNanos.get())
+            reply.writeLong(stat.percentile(0.50))
+            reply.writeLong(stat.percentile(0.90))
+            reply.writeLong(stat.percentile(0.99))
+        }
+
+        if (flags and FLAG_RESET != 0) {
+            byCode.forEach { _, stat -> stat.reset() }
+            byUid.forEach { _, stat -> stat.reset() }
+            byCode.overflow.reset()
+            byUid.overflow.reset()
+        }
+    }
+
+    private class Row(val kind: Int, val service: String, val id: Int, val name: String, val stat: Stat)
+
+    private fun serviceName(service: Int) = SERVICES.getOrNull(service)?.first ?: "service#$service"
+
+    // Only built when metrics are read, never while recording
+    private val codeNames = HashMap<Int, Map<Int, String>>()
+
+    @Synchronized
+    private fun codeName(service: Int, code: Int): String {
+        if (service == SERVICE_SHIZUKU) {
+            when (code) {
+                1 -> return "transactRemote"
+                ServerConstants.BINDER_TRANSACTION_getApplications -> return "getApplications"
+                ServerConstants.BINDER_TRANSACTION_isCustomApiEnabled -> return "isCustomApiEnabled"
+                ServerConstants.BINDER_TRANSACTION_getDhizukuBinder -> return "getDhizukuBinder"
+                ServerConstants.BINDER_TRANSACTION_getServerPatchVersion -> return "getServerPatchVersion"
+                ServerConstants.BINDER_TRANSACTION_getApplicationsDelta -> return "getApplicationsDelta"
+                ServerConstants.BINDER_TRANSACTION_getBinderMetrics -> return "getBinderMetrics"
+                ServerConstants.BINDER_TRANSACTION_getFirewallRules -> return "getFirewallRules"
+            }
+        }
+        val names = codeNames.getOrPut(service) {
+            val stub = SERVICES.getOrNull(service)?.second ?: return@getOrPut emptyMap()
+            try {
+                Class.forName(stub).declaredFields
+                    .filter { it.name.startsWith("TRANSACTION_") && it.type == Int::class.javaPrimitiveType }
+                    .associate {
+                        it.isAccessible = true
+                        it.getInt(null) to it.name.removePrefix("TRANSACTION_")
+                    }
+            } catch (e: Throwable) {
+                emptyMap()
+            }
+        }
+        return names[code] ?: "code#$code"
+    }
+
+    @JvmStatic
+    internal fun bucketOf(nanos: Long): Int {
+        if (nanos < SUB_BUCKETS) return nanos.coerceAtLeast(0).toInt()
+        val exponent = 63 - java.lang.Long.numberOfLeadingZeros(nanos)
+        val sub = (nanos ushr (exponent - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1)
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub
+    }
+
+    @JvmStatic
+    internal fun upperBoundOf(bucket: Int): Long {
+        if (bucket < SUB_BUCKETS) return bucket.toLong()
+        val exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1
+        val sub = bucket % SUB_BUCKETS
+        val width = 1L shl (exponent - SUB_BUCKET_BITS)
+        return ((SUB_BUCKETS + sub).toLong() shl (exponent - SUB_BUCKET_BITS)) + width - 1
+    }
+
+    @JvmStatic
+    internal fun stat(service: Int, code: Int): Stat = byCode[(service.toLong() shl 32) or (code.toLong() and 0xffffffffL)]
+}
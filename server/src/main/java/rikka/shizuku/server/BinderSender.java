@@ -9,13 +9,20 @@ import android.app.ActivityManagerHidden;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import androidx.annotation.RequiresApi;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import kotlin.collections.ArraysKt;
 import rikka.hidden.compat.ActivityManagerApis;
@@ -39,29 +46,75 @@ public class BinderSender {
 
     private static ShizukuService sShizukuService;
 
-    private static class ProcessObserver extends ProcessObserverAdapter {
+    // AOSP's ActivityManager.PROCESS_STATE_TOP; states at or below it are foreground.
+    private static final int PROCESS_STATE_TOP = 2;
+
+    // Observer events arriving within this window are delivered as one batch.
+    private static final long COALESCE_WINDOW_MS = 50;
+
+    // A uid's classification is dropped on package change; this bounds how stale it can get if
+    // the manager isn't around to report one.
+    private static final long CLASSIFICATION_TTL_MS = 10 * 60 * 1000;
+
+    private static final Object LOCK = new Object();
+
+    // Pids and uids already handled (or queued), so repeated observer events for them are
+    // dropped. Guarded by LOCK.
+    private static final IntHashSet PIDS = new IntHashSet(64);
+    private static final IntHashSet UIDS = new IntHashSet(64);
+
+    // Queued deliveries, one per uid however many events it took to get here. Guarded by LOCK.
+    private static final Map<Integer, Pending> PENDING = new LinkedHashMap<>();
+    private static boolean sDrainScheduled;
+
+    private static Handler sHandler;
+
+    private static final class Pending {
+
+        final int uid;
+        // The latest pid seen for the uid, or -1 if only uid events came in
+        int pid = -1;
+        final IntHashSet pids = new IntHashSet(4);
+        boolean fromUidObserver;
+        boolean foreground;
+
+        Pending(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * What a uid's packages make it: the first package (in getPackagesForUid order) that asks for
+     * the client permission, and whether a package asking for the manager permission comes before
+     * it. Whether the manager permission is actually granted is still checked per delivery.
+     */
+    private static final class Classification {
+
+        final boolean managerFirst;
+        final String clientPackage;
+        final long time;
+
+        Classification(boolean managerFirst, String clientPackage, long time) {
+            this.managerFirst = managerFirst;
+            this.clientPackage = clientPackage;
+            this.time = time;
+        }
+
+        boolean isClient() {
+            return managerFirst || clientPackage != null;
+        }
+    }
 
-        private static final List<Integer> PID_LIST = new ArrayList<>();
+    private static final ConcurrentHashMap<Integer, Classification> CLASSIFICATIONS = new ConcurrentHashMap<>();
+
+    private static class ProcessObserver extends ProcessObserverAdapter {
 
         @Override
         public void onForegroundActivitiesChanged(int pid, int uid, boolean foregroundActivities) throws RemoteException {
             LOGGER.d("onForegroundActivitiesChanged: pid=%d, uid=%d, foregroundActivities=%s", pid, uid, foregroundActivities ? "true" : "false");
 
-            synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid) || !foregroundActivities) {
-                    return;
-                }
-                PID_LIST.add(pid);
-            }
-
-            if (!sendBinder(uid, pid)) {
-                // Delivery to a Shizuku client failed - most often because the app's ContentProvider
-                // wasn't published yet when this foreground event fired (a startup race). Drop the pid
-                // so a later foreground/state-change event retries, instead of caching the failure for
-                // the whole process lifetime and leaving the app permanently "not registered" (#319).
-                synchronized (PID_LIST) {
-                    PID_LIST.remove(Integer.valueOf(pid));
-                }
+            if (foregroundActivities) {
+                schedule(uid, pid, true);
             }
         }
 
@@ -69,11 +122,8 @@ public class BinderSender {
         public void onProcessDied(int pid, int uid) {
             LOGGER.d("onProcessDied: pid=%d, uid=%d", pid, uid);
 
-            synchronized (PID_LIST) {
-                int index = PID_LIST.indexOf(pid);
-                if (index != -1) {
-                    PID_LIST.remove(index);
-                }
+            synchronized (LOCK) {
+                PIDS.remove(pid);
             }
         }
 
@@ -81,32 +131,18 @@ public class BinderSender {
         public void onProcessStateChanged(int pid, int uid, int procState) throws RemoteException {
             LOGGER.d("onProcessStateChanged: pid=%d, uid=%d, procState=%d", pid, uid, procState);
 
-            synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid)) {
-                    return;
-                }
-                PID_LIST.add(pid);
-            }
-
-            if (!sendBinder(uid, pid)) {
-                // See onForegroundActivitiesChanged: don't cache a failed delivery forever (#319).
-                synchronized (PID_LIST) {
-                    PID_LIST.remove(Integer.valueOf(pid));
-                }
-            }
+            schedule(uid, pid, procState >= 0 && procState <= PROCESS_STATE_TOP);
         }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     private static class UidObserver extends UidObserverAdapter {
 
-        private static final List<Integer> UID_LIST = new ArrayList<>();
-
         @Override
         public void onUidActive(int uid) throws RemoteException {
             LOGGER.d("onUidCachedChanged: uid=%d", uid);
 
-            uidStarts(uid);
+            schedule(uid, -1, false);
         }
 
         @Override
@@ -114,7 +150,7 @@ public class BinderSender {
             LOGGER.d("onUidCachedChanged: uid=%d, cached=%s", uid, Boolean.toString(cached));
 
             if (!cached) {
-                uidStarts(uid);
+                schedule(uid, -1, false);
             }
         }
 
@@ -122,43 +158,138 @@ public class BinderSender {
         public void onUidIdle(int uid, boolean disabled) throws RemoteException {
             LOGGER.d("onUidIdle: uid=%d, disabled=%s", uid, Boolean.toString(disabled));
 
-            uidStarts(uid);
+            schedule(uid, -1, false);
         }
 
         @Override
         public void onUidGone(int uid, boolean disabled) throws RemoteException {
             LOGGER.d("onUidGone: uid=%d, disabled=%s", uid, Boolean.toString(disabled));
 
-            uidGone(uid);
+            synchronized (LOCK) {
+                if (UIDS.remove(uid)) {
+                    LOGGER.v("Uid %d dead", uid);
+                }
+            }
         }
+    }
 
-        private void uidStarts(int uid) throws RemoteException {
-            synchronized (UID_LIST) {
-                if (UID_LIST.contains(uid)) {
+    /**
+     * Queues a delivery attempt for {@code uid} unless this pid ({@code pid != -1}) or uid
+     * ({@code pid == -1}) was already handled. Runs on the observer's binder thread, so it only
+     * does set and map bookkeeping; the package lookups and delivery happen on the sender thread.
+     */
+    private static void schedule(int uid, int pid, boolean foreground) {
+        synchronized (LOCK) {
+            if (pid == -1) {
+                if (!UIDS.add(uid)) {
                     LOGGER.v("Uid %d already starts", uid);
                     return;
                 }
-                UID_LIST.add(uid);
                 LOGGER.v("Uid %d starts", uid);
+            } else if (!PIDS.add(pid)) {
+                return;
+            }
+
+            Pending pending = PENDING.get(uid);
+            if (pending == null) {
+                pending = new Pending(uid);
+                PENDING.put(uid, pending);
+            }
+            if (pid == -1) {
+                pending.fromUidObserver = true;
+            } else {
+                pending.pid = pid;
+                pending.pids.add(pid);
             }
+            pending.foreground |= foreground;
+
+            if (!sDrainScheduled && sHandler != null) {
+                sDrainScheduled = true;
+                sHandler.postDelayed(BinderSender::drain, COALESCE_WINDOW_MS);
+            }
+        }
+    }
+
+    private static void drain() {
+        List<Pending> batch;
+        synchronized (LOCK) {
+            batch = new ArrayList<>(PENDING.values());
+            PENDING.clear();
+            sDrainScheduled = false;
+        }
+
+        // Whatever the user is looking at first; otherwise in arrival order (the sort is stable)
+        Collections.sort(batch, (a, b) -> Boolean.compare(b.foreground, a.foreground));
 
-            if (!sendBinder(uid, -1)) {
-                // Don't cache a failed delivery forever - let a later uid event retry (#319).
-                synchronized (UID_LIST) {
-                    UID_LIST.remove(Integer.valueOf(uid));
+        for (Pending pending : batch) {
+            boolean handled;
+            try {
+                handled = sendBinder(pending.uid, pending.pid);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "sendBinder failed for uid %d", pending.uid);
+                handled = false;
+            }
+            if (!handled) {
+                // Delivery to a Shizuku client failed - most often because the app's ContentProvider
+                // wasn't published yet when this event fired (a startup race). Forget the pids/uid
+                // so a later foreground/state-change event retries, instead of caching the failure
+                // for the whole process lifetime and leaving the app permanently "not registered" (#319).
+                synchronized (LOCK) {
+                    for (int pid : pending.pids.toArray()) {
+                        PIDS.remove(pid);
+                    }
+                    if (pending.fromUidObserver) {
+                        UIDS.remove(pending.uid);
+                    }
                 }
             }
         }
+    }
 
-        private void uidGone(int uid) {
-            synchronized (UID_LIST) {
-                int index = UID_LIST.indexOf(uid);
-                if (index != -1) {
-                    UID_LIST.remove(index);
-                    LOGGER.v("Uid %d dead", uid);
+    /**
+     * Forgets what's known about {@code uid}'s packages after one of them was installed, updated
+     * or removed; {@code -1} forgets every uid.
+     */
+    public static void invalidate(int uid) {
+        if (uid == -1) {
+            CLASSIFICATIONS.clear();
+        } else {
+            CLASSIFICATIONS.remove(uid);
+        }
+    }
+
+    private static Classification classify(int uid) {
+        long now = SystemClock.elapsedRealtime();
+        Classification cached = CLASSIFICATIONS.get(uid);
+        if (cached != null && now - cached.time < CLASSIFICATION_TTL_MS) {
+            return cached;
+        }
+
+        boolean managerFirst = false;
+        String clientPackage = null;
+        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
+        if (!packages.isEmpty()) {
+            LOGGER.d("classify uid %d: packages=%s", uid, TextUtils.join(", ", packages));
+
+            int userId = uid / 100000;
+            for (String packageName : packages) {
+                PackageInfo pi = Android17Compat.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS, userId);
+                if (pi == null || pi.requestedPermissions == null)
+                    continue;
+
+                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
+                    managerFirst = true;
+                } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION) ||
+                           ArraysKt.contains(pi.requestedPermissions, PERMISSION_LEGACY) ||
+                           ArraysKt.contains(pi.requestedPermissions, PERMISSION_ORIGINAL)) {
+                    clientPackage = packageName;
+                    break;
                 }
             }
         }
+        Classification result = new Classification(managerFirst, clientPackage, now);
+        CLASSIFICATIONS.put(uid, result);
+        return result;
     }
 
     /**
@@ -167,55 +298,52 @@ public class BinderSender {
      * found but delivery failed, so the caller should let a later observer event retry (#319).
      */
     private static boolean sendBinder(int uid, int pid) throws RemoteException {
-        List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
-        if (packages.isEmpty())
+        Classification classification = classify(uid);
+        if (!classification.isClient())
             return true;
 
-        LOGGER.d("sendBinder to uid %d: packages=%s", uid, TextUtils.join(", ", packages));
-
         int userId = uid / 100000;
-        for (String packageName : packages) {
-            PackageInfo pi = Android17Compat.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS, userId);
-            if (pi == null || pi.requestedPermissions == null)
-                continue;
-
-            if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
-                boolean granted = false;
-                try {
-                    if (pid == -1)
-                        granted = Android17Compat.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
-                    else
-                        granted = ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
-                } catch (Throwable e) {
-                    LOGGER.e("checkPermission failed for manager");
-                }
+        if (classification.managerFirst) {
+            boolean granted = false;
+            try {
+                if (pid == -1)
+                    granted = Android17Compat.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
+                else
+                    granted = ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
+            } catch (Throwable e) {
+                LOGGER.e("checkPermission failed for manager");
+            }
 
-                if (granted) {
-                    // sendBinderToManager has its own kill-and-retry path, so treat it as handled.
-                    ShizukuService.sendBinderToManager(sShizukuService, userId);
-                    return true;
-                }
-            } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION) ||
-                       ArraysKt.contains(pi.requestedPermissions, PERMISSION_LEGACY) ||
-                       ArraysKt.contains(pi.requestedPermissions, PERMISSION_ORIGINAL)) {
-                // NOT sendBinderToUserAppWithRetry: this fires on every foreground/process-state/uid
-                // observer event during live usage (r2211 force-stopped Morphe mid-package-install
-                // when a transient pingBinder() false-positive hit here - "Failed to install update:
-                // ...IPackageInstaller.asBinder() on a null object reference" after the app got
-                // force-stopped out from under an in-flight PackageInstaller session). Force-stopping
-                // is reserved for the 2-second delayed catchUpAlreadyRunningClients() pass below —
-                // that window ensures server startup is complete and any pre-restart session is
-                // already broken, making force-stop safe. The existing #319 handling (un-cache on
-                // failure so a later event retries) is the safety net for this live path.
-                return ShizukuService.sendBinderToUserApp(sShizukuService, packageName, userId);
+            if (granted) {
+                // sendBinderToManager has its own kill-and-retry path, so treat it as handled.
+                ShizukuService.sendBinderToManager(sShizukuService, userId);
+                return true;
             }
         }
+        if (classification.clientPackage != null) {
+            // NOT sendBinderToUserAppWithRetry: this fires on every foreground/process-state/uid
+            // observer event during live usage (r2211 force-stopped Morphe mid-package-install
+            // when a transient pingBinder() false-positive hit here - "Failed to install update:
+            // ...IPackageInstaller.asBinder() on a null object reference" after the app got
+            // force-stopped out from under an in-flight PackageInstaller session). Force-stopping
+            // is reserved for the 2-second delayed catchUpAlreadyRunningClients() pass below —
+            // that window ensures server startup is complete and any pre-restart session is
+            // already broken, making force-stop safe. The existing #319 handling (un-cache on
+            // failure so a later event retries) is the safety net for this live path.
+            return ShizukuService.sendBinderToUserApp(sShizukuService, classification.clientPackage, userId);
+        }
         return true;
     }
 
     public static void register(ShizukuService shizukuService) {
         sShizukuService = shizukuService;
 
+        HandlerThread thread = new HandlerThread("ShizukuBinderSender");
+        thread.start();
+        synchronized (LOCK) {
+            sHandler = new Handler(thread.getLooper());
+        }
+
         try {
             ActivityManagerApis.registerProcessObserver(new ProcessObserver());
         } catch (Throwable tr) {
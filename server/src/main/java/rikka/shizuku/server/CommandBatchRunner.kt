@@ -0,0 +1,205 @@
+package rikka.shizuku.server
+
+import af.shizuku.common.util.CommandBatch
+import android.util.Log
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Runs the commands of one [CommandBatch] request and collects their exit codes and output, so a
+ * client doing several privileged steps in a row (`setprop` then `stop`/`start`, ...) pays for one
+ * binder call instead of one `newProcess` round trip, and three pipe threads, per command.
+ *
+ * Commands run one after another on the calling binder thread, or with
+ * [CommandBatch.FLAG_PARALLEL] on a small shared pool. stdin is closed right away. Each stream
+ * keeps at most [streamLimit] bytes, shrinking with the batch size so the whole reply fits the
+ * binder transaction buffer; anything past that is drained and dropped, and the result is marked
+ * truncated. A command still running after its timeout is destroyed. Both streams are drained off
+ * the calling thread, so something the command left running in the background can't hold the
+ * call open through its pipes: once the command exits they're cut off [STREAM_JOIN_MS] later.
+ */
+object CommandBatchRunner {
+
+    private const val TAG = "CommandBatch"
+
+    private const val PARALLELISM = 4
+    private const val DEFAULT_TIMEOUT_MS = 30_000L
+    private const val MAX_STREAM_BYTES = 64 * 1024
+    private const val REPLY_OUTPUT_BUDGET = 256 * 1024
+    private const val STREAM_JOIN_MS = 1000L
+
+    /** Decides which commands must not run at all, see [CommandBatch.STATUS_BLOCKED]. */
+    fun interface Filter {
+        fun isBlocked(argv: Array<String>): Boolean
+    }
+
+    private val workers = Executors.newFixedThreadPool(PARALLELISM) { r ->
+        Thread(r, "CommandBatchWorker").apply { isDaemon = true }
+    }
+
+    private val drains = Executors.newCachedThreadPool { r ->
+        Thread(r, "CommandBatchDrain").apply { isDaemon = true }
+    }
+
+    private val watchdog = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "CommandBatchWatchdog").apply { isDaemon = true }
+    }
+
+    /** Bytes kept per stream for a batch of [count] commands. */
+    @JvmStatic
+    fun streamLimit(count: Int): Int = minOf(MAX_STREAM_BYTES, REPLY_OUTPUT_BUDGET / (2 * maxOf(count, 1)))
+
+    /**
+     * Runs [commands] and returns one result per command, in the same order. [timeoutMs] applies
+     * to each command separately; 0 or less means [DEFAULT_TIMEOUT_MS].
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun run(
+        commands: List<Array<String>?>,
+        flags: Int,
+        timeoutMs: Long,
+        filter: Filter = Filter { false },
+    ): List<CommandBatch.Result> {
+        val timeout = if (timeoutMs > 0) timeoutMs else DEFAULT_TIMEOUT_MS
+        val limit = streamLimit(commands.size)
+        val stopOnFailure = flags and CommandBatch.FLAG_STOP_ON_FAILURE != 0
+        val failed = AtomicBoolean()
+
+        val runOne = { argv: Array<String>? ->
+            if (stopOnFailure && failed.get()) {
+                CommandBatch.Result.notRun(CommandBatch.STATUS_SKIPPED)
+            } else {
+                execute(argv, timeout, limit, filter).also { if (!it.isSuccess) failed.set(true) }
+            }
+        }
+
+        if (flags and CommandBatch.FLAG_PARALLEL == 0 || commands.size <= 1) {
+            return commands.map(runOne)
+        }
+        val futures = commands.map { argv -> workers.submit<CommandBatch.Result> { runOne(argv) } }
+        return futures.map { future ->
+            try {
+                future.get()
+            } catch (e: ExecutionException) {
+                Log.w(TAG, "Batch command failed", e.cause)
+                CommandBatch.Result.notRun(CommandBatch.STATUS_FAILED_TO_START)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                future.cancel(true)
+                CommandBatch.Result.notRun(CommandBatch.STATUS_SKIPPED)
+            }
+        }
+    }
+
+    private fun execute(argv: Array<String>?, timeoutMs: Long, limit: Int, filter: Filter): CommandBatch.Result {
+        if (argv.isNullOrEmpty()) {
+            return CommandBatch.Result.notRun(CommandBatch.STATUS_FAILED_TO_START)
+        }
+        if (filter.isBlocked(argv)) {
+            return CommandBatch.Result.notRun(CommandBatch.STATUS_BLOCKED)
+        }
+        val process = try {
+            ProcessBuilder(*argv).start()
+        } catch (e: Exception) {
+            // IOException, or a NullPointerException for a null argument
+            Log.w(TAG, "Failed to start ${argv[0]}", e)
+            return CommandBatch.Result(CommandBatch.STATUS_FAILED_TO_START, -1, false, null, e.message)
+        }
+        try {
+            process.outputStream.close()
+        } catch (ignored: IOException) {
+        }
+
+        val timedOut = AtomicBoolean()
+        val kill = watchdog.schedule({
+            Log.w(TAG, "Command timed out after ${timeoutMs}ms: ${argv[0]}")
+            timedOut.set(true)
+            process.destroy()
+        }, timeoutMs, TimeUnit.MILLISECONDS)
+        val stdout = Capture(process.inputStream, limit)
+        val stderr = Capture(process.errorStream, limit)
+        try {
+            val stdoutDrain = drains.submit { stdout.read() }
+            val stderrDrain = drains.submit { stderr.read() }
+            val exitCode = process.waitFor()
+            val joinDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STREAM_JOIN_MS)
+            stdout.join(stdoutDrain, joinDeadline)
+            stderr.join(stderrDrain, joinDeadline)
+            return CommandBatch.Result(
+                if (timedOut.get()) CommandBatch.STATUS_TIMED_OUT else CommandBatch.STATUS_OK,
+                exitCode,
+                stdout.truncated || stderr.truncated,
+                stdout.text,
+                stderr.text,
+            )
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            process.destroy()
+            stdout.close()
+            stderr.close()
+            return CommandBatch.Result.notRun(CommandBatch.STATUS_SKIPPED)
+        } finally {
+            kill.cancel(false)
+        }
+    }
+
+    /** Up to [limit] bytes of one output stream, drained on [drains]. */
+    private class Capture(private val input: InputStream, private val limit: Int) {
+        private val kept = ByteArrayOutputStream(minOf(limit, 1024))
+
+        @Volatile
+        var truncated = false
+            private set
+
+        val text: String get() = synchronized(kept) { kept.toString(Charsets.UTF_8.name()) }
+
+        fun read() {
+            val buffer = ByteArray(8192)
+            try {
+                input.use {
+                    while (true) {
+                        val n = it.read(buffer)
+                        if (n < 0) break
+                        synchronized(kept) {
+                            val room = limit - kept.size()
+                            if (n > room) truncated = true
+                            if (room > 0) kept.write(buffer, 0, minOf(n, room))
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                truncated = true
+            }
+        }
+
+        /**
+         * Waits for the drain until [deadline], a [System.nanoTime]. Something the command started
+         * in the background may still hold the stream open; then it's closed, keeping what arrived.
+         */
+        fun join(drain: Future<*>, deadline: Long) {
+            try {
+                drain.get(maxOf(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+            } catch (e: TimeoutException) {
+                truncated = true
+                close()
+            } catch (e: ExecutionException) {
+                truncated = true
+            }
+        }
+
+        fun close() {
+            try {
+                input.close()
+            } catch (ignored: IOException) {
+            }
+        }
+    }
+}
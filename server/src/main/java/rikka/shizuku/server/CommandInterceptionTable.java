@@ -0,0 +1,160 @@
+package rikka.shizuku.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, precompiled view of every Plus feature flag and setting that
+ * {@link ShizukuService#newProcess} consults, plus the set of command names its interception
+ * chain can possibly act on under those flags.
+ * <p>
+ * newProcess used to re-resolve each flag through {@code isFeatureEnabled} (up to three map
+ * lookups with "_enabled" suffix normalization) at every branch, and to {@code String.join} the
+ * argv several times per call, for every command a client spawns - including the overwhelming
+ * majority the chain never touches. A table is compiled once per flag/setting change
+ * ({@code updatePlusFeatureEnabled}/{@code setPlusSetting}) and swapped in atomically, so the
+ * per-call cost for an un-intercepted command is one basename extraction and one hash lookup.
+ */
+final class CommandInterceptionTable {
+
+    static final CommandInterceptionTable EMPTY = compile(Collections.emptyMap(), Collections.emptyMap());
+
+    final boolean suBridge;
+    final boolean shellInterceptor;
+    final boolean buildPropRedirect;
+    final boolean magiskMocking;
+    final boolean busyboxMocking;
+    final boolean iptablesMocking;
+    final boolean autoGrant;
+    final boolean overlayFsProxy;
+    final boolean fileInterceptor;
+    final boolean spoofDevice;
+    final boolean experimentalRoot;
+    final boolean kernelGhosting;
+    final boolean powerGhosting;
+    final boolean partitionGhosting;
+    final boolean fastbootdReboot;
+    final boolean flashOta;
+    final boolean storageProxy;
+
+    @Nullable final String suPath;
+    @NonNull final String customSuPath;
+    @NonNull final String spoofTarget;
+
+    // Basenames of cmd[0] (after busybox unwrapping) that at least one enabled branch of the
+    // shell_interceptor chain matches on. A superset is fine - the chain re-checks its own
+    // conditions - but a command missing from here skips the chain entirely.
+    private final Set<String> interceptedCommands;
+
+    // experimental_root's MASTER_CLEAR/wipe_data guard matches on the whole command line
+    // regardless of cmd[0], so it can't be keyed by command name.
+    private final boolean scanForDestructiveArgs;
+
+    private CommandInterceptionTable(Map<String, Boolean> features, Map<String, String> settings) {
+        suBridge = isEnabled(features, "su_bridge");
+        shellInterceptor = isEnabled(features, "shell_interceptor");
+        buildPropRedirect = isEnabled(features, "root_build_prop_redirect");
+        magiskMocking = isEnabled(features, "root_magisk_mocking");
+        busyboxMocking = isEnabled(features, "root_busybox_mocking");
+        iptablesMocking = isEnabled(features, "root_iptables_mocking");
+        autoGrant = isEnabled(features, "root_auto_grant");
+        overlayFsProxy = isEnabled(features, "overlay_fs_proxy_enabled");
+        fileInterceptor = isEnabled(features, "root_file_interceptor");
+        spoofDevice = isEnabled(features, "spoof_device");
+        experimentalRoot = isEnabled(features, "experimental_root");
+        kernelGhosting = isEnabled(features, "root_kernel_ghosting_enabled");
+        powerGhosting = isEnabled(features, "root_power_ghosting_enabled");
+        partitionGhosting = isEnabled(features, "root_partition_ghosting_enabled");
+        fastbootdReboot = isEnabled(features, "bootloader_fastbootd_reboot_enabled");
+        flashOta = isEnabled(features, "bootloader_flash_ota_enabled");
+        storageProxy = isEnabled(features, "storage_proxy");
+
+        suPath = settings.get("su_path");
+        String custom = settings.get("custom_su_path");
+        customSuPath = custom == null || custom.trim().isEmpty() ? "/system/xbin/su" : custom;
+        String target = settings.get("spoof_target");
+        spoofTarget = target == null ? "pixel_8_pro" : target;
+
+        Set<String> commands = new HashSet<>();
+        if (shellInterceptor) {
+            // "Plus Optimization" backports run for every caller once the interceptor is on.
+            add(commands, "am", "settings", "appops", "service");
+            if (storageProxy) {
+                add(commands, "ls", "rm", "mkdir", "cat", "stat");
+            }
+            if (suBridge) {
+                add(commands, "sh", "supolicy", "magiskpolicy", "id", "whoami", "setenforce", "chcon",
+                        "restorecon", "setprop", "mount", "which", "getprop");
+                if (iptablesMocking) {
+                    add(commands, "iptables", "ip6tables");
+                }
+                if (magiskMocking) {
+                    add(commands, "pm", "getenforce", "losetup", "mke2fs", "mkfs.ext4", "make_ext4fs", "chroot",
+                            "magisk", "cat", "test", "[", "stat", "ls", "resetprop");
+                }
+                if (autoGrant) {
+                    add(commands, "pm");
+                }
+                if (fileInterceptor) {
+                    add(commands, "cp", "mv", "tar");
+                }
+                if (experimentalRoot) {
+                    add(commands, "pm", "rm", "kill", "pkill", "killall", "insmod", "rmmod", "modprobe", "reboot",
+                            "dd", "update_engine_client", "svc", "ifconfig", "ip", "dumpsys", "sm", "chattr",
+                            "lsattr", "chmod", "chown", "iptables", "ip6tables", "tar", "cp", "screencap");
+                }
+            }
+        }
+        interceptedCommands = commands;
+        scanForDestructiveArgs = shellInterceptor && suBridge && experimentalRoot;
+    }
+
+    private static void add(Set<String> set, String... names) {
+        Collections.addAll(set, names);
+    }
+
+    @NonNull
+    static CommandInterceptionTable compile(@NonNull Map<String, Boolean> features, @NonNull Map<String, String> settings) {
+        return new CommandInterceptionTable(features, settings);
+    }
+
+    /**
+     * Resolves a feature flag the way the manager syncs them: the manager and the server don't
+     * always agree on whether a key carries the "_enabled" suffix, so normalize in both directions.
+     */
+    static boolean isEnabled(@NonNull Map<String, Boolean> features, @NonNull String key) {
+        Boolean value = features.get(key);
+        if (value != null) return value;
+        if (key.endsWith("_enabled")) {
+            value = features.get(key.substring(0, key.length() - "_enabled".length()));
+        } else {
+            value = features.get(key + "_enabled");
+        }
+        return value != null && value;
+    }
+
+    static String basename(@NonNull String command) {
+        int slash = command.lastIndexOf('/');
+        return slash == -1 ? command : command.substring(slash + 1);
+    }
+
+    /**
+     * @return {@code true} if the shell_interceptor chain may act on {@code cmd}; {@code false}
+     * means every branch would fall through and the command can be spawned as-is.
+     */
+    boolean intercepts(@NonNull String[] cmd) {
+        if (!shellInterceptor || cmd.length == 0 || cmd[0] == null) return false;
+        if (interceptedCommands.contains(basename(cmd[0]))) return true;
+        if (scanForDestructiveArgs) {
+            for (String arg : cmd) {
+                if (arg != null && (arg.contains("MASTER_CLEAR") || arg.contains("wipe_data"))) return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package rikka.shizuku.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The uid -> entry map {@link ShizukuConfigManager} publishes for lock-free reads: uids sorted
+ * in one array, their entries at the same positions in another. Nothing mutates either array
+ * once the index is constructed - {@link #with} and {@link #without} return changed copies - so
+ * any number of threads can read a published index while the next one is being built.
+ */
+final class ConfigIndex {
+
+    static final ConfigIndex EMPTY = new ConfigIndex(new int[0], new ShizukuConfig.PackageEntry[0]);
+
+    private final int[] uids;
+    private final ShizukuConfig.PackageEntry[] entries;
+
+    private ConfigIndex(int[] uids, ShizukuConfig.PackageEntry[] entries) {
+        this.uids = uids;
+        this.entries = entries;
+    }
+
+    /**
+     * @return an index of {@code entries}; of several entries for one uid, the last one wins.
+     */
+    @NonNull
+    static ConfigIndex of(@NonNull Collection<ShizukuConfig.PackageEntry> entries) {
+        ShizukuConfig.PackageEntry[] sorted = entries.toArray(new ShizukuConfig.PackageEntry[0]);
+        // Stable, so duplicates stay in order and the last one is kept below
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.uid, b.uid));
+        int[] uids = new int[sorted.length];
+        int size = 0;
+        for (ShizukuConfig.PackageEntry entry : sorted) {
+            if (size > 0 && uids[size - 1] == entry.uid) {
+                sorted[size - 1] = entry;
+            } else {
+                uids[size] = entry.uid;
+                sorted[size++] = entry;
+            }
+        }
+        if (size == 0) return EMPTY;
+        return new ConfigIndex(Arrays.copyOf(uids, size), Arrays.copyOf(sorted, size));
+    }
+
+    int size() {
+        return uids.length;
+    }
+
+    int uidAt(int i) {
+        return uids[i];
+    }
+
+    @NonNull
+    ShizukuConfig.PackageEntry entryAt(int i) {
+        return entries[i];
+    }
+
+    @Nullable
+    ShizukuConfig.PackageEntry get(int uid) {
+        int i = Arrays.binarySearch(uids, uid);
+        return i >= 0 ? entries[i] : null;
+    }
+
+    boolean contains(int uid) {
+        return Arrays.binarySearch(uids, uid) >= 0;
+    }
+
+    /**
+     * @return a copy with {@code entry} added, or replacing the entry of the same uid.
+     */
+    @NonNull
+    ConfigIndex with(@NonNull ShizukuConfig.PackageEntry entry) {
+        int i = Arrays.binarySearch(uids, entry.uid);
+        if (i >= 0) {
+            ShizukuConfig.PackageEntry[] nextEntries = entries.clone();
+            nextEntries[i] = entry;
+            return new ConfigIndex(uids, nextEntries);
+        }
+        int at = -(i + 1);
+        int[] nextUids = new int[uids.length + 1];
+        ShizukuConfig.PackageEntry[] nextEntries = new ShizukuConfig.PackageEntry[uids.length + 1];
+        System.arraycopy(uids, 0, nextUids, 0, at);
+        System.arraycopy(entries, 0, nextEntries, 0, at);
+        nextUids[at] = entry.uid;
+        nextEntries[at] = entry;
+        System.arraycopy(uids, at, nextUids, at + 1, uids.length - at);
+        System.arraycopy(entries, at, nextEntries, at + 1, uids.length - at);
+        return new ConfigIndex(nextUids, nextEntries);
+    }
+
+    /**
+     * @return a copy without the entry of {@code uid}, or this index if there is none.
+     */
+    @NonNull
+    ConfigIndex without(int uid) {
+        int at = Arrays.binarySearch(uids, uid);
+        if (at < 0) return this;
+        int[] nextUids = new int[uids.length - 1];
+        ShizukuConfig.PackageEntry[] nextEntries = new ShizukuConfig.PackageEntry[uids.length - 1];
+        System.arraycopy(uids, 0, nextUids, 0, at);
+        System.arraycopy(entries, 0, nextEntries, 0, at);
+        System.arraycopy(uids, at + 1, nextUids, at, uids.length - at - 1);
+        System.arraycopy(entries, at + 1, nextEntries, at, uids.length - at - 1);
+        return new ConfigIndex(nextUids, nextEntries);
+    }
+}
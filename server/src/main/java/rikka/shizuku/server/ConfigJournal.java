@@ -0,0 +1,293 @@
+package rikka.shizuku.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Binary, append-only store for the permission config.
+ * <p>
+ * The file is a header followed by length-prefixed, checksummed records, each either putting one
+ * uid's entry or removing it. A compaction rewrites the file as one put per live entry; after
+ * that, every debounced change only appends the records for the uids that actually changed,
+ * instead of re-serializing the whole config to JSON. Reads stream through a buffer and replay
+ * the records in order.
+ * <p>
+ * A record torn by a crash mid-append fails its length or checksum check; reading stops there and
+ * truncates the file back to the last complete record, so later appends aren't stranded behind it.
+ * A file that can't be read at all is moved aside instead, and the next write rewrites it whole.
+ */
+final class ConfigJournal {
+
+    private static final Logger LOGGER = new Logger("ConfigJournal");
+
+    private static final int MAGIC = 0x535A4B4A; // "SZKJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    // Far larger than any real entry; a length beyond this means the length itself is garbage.
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    // Compact once the journal holds this many records beyond two per live entry.
+    private static final int COMPACT_SLACK = 64;
+
+    private final File file;
+    private int records;
+
+    // The file on disk couldn't be read; appending to it would strand every later change too.
+    private boolean damaged;
+
+    ConfigJournal(@NonNull File file) {
+        this.file = file;
+    }
+
+    @NonNull
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Replays the journal.
+     *
+     * @return the live entries in first-written order, or {@code null} if there is no journal yet.
+     * @throws IOException if the file exists but isn't a journal this version understands. The
+     * file is then renamed to {@code <name>.corrupt}, and {@link #needsCompaction} asks for a rewrite.
+     */
+    @Nullable
+    synchronized List<ShizukuConfig.PackageEntry> read() throws IOException {
+        try {
+            return readLocked();
+        } catch (IOException e) {
+            damaged = true;
+            File aside = new File(file.getPath() + ".corrupt");
+            //noinspection ResultOfMethodCallIgnored
+            aside.delete();
+            if (!file.renameTo(aside)) {
+                LOGGER.w("can't move unreadable %s aside", file);
+            }
+            throw e;
+        }
+    }
+
+    private List<ShizukuConfig.PackageEntry> readLocked() throws IOException {
+        Map<Integer, ShizukuConfig.PackageEntry> entries = new LinkedHashMap<>();
+        long validLength;
+        int count = 0;
+        boolean torn = false;
+
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a config journal: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported config journal version " + version);
+            }
+            validLength = HEADER_SIZE;
+
+            byte[] payload = new byte[256];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    torn = true;
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                int checksum;
+                try {
+                    checksum = in.readInt();
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    torn = true;
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    torn = true;
+                    break;
+                }
+                apply(entries, new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                validLength += 8 + length;
+                count++;
+            }
+        } catch (EOFException e) {
+            throw new IOException("truncated config journal header: " + file, e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        if (torn) {
+            LOGGER.w("config journal has a torn tail after %d record(s); truncating", count);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        records = count;
+        return new ArrayList<>(entries.values());
+    }
+
+    private static void apply(Map<Integer, ShizukuConfig.PackageEntry> entries, DataInputStream record) throws IOException {
+        byte op = record.readByte();
+        int uid = record.readInt();
+        if (op == OP_REMOVE) {
+            entries.remove(uid);
+            return;
+        }
+        if (op != OP_PUT) {
+            throw new IOException("unknown config journal op " + op);
+        }
+        ShizukuConfig.PackageEntry entry = new ShizukuConfig.PackageEntry(uid, record.readInt());
+        int packages = record.readInt();
+        for (int i = 0; i < packages; i++) {
+            entry.packages.add(record.readUTF());
+        }
+        // Remove first so a re-put moves to the end, matching a compaction written right after
+        entries.remove(uid);
+        entries.put(uid, entry);
+    }
+
+    /**
+     * Rewrites the journal as exactly {@code entries}, via a temp file renamed over the old one.
+     */
+    synchronized void compact(@NonNull Collection<ShizukuConfig.PackageEntry> entries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 16 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (ShizukuConfig.PackageEntry entry : entries) {
+                writeRecord(out, encodePut(entry));
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("failed to replace " + file);
+        }
+        records = entries.size();
+        damaged = false;
+    }
+
+    /**
+     * Appends a put for each of {@code puts} and a removal for each uid in {@code removes}.
+     * The journal must already exist (see {@link #compact}).
+     */
+    synchronized void append(@NonNull Collection<ShizukuConfig.PackageEntry> puts, @NonNull int[] removes) throws IOException {
+        if (puts.isEmpty() && removes.length == 0) return;
+        if (!file.exists()) {
+            throw new FileNotFoundException(file + " (compact before appending)");
+        }
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 4 * 1024));
+            for (ShizukuConfig.PackageEntry entry : puts) {
+                writeRecord(out, encodePut(entry));
+            }
+            for (int uid : removes) {
+                writeRecord(out, encodeRemove(uid));
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        records += puts.size() + removes.length;
+    }
+
+    /**
+     * @return whether replaying has grown enough past {@code liveEntries} to be worth a rewrite,
+     * or the file couldn't be read and must be rewritten before anything is appended.
+     */
+    synchronized boolean needsCompaction(int liveEntries) {
+        return damaged || records > liveEntries * 2 + COMPACT_SLACK;
+    }
+
+    synchronized int getRecordCount() {
+        return records;
+    }
+
+    private static byte[] encodePut(ShizukuConfig.PackageEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_PUT);
+        out.writeInt(entry.uid);
+        out.writeInt(entry.flags);
+        List<String> packages = entry.packages;
+        if (packages == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(packages.size());
+            for (String packageName : packages) {
+                out.writeUTF(packageName);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeRemove(int uid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(5);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_REMOVE);
+        out.writeInt(uid);
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+}
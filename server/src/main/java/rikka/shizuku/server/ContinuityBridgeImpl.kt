@@ -2,6 +2,7 @@ package rikka.shizuku.server
 
 import android.os.Bundle
 import android.os.IBinder
+import android.os.Parcel
 import android.os.RemoteException
 import android.util.Log
 import af.shizuku.server.IContinuityBridge
@@ -122,12 +123,7 @@ class ContinuityBridgeImpl : IContinuityBridge.Stub() {
             }
 
             // Fallback: Check settings for manually configured devices
-            val process = Runtime.getRuntime().exec(
-                arrayOf("settings", "get", "global", "continuity_devices")
-            )
-            val reader = process.inputStream.bufferedReader()
-            val output = reader.readLine()
-            process.waitFor()
+            val output = ShellPool.exec("settings", "get", "global", "continuity_devices").lines.firstOrNull()
 
             if (output != null && output != "null" && output.isNotBlank()) {
                 val devices = output.split(",").filter { it.isNotBlank() }
@@ -196,4 +192,7 @@ class ContinuityBridgeImpl : IContinuityBridge.Stub() {
             null
         }
     }
+
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_CONTINUITY_BRIDGE, code) { super.onTransact(code, data, reply, flags) }
 }
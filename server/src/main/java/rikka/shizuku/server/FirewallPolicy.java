@@ -0,0 +1,352 @@
+package rikka.shizuku.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Immutable, precompiled binder firewall: what {@link ShizukuService#isBinderCallBlocked} decides
+ * for each proxied transaction while {@code binder_firewall} is on.
+ * <p>
+ * isBinderCallBlocked used to re-read {@code firewall_blocked_descriptors} and split it on every
+ * transactRemote, then compare each entry against the descriptor. Rules are now compiled once per
+ * flag/setting change into a descriptor-keyed table whose scopes map a transaction code straight
+ * to its rule through a code-indexed array, and the result is swapped in atomically; a decision is
+ * a hash lookup plus a few array reads.
+ * <p>
+ * Rules come from three places, in order: the built-in denials of the most dangerous power and
+ * activity manager calls, every descriptor in {@code firewall_blocked_descriptors}, and the
+ * {@code firewall_rules} setting. The latter holds rules separated by {@code ;} or newlines, each
+ * <pre>
+ * (allow|deny|limit:N/s|limit:N/m) (descriptor|*) [codes|*] [uid|*]
+ * </pre>
+ * where codes is a comma list of numbers and ranges ({@code 17,18,50-60}) and a uid below
+ * {@link #PER_USER_RANGE} is an app id matching that app in every user. A {@code limit} rule lets
+ * a caller through at most N times per second/minute (allowing bursts of N) and blocks the rest.
+ * <p>
+ * The rule naming the calling uid wins over one naming its app id, which wins over one for any
+ * caller; at equal uid specificity a rule for the exact descriptor wins over a {@code *} one, and
+ * for the same scope and code the later rule wins, so {@code firewall_rules} can override the
+ * built-ins. Hit counts (and rate-limit state) survive recompiles for rules whose text is unchanged.
+ */
+final class FirewallPolicy {
+
+    private static final Logger LOGGER = new Logger("FirewallPolicy");
+
+    static final FirewallPolicy EMPTY = compile(Collections.emptyMap(), Collections.emptyMap(), null);
+
+    static final int PER_USER_RANGE = 100000;
+
+    // Explicit codes above this are rejected; real interfaces stay in the low hundreds.
+    private static final int MAX_CODE = 0xffff;
+
+    private static final String ANY = "*";
+
+    private static final String[] BUILT_IN_RULES = {
+            // 17 = reboot, 18 = shutdown
+            "deny android.os.IPowerManager 17,18",
+            // Common heuristic for dangerous power/app actions
+            "deny android.app.IActivityManager 50,61,78,103",
+    };
+
+    static final int ACTION_ALLOW = 0;
+    static final int ACTION_DENY = 1;
+    static final int ACTION_LIMIT = 2;
+
+    static final class Rule {
+
+        @NonNull
+        final String spec;
+        final int action;
+
+        // ACTION_LIMIT: the spacing between calls at the sustained rate, and how far ahead of it
+        // a caller may get (the burst).
+        private final long intervalNanos;
+        private final long toleranceNanos;
+
+        private final AtomicLong hits = new AtomicLong();
+
+        // ACTION_LIMIT: per calling uid, the theoretical arrival time of its next call (GCRA)
+        private final ConcurrentHashMap<Integer, AtomicLong> arrivals = new ConcurrentHashMap<>();
+
+        Rule(@NonNull String spec, int action, long intervalNanos, long toleranceNanos) {
+            this.spec = spec;
+            this.action = action;
+            this.intervalNanos = intervalNanos;
+            this.toleranceNanos = toleranceNanos;
+        }
+
+        long getHits() {
+            return hits.get();
+        }
+
+        boolean blocks(int uid, long nowNanos) {
+            hits.incrementAndGet();
+            if (action != ACTION_LIMIT) return action == ACTION_DENY;
+
+            AtomicLong arrival = arrivals.get(uid);
+            if (arrival == null) {
+                AtomicLong created = new AtomicLong(nowNanos);
+                arrival = arrivals.putIfAbsent(uid, created);
+                if (arrival == null) arrival = created;
+            }
+            while (true) {
+                long tat = arrival.get();
+                long base = Math.max(tat, nowNanos);
+                if (base - nowNanos > toleranceNanos) return true;
+                if (arrival.compareAndSet(tat, base + intervalNanos)) return false;
+            }
+        }
+    }
+
+    /**
+     * The rules for one (descriptor, caller) scope: per explicit code, else for every code.
+     */
+    private static final class Scope {
+
+        @Nullable
+        Rule any;
+        @NonNull
+        Rule[] byCode = new Rule[0];
+
+        @Nullable
+        Rule get(int code) {
+            if (code >= 0 && code < byCode.length) {
+                Rule rule = byCode[code];
+                if (rule != null) return rule;
+            }
+            return any;
+        }
+
+        void put(int code, Rule rule) {
+            if (code >= byCode.length) {
+                byCode = Arrays.copyOf(byCode, Math.max(code + 1, byCode.length * 2));
+            }
+            byCode[code] = rule;
+        }
+
+        void putAll(Rule rule) {
+            // A later "every code" rule overrides the earlier per-code ones of this scope
+            any = rule;
+            Arrays.fill(byCode, null);
+        }
+    }
+
+    private static final class Target {
+
+        final Scope anyCaller = new Scope();
+        final Map<Integer, Scope> byUid = new HashMap<>();
+        final Map<Integer, Scope> byAppId = new HashMap<>();
+
+        @Nullable
+        Scope uidScope(int uid) {
+            return byUid.isEmpty() ? null : byUid.get(uid);
+        }
+
+        @Nullable
+        Scope appIdScope(int appId) {
+            return byAppId.isEmpty() ? null : byAppId.get(appId);
+        }
+    }
+
+    final boolean enabled;
+
+    private final Map<String, Target> byDescriptor = new HashMap<>();
+    @Nullable
+    private Target anyDescriptor;
+    private final List<Rule> rules = new ArrayList<>();
+
+    private FirewallPolicy(@NonNull Map<String, Boolean> features, @NonNull Map<String, String> settings,
+                           @Nullable FirewallPolicy previous) {
+        enabled = CommandInterceptionTable.isEnabled(features, "binder_firewall");
+
+        Map<String, Rule> reusable = new HashMap<>();
+        if (previous != null) {
+            for (Rule rule : previous.rules) {
+                reusable.put(rule.spec, rule);
+            }
+        }
+
+        for (String spec : BUILT_IN_RULES) {
+            add(spec, reusable);
+        }
+        String blockedDescriptors = settings.get("firewall_blocked_descriptors");
+        if (blockedDescriptors != null) {
+            for (String descriptor : blockedDescriptors.split(",")) {
+                descriptor = descriptor.trim();
+                if (!descriptor.isEmpty()) {
+                    add("deny " + descriptor, reusable);
+                }
+            }
+        }
+        String userRules = settings.get("firewall_rules");
+        if (userRules != null) {
+            for (String spec : userRules.split("[;\n]")) {
+                if (!spec.trim().isEmpty()) {
+                    add(spec, reusable);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    static FirewallPolicy compile(@NonNull Map<String, Boolean> features, @NonNull Map<String, String> settings,
+                                  @Nullable FirewallPolicy previous) {
+        return new FirewallPolicy(features, settings, previous);
+    }
+
+    private void add(String text, Map<String, Rule> reusable) {
+        String[] tokens = text.trim().split("\\s+");
+        if (tokens.length < 2 || tokens.length > 4) {
+            LOGGER.w("ignoring firewall rule \"%s\": expected action, descriptor, [codes], [uid]", text);
+            return;
+        }
+        String codes = tokens.length > 2 ? tokens[2] : ANY;
+        String uid = tokens.length > 3 ? tokens[3] : ANY;
+        String spec = tokens[0] + " " + tokens[1] + " " + codes + " " + uid;
+
+        Rule rule;
+        Scope scope;
+        int[] ranges = null;
+        try {
+            if (!codes.equals(ANY)) {
+                String[] parts = codes.split(",");
+                ranges = new int[parts.length * 2];
+                for (int i = 0; i < parts.length; i++) {
+                    String part = parts[i];
+                    int dash = part.indexOf('-');
+                    int first = Integer.parseInt(dash == -1 ? part : part.substring(0, dash));
+                    int last = dash == -1 ? first : Integer.parseInt(part.substring(dash + 1));
+                    if (first < 0 || last > MAX_CODE || first > last) {
+                        throw new IllegalArgumentException("bad code range " + part);
+                    }
+                    ranges[i * 2] = first;
+                    ranges[i * 2 + 1] = last;
+                }
+            }
+            rule = reusable.remove(spec);
+            if (rule == null) {
+                rule = parseAction(spec, tokens[0]);
+            }
+            scope = scopeFor(tokens[1], uid);
+        } catch (IllegalArgumentException e) {
+            LOGGER.w("ignoring firewall rule \"%s\": %s", text, e.getMessage());
+            return;
+        }
+
+        if (ranges == null) {
+            scope.putAll(rule);
+        } else {
+            for (int i = 0; i < ranges.length; i += 2) {
+                for (int code = ranges[i]; code <= ranges[i + 1]; code++) {
+                    scope.put(code, rule);
+                }
+            }
+        }
+        rules.add(rule);
+    }
+
+    private static Rule parseAction(String spec, String action) {
+        switch (action.toLowerCase(Locale.ROOT)) {
+            case "allow":
+                return new Rule(spec, ACTION_ALLOW, 0, 0);
+            case "deny":
+                return new Rule(spec, ACTION_DENY, 0, 0);
+        }
+        if (action.startsWith("limit:")) {
+            int slash = action.indexOf('/');
+            if (slash != -1) {
+                long count = Long.parseLong(action.substring("limit:".length(), slash));
+                String unit = action.substring(slash + 1);
+                long period = unit.equals("s") ? TimeUnit.SECONDS.toNanos(1)
+                        : unit.equals("m") ? TimeUnit.MINUTES.toNanos(1) : -1;
+                if (count > 0 && period > 0) {
+                    long interval = period / count;
+                    return new Rule(spec, ACTION_LIMIT, interval, interval * (count - 1));
+                }
+            }
+        }
+        throw new IllegalArgumentException("unknown action " + action);
+    }
+
+    private Scope scopeFor(String descriptor, String uid) {
+        Target target;
+        if (descriptor.equals(ANY)) {
+            if (anyDescriptor == null) anyDescriptor = new Target();
+            target = anyDescriptor;
+        } else {
+            target = byDescriptor.get(descriptor);
+            if (target == null) {
+                target = new Target();
+                byDescriptor.put(descriptor, target);
+            }
+        }
+        if (uid.equals(ANY)) return target.anyCaller;
+
+        int value = Integer.parseInt(uid);
+        Map<Integer, Scope> scopes = value < PER_USER_RANGE ? target.byAppId : target.byUid;
+        Scope scope = scopes.get(value);
+        if (scope == null) {
+            scope = new Scope();
+            scopes.put(value, scope);
+        }
+        return scope;
+    }
+
+    /**
+     * @return the rule deciding ({@code uid}, {@code descriptor}, {@code code}), or {@code null}
+     * if none applies and the call goes through.
+     */
+    @Nullable
+    Rule match(int uid, @NonNull String descriptor, int code) {
+        Target exact = byDescriptor.get(descriptor);
+        Target any = anyDescriptor;
+        if (exact == null && any == null) return null;
+
+        int appId = uid % PER_USER_RANGE;
+        Rule rule;
+        if ((rule = get(exact == null ? null : exact.uidScope(uid), code)) != null) return rule;
+        if ((rule = get(any == null ? null : any.uidScope(uid), code)) != null) return rule;
+        if ((rule = get(exact == null ? null : exact.appIdScope(appId), code)) != null) return rule;
+        if ((rule = get(any == null ? null : any.appIdScope(appId), code)) != null) return rule;
+        if ((rule = get(exact == null ? null : exact.anyCaller, code)) != null) return rule;
+        return get(any == null ? null : any.anyCaller, code);
+    }
+
+    @Nullable
+    private static Rule get(@Nullable Scope scope, int code) {
+        return scope != null ? scope.get(code) : null;
+    }
+
+    /**
+     * Matches the call, counts a hit on the deciding rule and applies it.
+     */
+    boolean isBlocked(int uid, @NonNull String descriptor, int code) {
+        Rule rule = match(uid, descriptor, code);
+        return rule != null && rule.blocks(uid, System.nanoTime());
+    }
+
+    /**
+     * @return one line per rule, in evaluation order, with its hit count.
+     */
+    @NonNull
+    List<String> describe() {
+        List<String> lines = new ArrayList<>(rules.size());
+        for (Rule rule : rules) {
+            lines.add(String.format(Locale.ROOT, "%10d  %s", rule.getHits(), rule.spec));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,138 @@
+package rikka.shizuku.server;
+
+/**
+ * Open-addressed set of primitive ints, for pid/uid bookkeeping on observer callbacks without
+ * boxing each id or scanning a list. Not thread-safe.
+ */
+final class IntHashSet {
+
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] table;
+    private int mask;
+    private int size;
+    // FREE itself can't be stored in the table
+    private boolean containsFree;
+
+    IntHashSet() {
+        this(16);
+    }
+
+    IntHashSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected * 2, 4) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        table = new int[capacity];
+        java.util.Arrays.fill(table, FREE);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int value) {
+        if (value == FREE) return containsFree;
+        for (int i = hash(value) & mask; ; i = (i + 1) & mask) {
+            int current = table[i];
+            if (current == value) return true;
+            if (current == FREE) return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code value} wasn't in the set yet.
+     */
+    boolean add(int value) {
+        if (value == FREE) {
+            if (containsFree) return false;
+            containsFree = true;
+            size++;
+            return true;
+        }
+        if ((size + 1) * 2 > table.length) {
+            grow();
+        }
+        for (int i = hash(value) & mask; ; i = (i + 1) & mask) {
+            int current = table[i];
+            if (current == value) return false;
+            if (current == FREE) {
+                table[i] = value;
+                size++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code value} was in the set.
+     */
+    boolean remove(int value) {
+        if (value == FREE) {
+            if (!containsFree) return false;
+            containsFree = false;
+            size--;
+            return true;
+        }
+        int hole = hash(value) & mask;
+        while (table[hole] != value) {
+            if (table[hole] == FREE) return false;
+            hole = (hole + 1) & mask;
+        }
+        table[hole] = FREE;
+        size--;
+
+        // Shift later members of the probe run back, so lookups never stop short at the hole
+        for (int i = (hole + 1) & mask; table[i] != FREE; i = (i + 1) & mask) {
+            int home = hash(table[i]) & mask;
+            boolean reachable = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+            if (!reachable) {
+                table[hole] = table[i];
+                table[i] = FREE;
+                hole = i;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        java.util.Arrays.fill(table, FREE);
+        size = 0;
+        containsFree = false;
+    }
+
+    /**
+     * @return the members, in no particular order.
+     */
+    int[] toArray() {
+        int[] result = new int[size];
+        int n = 0;
+        if (containsFree) result[n++] = FREE;
+        for (int value : table) {
+            if (value != FREE) result[n++] = value;
+        }
+        return result;
+    }
+
+    private void grow() {
+        int[] old = table;
+        allocate(old.length * 2);
+        size = containsFree ? 1 : 0;
+        for (int value : old) {
+            if (value != FREE) {
+                add(value);
+            }
+        }
+    }
+}
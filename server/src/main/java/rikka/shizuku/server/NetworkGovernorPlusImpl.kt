@@ -2,6 +2,7 @@ package rikka.shizuku.server
 
 import android.os.Bundle
 import android.os.IBinder
+import android.os.Parcel
 import android.os.Process
 import android.os.ServiceManager
 import android.util.Log
@@ -106,4 +107,7 @@ class NetworkGovernorPlusImpl : INetworkGovernorPlus.Stub() {
             false
         }
     }
+
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_NETWORK_GOVERNOR, code) { super.onTransact(code, data, reply, flags) }
 }
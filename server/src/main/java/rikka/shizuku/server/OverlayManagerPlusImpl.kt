@@ -1,6 +1,7 @@
 package rikka.shizuku.server
 
 import android.os.IBinder
+import android.os.Parcel
 import android.os.Process
 import android.os.ServiceManager
 import android.util.Log
@@ -124,4 +125,7 @@ class OverlayManagerPlusImpl : IOverlayManagerPlus.Stub() {
         // Mock success for Ghost Bridge emulation. Actual overlay logic requires root/magisk module to mount OverlayFS
         return true
     }
+
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_OVERLAY_MANAGER, code) { super.onTransact(code, data, reply, flags) }
 }
@@ -0,0 +1,214 @@
+package rikka.shizuku.server;
+
+import android.content.pm.ChangedPackages;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.ServiceManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Where the permission config was last fully reconciled against PackageManager: the boot it
+ * happened in and, per user, PackageManager's package-change sequence number at that point.
+ * <p>
+ * PackageManager keeps those sequence numbers in memory only, so they're comparable only within
+ * the same run of system_server: not across a reboot (hence the boot id), and not across a soft
+ * restart of system_server either, which keeps the boot id but starts the numbers again from 0
+ * (hence system_server's start time, and the check that no number went backwards). While they
+ * are, {@link #getChangedPackages} lists just the packages installed, updated or removed since,
+ * and a restarted server can reconcile those alone instead of re-reading every package of every
+ * user.
+ */
+final class PackageChangeCursor {
+
+    private static final String KEY_BOOT_ID = "boot_id";
+    private static final String KEY_SYSTEM_SERVER = "system_server";
+    private static final String KEY_SEQUENCE_PREFIX = "seq.";
+
+    private static Method getChangedPackagesMethod;
+    private static Object packageManager;
+
+    @NonNull
+    final String bootId;
+
+    // See currentSystemServer(); null if it couldn't be told
+    @Nullable
+    final String systemServer;
+
+    // userId -> sequence number
+    @NonNull
+    final Map<Integer, Integer> sequences;
+
+    PackageChangeCursor(@NonNull String bootId, @Nullable String systemServer, @NonNull Map<Integer, Integer> sequences) {
+        this.bootId = bootId;
+        this.systemServer = systemServer;
+        this.sequences = Collections.unmodifiableMap(new HashMap<>(sequences));
+    }
+
+    /**
+     * @return whether this cursor's sequence numbers can be compared with {@code sequences}, taken
+     * now in the boot {@code bootId} from the system_server {@code systemServer}: same boot, same
+     * system_server, same users, and no number lower than the stored one.
+     */
+    boolean isValidFor(@NonNull String bootId, @Nullable String systemServer, @NonNull Map<Integer, Integer> sequences) {
+        if (!this.bootId.equals(bootId) || !Objects.equals(this.systemServer, systemServer)) return false;
+        if (!this.sequences.keySet().equals(sequences.keySet())) return false;
+        for (Map.Entry<Integer, Integer> entry : this.sequences.entrySet()) {
+            //noinspection ConstantConditions
+            if (sequences.get(entry.getKey()) < entry.getValue()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the cursor stored in {@code file}, or {@code null} if there is none or it can't be read.
+     */
+    @Nullable
+    static PackageChangeCursor read(@NonNull File file) {
+        String bootId = null;
+        String systemServer = null;
+        Map<Integer, Integer> sequences = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int eq = line.indexOf('=');
+                if (eq <= 0) continue;
+                String key = line.substring(0, eq);
+                String value = line.substring(eq + 1);
+                if (key.equals(KEY_BOOT_ID)) {
+                    bootId = value;
+                } else if (key.equals(KEY_SYSTEM_SERVER)) {
+                    systemServer = value;
+                } else if (key.startsWith(KEY_SEQUENCE_PREFIX)) {
+                    sequences.put(Integer.parseInt(key.substring(KEY_SEQUENCE_PREFIX.length())), Integer.parseInt(value));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+        return bootId != null ? new PackageChangeCursor(bootId, systemServer, sequences) : null;
+    }
+
+    void write(@NonNull File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try (Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+            writer.write(KEY_BOOT_ID + "=" + bootId + "\n");
+            if (systemServer != null) {
+                writer.write(KEY_SYSTEM_SERVER + "=" + systemServer + "\n");
+            }
+            for (Map.Entry<Integer, Integer> entry : sequences.entrySet()) {
+                writer.write(KEY_SEQUENCE_PREFIX + entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+            writer.flush();
+            fos.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("failed to replace " + file);
+        }
+    }
+
+    /**
+     * @return the kernel's id for the current boot, or {@code null} if it can't be read.
+     */
+    @Nullable
+    static String currentBootId() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream("/proc/sys/kernel/random/boot_id"), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            return line != null ? line.trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the pid and start time (in clock ticks since boot) of the running system_server, as
+     * {@code "<pid>:<start>"}, or {@code null} if it can't be found. Unique within a boot, so it
+     * changes when system_server soft-restarts.
+     */
+    @Nullable
+    static String currentSystemServer() {
+        File[] processes = new File("/proc").listFiles();
+        if (processes == null) return null;
+        for (File process : processes) {
+            String name = process.getName();
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0))) continue;
+            try {
+                String cmdline = readFirstLine(new File(process, "cmdline"));
+                if (cmdline == null || !cmdline.startsWith("system_server")) continue;
+                String stat = readFirstLine(new File(process, "stat"));
+                if (stat == null) return null;
+                // Fields after the parenthesized command name, which may itself contain spaces:
+                // state is field 3, starttime field 22
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return fields.length > 19 ? name + ":" + fields[19] : null;
+            } catch (IOException e) {
+                // Gone meanwhile, or not ours to read
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static String readFirstLine(@NonNull File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return reader.readLine();
+        }
+    }
+
+    /**
+     * IPackageManager#getChangedPackages, which PackageManager#getChangedPackages only offers for
+     * the calling user.
+     *
+     * @return the packages changed in {@code userId} since {@code sequenceNumber}, or {@code null}
+     * if none have.
+     * @throws Exception if the call isn't available (before O) or fails.
+     */
+    @Nullable
+    static ChangedPackages getChangedPackages(int sequenceNumber, int userId) throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            throw new UnsupportedOperationException("getChangedPackages requires API 26");
+        }
+        Method method;
+        Object service;
+        synchronized (PackageChangeCursor.class) {
+            if (getChangedPackagesMethod == null) {
+                IBinder binder = ServiceManager.getService("package");
+                packageManager = Class.forName("android.content.pm.IPackageManager$Stub")
+                        .getMethod("asInterface", IBinder.class)
+                        .invoke(null, binder);
+                getChangedPackagesMethod = packageManager.getClass().getMethod("getChangedPackages", int.class, int.class);
+            }
+            method = getChangedPackagesMethod;
+            service = packageManager;
+        }
+        return (ChangedPackages) method.invoke(service, sequenceNumber, userId);
+    }
+
+    /**
+     * @return PackageManager's current change sequence number for {@code userId}.
+     */
+    static int currentSequenceNumber(int userId) throws Exception {
+        ChangedPackages changed = getChangedPackages(0, userId);
+        return changed != null ? changed.getSequenceNumber() : 0;
+    }
+}
@@ -0,0 +1,209 @@
+package rikka.shizuku.server
+
+import android.os.ParcelFileDescriptor
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
+import android.util.Log
+import java.io.FileDescriptor
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Writes precomputed buffers into pipes and closes them, without ever blocking on a reader.
+ *
+ * Whatever fits in the pipe is written right away on the calling thread, which covers the usual
+ * one-line answer. The rest is handed to a single feeder thread that waits for the pipes to drain
+ * with `poll(2)`. A reader that never reads, or never closes its end, costs a queued buffer until
+ * [deadlineMs] passes and its pipe is closed - never a thread.
+ */
+internal class PipeFeeder(private val io: Io, private val deadlineMs: Long) {
+
+    /** The write end of one pipe. */
+    interface Sink {
+
+        /**
+         * Writes what fits without blocking.
+         *
+         * @return the number of bytes written, 0 if the pipe is full.
+         * @throws IOException if the reader has gone away.
+         */
+        @Throws(IOException::class)
+        fun write(data: ByteArray, offset: Int, length: Int): Int
+
+        fun close()
+    }
+
+    /** How the feeder thread waits for pipes to drain. */
+    interface Io {
+
+        /** Blocks until one of [sinks] may take data, [wake] is called, or [timeoutMs] passes (-1: no limit). */
+        @Throws(IOException::class)
+        fun await(sinks: List<Sink>, timeoutMs: Long)
+
+        fun wake()
+    }
+
+    private class Feed(val sink: Sink, val data: ByteArray, val deadline: Long) {
+        var offset = 0
+    }
+
+    private val pending = ConcurrentLinkedQueue<Feed>()
+    private val started = AtomicBoolean()
+
+    // Feeder thread only
+    private val feeds = ArrayList<Feed>()
+
+    /** Writes [data] to [sink], then closes it. */
+    fun feed(sink: Sink, data: ByteArray) {
+        val feed = Feed(sink, data, now() + deadlineMs)
+        if (advance(feed)) return
+        pending.add(feed)
+        if (started.compareAndSet(false, true)) {
+            Thread(::loop, "SyntheticProcessWriter").apply {
+                isDaemon = true
+                start()
+            }
+        }
+        io.wake()
+    }
+
+    /**
+     * Writes as much of [feed] as the pipe takes.
+     *
+     * @return true once the feed is finished with, delivered or not, and its sink closed.
+     */
+    private fun advance(feed: Feed): Boolean {
+        try {
+            while (feed.offset < feed.data.size) {
+                val n = feed.sink.write(feed.data, feed.offset, feed.data.size - feed.offset)
+                if (n <= 0) return false
+                feed.offset += n
+            }
+        } catch (e: IOException) {
+            // Reader went away (destroy() or client death) before draining - nothing to deliver to.
+            Log.d(TAG, "Synthetic output not fully delivered: " + e.message)
+        }
+        feed.sink.close()
+        return true
+    }
+
+    private fun loop() {
+        while (true) {
+            while (true) {
+                feeds.add(pending.poll() ?: break)
+            }
+            val now = now()
+            feeds.removeAll { feed ->
+                when {
+                    advance(feed) -> true
+                    now >= feed.deadline -> {
+                        Log.w(TAG, "Reader hasn't drained synthetic output in ${deadlineMs}ms, closing the pipe")
+                        feed.sink.close()
+                        true
+                    }
+                    else -> false
+                }
+            }
+            val timeout = feeds.minOfOrNull { it.deadline - now } ?: -1L
+            try {
+                io.await(feeds.map { it.sink }, timeout)
+            } catch (e: IOException) {
+                // Shouldn't happen; don't leave readers waiting on pipes we can no longer watch
+                Log.e(TAG, "poll failed, closing ${feeds.size} pipes", e)
+                feeds.forEach { it.sink.close() }
+                feeds.clear()
+            }
+        }
+    }
+
+    /** A pipe write end switched to non-blocking mode. */
+    class PipeSink @Throws(IOException::class) constructor(private val pfd: ParcelFileDescriptor) : Sink {
+
+        val fd: FileDescriptor = pfd.fileDescriptor
+
+        init {
+            try {
+                Os.fcntlInt(fd, OsConstants.F_SETFL, Os.fcntlVoid(fd, OsConstants.F_GETFL) or OsConstants.O_NONBLOCK)
+            } catch (e: ErrnoException) {
+                throw IOException(e)
+            }
+        }
+
+        override fun write(data: ByteArray, offset: Int, length: Int): Int {
+            return try {
+                Os.write(fd, data, offset, length)
+            } catch (e: ErrnoException) {
+                if (e.errno == OsConstants.EAGAIN) return 0
+                throw IOException(e)
+            }
+        }
+
+        override fun close() {
+            try {
+                pfd.close()
+            } catch (ignored: IOException) {
+            }
+        }
+    }
+
+    private class PollIo : Io {
+
+        private val wakeRead: FileDescriptor
+        private val wakeWrite: FileDescriptor
+        private val wakeScheduled = AtomicBoolean()
+        private val wakeBuffer = ByteArray(64)
+
+        init {
+            val pipe = Os.pipe()
+            wakeRead = pipe[0]
+            wakeWrite = pipe[1]
+        }
+
+        override fun await(sinks: List<Sink>, timeoutMs: Long) {
+            val fds = Array(sinks.size + 1) { StructPollfd() }
+            fds[0].fd = wakeRead
+            fds[0].events = OsConstants.POLLIN.toShort()
+            for (i in sinks.indices) {
+                fds[i + 1].fd = (sinks[i] as PipeSink).fd
+                fds[i + 1].events = OsConstants.POLLOUT.toShort()
+            }
+            try {
+                Os.poll(fds, timeoutMs.coerceAtMost(Int.MAX_VALUE.toLong()).toInt())
+                if (fds[0].revents.toInt() != 0) {
+                    wakeScheduled.set(false)
+                    Os.read(wakeRead, wakeBuffer, 0, wakeBuffer.size)
+                }
+            } catch (e: ErrnoException) {
+                if (e.errno != OsConstants.EINTR) throw IOException(e)
+            }
+        }
+
+        override fun wake() {
+            if (!wakeScheduled.compareAndSet(false, true)) return
+            try {
+                Os.write(wakeWrite, WAKE_BYTE, 0, 1)
+            } catch (e: ErrnoException) {
+                Log.e(TAG, "wake failed", e)
+            }
+        }
+    }
+
+    companion object {
+
+        private const val TAG = "PipeFeeder"
+
+        // Far longer than any client needs to read a few KB of fake command output
+        private const val DEFAULT_DEADLINE_MS = 30_000L
+
+        private val WAKE_BYTE = byteArrayOf(1)
+
+        private fun now() = System.nanoTime() / 1_000_000
+
+        /** The feeder every [SyntheticRemoteProcess] shares. */
+        @JvmStatic
+        val shared by lazy { PipeFeeder(PollIo(), DEFAULT_DEADLINE_MS) }
+    }
+}
@@ -1,5 +1,7 @@
 package rikka.shizuku.server;
 
+import af.shizuku.common.util.CommandBatch;
+
 public class ServerConstants {
 
     public static final int MANAGER_APP_NOT_FOUND = 50;
@@ -31,4 +33,28 @@ public class ServerConstants {
     // delivered via the oneway bindApplication callback, which the manager's own client doesn't
     // reliably receive; this lets it (and any client) read it directly, like getVersion()/getUid().
     public static final int BINDER_TRANSACTION_getServerPatchVersion = 10004;
+    // getApplications, but only what changed since a version token from a previous call. Takes
+    // (int userId, long since); replies with the new version, whether the list is complete, the
+    // added/changed packages as a ParcelableListSlice, then a count of (int userId, String
+    // packageName) pairs that are no longer reported.
+    public static final int BINDER_TRANSACTION_getApplicationsDelta = 10005;
+    // Per-code and per-uid call counts and latency percentiles from BinderMetrics. Takes an int of
+    // BinderMetrics.FLAG_* flags; see BinderMetrics.writeTo for the reply layout.
+    public static final int BINDER_TRANSACTION_getBinderMetrics = 10006;
+    // The compiled binder firewall: whether it's on, then its rules in evaluation order, one
+    // String each, prefixed with the rule's hit count.
+    public static final int BINDER_TRANSACTION_getFirewallRules = 10007;
+    // Runs several commands in one call, one after another or in parallel, and replies with each
+    // one's status, exit code and (capped) output; see CommandBatch for the layout. Defined in
+    // :common so the manager modules that can't see this class share the same code.
+    public static final int BINDER_TRANSACTION_execBatch = CommandBatch.TRANSACTION;
+
+    // Batch calls on the IActivityManagerPlus binder, handled by ActivityManagerPlusImpl.onTransact
+    // rather than the AIDL. Each takes a String list (plus a bucket int for setAppsStandbyBucket)
+    // and replies with a boolean array of per-package results in the same order.
+    public static final String ACTIVITY_MANAGER_PLUS_DESCRIPTOR = "af.shizuku.server.IActivityManagerPlus";
+    public static final int BINDER_TRANSACTION_AM_PLUS_freezeApps = 10101;
+    public static final int BINDER_TRANSACTION_AM_PLUS_unfreezeApps = 10102;
+    public static final int BINDER_TRANSACTION_AM_PLUS_areAppsFrozen = 10103;
+    public static final int BINDER_TRANSACTION_AM_PLUS_setAppsStandbyBucket = 10104;
 }
@@ -0,0 +1,125 @@
+package rikka.shizuku.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Immutable, precompiled view of what {@link ShizukuService#handleShadowBinderTransaction} may do
+ * to a proxied IPackageManager call: which packages it reports as present (spoofs) and which it
+ * hides, for the three transactions it can answer.
+ * <p>
+ * The handler runs for every proxied transaction of every interface. It only ever acts on
+ * getPackageInfo, getApplicationInfo and getPackageUid, so {@link #handlesCode} rejects
+ * everything else before the target's descriptor is looked up or the parcel is read, and the
+ * package sets are compiled once per flag/setting change instead of splitting
+ * {@code shadow_hidden_packages} per call.
+ */
+final class ShadowBinderPolicy {
+
+    private static final Logger LOGGER = new Logger("ShadowBinderPolicy");
+
+    static final String PACKAGE_MANAGER_DESCRIPTOR = "android.content.pm.IPackageManager";
+
+    static final int TRANSACTION_getPackageInfo;
+    static final int TRANSACTION_getApplicationInfo;
+    static final int TRANSACTION_getPackageUid;
+
+    static {
+        int getPackageInfo = -1;
+        int getApplicationInfo = -1;
+        int getPackageUid = -1;
+        try {
+            Class<?> stub = Class.forName("android.content.pm.IPackageManager$Stub");
+            getPackageInfo = transactionCode(stub, "TRANSACTION_getPackageInfo");
+            getApplicationInfo = transactionCode(stub, "TRANSACTION_getApplicationInfo");
+            getPackageUid = transactionCode(stub, "TRANSACTION_getPackageUid");
+        } catch (Throwable t) {
+            LOGGER.e(t, "Shadow: Failed to dynamically look up IPackageManager transaction codes");
+        }
+        TRANSACTION_getPackageInfo = getPackageInfo;
+        TRANSACTION_getApplicationInfo = getApplicationInfo;
+        TRANSACTION_getPackageUid = getPackageUid;
+    }
+
+    private static int transactionCode(Class<?> stub, String name) {
+        try {
+            java.lang.reflect.Field field = stub.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.getInt(null);
+        } catch (Exception ignore) {
+            return -1;
+        }
+    }
+
+    // Spoofed regardless of flags, so clients that hardcode the original Shizuku package find it (#248, #249)
+    static final String ORIGINAL_SHIZUKU_PACKAGE = "moe.shizuku.privileged.api";
+
+    private static final String[] ROOT_MANAGER_PACKAGES = {
+            "com.topjohnwu.magisk",
+            "org.lsposed.manager",
+            "eu.chainfire.supersu",
+    };
+
+    static final ShadowBinderPolicy EMPTY = compile(Collections.emptyMap(), Collections.emptyMap());
+
+    static final int ACTION_NONE = 0;
+    static final int ACTION_SPOOF = 1;
+    static final int ACTION_HIDE = 2;
+
+    private final Set<String> spoofedPackages;
+    private final Set<String> hiddenPackages;
+
+    private ShadowBinderPolicy(@NonNull Map<String, Boolean> features, @NonNull Map<String, String> settings) {
+        boolean magiskMocking = CommandInterceptionTable.isEnabled(features, "root_magisk_mocking");
+        boolean shadowBinder = CommandInterceptionTable.isEnabled(features, "shadow_binder");
+
+        Set<String> spoofed = new HashSet<>();
+        spoofed.add(ORIGINAL_SHIZUKU_PACKAGE);
+        if (magiskMocking) {
+            Collections.addAll(spoofed, ROOT_MANAGER_PACKAGES);
+        }
+        spoofedPackages = spoofed;
+
+        Set<String> hidden = new HashSet<>();
+        String setting = settings.get("shadow_hidden_packages");
+        if ((shadowBinder || magiskMocking) && setting != null) {
+            for (String packageName : setting.split(",")) {
+                packageName = packageName.trim();
+                if (!packageName.isEmpty()) {
+                    hidden.add(packageName);
+                }
+            }
+        }
+        hiddenPackages = hidden;
+    }
+
+    @NonNull
+    static ShadowBinderPolicy compile(@NonNull Map<String, Boolean> features, @NonNull Map<String, String> settings) {
+        return new ShadowBinderPolicy(features, settings);
+    }
+
+    /**
+     * @return whether {@code code} could be an IPackageManager call the shadow layer answers.
+     * Everything else (including every call to other interfaces sharing none of these codes)
+     * passes straight through.
+     */
+    static boolean handlesCode(int code) {
+        return code != -1 && (code == TRANSACTION_getPackageInfo
+                || code == TRANSACTION_getApplicationInfo
+                || code == TRANSACTION_getPackageUid);
+    }
+
+    int actionFor(@Nullable String packageName) {
+        if (packageName == null || packageName.isEmpty()) return ACTION_NONE;
+        if (spoofedPackages.contains(packageName)) return ACTION_SPOOF;
+        if (hiddenPackages.contains(packageName)) return ACTION_HIDE;
+        return ACTION_NONE;
+    }
+}
@@ -0,0 +1,200 @@
+package rikka.shizuku.server
+
+import android.util.Log
+import java.io.BufferedReader
+import java.io.IOException
+import java.io.InputStreamReader
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets
+import java.util.UUID
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * A small pool of long-lived `sh` processes for the server's run-and-wait shell helpers
+ * (`am set-standby-bucket`, `pm disable-user`, `settings put`, `ps -A`, ...).
+ *
+ * Every one of those used to `Runtime.exec()` a fresh process and block on `waitFor()`, so the
+ * server JVM forked once per call. Building on the persistent shell [AICorePlusImpl] already keeps
+ * for input injection, each pooled shell runs commands one at a time, delimited by a per-shell
+ * sentinel line that carries the exit code. The command itself still runs as a child of the
+ * shell, but the server no longer forks or sets up three new pipes per call.
+ *
+ * At most [POOL_SIZE] commands run concurrently; further callers wait for a free shell. A shell
+ * is recycled after [MAX_COMMANDS_PER_SHELL] commands, and discarded whenever it dies, times out
+ * or its output framing can't be parsed.
+ */
+object ShellPool {
+
+    private const val TAG = "ShellPool"
+
+    private const val POOL_SIZE = 3
+    private const val MAX_COMMANDS_PER_SHELL = 256
+    private const val DEFAULT_TIMEOUT_MS = 30_000L
+
+    class Result(@JvmField val exitCode: Int, @JvmField val lines: List<String>) {
+
+        val isSuccess: Boolean
+            get() = exitCode == 0
+
+        val output: String
+            get() = lines.joinToString("\n")
+    }
+
+    private class Shell(val process: Process) {
+
+        // Unique per shell so command output can never be mistaken for the delimiter.
+        val sentinel = "__SHIZUKU_SHELL_${UUID.randomUUID().toString().replace("-", "")}__"
+        val stdin: OutputStream = process.outputStream
+        val stdout = BufferedReader(InputStreamReader(process.inputStream, StandardCharsets.UTF_8))
+        var commands = 0
+
+        // Set once the watchdog has gone after this shell; it must not go back to the pool.
+        @Volatile
+        var killed = false
+
+        // pid of the command currently running in this shell, or 0.
+        @Volatile
+        var childPid = 0
+
+        fun isAlive(): Boolean {
+            return try {
+                process.exitValue()
+                false
+            } catch (e: IllegalThreadStateException) {
+                true
+            }
+        }
+
+        fun destroy() {
+            try {
+                stdin.close()
+            } catch (ignored: IOException) {
+            }
+            process.destroy()
+        }
+    }
+
+    private val permits = Semaphore(POOL_SIZE, true)
+    private val idle = ConcurrentLinkedDeque<Shell>()
+
+    private val watchdog = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "ShellPoolWatchdog").apply { isDaemon = true }
+    }
+
+    @JvmStatic
+    @Throws(IOException::class)
+    fun exec(vararg argv: String): Result = exec(argv, DEFAULT_TIMEOUT_MS)
+
+    /**
+     * Runs [argv] in a pooled shell and returns its exit code and stdout lines. stdin is
+     * `/dev/null` and stderr is discarded, matching how the `Runtime.exec()` call sites this
+     * replaces never fed or drained either stream.
+     *
+     * @throws IOException if waiting for a shell and running the command together take longer
+     * than [timeoutMs].
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun exec(argv: Array<out String>, timeoutMs: Long): Result {
+        require(argv.isNotEmpty()) { "empty command" }
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+        try {
+            if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw IOException("no shell available within ${timeoutMs}ms")
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw IOException("interrupted waiting for a shell", e)
+        }
+        var shell: Shell? = null
+        try {
+            val remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+            if (remainingMs <= 0) {
+                throw IOException("no time left to run ${argv[0]} within ${timeoutMs}ms")
+            }
+            shell = obtain()
+            val result = run(shell, argv, remainingMs)
+            if (!shell.killed && shell.isAlive() && ++shell.commands < MAX_COMMANDS_PER_SHELL) {
+                idle.push(shell)
+            } else {
+                shell.destroy()
+            }
+            shell = null
+            return result
+        } finally {
+            shell?.destroy()
+            permits.release()
+        }
+    }
+
+    private fun obtain(): Shell {
+        while (true) {
+            val shell = idle.poll() ?: break
+            if (shell.isAlive()) return shell
+            Log.d(TAG, "Discarding dead pooled shell")
+            shell.destroy()
+        }
+        return Shell(Runtime.getRuntime().exec(arrayOf("sh")))
+    }
+
+    private fun run(shell: Shell, argv: Array<out String>, timeoutMs: Long): Result {
+        val script = buildString {
+            // The command reports its pid before exec'ing, so a timeout can kill it directly:
+            // killing only the shell would leave the command holding our stdout pipe open until
+            // it exits. Printing it before exec also keeps it from interleaving with the output.
+            append("sh -c 'printf \"%s pid %d\\n\" \"\$0\" \$\$; exec \"\$@\"' ").append(shell.sentinel).append(' ')
+            argv.joinTo(this, " ") { quote(it) }
+            // The leading newline terminates output that lacks one, so the sentinel always
+            // starts its own line; the empty line it leaves behind is dropped below.
+            append(" </dev/null 2>/dev/null; printf '\\n%s %d\\n' ").append(shell.sentinel).append(" $?\n")
+        }
+
+        val timeout = watchdog.schedule({
+            shell.killed = true
+            Log.w(TAG, "Command timed out after ${timeoutMs}ms: ${argv[0]}")
+            val pid = shell.childPid
+            if (pid > 0) {
+                android.os.Process.killProcess(pid)
+            }
+            shell.process.destroy()
+        }, timeoutMs, TimeUnit.MILLISECONDS)
+        try {
+            shell.stdin.write(script.toByteArray(StandardCharsets.UTF_8))
+            shell.stdin.flush()
+
+            val lines = ArrayList<String>()
+            while (true) {
+                val line = shell.stdout.readLine()
+                    ?: throw IOException("shell exited while running ${argv[0]}")
+                if (line.startsWith(shell.sentinel)) {
+                    val status = line.substring(shell.sentinel.length).trim()
+                    if (status.startsWith("pid ")) {
+                        shell.childPid = status.substring(4).toIntOrNull() ?: 0
+                        continue
+                    }
+                    shell.childPid = 0
+                    val exitCode = status.toIntOrNull()
+                        ?: throw IOException("malformed sentinel from shell")
+                    if (lines.isNotEmpty() && lines[lines.size - 1].isEmpty()) {
+                        lines.removeAt(lines.size - 1)
+                    }
+                    return Result(exitCode, lines)
+                }
+                lines.add(line)
+            }
+        } finally {
+            // Too late to cancel means the watchdog is killing, or has killed, this shell even if
+            // the sentinel made it through first.
+            if (!timeout.cancel(false)) {
+                shell.killed = true
+            }
+        }
+    }
+
+    private fun quote(arg: String): String {
+        return "'" + arg.replace("'", "'\\''") + "'"
+    }
+}
@@ -2,9 +2,11 @@ package rikka.shizuku.server;
 
 import static rikka.shizuku.server.ServerConstants.PERMISSION;
 
+import android.content.pm.ChangedPackages;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.util.AtomicFile;
@@ -14,14 +16,17 @@ import androidx.annotation.Nullable;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -30,6 +35,8 @@ import java.util.Set;
 import kotlin.collections.ArraysKt;
 import af.shizuku.common.compat.Android17Compat;
 import af.shizuku.common.compat.InstalledPackagesCompat;
+import af.shizuku.common.util.UserHandleCompat;
+import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.UserManagerApis;
 import rikka.shizuku.server.ktx.HandlerKt;
 
@@ -37,15 +44,17 @@ public class ShizukuConfigManager extends ConfigManager {
 
     private static final Gson GSON_IN = new GsonBuilder()
             .create();
-    private static final Gson GSON_OUT = new GsonBuilder()
-            .setVersion(ShizukuConfig.LATEST_VERSION)
-            .create();
 
     private static final long WRITE_DELAY = 10 * 1000;
 
+    // The legacy JSON config. It's only read now, to import it into the journal when no journal
+    // exists yet; it's left in place afterwards but no longer written.
     private static final File FILE = getConfigFile();
     private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
 
+    private static final ConfigJournal JOURNAL = new ConfigJournal(new File(FILE.getParentFile(), "shizuku.journal"));
+    private static final File CURSOR_FILE = new File(FILE.getParentFile(), "shizuku.cursor");
+
     private static File getConfigFile() {
         File shellFile = new File("/data/user_de/0/com.android.shell/shizuku.json");
         if (shellFile.exists()) {
@@ -61,6 +70,18 @@ public class ShizukuConfigManager extends ConfigManager {
     }
 
     public static ShizukuConfig load() {
+        try {
+            List<ShizukuConfig.PackageEntry> entries = JOURNAL.read();
+            if (entries != null) {
+                return new ShizukuConfig(entries);
+            }
+        } catch (IOException e) {
+            LOGGER.e(e, "can't read %s, falling back to %s", JOURNAL.getFile(), FILE);
+        }
+        return loadJson();
+    }
+
+    private static ShizukuConfig loadJson() {
         FileInputStream stream;
         try {
             stream = ATOMIC_FILE.openRead();
@@ -71,7 +92,10 @@ public class ShizukuConfigManager extends ConfigManager {
 
         ShizukuConfig config = null;
         try {
-            config = GSON_IN.fromJson(new InputStreamReader(stream), ShizukuConfig.class);
+            config = GSON_IN.fromJson(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)), ShizukuConfig.class);
+            if (config != null) {
+                LOGGER.i("importing config from " + ATOMIC_FILE.getBaseFile());
+            }
         } catch (Throwable tr) {
             LOGGER.e(tr, "load config");
         } finally {
@@ -85,40 +109,53 @@ public class ShizukuConfigManager extends ConfigManager {
         return new ShizukuConfig();
     }
 
-    public static void write(ShizukuConfig config) {
-        synchronized (ATOMIC_FILE) {
-            FileOutputStream stream;
-            try {
-                stream = ATOMIC_FILE.startWrite();
-            } catch (IOException e) {
-                LOGGER.e("failed to write state: " + e);
-                return;
-            }
-
-            try {
-                String json = GSON_OUT.toJson(config);
-                stream.write(json.getBytes());
-
-                ATOMIC_FILE.finishWrite(stream);
+    /**
+     * Persists {@code current}: appends records for just the {@code dirty} uids, or rewrites the
+     * whole journal when asked to, when there isn't one yet, or when it has grown enough to compact.
+     *
+     * @return {@code false} if nothing could be written.
+     */
+    private static boolean persist(ConfigIndex current, int[] dirty, boolean compact) {
+        try {
+            if (compact || !JOURNAL.exists() || JOURNAL.needsCompaction(current.size())) {
+                List<ShizukuConfig.PackageEntry> entries = new ArrayList<>(current.size());
+                for (int i = 0; i < current.size(); i++) {
+                    entries.add(current.entryAt(i));
+                }
+                JOURNAL.compact(entries);
 
                 // Closing #419: the config file was previously world-readable/writable.
                 // Root bypasses DAC checks entirely, so it doesn't need explicit bits here;
                 // only shell needs explicit access, granted via group ownership. No "other"
                 // access is needed, so we restrict to owner+group read/write only.
-                File file = ATOMIC_FILE.getBaseFile();
-                if (file.exists()) {
-                    try {
-                        Os.chmod(file.getAbsolutePath(), 0660);
-                        Os.chown(file.getAbsolutePath(), -1, android.os.Process.SHELL_UID);
-                    } catch (ErrnoException e) {
-                        LOGGER.w("failed to set permissions on " + file.getAbsolutePath() + ": " + e);
+                // Appends keep the inode, so only a compaction's fresh file needs this.
+                File file = JOURNAL.getFile();
+                try {
+                    Os.chmod(file.getAbsolutePath(), 0660);
+                    Os.chown(file.getAbsolutePath(), -1, android.os.Process.SHELL_UID);
+                } catch (ErrnoException e) {
+                    LOGGER.w("failed to set permissions on " + file.getAbsolutePath() + ": " + e);
+                }
+                LOGGER.v("config compacted to %s (%d entries)", file.getAbsolutePath(), entries.size());
+            } else {
+                List<ShizukuConfig.PackageEntry> puts = new ArrayList<>(dirty.length);
+                int[] removes = new int[dirty.length];
+                int removeCount = 0;
+                for (int uid : dirty) {
+                    ShizukuConfig.PackageEntry entry = current.get(uid);
+                    if (entry != null) {
+                        puts.add(entry);
+                    } else {
+                        removes[removeCount++] = uid;
                     }
                 }
-                LOGGER.v("config saved to " + file.getAbsolutePath());
-            } catch (Throwable tr) {
-                LOGGER.e(tr, "can't save %s, restoring backup.", ATOMIC_FILE.getBaseFile());
-                ATOMIC_FILE.failWrite(stream);
+                JOURNAL.append(puts, Arrays.copyOf(removes, removeCount));
+                LOGGER.v("config journal: appended %d change(s)", dirty.length);
             }
+            return true;
+        } catch (Throwable tr) {
+            LOGGER.e(tr, "can't save config to %s", JOURNAL.getFile());
+            return false;
         }
     }
 
@@ -126,26 +163,159 @@ public class ShizukuConfigManager extends ConfigManager {
 
         @Override
         public void run() {
-            write(config);
+            ConfigIndex current;
+            int[] dirty;
+            boolean compact;
+            PackageChangeCursor cursor;
+            synchronized (ShizukuConfigManager.this) {
+                current = index;
+                dirty = new int[dirtyUids.size()];
+                int i = 0;
+                for (int uid : dirtyUids) {
+                    dirty[i++] = uid;
+                }
+                dirtyUids.clear();
+                compact = compactPending;
+                compactPending = false;
+                cursor = pendingCursor;
+                pendingCursor = null;
+            }
+            if (!persist(current, dirty, compact)) {
+                synchronized (ShizukuConfigManager.this) {
+                    // The dirty set was consumed; a full rewrite on the next write covers it.
+                    compactPending = true;
+                    if (pendingCursor == null) {
+                        pendingCursor = cursor;
+                    }
+                }
+                return;
+            }
+            if (cursor != null) {
+                try {
+                    cursor.write(CURSOR_FILE);
+                } catch (IOException e) {
+                    LOGGER.w("failed to save %s: %s", CURSOR_FILE, e);
+                }
+            }
         }
     };
 
-    private final ShizukuConfig config;
+    // Uids changed since the last write, and whether the next write must rewrite everything
+    // instead of appending. Guarded by this.
+    private final Set<Integer> dirtyUids = new HashSet<>();
+    private boolean compactPending;
 
-    public ShizukuConfigManager() {
-        this.config = load();
+    // Reconciliation state to save once the entries it produced are persisted. Guarded by this.
+    private PackageChangeCursor pendingCursor;
+
+    private volatile EntryChangedListener entryChangedListener;
 
-        boolean changed = false;
+    // uid -> entry. find() runs on every unattached binder call and once per package in
+    // getApplications(), so it reads this without taking the lock. Mutations (under the lock)
+    // publish a modified copy here; neither the index nor an entry reachable from it is
+    // modified again - updates swap in a changed copy instead.
+    private volatile ConfigIndex index = ConfigIndex.EMPTY;
+
+    public ShizukuConfigManager() {
+        long start = SystemClock.elapsedRealtime();
+        ShizukuConfig config = load();
 
         if (config.packages == null) {
             config.packages = new ArrayList<>();
-            changed = true;
         }
 
+        for (ShizukuConfig.PackageEntry entry : config.packages) {
+            if (entry.packages == null) {
+                entry.packages = new ArrayList<>();
+            }
+        }
+        ConfigIndex loaded = ConfigIndex.of(config.packages);
+        index = loaded;
+        LOGGER.i("startup: loaded %d config entries in %d ms", loaded.size(), SystemClock.elapsedRealtime() - start);
+
+        if (!JOURNAL.exists() || JOURNAL.needsCompaction(loaded.size())) {
+            // First start after upgrading, or the journal was unreadable and load() fell back to
+            // the JSON config: write out what was loaded as a fresh journal.
+            compactPending = true;
+            scheduleWriteLocked();
+        }
+
+        // Serve the persisted config right away. Checking it against PackageManager used to
+        // enumerate every package of every user, with GET_PERMISSIONS, before the server could
+        // answer anything; it now runs on the worker thread, and usually only for packages that
+        // changed since the last run.
+        HandlerKt.getWorkerHandler().post(this::reconcile);
+    }
+
+    private void reconcile() {
+        long start = SystemClock.elapsedRealtime();
+        List<Integer> userIds = new ArrayList<>();
+        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
+            userIds.add(userId);
+        }
+
+        String bootId = PackageChangeCursor.currentBootId();
+        String systemServer = PackageChangeCursor.currentSystemServer();
+        PackageChangeCursor cursor = bootId != null ? PackageChangeCursor.read(CURSOR_FILE) : null;
+
+        // Taken before looking at any package, so a change landing mid-reconcile is simply seen
+        // again next time instead of being missed.
+        Map<Integer, Integer> sequences = new HashMap<>();
+        try {
+            for (int userId : userIds) {
+                sequences.put(userId, PackageChangeCursor.currentSequenceNumber(userId));
+            }
+        } catch (Throwable tr) {
+            LOGGER.w("reconcile: package change sequence unavailable (%s)", tr.toString());
+            sequences = null;
+        }
+
+        // A soft restart of system_server keeps the boot id but restarts the sequence numbers, which
+        // would make every stored cursor report nothing changed
+        boolean incremental = sequences != null && cursor != null && cursor.isValidFor(bootId, systemServer, sequences);
+        if (incremental) {
+            try {
+                int changed = 0;
+                for (int userId : userIds) {
+                    //noinspection ConstantConditions
+                    ChangedPackages changedPackages = PackageChangeCursor.getChangedPackages(cursor.sequences.get(userId), userId);
+                    if (changedPackages == null) continue;
+                    for (String packageName : changedPackages.getPackageNames()) {
+                        reconcilePackage(packageName, userId);
+                        changed++;
+                    }
+                }
+                LOGGER.i("reconcile: incremental, %d changed package(s) in %d ms", changed, SystemClock.elapsedRealtime() - start);
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "reconcile: incremental pass failed, falling back to a full scan");
+                incremental = false;
+            }
+        }
+        if (!incremental) {
+            int scanned = reconcileAll(userIds);
+            LOGGER.i("reconcile: full scan of %d package(s) across %d user(s) in %d ms",
+                    scanned, userIds.size(), SystemClock.elapsedRealtime() - start);
+        }
+
+        if (bootId != null && sequences != null) {
+            synchronized (this) {
+                // Saved by the writer, after the changes made above are persisted
+                pendingCursor = new PackageChangeCursor(bootId, systemServer, sequences);
+                scheduleWriteLocked();
+            }
+        }
+    }
+
+    /**
+     * Reconciles every entry against the full package list of every user.
+     *
+     * @return the number of packages scanned.
+     */
+    private int reconcileAll(List<Integer> userIds) {
         Map<Integer, List<String>> packagesByUid = new HashMap<>();
         List<PackageInfo> allPackages = new ArrayList<>();
 
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
+        for (int userId : userIds) {
             for (PackageInfo pi : InstalledPackagesCompat.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
                 if (pi == null || pi.applicationInfo == null) continue;
                 allPackages.add(pi);
@@ -159,89 +329,144 @@ public class ShizukuConfigManager extends ConfigManager {
             }
         }
 
-        for (ShizukuConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
-            if (entry.packages == null) {
-                entry.packages = new ArrayList<>();
+        synchronized (this) {
+            ConfigIndex current = index;
+            for (int i = 0; i < current.size(); i++) {
+                ShizukuConfig.PackageEntry entry = current.entryAt(i);
+                reconcileEntryLocked(entry, packagesByUid.get(entry.uid));
             }
+        }
 
-            List<String> packages = packagesByUid.get(entry.uid);
-            if (packages == null || packages.isEmpty()) {
-                LOGGER.i("remove config for uid %d since it has gone", entry.uid);
-                config.packages.remove(entry);
-                changed = true;
-                continue;
-            }
+        for (PackageInfo pi : allPackages) {
+            allowIfGranted(pi);
+        }
+        return allPackages.size();
+    }
 
-            if (entry.packages.isEmpty()) {
-                // Entries created via the plain toggle path (updateFlagsForUid) used to be
-                // written with no package names at all - that's missing data, not evidence this
-                // uid's packages changed. Treating it as "changed" pruned a still-valid
-                // authorization on every server restart, and separately made getApplications()
-                // exclude the package from the authorized list on the very next refresh (its
-                // membership check on this same empty list always fails). Backfill from the
-                // live package list instead.
-                LOGGER.i("backfilling empty packages list for uid %d from current package manager state", entry.uid);
-                entry.packages.addAll(packages);
-                changed = true;
-                continue;
-            }
+    /**
+     * Reconciles whatever entries {@code packageName} in {@code userId} can affect: the entry of
+     * its current uid, and any entry that listed it under another uid before it was removed or
+     * reinstalled.
+     */
+    private void reconcilePackage(String packageName, int userId) {
+        PackageInfo pi = Android17Compat.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS, userId);
+        if (pi != null && pi.applicationInfo == null) {
+            pi = null;
+        }
 
-            boolean packagesChanged = true;
+        Set<Integer> uids = new HashSet<>();
+        if (pi != null) {
+            uids.add(pi.applicationInfo.uid);
+        }
+        ConfigIndex current = index;
+        for (int i = 0; i < current.size(); i++) {
+            ShizukuConfig.PackageEntry entry = current.entryAt(i);
+            if (UserHandleCompat.getUserId(entry.uid) == userId && entry.packages.contains(packageName)) {
+                uids.add(entry.uid);
+            }
+        }
 
-            for (String packageName : entry.packages) {
-                if (packages.contains(packageName)) {
-                    packagesChanged = false;
-                    break;
+        for (int uid : uids) {
+            if (index.get(uid) == null) continue;
+            List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
+            synchronized (this) {
+                ShizukuConfig.PackageEntry entry = index.get(uid);
+                if (entry != null) {
+                    reconcileEntryLocked(entry, packages);
                 }
             }
+        }
 
-            final int rawSize = entry.packages.size();
-            Set<String> s = new LinkedHashSet<>(entry.packages);
-            entry.packages.clear();
-            entry.packages.addAll(s);
-            final int shrunkSize = entry.packages.size();
-            if (shrunkSize < rawSize) {
-                LOGGER.w("entry.packages has duplicate! Shrunk. (%d -> %d)", rawSize, shrunkSize);
-            }
+        if (pi != null) {
+            allowIfGranted(pi);
+        }
+    }
 
-            if (packagesChanged) {
-                LOGGER.i("remove config for uid %d since the packages for it changed", entry.uid);
-                config.packages.remove(entry);
-                changed = true;
-            }
+    /**
+     * Reconciles a single package, off the calling thread, after the manager reports it was
+     * installed, updated or removed.
+     */
+    public void onPackageChanged(String packageName, int userId) {
+        HandlerKt.getWorkerHandler().post(() -> reconcilePackage(packageName, userId));
+    }
+
+    /**
+     * Drops {@code entry} if its uid has gone or now belongs to different packages, backfills a
+     * missing package list and removes duplicates.
+     *
+     * @param packages the packages PackageManager currently has for {@code entry.uid}.
+     */
+    private void reconcileEntryLocked(ShizukuConfig.PackageEntry entry, @Nullable List<String> packages) {
+        if (packages == null || packages.isEmpty()) {
+            LOGGER.i("remove config for uid %d since it has gone", entry.uid);
+            removeLocked(entry.uid);
+            return;
         }
 
-        for (PackageInfo pi : allPackages) {
-            if (pi.requestedPermissions == null) {
-                continue;
+        if (entry.packages.isEmpty()) {
+            // Entries created via the plain toggle path (updateFlagsForUid) used to be
+            // written with no package names at all - that's missing data, not evidence this
+            // uid's packages changed. Treating it as "changed" pruned a still-valid
+            // authorization on every server restart, and separately made getApplications()
+            // exclude the package from the authorized list on the very next refresh (its
+            // membership check on this same empty list always fails). Backfill from the
+            // live package list instead.
+            LOGGER.i("backfilling empty packages list for uid %d from current package manager state", entry.uid);
+            ShizukuConfig.PackageEntry backfilled = new ShizukuConfig.PackageEntry(entry.uid, entry.flags);
+            backfilled.packages.addAll(packages);
+            putLocked(backfilled);
+            return;
+        }
+
+        boolean packagesChanged = true;
+
+        for (String packageName : entry.packages) {
+            if (packages.contains(packageName)) {
+                packagesChanged = false;
+                break;
             }
+        }
+
+        if (packagesChanged) {
+            LOGGER.i("remove config for uid %d since the packages for it changed", entry.uid);
+            removeLocked(entry.uid);
+            return;
+        }
 
-                String activePerm = null;
-                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) activePerm = PERMISSION;
-                else if (ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_LEGACY)) activePerm = ServerConstants.PERMISSION_LEGACY;
-                else if (ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_ORIGINAL)) activePerm = ServerConstants.PERMISSION_ORIGINAL;
+        Set<String> s = new LinkedHashSet<>(entry.packages);
+        if (s.size() < entry.packages.size()) {
+            LOGGER.w("entry.packages has duplicate! Shrunk. (%d -> %d)", entry.packages.size(), s.size());
+            ShizukuConfig.PackageEntry deduplicated = new ShizukuConfig.PackageEntry(entry.uid, entry.flags);
+            deduplicated.packages.addAll(s);
+            putLocked(deduplicated);
+        }
+    }
 
-                if (activePerm == null) continue;
+    private void allowIfGranted(PackageInfo pi) {
+        if (pi.requestedPermissions == null) {
+            return;
+        }
 
-                int uid = pi.applicationInfo.uid;
-                boolean allowed;
-                try {
-                    allowed = Android17Compat.checkPermission(activePerm, uid) == PackageManager.PERMISSION_GRANTED;
-                } catch (Throwable e) {
-                    LOGGER.w("checkPermission");
-                    continue;
-                }
+        String activePerm = null;
+        if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) activePerm = PERMISSION;
+        else if (ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_LEGACY)) activePerm = ServerConstants.PERMISSION_LEGACY;
+        else if (ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_ORIGINAL)) activePerm = ServerConstants.PERMISSION_ORIGINAL;
 
-                if (allowed) {
-                    List<String> packages = new ArrayList<>();
-                    packages.add(pi.packageName);
-                    updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, ConfigManager.FLAG_ALLOWED);
-                    changed = true;
-                }
+        if (activePerm == null) return;
+
+        int uid = pi.applicationInfo.uid;
+        boolean allowed;
+        try {
+            allowed = Android17Compat.checkPermission(activePerm, uid) == PackageManager.PERMISSION_GRANTED;
+        } catch (Throwable e) {
+            LOGGER.w("checkPermission");
+            return;
         }
 
-        if (changed) {
-            scheduleWriteLocked();
+        if (allowed) {
+            List<String> packages = new ArrayList<>();
+            packages.add(pi.packageName);
+            update(uid, packages, ConfigManager.MASK_PERMISSION, ConfigManager.FLAG_ALLOWED);
         }
     }
 
@@ -256,45 +481,48 @@ public class ShizukuConfigManager extends ConfigManager {
         HandlerKt.getWorkerHandler().postDelayed(mWriteRunner, WRITE_DELAY);
     }
 
-    private ShizukuConfig.PackageEntry findLocked(int uid) {
-        for (ShizukuConfig.PackageEntry entry : config.packages) {
-            if (uid == entry.uid) {
-                return entry;
-            }
-        }
-        return null;
-    }
-
     @Nullable
     public ShizukuConfig.PackageEntry find(int uid) {
-        synchronized (this) {
-            return findLocked(uid);
+        return index.get(uid);
+    }
+
+    /**
+     * @return every entry, as one consistent snapshot. Lock-free, like {@link #find}.
+     */
+    public List<ShizukuConfig.PackageEntry> getEntries() {
+        ConfigIndex current = index;
+        List<ShizukuConfig.PackageEntry> result = new ArrayList<>(current.size());
+        for (int i = 0; i < current.size(); i++) {
+            result.add(current.entryAt(i));
         }
+        return result;
     }
 
     public List<Integer> getAllowedUids() {
-        synchronized (this) {
-            List<Integer> result = new ArrayList<>();
-            for (ShizukuConfig.PackageEntry entry : config.packages) {
-                if ((entry.flags & ConfigManager.FLAG_ALLOWED) != 0) {
-                    result.add(entry.uid);
-                }
+        ConfigIndex current = index;
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < current.size(); i++) {
+            if ((current.entryAt(i).flags & ConfigManager.FLAG_ALLOWED) != 0) {
+                result.add(current.uidAt(i));
             }
-            return result;
         }
+        return result;
     }
 
     private void updateLocked(int uid, List<String> packages, int mask, int values) {
-        ShizukuConfig.PackageEntry entry = findLocked(uid);
-        if (entry == null) {
+        ShizukuConfig.PackageEntry old = index.get(uid);
+        ShizukuConfig.PackageEntry entry;
+        if (old == null) {
             entry = new ShizukuConfig.PackageEntry(uid, mask & values);
-            config.packages.add(entry);
         } else {
-            int newValue = (entry.flags & ~mask) | (mask & values);
-            if (newValue == entry.flags) {
+            int newValue = (old.flags & ~mask) | (mask & values);
+            if (newValue == old.flags) {
                 return;
             }
-            entry.flags = newValue;
+            entry = new ShizukuConfig.PackageEntry(uid, newValue);
+            if (old.packages != null) {
+                entry.packages.addAll(old.packages);
+            }
         }
         if (packages != null) {
             for (String packageName : packages) {
@@ -304,7 +532,33 @@ public class ShizukuConfigManager extends ConfigManager {
                 entry.packages.add(packageName);
             }
         }
+        putLocked(entry);
+    }
+
+    private void putLocked(ShizukuConfig.PackageEntry entry) {
+        index = index.with(entry);
+        dirtyUids.add(entry.uid);
         scheduleWriteLocked();
+        notifyEntryChangedLocked(entry.uid);
+    }
+
+    private void notifyEntryChangedLocked(int uid) {
+        EntryChangedListener listener = entryChangedListener;
+        if (listener != null) {
+            listener.onEntryChanged(uid);
+        }
+    }
+
+    /**
+     * Called, under the config lock, whenever an entry is added, changed or removed. Listeners
+     * must not call back into anything that takes this lock.
+     */
+    public interface EntryChangedListener {
+        void onEntryChanged(int uid);
+    }
+
+    public void setEntryChangedListener(@Nullable EntryChangedListener listener) {
+        entryChangedListener = listener;
     }
 
     public void update(int uid, List<String> packages, int mask, int values) {
@@ -314,12 +568,14 @@ public class ShizukuConfigManager extends ConfigManager {
     }
 
     private void removeLocked(int uid) {
-        ShizukuConfig.PackageEntry entry = findLocked(uid);
-        if (entry == null) {
+        ConfigIndex next = index.without(uid);
+        if (next == index) {
             return;
         }
-        config.packages.remove(entry);
+        index = next;
+        dirtyUids.add(uid);
         scheduleWriteLocked();
+        notifyEntryChangedLocked(uid);
     }
 
     public void remove(int uid) {
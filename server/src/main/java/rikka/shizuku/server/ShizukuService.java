@@ -31,6 +31,7 @@ import android.os.Looper;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.util.Log;
 import org.json.JSONObject;
 
@@ -40,11 +41,11 @@ import androidx.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Stream;
 
 import kotlin.collections.ArraysKt;
 import af.shizuku.api.BinderContainer;
 import rikka.core.util.BuildUtils;
+import af.shizuku.common.util.CommandBatch;
 import af.shizuku.common.util.OsUtils;
 import moe.shizuku.server.IRemoteProcess;
 import moe.shizuku.server.IShizukuApplication;
@@ -115,9 +116,15 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     private final Handler mainHandler = rikka.shizuku.server.ktx.HandlerKt.getMainHandler();
     //private final Context systemContext = HiddenApiBridge.getSystemContext();
     private final ShizukuClientManager clientManager;
-    private static final List<String> serverLogs = java.util.Collections.synchronizedList(new java.util.ArrayList<>());
     private static final int MAX_SERVER_LOGS = 100;
+    private static final ActivityLogBuffer serverLogs = new ActivityLogBuffer(MAX_SERVER_LOGS);
+    // Activity is forwarded to the manager in batches at most this often, not per event.
+    private static final long LOG_DISPATCH_DELAY_MS = 250;
+    private final java.util.concurrent.atomic.AtomicBoolean logDispatchScheduled = new java.util.concurrent.atomic.AtomicBoolean();
+    // Next serverLogs sequence to forward; only touched on mainHandler.
+    private long dispatchedLogSequence;
     private final ShizukuConfigManager configManager;
+    private final ApplicationsCache applicationsCache;
     private volatile int managerAppId;
     // uid of the OTHER manager flavor (Plus vs Drop-In), if it's also installed; -1 if not. See
     // isManagerAppId() - both flavors are the same signed codebase, so trusting either is safe.
@@ -222,13 +229,13 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         try {
             if (Build.VERSION.SDK_INT >= 32) { // Android 12L+ (also affects Android 12 which is 31)
                 // Disable monitor (Android 13+)
-                Runtime.getRuntime().exec(new String[]{"sh", "-c", "settings put global settings_enable_monitor_phantom_procs false"}).waitFor();
+                ShellPool.exec("settings", "put", "global", "settings_enable_monitor_phantom_procs", "false");
                 
                 // Disable device_config sync (Android 12+)
-                Runtime.getRuntime().exec(new String[]{"sh", "-c", "/system/bin/device_config set_sync_disabled_for_tests persistent"}).waitFor();
+                ShellPool.exec("/system/bin/device_config", "set_sync_disabled_for_tests", "persistent");
                 
                 // Increase max phantom processes limit (Android 12+)
-                Runtime.getRuntime().exec(new String[]{"sh", "-c", "/system/bin/device_config put activity_manager max_phantom_processes 2147483647"}).waitFor();
+                ShellPool.exec("/system/bin/device_config", "put", "activity_manager", "max_phantom_processes", "2147483647");
                 
                 LOGGER.i("Phantom Process Killer mitigation applied");
             }
@@ -252,6 +259,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
         HandlerUtil.setMainHandler(mainHandler);
 
+        long startTime = SystemClock.elapsedRealtime();
         LOGGER.i("starting server...");
 
         // Automatically disable Phantom Process Killer on Android 12+ so the system doesn't kill Shizuku
@@ -261,6 +269,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         waitSystemService(Context.ACTIVITY_SERVICE);
         waitSystemService(Context.USER_SERVICE);
         waitSystemService(Context.APP_OPS_SERVICE);
+        LOGGER.i("startup: system services ready at +%d ms", SystemClock.elapsedRealtime() - startTime);
 
         ApplicationInfo ai = getManagerApplicationInfo();
         if (ai == null) {
@@ -281,9 +290,14 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         ApplicationInfo secondaryAi = Android17Compat.getApplicationInfo(otherApplicationId, 0, 0);
         secondaryManagerAppId = secondaryAi != null ? secondaryAi.uid : -1;
 
+        LOGGER.i("startup: manager app resolved at +%d ms", SystemClock.elapsedRealtime() - startTime);
+
         configManager = getConfigManager();
+        applicationsCache = new ApplicationsCache(configManager);
+        configManager.setEntryChangedListener(applicationsCache::onConfigChanged);
         clientManager = getClientManager();
         aiCorePlus = new AICorePlusImpl(clientManager, this);
+        LOGGER.i("startup: managers ready at +%d ms", SystemClock.elapsedRealtime() - startTime);
 
         ApkChangedObservers.start(ai.sourceDir, () -> {
             if (getManagerApplicationInfo() == null) {
@@ -318,10 +332,21 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             }
         });
 
+        LOGGER.i("startup: constructed in %d ms", SystemClock.elapsedRealtime() - startTime);
+
         mainHandler.post(() -> {
             migratePermissionGrants();
-            sendBinderToClient();
-            sendBinderToManager();
+            long queuedAt = SystemClock.elapsedRealtime() - startTime;
+            BinderDeliveryPool.Batch batch = DELIVERY.newBatch("startup", this, b ->
+                    LOGGER.i("startup: %d/%d binders delivered, first at +%d ms, all at +%d ms",
+                            b.delivered(), b.total(),
+                            b.timeToFirstMillis() < 0 ? -1 : queuedAt + b.timeToFirstMillis(),
+                            queuedAt + b.timeToAllMillis()));
+            // Manager first: it's the one the user is most likely looking at
+            sendBinderToManager(batch);
+            sendBinderToClient(batch);
+            batch.seal();
+            LOGGER.i("startup: %d binders queued at +%d ms", batch.total(), SystemClock.elapsedRealtime() - startTime);
         });
     }
 
@@ -602,18 +627,27 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     private final java.util.Map<String, Boolean> featureEnabledMap = new java.util.concurrent.ConcurrentHashMap<>();
     private final java.util.Map<String, String> plusSettingsMap = new java.util.concurrent.ConcurrentHashMap<>();
 
+    // Recompiled from the two maps above whenever the manager changes a flag or setting; read
+    // once per newProcess call instead of re-resolving each flag at every branch.
+    private volatile CommandInterceptionTable interceptionTable = CommandInterceptionTable.EMPTY;
+
+    // Likewise for the binder firewall, consulted on every transactRemote.
+    private volatile FirewallPolicy firewallPolicy = FirewallPolicy.EMPTY;
+    // ...and for the shadow layer, which sees every proxied transaction.
+    private volatile ShadowBinderPolicy shadowPolicy = ShadowBinderPolicy.EMPTY;
+    private final BinderDescriptorCache shadowDescriptors = new BinderDescriptorCache(256);
+
     private boolean isFeatureEnabled(String key) {
-        if (featureEnabledMap.containsKey(key)) return featureEnabledMap.get(key);
         // The manager and the server don't always agree on whether a feature key carries the
         // "_enabled" suffix. Normalize in BOTH directions so a caller checking "foo_enabled"
         // still resolves a value the manager synced as "foo" (and vice versa).
-        if (key.endsWith("_enabled")) {
-            String stripped = key.substring(0, key.length() - "_enabled".length());
-            if (featureEnabledMap.containsKey(stripped)) return featureEnabledMap.get(stripped);
-        } else if (featureEnabledMap.containsKey(key + "_enabled")) {
-            return featureEnabledMap.get(key + "_enabled");
-        }
-        return featureEnabledMap.getOrDefault(key, false);
+        return CommandInterceptionTable.isEnabled(featureEnabledMap, key);
+    }
+
+    private synchronized void rebuildInterceptionTable() {
+        interceptionTable = CommandInterceptionTable.compile(featureEnabledMap, plusSettingsMap);
+        firewallPolicy = FirewallPolicy.compile(featureEnabledMap, plusSettingsMap, firewallPolicy);
+        shadowPolicy = ShadowBinderPolicy.compile(featureEnabledMap, plusSettingsMap);
     }
 
     @Override
@@ -623,30 +657,13 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
     @Override
     protected boolean isBinderCallBlocked(int uid, String descriptor, int code) {
-        if (!isFeatureEnabled("binder_firewall")) return false;
+        FirewallPolicy policy = firewallPolicy;
+        if (!policy.enabled) return false;
 
         // The manager app (the owner of this service) is always allowed
         if (isManagerAppId(UserHandleCompat.getAppId(uid))) return false;
 
-        boolean isBlocked = false;
-
-        // Block sensitive system operations for all other apps if firewall is active
-        if ("android.os.IPowerManager".equals(descriptor)) {
-            // 17 = reboot, 18 = shutdown
-            if (code == 17 || code == 18) isBlocked = true;
-        } else if ("android.app.IActivityManager".equals(descriptor)) {
-            // Common heuristic for dangerous power/app actions
-            if (code == 50 || code == 61 || code == 78 || code == 103) isBlocked = true;
-        }
-
-        // Dynamic policy from settings
-        String blockedDescriptors = plusSettingsMap.get("firewall_blocked_descriptors");
-        if (blockedDescriptors != null && !blockedDescriptors.isEmpty()) {
-            for (String blocked : blockedDescriptors.split(",")) {
-                if (descriptor.equals(blocked.trim())) isBlocked = true;
-            }
-        }
-
+        boolean isBlocked = policy.isBlocked(uid, descriptor, code);
         if (isBlocked) {
             LOGGER.w("Binder call blocked: UID=%d, Descriptor=%s, Code=%d", uid, descriptor, code);
         }
@@ -654,127 +671,73 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return isBlocked;
     }
 
-    private static int TRANSACTION_getPackageInfo = -1;
-    private static int TRANSACTION_getApplicationInfo = -1;
-    private static int TRANSACTION_getPackageUid = -1;
-
-    static {
-        try {
-            Class<?> stub = Class.forName("android.content.pm.IPackageManager$Stub");
-            try {
-                java.lang.reflect.Field f1 = stub.getDeclaredField("TRANSACTION_getPackageInfo");
-                f1.setAccessible(true);
-                TRANSACTION_getPackageInfo = f1.getInt(null);
-            } catch (Exception ignore) {}
-            try {
-                java.lang.reflect.Field f2 = stub.getDeclaredField("TRANSACTION_getApplicationInfo");
-                f2.setAccessible(true);
-                TRANSACTION_getApplicationInfo = f2.getInt(null);
-            } catch (Exception ignore) {}
-            try {
-                java.lang.reflect.Field f3 = stub.getDeclaredField("TRANSACTION_getPackageUid");
-                f3.setAccessible(true);
-                TRANSACTION_getPackageUid = f3.getInt(null);
-            } catch (Exception ignore) {}
-        } catch (Throwable t) {
-            LOGGER.e(t, "Shadow: Failed to dynamically look up IPackageManager transaction codes");
-        }
-    }
-
     @Override
     protected boolean handleShadowBinderTransaction(IBinder target, int code, Parcel data, Parcel reply, int flags) {
+        // Every proxied transaction lands here; only the few IPackageManager calls below are
+        // ever answered, so reject on the code before anything costs a round trip.
+        if (!ShadowBinderPolicy.handlesCode(code)) return false;
+        ShadowBinderPolicy policy = shadowPolicy;
         try {
-            String descriptor = target.getInterfaceDescriptor();
+            String descriptor = shadowDescriptors.get(target);
             // Shadowing IPackageManager to hide specific apps or spoof Magisk presence
-            if ("android.content.pm.IPackageManager".equals(descriptor)) {
-                // Save position to restore if we don't handle it
-                int pos = data.dataPosition();
-                data.setDataPosition(0);
-                
-                String packageName = null;
-                try {
-                    data.enforceInterface(descriptor);
-                    packageName = data.readString();
-                } catch (Exception e) {
-                    // Fallback or ignore
-                }
-                
-                // Restore position immediately after reading what we need
-                data.setDataPosition(pos);
+            if (!ShadowBinderPolicy.PACKAGE_MANAGER_DESCRIPTOR.equals(descriptor)) return false;
 
-                // Spoof original Shizuku package to fix #248 and #249 (client app hardcoded checks)
-                boolean isShizukuSpoof = "moe.shizuku.privileged.api".equals(packageName);
-                
-                if (!isFeatureEnabled("shadow_binder") && !isFeatureEnabled("root_magisk_mocking") && !isShizukuSpoof) return false;
-
-                // Binder-level Magisk & Framework Spoofing
-                if ((isFeatureEnabled("root_magisk_mocking") && packageName != null && 
-                    (packageName.equals("com.topjohnwu.magisk") || 
-                     packageName.equals("org.lsposed.manager") || 
-                     packageName.equals("eu.chainfire.supersu"))) || isShizukuSpoof) {
-                     
-                    LOGGER.i("Shadow: Spoofing package presence from IPackageManager call for %s (code %d)", packageName, code);
-                    try {
-                        android.content.pm.PackageInfo info = new android.content.pm.PackageInfo();
-                        info.packageName = packageName;
-                        info.versionName = "26.4";
-                        info.versionCode = 26400;
-                        info.applicationInfo = new android.content.pm.ApplicationInfo();
-                        info.applicationInfo.packageName = packageName;
-                        info.applicationInfo.sourceDir = "/data/app/" + packageName + "-mocked/base.apk";
-                        info.applicationInfo.flags = android.content.pm.ApplicationInfo.FLAG_SYSTEM;
-
-                        if (code == TRANSACTION_getPackageInfo) {
-                            reply.writeNoException();
-                            reply.writeTypedObject(info, 1);
-                            return true;
-                        } else if (code == TRANSACTION_getApplicationInfo) {
-                            reply.writeNoException();
-                            reply.writeTypedObject(info.applicationInfo, 1);
-                            return true;
-                        } else if (code == TRANSACTION_getPackageUid) {
-                            reply.writeNoException();
-                            reply.writeInt(10000); // Mock UID
-                            return true;
-                        }
-                        // Fallback: let the system handle it or return false
-                        return false;
-                    } catch (Exception e) {
-                        LOGGER.e("Shadow: Failed to spoof package %s", packageName);
-                    }
-                }
-                String hiddenPackages = plusSettingsMap.get("shadow_hidden_packages");
-                if (hiddenPackages != null && packageName != null && !packageName.isEmpty()) {
-                    boolean shouldHide = false;
-                    for (String p : hiddenPackages.split(",")) {
-                        if (packageName.equals(p.trim())) {
-                            shouldHide = true;
-                            break;
-                        }
-                    }
+            // Save position to restore if we don't handle it
+            int pos = data.dataPosition();
+            data.setDataPosition(0);
 
-                    if (shouldHide) {
-                        // Only intercept known methods to prevent Type Confusion crashes
-                        if (code == TRANSACTION_getPackageInfo || code == TRANSACTION_getApplicationInfo || code == TRANSACTION_getPackageUid) {
-                            LOGGER.i("Shadow: Hiding package %s from IPackageManager call (code %d)", packageName, code);
-                            reply.writeNoException();
-                            
-                            if (code == TRANSACTION_getPackageInfo || code == TRANSACTION_getApplicationInfo) { 
-                                reply.writeTypedObject(null, 0); // null ApplicationInfo/PackageInfo
-                            } else {
-                                reply.writeInt(0); // 0 UID
-                            }
-                            return true;
-                        }
+            String packageName = null;
+            try {
+                data.enforceInterface(descriptor);
+                packageName = data.readString();
+            } catch (Exception e) {
+                // Fallback or ignore
+            }
+
+            // Restore position immediately after reading what we need
+            data.setDataPosition(pos);
+
+            int action = policy.actionFor(packageName);
+            if (action == ShadowBinderPolicy.ACTION_SPOOF) {
+                // Binder-level Magisk & Framework Spoofing; the original Shizuku package is
+                // spoofed to fix #248 and #249 (client app hardcoded checks)
+                LOGGER.i("Shadow: Spoofing package presence from IPackageManager call for %s (code %d)", packageName, code);
+                try {
+                    android.content.pm.PackageInfo info = new android.content.pm.PackageInfo();
+                    info.packageName = packageName;
+                    info.versionName = "26.4";
+                    info.versionCode = 26400;
+                    info.applicationInfo = new android.content.pm.ApplicationInfo();
+                    info.applicationInfo.packageName = packageName;
+                    info.applicationInfo.sourceDir = "/data/app/" + packageName + "-mocked/base.apk";
+                    info.applicationInfo.flags = android.content.pm.ApplicationInfo.FLAG_SYSTEM;
+
+                    if (code == ShadowBinderPolicy.TRANSACTION_getPackageInfo) {
+                        reply.writeNoException();
+                        reply.writeTypedObject(info, 1);
+                        return true;
+                    } else if (code == ShadowBinderPolicy.TRANSACTION_getApplicationInfo) {
+                        reply.writeNoException();
+                        reply.writeTypedObject(info.applicationInfo, 1);
+                        return true;
+                    } else {
+                        reply.writeNoException();
+                        reply.writeInt(10000); // Mock UID
+                        return true;
                     }
+                } catch (Exception e) {
+                    LOGGER.e("Shadow: Failed to spoof package %s", packageName);
                 }
+            } else if (action == ShadowBinderPolicy.ACTION_HIDE) {
+                LOGGER.i("Shadow: Hiding package %s from IPackageManager call (code %d)", packageName, code);
+                reply.writeNoException();
+                if (code == ShadowBinderPolicy.TRANSACTION_getPackageUid) {
+                    reply.writeInt(0); // 0 UID
+                } else {
+                    reply.writeTypedObject(null, 0); // null ApplicationInfo/PackageInfo
+                }
+                return true;
             }
-            
-            // Shadowing IActivityManager to mock process states
-            if ("android.app.IActivityManager".equals(descriptor)) {
-                // Future expansion: hide processes from Task Manager
-            }
-            
         } catch (Exception e) {
             LOGGER.e("Shadow Binder error", e);
         }
@@ -787,6 +750,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         enforceManagerPermission("updatePlusFeatureEnabled");
         LOGGER.i("Plus Feature Update: " + key + " -> " + enabled);
         featureEnabledMap.put(key, enabled);
+        rebuildInterceptionTable();
     }
 
     @Override
@@ -794,35 +758,56 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         enforceManagerPermission("setPlusSetting");
         LOGGER.i("Plus Setting Update: " + key + " -> " + value);
         plusSettingsMap.put(key, value);
+        rebuildInterceptionTable();
     }
 
-    private void dispatchLog(String packageName, String action) {
+    private void dispatchLog(String packageName, int action, String detail) {
         if (!isFeatureEnabled("enable_activity_log")) return;
 
-        // Store log in internal buffer for CLI access
-        String time = new java.text.SimpleDateFormat("HH:mm:ss", java.util.Locale.getDefault()).format(new java.util.Date());
-        String logEntry = String.format("[%s] %s: %s", time, packageName, action);
-        synchronized (serverLogs) {
-            if (serverLogs.size() >= MAX_SERVER_LOGS) {
-                serverLogs.remove(0);
-            }
-            serverLogs.add(logEntry);
-        }
+        // Store log in internal buffer for CLI access; formatted only when read
+        serverLogs.add(packageName, action, detail);
 
-        mainHandler.post(() -> {
+        if (logDispatchScheduled.compareAndSet(false, true)) {
+            mainHandler.postDelayed(this::flushLogsToManager, LOG_DISPATCH_DELAY_MS);
+        }
+    }
 
-            ApplicationInfo ai = getManagerApplicationInfo();
-            if (ai == null) return;
+    private void flushLogsToManager() {
+        // Cleared before reading, so anything logged from here on schedules the next batch
+        logDispatchScheduled.set(false);
+
+        // Stops short of a record still being written; its writer schedules the next batch
+        List<ActivityLogBuffer.Record> records = serverLogs.publishedSince(dispatchedLogSequence);
+        if (records.isEmpty()) return;
+        dispatchedLogSequence = records.get(records.size() - 1).sequence + 1;
+
+        List<ClientRecord> clients = clientManager.findClients(managerAppId);
+        if (clients.isEmpty()) return;
+
+        // Collapse runs of the same event (a script calling su in a loop) into one line
+        List<String> packageNames = new ArrayList<>();
+        List<String> actions = new ArrayList<>();
+        for (int i = 0; i < records.size(); ) {
+            ActivityLogBuffer.Record record = records.get(i);
+            int run = 1;
+            while (i + run < records.size() && records.get(i + run).sameEvent(record)) {
+                run++;
+            }
+            packageNames.add(record.packageName);
+            actions.add(run > 1 ? record.describeAction() + " (x" + run + ")" : record.describeAction());
+            i += run;
+        }
 
-            List<ClientRecord> records = clientManager.findClients(ai.uid);
-            for (ClientRecord record : records) {
-                try {
-                    record.client.dispatchLog("", packageName, action);
-                } catch (Throwable e) {
-                    LOGGER.w(e, "Failed to dispatch log for package %s", packageName);
+        for (ClientRecord client : clients) {
+            if (client.client == null) continue;
+            try {
+                for (int i = 0; i < actions.size(); i++) {
+                    client.client.dispatchLog("", packageNames.get(i), actions.get(i));
                 }
+            } catch (Throwable e) {
+                LOGGER.w(e, "Failed to dispatch %d log(s) to manager", actions.size());
             }
-        });
+        }
     }
 
     // Whole-partition wipe: `rm` (any flags) whose TARGET is a partition ROOT as a complete path
@@ -846,6 +831,14 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return false;
     }
 
+    // The batch transaction runs plain argv commands: the newProcess interception chain (SU bridge,
+    // mocking, redirection) doesn't apply, but the storage safety check does.
+    private boolean isBlockedInBatch(String[] cmd, int callingUid) {
+        if (!isCatastrophicCommand(cmd)) return false;
+        LOGGER.e("Catastrophic command blocked from batch execution by uid %d: %s", callingUid, String.join(" ", cmd));
+        return true;
+    }
+
     @Override
     public IRemoteProcess newProcess(String[] cmd, String[] env, String dir) {
         // Every branch below this point (SU-bridge mocking, build.prop redirection, iptables/pm
@@ -860,6 +853,8 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         int callingPid = Binder.getCallingPid();
         ClientRecord caller = clientManager.findClient(callingUid, callingPid);
         String callingPkg = (caller != null) ? caller.packageName : "unknown";
+        // One snapshot for the whole call, so a concurrent flag change can't flip branches mid-chain.
+        final CommandInterceptionTable rules = interceptionTable;
 
         // Catastrophic Command Interceptor (Storage Safety)
         if (isCatastrophicCommand(cmd)) {
@@ -874,7 +869,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         }
         
         // Global System File Redirection Proxy: transparently map read-only system files to user-writable proxies
-        if (isFeatureEnabled("root_build_prop_redirect") && cmd != null) {
+        if (rules.buildPropRedirect && cmd != null) {
             String[] proxyTargets = {
                 "/system/build.prop", "/vendor/build.prop",
                 "/system/etc/mixer_paths.xml", "/vendor/etc/mixer_paths.xml",
@@ -890,11 +885,11 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         String proxyPath = "/data/adb/shizuku/" + fileName;
                         
                         try {
-                            Runtime.getRuntime().exec(new String[]{"mkdir", "-p", "/data/adb/shizuku"}).waitFor();
+                            ShellPool.exec("mkdir", "-p", "/data/adb/shizuku");
                             java.io.File dest = new java.io.File(proxyPath);
                             if (!dest.exists()) {
                                 String sourcePath = target;
-                                Runtime.getRuntime().exec(new String[]{"cp", sourcePath, proxyPath}).waitFor();
+                                ShellPool.exec("cp", sourcePath, proxyPath);
                             }
                         } catch (Exception e) {
                             LOGGER.e(e, "SUBridge: failed to prepare proxy file for " + target);
@@ -908,7 +903,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         }
 
         // Global Magisk Environment Variable Injection
-        if (isFeatureEnabled("root_magisk_mocking")) {
+        if (rules.magiskMocking) {
             if (env == null) {
                 // A null env is supposed to inherit the server process's environment (BOOTCLASSPATH,
                 // ANDROID_DATA, ANDROID_ROOT, etc.) — replacing it outright with just the two Magisk
@@ -930,10 +925,10 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         }
         
         // SU Bridge interception: strip su wrapper and run command directly via Shizuku privileges
-        if (isFeatureEnabled("su_bridge") && cmd != null && cmd.length > 0) {
+        if (rules.suBridge && cmd != null && cmd.length > 0) {
             String base = cmd[0];
             if (base.equals("su") || base.endsWith("/su")) {
-                dispatchLog(callingPkg, "su " + String.join(" ", cmd));
+                dispatchLog(callingPkg, ActivityLogBuffer.ACTION_SU, String.join(" ", cmd));
                 java.util.List<String> args = new java.util.ArrayList<>();
                 boolean inCommand = false;
                 boolean skipNext = false;
@@ -951,9 +946,9 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         skipNext = true;
                     } else if (cmd[i].equals("-v") || cmd[i].equals("--version")) {
                         // Return a fake version string for su
-                        return newProcessInternal(new String[]{"echo", "26.4:MAGISKSU"}, env, dir);
+                        return SyntheticRemoteProcess.echo("26.4:MAGISKSU");
                     } else if (cmd[i].equals("-V")) {
-                        return newProcessInternal(new String[]{"echo", "26400"}, env, dir);
+                        return SyntheticRemoteProcess.echo("26400");
                     } else if (cmd[i].equals("-l") || cmd[i].equals("--login") || cmd[i].equals("-") ||
                                cmd[i].equals("-M") || cmd[i].equals("--magisk-mode") ||
                                cmd[i].equals("-mm") || cmd[i].equals("--mount-master")) {
@@ -992,7 +987,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                     }
                     
                     // Inject actual su path into environment PATH
-                    String realSuPath = plusSettingsMap.get("su_path");
+                    String realSuPath = rules.suPath;
                     if (realSuPath != null && realSuPath.contains("/")) {
                         String suDir = realSuPath.substring(0, realSuPath.lastIndexOf("/"));
                         if (env == null) env = new String[]{"PATH=" + suDir + ":/sbin:/system/bin:/system/xbin"};
@@ -1019,13 +1014,13 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 }
             }
         }
-        if (isFeatureEnabled("shell_interceptor") && cmd != null && cmd.length > 0) {
+        if (rules.shellInterceptor && cmd != null && cmd.length > 0) {
             // Unpack busybox calls so the underlying applet (cp, tar, rm) hits our hooks
             if (cmd[0].equals("busybox") || cmd[0].endsWith("/busybox")) {
                 if (cmd.length == 1 || cmd[1].startsWith("-")) {
-                    if (isFeatureEnabled("root_busybox_mocking")) {
+                    if (rules.busyboxMocking) {
                         LOGGER.i("SUBridge: mocking busybox version string");
-                        return newProcessInternal(new String[]{"echo", "BusyBox v1.36.1 (Shizuku+ Built-in)"}, env, dir);
+                        return SyntheticRemoteProcess.echo("BusyBox v1.36.1 (Shizuku+ Built-in)");
                     }
                 } else {
                     String[] newCmd = new String[cmd.length - 1];
@@ -1034,10 +1029,16 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 }
             }
             
+            // Nothing below can act on a command whose name no enabled rule is keyed on - skip the
+            // chain (and its repeated String.join scans) for the common pass-through case.
+            if (!rules.intercepts(cmd)) {
+                return super.newProcessInternal(cmd, env, dir);
+            }
+
             String baseCmd = cmd[0];
             
             // Dynamic Shell Function Injection for Deep Root Spoofing
-            if (isFeatureEnabled("su_bridge") && (baseCmd.equals("sh") || baseCmd.endsWith("/sh")) && cmd.length >= 3 && (cmd[1].equals("-c") || cmd[1].equals("--command"))) {
+            if (rules.suBridge && (baseCmd.equals("sh") || baseCmd.endsWith("/sh")) && cmd.length >= 3 && (cmd[1].equals("-c") || cmd[1].equals("--command"))) {
                 String originalScript = cmd[2];
                 if (!originalScript.startsWith("magisk() {")) {
                     String mockHeader = "magisk() { if [ \"$1\" = \"-v\" ] || [ \"$1\" = \"--version\" ]; then echo \"26.4:MAGISKSU\"; elif [ \"$1\" = \"-V\" ]; then echo 26400; else echo \"Magisk v26.4 (26400) - Shizuku+ Bridge Mode\"; fi; }; " +
@@ -1049,122 +1050,112 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             }
             
             // Root Mocking: Fake common root environment checks
-            if (isFeatureEnabled("su_bridge")) {
+            if (rules.suBridge) {
                 if (baseCmd.equals("supolicy") || baseCmd.equals("magiskpolicy")) {
                     LOGGER.i("SUBridge: mocking SELinux policy injection for " + baseCmd);
-                    return newProcessInternal(new String[]{"true"}, env, dir);
-                } else if ((baseCmd.equals("iptables") || baseCmd.equals("ip6tables") || baseCmd.endsWith("/iptables") || baseCmd.endsWith("/ip6tables")) && isFeatureEnabled("root_iptables_mocking")) {
+                    return SyntheticRemoteProcess.exit(0);
+                } else if ((baseCmd.equals("iptables") || baseCmd.equals("ip6tables") || baseCmd.endsWith("/iptables") || baseCmd.endsWith("/ip6tables")) && rules.iptablesMocking) {
                     LOGGER.i("SUBridge: executing and mocking iptables command -> " + String.join(" ", cmd));
-                    java.lang.Process p = null;
                     try {
-                        p = Runtime.getRuntime().exec(cmd);
-                        int exitCode = p.waitFor();
+                        int exitCode = ShellPool.exec(cmd).exitCode;
                         if (exitCode == 0) {
                             return newProcessInternal(cmd, env, dir);
                         } else {
                             LOGGER.e("SUBridge: iptables exited with error (" + exitCode + "), returning mock success");
-                            return newProcessInternal(new String[]{"true"}, env, dir);
+                            return SyntheticRemoteProcess.exit(0);
                         }
                     } catch (Exception e) {
                         LOGGER.e("SUBridge: iptables exec failed, returning mock success");
-                        return newProcessInternal(new String[]{"true"}, env, dir);
-                    } finally {
-                        if (p != null) p.destroy();
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } else if (baseCmd.equals("pm") && cmd.length > 1 && cmd[1].equals("list") && String.join(" ", cmd).contains("packages")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking pm list packages to include Magisk");
-                        java.lang.Process p = null;
                         try {
-                            p = Runtime.getRuntime().exec(cmd);
-                            java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(p.getInputStream()));
                             java.lang.StringBuilder sb = new java.lang.StringBuilder();
-                            String line;
-                            while ((line = reader.readLine()) != null) {
+                            for (String line : ShellPool.exec(cmd).lines) {
                                 sb.append(line).append("\n");
                             }
                             sb.append("package:com.topjohnwu.magisk\n");
-                            return newProcessInternal(new String[]{"echo", sb.toString().trim()}, env, dir);
+                            return SyntheticRemoteProcess.echo(sb.toString().trim());
                         } catch (Exception e) {
-                            return newProcessInternal(new String[]{"echo", "package:com.topjohnwu.magisk"}, env, dir);
-                        } finally {
-                            if (p != null) p.destroy();
+                            return SyntheticRemoteProcess.echo("package:com.topjohnwu.magisk");
                         }
                     }
                 } else if (baseCmd.equals("pm") && cmd.length > 2 && cmd[1].equals("path") && cmd[2].equals("com.topjohnwu.magisk")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking pm path for Magisk");
-                        return newProcessInternal(new String[]{"echo", "package:/data/app/com.topjohnwu.magisk-mocked/base.apk"}, env, dir);
+                        return SyntheticRemoteProcess.echo("package:/data/app/com.topjohnwu.magisk-mocked/base.apk");
                     }
                 }
 
                 if (baseCmd.equals("id")) {
                     LOGGER.i("SUBridge: mocking id command");
                     if (cmd.length > 1 && (cmd[1].equals("-u") || cmd[1].equals("-g") || cmd[1].equals("-G"))) {
-                        return newProcessInternal(new String[]{"echo", "0"}, env, dir);
+                        return SyntheticRemoteProcess.echo("0");
                     }
-                    return newProcessInternal(new String[]{"echo", "uid=0(root) gid=0(root) groups=0(root)"}, env, dir);
+                    return SyntheticRemoteProcess.echo("uid=0(root) gid=0(root) groups=0(root)");
                 } else if (baseCmd.equals("whoami")) {
                     LOGGER.i("SUBridge: mocking whoami command");
-                    return newProcessInternal(new String[]{"echo", "root"}, env, dir);
+                    return SyntheticRemoteProcess.echo("root");
                 } else if (baseCmd.equals("getenforce")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking getenforce command");
-                        return newProcessInternal(new String[]{"echo", "Permissive"}, env, dir);
+                        return SyntheticRemoteProcess.echo("Permissive");
                     }
                 } else if (baseCmd.equals("setenforce") || baseCmd.equals("chcon") || baseCmd.equals("restorecon")) {
-                    if (isFeatureEnabled("root_auto_grant")) {
+                    if (rules.autoGrant) {
                         LOGGER.i("SUBridge: mapping SELinux modification to AppOps elevation for caller package " + callingPkg);
                         performAppOpsElevation(callingPkg, callingUid);
                     }
-                    return newProcessInternal(new String[]{"true"}, env, dir);
+                    return SyntheticRemoteProcess.exit(0);
                 } else if (baseCmd.equals("setprop") && cmd.length > 2) {
                     LOGGER.i("SUBridge: intercepted setprop " + cmd[1] + " " + cmd[2]);
                     try {
                         android.os.SystemProperties.set(cmd[1], cmd[2]);
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } catch (Exception e) {
                         LOGGER.e("SUBridge: setprop failed", e);
-                        return newProcessInternal(new String[]{"false"}, env, dir);
+                        return SyntheticRemoteProcess.exit(1);
                     }
                 } else if (baseCmd.equals("mount") && cmd.length > 1 && String.join(" ", cmd).contains("remount")) {
                     String fullCmd = String.join(" ", cmd);
                     LOGGER.i("SUBridge: intercepting mount remount. Delegating to OverlayManager Proxy.");
-                    if (isFeatureEnabled("overlay_fs_proxy_enabled") && (fullCmd.contains("/system") || fullCmd.contains("/vendor"))) {
+                    if (rules.overlayFsProxy && (fullCmd.contains("/system") || fullCmd.contains("/vendor"))) {
                         try {
                             overlayManagerPlus.prepareShadowMount(callingPkg, "/system");
                         } catch (Exception e) {
                             LOGGER.e("SUBridge: shadow mount proxy failed", e);
                         }
                     }
-                    return newProcessInternal(new String[]{"true"}, env, dir);
+                    return SyntheticRemoteProcess.exit(0);
                 } else if (baseCmd.equals("mount") && cmd.length > 3 && String.join(" ", cmd).contains("--bind")) {
                     String fullCmd = String.join(" ", cmd);
                     LOGGER.i("SUBridge: intercepting mount --bind request: " + fullCmd);
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         // Fake success for general systemless modifications
                         LOGGER.i("SUBridge: Faking mount --bind success for systemless module compatibility");
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
-                    return newProcessInternal(new String[]{"true"}, env, dir);
+                    return SyntheticRemoteProcess.exit(0);
                 } else if (baseCmd.equals("losetup")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         String fullCmd = String.join(" ", cmd);
                         LOGGER.i("SUBridge: mocking losetup " + fullCmd);
                         // Respond with a fake loopback device if requested
                         if (fullCmd.contains("-f") || fullCmd.contains("--show")) {
-                            return newProcessInternal(new String[]{"echo", "/dev/block/loop99"}, env, dir);
+                            return SyntheticRemoteProcess.echo("/dev/block/loop99");
                         }
                         // Default fake success for setting up loop device
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } else if (baseCmd.equals("mke2fs") || baseCmd.equals("mkfs.ext4") || baseCmd.equals("make_ext4fs")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking " + baseCmd + " success for systemless image creation");
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } else if (baseCmd.equals("chroot")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: intercepting chroot. Mocking chroot environment execution.");
                         if (cmd.length > 2) {
                             // Strip 'chroot' and the fake root directory, execute the remaining payload natively
@@ -1173,10 +1164,10 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                             return newProcessInternal(chrootCmd, env, dir);
                         }
                         // Default fake success
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } else if ((baseCmd.equals("cp") || baseCmd.equals("mv") || baseCmd.equals("tar")) && (String.join(" ", cmd).contains("/data/data") || String.join(" ", cmd).contains("/system"))) {
-                    if (isFeatureEnabled("root_file_interceptor")) {
+                    if (rules.fileInterceptor) {
                         LOGGER.i("SUBridge: injecting permission-preservation flags for sensitive file operation");
                         java.util.List<String> newCmd = new java.util.ArrayList<>(java.util.Arrays.asList(cmd));
                         // Only cp takes these flags. mv rejects both -p and --preserve=all (it would
@@ -1190,79 +1181,76 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         return newProcessInternal(newCmd.toArray(new String[0]), env, dir);
                     }
                 } else if (baseCmd.equals("magisk") || baseCmd.endsWith("/magisk")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking magisk command");
                         if (cmd.length > 1) {
                             if (cmd[1].equals("-v") || cmd[1].equals("--version")) {
-                                return newProcessInternal(new String[]{"echo", "26.4:MAGISKSU"}, env, dir);
+                                return SyntheticRemoteProcess.echo("26.4:MAGISKSU");
                             } else if (cmd[1].equals("-V")) {
-                                return newProcessInternal(new String[]{"echo", "26400"}, env, dir);
+                                return SyntheticRemoteProcess.echo("26400");
                             }
                         }
-                        return newProcessInternal(new String[]{"echo", "Magisk v26.4 (26400) - Shizuku+ Bridge Mode"}, env, dir);
+                        return SyntheticRemoteProcess.echo("Magisk v26.4 (26400) - Shizuku+ Bridge Mode");
                     }
                 } else if (baseCmd.equals("pm") && cmd.length > 3 && cmd[1].equals("grant")) {
-                    if (isFeatureEnabled("root_auto_grant")) {
+                    if (rules.autoGrant) {
                         LOGGER.i("SUBridge: intercepting pm grant for " + cmd[2]);
                         // Auto-approve common root app requests
                         String targetPkg = cmd[2];
                         String perm = cmd[3];
                         if (perm.contains("WRITE_SECURE_SETTINGS") || perm.contains("DUMP") || perm.contains("PACKAGE_USAGE_STATS")) {
                             try {
-                                // waitFor() reaps the child (and lets the grant land before we
-                                // report success); without it each call leaks a zombie + its fds.
-                                Runtime.getRuntime().exec(new String[]{"pm", "grant", targetPkg, perm}).waitFor();
-                                return newProcessInternal(new String[]{"true"}, env, dir);
+                                // Blocks until the grant lands before we report success.
+                                ShellPool.exec("pm", "grant", targetPkg, perm);
+                                return SyntheticRemoteProcess.exit(0);
                             } catch (Exception e) {
                                 LOGGER.e("SUBridge: pm grant failed", e);
                             }
                         }
                     }
                 } else if (baseCmd.equals("cat") && cmd.length > 1 && (cmd[1].equals("/sys/fs/selinux/enforce") || cmd[1].contains("/selinux/enforce"))) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking cat /sys/fs/selinux/enforce -> Permissive");
-                        return newProcessInternal(new String[]{"echo", "0"}, env, dir);
+                        return SyntheticRemoteProcess.echo("0");
                     }
                 } else if ((baseCmd.equals("test") || baseCmd.equals("[")) && cmd.length > 1 && (String.join(" ", cmd).contains("/sbin/.magisk") || String.join(" ", cmd).contains("/data/adb/magisk") || String.join(" ", cmd).contains("/dev/magisk") || String.join(" ", cmd).contains("/proc/self/mounts") || String.join(" ", cmd).matches(".*\\b(su|magisk)\\b.*"))) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking test/[ for root/Magisk-related paths");
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } else if (baseCmd.equals("stat") && cmd.length > 1 && String.join(" ", cmd).matches(".*\\b(su|magisk)\\b.*")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking stat for su/magisk");
                         String target = String.join(" ", cmd).contains("magisk") ? "/sbin/magisk" : "/system/xbin/su";
-                        return newProcessInternal(new String[]{"echo", "  File: " + target + "\n  Size: 157328\tBlocks: 312\tIO Block: 4096\tregular file\nAccess: (0755/-rwsr-xr-x)\tUid: (    0/    root)\tGid: (    0/    root)"}, env, dir);
+                        return SyntheticRemoteProcess.echo("  File: " + target + "\n  Size: 157328\tBlocks: 312\tIO Block: 4096\tregular file\nAccess: (0755/-rwsr-xr-x)\tUid: (    0/    root)\tGid: (    0/    root)");
                     }
                 } else if (baseCmd.equals("ls") && cmd.length > 1 && (String.join(" ", cmd).contains("/su") || String.join(" ", cmd).contains("/sbin/.magisk") || String.join(" ", cmd).contains("/data/adb/magisk"))) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         if (String.join(" ", cmd).contains("su")) {
                             LOGGER.i("SUBridge: mocking ls for su path");
-                            String customSuPath = plusSettingsMap.getOrDefault("custom_su_path", "");
-                            if (customSuPath == null || customSuPath.trim().isEmpty()) customSuPath = "/system/xbin/su";
-                            return newProcessInternal(new String[]{"echo", "-rwsr-xr-x 1 root root 157328 2026-03-11 12:00 " + customSuPath}, env, dir);
+                            String customSuPath = rules.customSuPath;
+                            return SyntheticRemoteProcess.echo("-rwsr-xr-x 1 root root 157328 2026-03-11 12:00 " + customSuPath);
                         } else if (String.join(" ", cmd).contains("magisk")) {
                             LOGGER.i("SUBridge: mocking ls for Magisk path");
-                            return newProcessInternal(new String[]{"echo", "-rwxr-xr-x 1 root root 14528 2026-03-11 12:00 /sbin/magisk"}, env, dir);
+                            return SyntheticRemoteProcess.echo("-rwxr-xr-x 1 root root 14528 2026-03-11 12:00 /sbin/magisk");
                         }
                     }
                 } else if (baseCmd.equals("resetprop")) {
-                    if (isFeatureEnabled("root_magisk_mocking")) {
+                    if (rules.magiskMocking) {
                         LOGGER.i("SUBridge: mocking resetprop " + String.join(" ", cmd));
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } else if (baseCmd.equals("which") && cmd.length > 1 && cmd[1].equals("su")) {
-                    String customSuPath = plusSettingsMap.getOrDefault("custom_su_path", "");
-                    if (customSuPath == null || customSuPath.trim().isEmpty()) customSuPath = "/system/xbin/su";
+                    String customSuPath = rules.customSuPath;
                     LOGGER.i("SUBridge: mocking which su command -> " + customSuPath);
-                    return newProcessInternal(new String[]{"echo", customSuPath}, env, dir);
+                    return SyntheticRemoteProcess.echo(customSuPath);
                 } else if (baseCmd.equals("getprop") && cmd.length > 1) {
                     String prop = cmd[1];
                     boolean forceReal = prop.startsWith("real.");
                     if (forceReal) prop = prop.substring(5);
 
                     if (!forceReal && (prop.startsWith("magisk.") || prop.equals("ro.debuggable") || prop.equals("ro.secure") || prop.equals("persist.magisk.hide"))) {
-                        if (isFeatureEnabled("root_magisk_mocking")) {
+                        if (rules.magiskMocking) {
                             LOGGER.i("SUBridge: mocking getprop " + prop);
                             String value = "0";
                             if (prop.equals("ro.debuggable")) value = "1";
@@ -1271,11 +1259,11 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                             else if (prop.contains("version")) value = "26.4";
                             else if (prop.contains("code")) value = "26400";
                             else if (prop.contains("path")) value = "/data/adb/magisk";
-                            return newProcessInternal(new String[]{"echo", value}, env, dir);
+                            return SyntheticRemoteProcess.echo(value);
                         }
                     } else if (prop.startsWith("ro.product.") || prop.startsWith("ro.build.")) {
-                        if (!forceReal && isFeatureEnabled("spoof_device")) {
-                            String target = plusSettingsMap.getOrDefault("spoof_target", "pixel_8_pro");
+                        if (!forceReal && rules.spoofDevice) {
+                            String target = rules.spoofTarget;
                             LOGGER.i("SUBridge: spoofing getprop " + prop + " as " + target);
                             String spoofValue = "";
                             
@@ -1345,15 +1333,15 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                                     else spoofValue = android.os.SystemProperties.get(prop, "");
                                     break;
                             }
-                            return newProcessInternal(new String[]{"echo", spoofValue}, env, dir);
+                            return SyntheticRemoteProcess.echo(spoofValue);
                         } else {
                             // Functional: Return actual device identity
                             String actualValue = android.os.SystemProperties.get(prop, "");
                             LOGGER.i("SUBridge: getprop " + prop + " -> " + actualValue);
-                            return newProcessInternal(new String[]{"echo", actualValue}, env, dir);
+                            return SyntheticRemoteProcess.echo(actualValue);
                         }
                     }
-                } else if (isFeatureEnabled("experimental_root") && baseCmd.equals("setprop") && cmd.length == 3) {
+                } else if (rules.experimentalRoot && baseCmd.equals("setprop") && cmd.length == 3) {
                     String prop = cmd[1];
                     String value = cmd[2];
                     if (prop.equals("debug.hwui.anim_duration_scale") || prop.equals("persist.sys.anim_duration_scale")) {
@@ -1362,7 +1350,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         String mappedValue = value.equals("true") || value.equals("1") ? "2" : "1";
                         return newProcessInternal(new String[]{"settings", "put", "secure", "ui_night_mode", mappedValue}, env, dir);
                     }
-                } else if (isFeatureEnabled("experimental_root")) {
+                } else if (rules.experimentalRoot) {
                     if (baseCmd.equals("pm") && cmd.length > 2 && cmd[1].equals("disable")) {
                         // Map global disable to user disable for shell compatibility
                         cmd[1] = "disable-user";
@@ -1403,28 +1391,28 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         String script = "if [ ! -z \"" + safeTarget + "\" ] && [ \"" + safeTarget + "\" != \"sh\" ] && [ \"" + safeTarget + "\" != \"su\" ]; then am force-stop \"" + safeTarget + "\"; else false; fi";
                         return newProcessInternal(new String[]{"sh", "-c", script}, env, dir);
                     } else if (baseCmd.equals("insmod") || baseCmd.equals("rmmod") || baseCmd.equals("modprobe")) {
-                        if (isFeatureEnabled("root_kernel_ghosting_enabled")) {
+                        if (rules.kernelGhosting) {
                             LOGGER.i("SUBridge: intercepting kernel module load/unload (" + baseCmd + "), returning mock success");
-                            return newProcessInternal(new String[]{"true"}, env, dir);
+                            return SyntheticRemoteProcess.exit(0);
                         }
                         return newProcessInternal(cmd, env, dir);
                     } else if (baseCmd.equals("reboot")) {
-                        if (isFeatureEnabled("bootloader_fastbootd_reboot_enabled") && cmd.length > 1 && (cmd[1].equals("bootloader") || cmd[1].equals("fastboot") || cmd[1].equals("recovery"))) {
+                        if (rules.fastbootdReboot && cmd.length > 1 && (cmd[1].equals("bootloader") || cmd[1].equals("fastboot") || cmd[1].equals("recovery"))) {
                             LOGGER.i("SUBridge: Mapping unlocked bootloader reboot to svc power natively");
                             return newProcessInternal(new String[]{"svc", "power", "reboot", cmd[1]}, env, dir);
-                        } else if (isFeatureEnabled("root_power_ghosting_enabled")) {
+                        } else if (rules.powerGhosting) {
                             LOGGER.i("SUBridge: intercepting reboot request (ghosting): " + String.join(" ", cmd));
-                            return newProcessInternal(new String[]{"true"}, env, dir);
+                            return SyntheticRemoteProcess.exit(0);
                         }
                         return newProcessInternal(cmd, env, dir);
                     } else if (baseCmd.equals("setprop") && cmd.length > 1 && cmd[1].startsWith("ctl.")) {
-                        if (isFeatureEnabled("root_power_ghosting_enabled")) {
+                        if (rules.powerGhosting) {
                             LOGGER.i("SUBridge: intercepting service control (soft reboot) " + cmd[1]);
-                            return newProcessInternal(new String[]{"true"}, env, dir);
+                            return SyntheticRemoteProcess.exit(0);
                         }
                         return newProcessInternal(cmd, env, dir);
                     } else if (baseCmd.equals("dd") && String.join(" ", cmd).contains("/dev/block/")) {
-                        if (isFeatureEnabled("root_partition_ghosting_enabled")) {
+                        if (rules.partitionGhosting) {
                             LOGGER.i("SUBridge: intercepting dd on block device. Mocking success.");
                             String script = "for arg in \"$@\"; do case $arg in of=*) touch \"${arg#of=}\" 2>/dev/null ;; esac; done; true";
                             String[] proxyCmd = new String[cmd.length + 3];
@@ -1433,7 +1421,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                             return newProcessInternal(proxyCmd, env, dir);
                         }
                         return newProcessInternal(cmd, env, dir);
-                    } else if (baseCmd.equals("update_engine_client") && isFeatureEnabled("bootloader_flash_ota_enabled")) {
+                    } else if (baseCmd.equals("update_engine_client") && rules.flashOta) {
                         LOGGER.i("SUBridge: Executing update_engine_client natively for systemless OTA flashing");
                         return newProcessInternal(cmd, env, dir);
                     } else if (baseCmd.equals("svc") && cmd.length >= 3) {
@@ -1445,9 +1433,9 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         } else if (service.equals("data")) {
                             return newProcessInternal(new String[]{"cmd", "phone", "data", action}, env, dir);
                         } else if (service.equals("usb") && action.equals("setFunctions")) {
-                            return newProcessInternal(new String[]{"true"}, env, dir);
+                            return SyntheticRemoteProcess.exit(0);
                         } else if (service.equals("power") && action.equals("reboot")) {
-                            return newProcessInternal(new String[]{"true"}, env, dir);
+                            return SyntheticRemoteProcess.exit(0);
                         }
                         return newProcessInternal(cmd, env, dir);
                     } else if (baseCmd.equals("ifconfig") && cmd.length >= 3) {
@@ -1457,7 +1445,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         if (iface.startsWith("wlan") && (action.equals("up") || action.equals("down"))) {
                             return newProcessInternal(new String[]{"cmd", "wifi", "set-wifi-enabled", action.equals("up") ? "enabled" : "disabled"}, env, dir);
                         }
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } else if (baseCmd.equals("ip") && cmd.length >= 4 && cmd[1].equals("link") && cmd[2].equals("set")) {
                         String iface = cmd[3];
                         String action = cmd[cmd.length - 1]; // "up" or "down" usually at the end
@@ -1465,23 +1453,23 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         if (iface.startsWith("wlan") && (action.equals("up") || action.equals("down"))) {
                             return newProcessInternal(new String[]{"cmd", "wifi", "set-wifi-enabled", action.equals("up") ? "enabled" : "disabled"}, env, dir);
                         }
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } else if (baseCmd.equals("dumpsys") && cmd.length >= 2 && (cmd[1].equals("battery") || cmd[1].equals("deviceidle"))) {
                         LOGGER.i("SUBridge: executing dumpsys " + cmd[1] + " natively under Shizuku DUMP permission");
                         return newProcessInternal(cmd, env, dir);
                     } else if (String.join(" ", cmd).contains("MASTER_CLEAR") || String.join(" ", cmd).contains("wipe_data") || (baseCmd.equals("sm") && cmd.length > 1 && cmd[1].equals("format"))) {
                         LOGGER.e("SUBridge: Intercepted highly destructive command! Ghosting success to prevent data wipe: " + String.join(" ", cmd));
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } else if (baseCmd.equals("chattr")) {
                         LOGGER.i("SUBridge: mocking chattr immutability applied");
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } else if (baseCmd.equals("lsattr")) {
                         LOGGER.i("SUBridge: mocking lsattr output");
                         String target = cmd[cmd.length - 1];
-                        return newProcessInternal(new String[]{"echo", "----i--------- " + target}, env, dir);
+                        return SyntheticRemoteProcess.echo("----i--------- " + target);
                     } else if (baseCmd.equals("chmod") || baseCmd.equals("chown")) {
                         LOGGER.i("SUBridge: intercepting " + baseCmd + ", returning mock success");
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } else if (baseCmd.equals("iptables") || baseCmd.equals("ip6tables")) {
                         String fullCmd = String.join(" ", cmd);
                         if (fullCmd.contains("--uid-owner")) {
@@ -1509,7 +1497,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                                 LOGGER.e("SUBridge: failed to map iptables to NetworkPolicy", e);
                             }
                         }
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } else if ((baseCmd.equals("tar") || baseCmd.equals("cp")) && (String.join(" ", cmd).contains("/data/data/") || String.join(" ", cmd).contains("/data/app/") || String.join(" ", cmd).contains("/data/user/"))) {
                         String fullCmd = String.join(" ", cmd);
                         LOGGER.i("SUBridge: mapping backup command to native bu utility: " + fullCmd);
@@ -1552,7 +1540,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                                 }
                             }
                         }
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     } else if (baseCmd.equals("screencap")) {
                         LOGGER.i("SUBridge: functional screencap mapping");
                         // The shell UID is allowed to run screencap
@@ -1567,13 +1555,13 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                     String pkg = cmd[2];
                     LOGGER.i("Plus Optimization: am force-stop " + pkg + " via ActivityManagerPlus");
                     if (activityManagerPlus.deepForceStop(pkg)) {
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } else if (cmd[1].equals("freeze") || cmd[1].equals("suspend")) {
                     String pkg = cmd[2];
                     LOGGER.i("Plus Optimization: am freeze " + pkg + " -> restricted bucket");
                     if (activityManagerPlus.setAppStandbyBucket(pkg, 45)) { // 45 = RESTRICTED
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 }
             } else if (baseCmd.equals("settings") && cmd.length >= 5 && cmd[1].equals("put")) {
@@ -1588,7 +1576,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                         android.os.Bundle extras = new android.os.Bundle();
                         extras.putString("value", value);
                         rikka.shizuku.server.api.IContentProviderUtils.callCompat(provider, null, "settings", "PUT_" + namespace, key, extras);
-                        return newProcessInternal(new String[]{"true"}, env, dir);
+                        return SyntheticRemoteProcess.exit(0);
                     }
                 } catch (Throwable tr) {
                     LOGGER.e(tr, "Plus Optimization: settings put failed");
@@ -1623,7 +1611,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                             
                             if (targetUid != -1) {
                                 service.getClass().getMethod("setMode", int.class, int.class, String.class, int.class).invoke(service, intOp, targetUid, pkg, intMode);
-                                return newProcessInternal(new String[]{"true"}, env, dir);
+                                return SyntheticRemoteProcess.exit(0);
                             }
                         }
                     }
@@ -1647,17 +1635,17 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                                 if (isBinderCallBlocked(callingUid, descriptor, code)) {
                                     LOGGER.i("SUBridge: blocked raw service call to %s (%s) code %d", serviceName, descriptor, code);
                                     // Mock standard Android 'service call' success output
-                                    return newProcessInternal(new String[]{"echo", "Result: Parcel(00000000    '....')"}, env, dir);
+                                    return SyntheticRemoteProcess.echo("Result: Parcel(00000000    '....')");
                                 }
                             }
                         }
                     } catch (Exception e) {
                         LOGGER.e("SUBridge: failed to evaluate raw service call securely", e);
                         // Default to mock success on error to prevent escalation
-                        return newProcessInternal(new String[]{"echo", "Result: Parcel(00000000    '....')"}, env, dir);
+                        return SyntheticRemoteProcess.echo("Result: Parcel(00000000    '....')");
                     }
                 }
-            } else if (isFeatureEnabled("storage_proxy") && (baseCmd.equals("ls") || baseCmd.equals("rm") || baseCmd.equals("mkdir") || baseCmd.equals("cat") || baseCmd.equals("stat"))) {
+            } else if (rules.storageProxy && (baseCmd.equals("ls") || baseCmd.equals("rm") || baseCmd.equals("mkdir") || baseCmd.equals("cat") || baseCmd.equals("stat"))) {
                 String path = cmd[cmd.length - 1];
                 if (path.startsWith("/data/data/") || path.startsWith("/sdcard/Android/data/") || path.startsWith("/data/app/")) {
                     LOGGER.i("Plus Optimization (Storage Bridge): mapping " + baseCmd + " " + path);
@@ -1666,7 +1654,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                             java.util.List<String> files = storageProxy.listFiles(path);
                             if (files != null) {
                                 String joined = String.join("\n", files);
-                                return newProcessInternal(new String[]{"echo", joined}, env, dir);
+                                return SyntheticRemoteProcess.echo(joined);
                             }
                         } else if (baseCmd.equals("cat")) {
                             android.os.ParcelFileDescriptor pfd = storageProxy.openFile(path, android.os.ParcelFileDescriptor.MODE_READ_ONLY);
@@ -1677,14 +1665,14 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                             android.os.Bundle info = storageProxy.getFileInfo(path);
                             if (info.getBoolean("exists")) {
                                 String statOut = "File: " + path + "\nSize: " + info.getLong("size") + "\nModify: " + info.getLong("lastModified");
-                                return newProcessInternal(new String[]{"echo", statOut}, env, dir);
+                                return SyntheticRemoteProcess.echo(statOut);
                             }
                         } else if (baseCmd.equals("rm")) {
                             if (storageProxy.delete(path)) {
-                                return newProcessInternal(new String[]{"true"}, env, dir);
+                                return SyntheticRemoteProcess.exit(0);
                             }
                         } else if (baseCmd.equals("mkdir")) {
-                            return newProcessInternal(new String[]{"true"}, env, dir);
+                            return SyntheticRemoteProcess.exit(0);
                         }
                     } catch (Exception e) {
                         LOGGER.e("SUBridge: StorageProxy command failed", e);
@@ -1920,59 +1908,34 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         getUserServiceManager().removeUserServicesForPackage(packageName);
     }
 
-    private ParcelableListSlice<PackageInfo> getApplications(int userId) {
-        List<PackageInfo> list = new ArrayList<>();
+    private static List<Integer> resolveUserIds(int userId) {
         List<Integer> users = new ArrayList<>();
         if (userId == -1) {
             users.addAll(UserManagerApis.getUserIdsNoThrow());
         } else {
             users.add(userId);
         }
+        return users;
+    }
 
-        for (int user : users) {
-            for (PackageInfo pi : InstalledPackagesCompat.getInstalledPackagesNoThrow(PackageManager.GET_META_DATA | PackageManager.GET_PERMISSIONS, user)) {
-                if (Objects.equals(MANAGER_APPLICATION_ID, pi.packageName)) continue;
-                if (pi.applicationInfo == null) continue;
-
-                int uid = pi.applicationInfo.uid;
-                try {
-                    if (isHidden(uid)) continue;
-                } catch (RemoteException e) {
-                    continue;
-                }
-                
-                int flags = 0;
-                ShizukuConfig.PackageEntry entry = configManager.find(uid);
-                if (entry != null) {
-                    // An empty packages list means no package name was ever recorded for this
-                    // uid (e.g. an entry written before updateFlagsForUid started recording
-                    // them) - treat that as unrestricted rather than as "matches nothing", or
-                    // this package silently vanishes from the authorized-apps list entirely.
-                    if (entry.packages != null && !entry.packages.isEmpty() && !entry.packages.contains(pi.packageName))
-                        continue;
-                    flags = entry.flags & ConfigManager.MASK_PERMISSION;
-                }
-
-                if (flags != 0) {
-                    list.add(pi);
-                } else if (pi.requestedPermissions != null && (
-                        ArraysKt.contains(pi.requestedPermissions, PERMISSION) ||
-                        ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_LEGACY) ||
-                        ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_ORIGINAL)
-                )) {
-                    list.add(pi);
-                } else if (pi.applicationInfo.metaData != null
-                        && pi.applicationInfo.metaData.getBoolean("af.shizuku.client.V3_SUPPORT", false)) {
-                    list.add(pi);
-                }
-            }
-
-        }
-        return new ParcelableListSlice<>(list);
+    private ParcelableListSlice<PackageInfo> getApplications(int userId) {
+        return new ParcelableListSlice<>(applicationsCache.getApplications(resolveUserIds(userId)));
     }
 
     @Override
     public boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean handled = onTransactInternal(code, data, reply, flags);
+            failed = false;
+            return handled;
+        } finally {
+            BinderMetrics.record(BinderMetrics.SERVICE_SHIZUKU, code, start, failed);
+        }
+    }
+
+    private boolean onTransactInternal(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
         if (isFeatureEnabled("binder_logging")) {
             LOGGER.i("Binder transaction: code=%d, calling uid=%d, flags=%d", code, Binder.getCallingUid(), flags);
         }
@@ -2010,155 +1973,133 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             reply.writeNoException();
             reply.writeInt(ShizukuApiConstants.SERVER_PATCH_VERSION);
             return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getApplicationsDelta) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            enforceCallingPermission("getApplicationsDelta");
+            int userId = data.readInt();
+            long since = data.readLong();
+            ApplicationsCache.Delta delta = applicationsCache.getDelta(resolveUserIds(userId), since);
+            reply.writeNoException();
+            reply.writeLong(delta.version);
+            reply.writeInt(delta.full ? 1 : 0);
+            new ParcelableListSlice<>(delta.updated).writeToParcel(reply, android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+            reply.writeInt(delta.removedUserIds.size());
+            for (int i = 0; i < delta.removedUserIds.size(); i++) {
+                reply.writeInt(delta.removedUserIds.get(i));
+                reply.writeString(delta.removedPackageNames.get(i));
+            }
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getFirewallRules) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            enforceCallingPermission("getFirewallRules");
+            FirewallPolicy policy = firewallPolicy;
+            reply.writeNoException();
+            reply.writeInt(policy.enabled ? 1 : 0);
+            reply.writeStringList(policy.describe());
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getBinderMetrics) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            enforceCallingPermission("getBinderMetrics");
+            int metricsFlags = data.readInt();
+            reply.writeNoException();
+            BinderMetrics.writeTo(reply, metricsFlags);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_execBatch) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            // Starts the same privileged processes newProcess would, so it takes the same permission
+            enforceCallingPermission("newProcess");
+            int batchFlags = data.readInt();
+            long timeoutMillis = data.readLong();
+            List<String[]> commands = CommandBatch.readCommands(data);
+            // Parallel commands are checked on pool threads, where the calling uid is gone
+            int callingUid = Binder.getCallingUid();
+            List<CommandBatch.Result> results = CommandBatchRunner.run(commands, batchFlags, timeoutMillis,
+                    cmd -> isBlockedInBatch(cmd, callingUid));
+            reply.writeNoException();
+            CommandBatch.writeResults(reply, results);
+            return true;
         }
         return super.onTransact(code, data, reply, flags);
     }
 
-    void sendBinderToClient() {
+    private static final BinderDeliveryPool DELIVERY = new BinderDeliveryPool(
+            ShizukuService::sendBinderToUserApp,
+            (packageName, userId) -> ActivityManagerApis.forceStopPackageNoThrow(packageName, userId));
+
+    private static void sendBinderToClient(BinderDeliveryPool.Batch batch) {
+        java.util.Set<String> runningPackages = getRunningPackages();
         for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToClient(this, userId);
+            try {
+                for (PackageInfo pi : InstalledPackagesCompat.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
+                    if (pi == null || pi.requestedPermissions == null || !runningPackages.contains(pi.packageName)) {
+                        continue;
+                    }
+                    if (ArraysKt.contains(pi.requestedPermissions, PERMISSION) ||
+                            ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_LEGACY) ||
+                            ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_ORIGINAL)) {
+                        // CLIENT retries never force-stop: the same hazard that caused the
+                        // PackageInstaller NPE on the live observer path (#386) applies here too -
+                        // an app could be mid-PackageInstaller session when the server restarts.
+                        // The 2-second delayed catchUpAlreadyRunningClients() pass in BinderSender
+                        // is the appropriate place for force-stop retries; by that point the server
+                        // is stable and any in-flight session from before the restart is already broken.
+                        batch.add(pi.packageName, userId, BinderDeliveryPool.CLIENT);
+                    }
+                }
+            } catch (Throwable tr) {
+                LOGGER.e("exception when call getInstalledPackages", tr);
+            }
         }
     }
 
-    private static void sendBinderToClient(Binder binder, int userId) {
+    /**
+     * @return packages of every running process. Read once per pass rather than once per user,
+     * the list AMS returns already covers all users.
+     */
+    private static java.util.Set<String> getRunningPackages() {
+        java.util.Set<String> runningPackages = new java.util.HashSet<>();
         try {
-            java.util.Set<String> runningPackages = new java.util.HashSet<>();
+            java.util.List<android.app.ActivityManager.RunningAppProcessInfo> processes = null;
             try {
-                java.util.List<android.app.ActivityManager.RunningAppProcessInfo> processes = null;
+                java.lang.reflect.Method getService = android.app.ActivityManager.class.getMethod("getService");
+                Object am = getService.invoke(null);
+                processes = (java.util.List<android.app.ActivityManager.RunningAppProcessInfo>) am.getClass().getMethod("getRunningAppProcesses").invoke(am);
+            } catch (Throwable t) {
                 try {
-                    java.lang.reflect.Method getService = android.app.ActivityManager.class.getMethod("getService");
-                    Object am = getService.invoke(null);
+                    java.lang.reflect.Method getDefault = Class.forName("android.app.ActivityManagerNative").getMethod("getDefault");
+                    Object am = getDefault.invoke(null);
                     processes = (java.util.List<android.app.ActivityManager.RunningAppProcessInfo>) am.getClass().getMethod("getRunningAppProcesses").invoke(am);
-                } catch (Throwable t) {
-                    try {
-                        java.lang.reflect.Method getDefault = Class.forName("android.app.ActivityManagerNative").getMethod("getDefault");
-                        Object am = getDefault.invoke(null);
-                        processes = (java.util.List<android.app.ActivityManager.RunningAppProcessInfo>) am.getClass().getMethod("getRunningAppProcesses").invoke(am);
-                    } catch (Throwable ignored) {
-                    }
+                } catch (Throwable ignored) {
                 }
-                if (processes != null) {
-                    for (android.app.ActivityManager.RunningAppProcessInfo process : processes) {
-                        if (process.pkgList != null) {
-                            for (String pkg : process.pkgList) {
-                                runningPackages.add(pkg);
-                            }
+            }
+            if (processes != null) {
+                for (android.app.ActivityManager.RunningAppProcessInfo process : processes) {
+                    if (process.pkgList != null) {
+                        for (String pkg : process.pkgList) {
+                            runningPackages.add(pkg);
                         }
                     }
                 }
-            } catch (Throwable ignored) {
             }
-
-            Stream<PackageInfo> packages =
-                InstalledPackagesCompat.getInstalledPackagesNoThrow(
-                    PackageManager.GET_PERMISSIONS, userId
-                )
-                .stream()
-                .filter(pi -> pi != null && pi.requestedPermissions != null)
-                .filter(pi -> ArraysKt.contains(pi.requestedPermissions, PERMISSION) || 
-                              ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_LEGACY) ||
-                              ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION_ORIGINAL))
-                .filter(pi -> runningPackages.contains(pi.packageName));
-
-            // NOT sendBinderToUserAppWithRetry: the same force-stop hazard that caused the
-            // PackageInstaller NPE on the live observer path (#386) applies here too — an app
-            // could be mid-PackageInstaller session when the server restarts. The 2-second
-            // delayed catchUpAlreadyRunningClients() pass in BinderSender is the appropriate
-            // place for force-stop retries; by that point the server is stable and any
-            // in-flight session from before the restart is already broken.
-            LOGGER.i("sending binders");
-            packages
-                .parallel()
-                .forEach(pi -> {
-                    sendBinderToUserApp(binder, pi.packageName, userId);
-                });
-            LOGGER.i("sent binders");
-        } catch (Throwable tr) {
-            LOGGER.e("exception when call getInstalledPackages", tr);
+        } catch (Throwable ignored) {
         }
+        return runningPackages;
     }
 
-    void sendBinderToManager() {
-        sendBinderToManager(this);
-    }
-
-    private static void sendBinderToManager(Binder binder) {
-        java.util.List<Integer> failedUserIds = new java.util.ArrayList<>();
+    private static void sendBinderToManager(BinderDeliveryPool.Batch batch) {
         for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            boolean success = sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId);
-            if (!success) {
-                failedUserIds.add(userId);
-            }
-        }
-        if (!failedUserIds.isEmpty()) {
-            // For unknown reason, sometimes this could happen
-            // Kill Shizuku app and try again could work
-            for (int userId : failedUserIds) {
-                try {
-                    LOGGER.e("kill %s in user %d and try again", MANAGER_APPLICATION_ID, userId);
-                    ActivityManagerApis.forceStopPackageNoThrow(MANAGER_APPLICATION_ID, userId);
-                } catch (Throwable tr) {
-                    LOGGER.e(tr, "failed to kill package");
-                }
-            }
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                LOGGER.w(e, "Interrupted while sleeping before retry");
-                Thread.currentThread().interrupt();
-            }
-            for (int userId : failedUserIds) {
-                try {
-                    boolean success = sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId);
-                    if (success) {
-                        LOGGER.i("retry succeeded for user %d", userId);
-                    } else {
-                        LOGGER.w("retry failed for user %d", userId);
-                    }
-                } catch (Throwable tr) {
-                    LOGGER.w(tr, "retry failed");
-                }
-            }
+            batch.add(MANAGER_APPLICATION_ID, userId, BinderDeliveryPool.MANAGER);
         }
     }
 
+    /**
+     * Returns once the delivery is queued; the force-stop and retry, if needed, run on the
+     * delivery pool's timer instead of sleeping the caller.
+     */
     static void sendBinderToManager(Binder binder, int userId) {
-        boolean success = sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId);
-        if (!success) {
-            // For unknown reason, sometimes this could happens
-            // Kill Shizuku app and try again could work
-            try {
-                LOGGER.e("kill %s in user %d and try again", MANAGER_APPLICATION_ID, userId);
-                ActivityManagerApis.forceStopPackageNoThrow(MANAGER_APPLICATION_ID, userId);
-
-                Runnable retryAction = () -> {
-                    try {
-                        boolean retrySuccess = sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId);
-                        if (retrySuccess) {
-                            LOGGER.i("retry succeeded");
-                        } else {
-                            LOGGER.w("retry failed");
-                        }
-                    } catch (Throwable tr) {
-                        LOGGER.w(tr, "retry failed");
-                    }
-                };
-
-                if (Looper.myLooper() == Looper.getMainLooper()) {
-                    HandlerUtil.getMainHandler().postDelayed(retryAction, 1000);
-                } else {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        LOGGER.w(e, "Interrupted while sleeping before retry");
-                        Thread.currentThread().interrupt();
-                    }
-                    retryAction.run();
-                }
-            } catch (Throwable tr) {
-                LOGGER.e(tr, "kill failed");
-            }
-        }
+        BinderDeliveryPool.Batch batch = DELIVERY.newBatch("manager", binder, null);
+        batch.add(MANAGER_APPLICATION_ID, userId, BinderDeliveryPool.MANAGER);
+        batch.seal();
     }
 
     static boolean sendBinderToUserApp(Binder binder, String packageName, int userId) {
@@ -2384,9 +2325,8 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
                 }
             }
             // Also try to grant WRITE_SECURE_SETTINGS and DUMP directly via shell.
-            // waitFor() reaps the child; without it each call leaks a zombie process + its fds.
-            Runtime.getRuntime().exec(new String[]{"pm", "grant", packageName, "android.permission.WRITE_SECURE_SETTINGS"}).waitFor();
-            Runtime.getRuntime().exec(new String[]{"pm", "grant", packageName, "android.permission.DUMP"}).waitFor();
+            ShellPool.exec("pm", "grant", packageName, "android.permission.WRITE_SECURE_SETTINGS");
+            ShellPool.exec("pm", "grant", packageName, "android.permission.DUMP");
         } catch (Exception e) {
             LOGGER.e(e, "Plus: AppOps elevation failed for " + packageName);
         }
@@ -2395,9 +2335,7 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     @Override
     public List<String> getRecentLogs() {
         enforceCallingPermission("getRecentLogs");
-        synchronized (serverLogs) {
-            return new ArrayList<>(serverLogs);
-        }
+        return serverLogs.format(MAX_SERVER_LOGS);
     }
 
     @Override
@@ -2427,14 +2365,21 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     public void dispatchPackageChanged(Intent intent) throws RemoteException {
         enforceManagerPermission("dispatchPackageChanged");
         String action = intent.getAction();
+        android.net.Uri data = intent.getData();
+        String packageName = data != null ? data.getSchemeSpecificPart() : null;
+        if (packageName == null) {
+            return;
+        }
         if (Intent.ACTION_PACKAGE_REMOVED.equals(action) || Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
-            android.net.Uri data = intent.getData();
-            if (data != null) {
-                String packageName = data.getSchemeSpecificPart();
-                if (packageName != null) {
-                    clientManager.remove(packageName);
-                }
-            }
+            clientManager.remove(packageName);
+        }
+        if (Intent.ACTION_PACKAGE_ADDED.equals(action) || Intent.ACTION_PACKAGE_REMOVED.equals(action)
+                || Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            int userId = uid != -1 ? UserHandleCompat.getUserId(uid) : UserHandleCompat.getUserId(Binder.getCallingUid());
+            configManager.onPackageChanged(packageName, userId);
+            applicationsCache.onPackageChanged(packageName, userId);
+            BinderSender.invalidate(uid);
         }
     }
 
@@ -1,6 +1,7 @@
 package rikka.shizuku.server
 
 import android.os.Bundle
+import android.os.Parcel
 import android.os.ParcelFileDescriptor
 import android.os.RemoteException
 import af.shizuku.server.IStorageProxy
@@ -96,4 +97,7 @@ class StorageProxyImpl : IStorageProxy.Stub() {
             false
         }
     }
-}
\ No newline at end of file
+
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_STORAGE_PROXY, code) { super.onTransact(code, data, reply, flags) }
+}
@@ -0,0 +1,141 @@
+package rikka.shizuku.server;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import moe.shizuku.server.IRemoteProcess;
+
+/**
+ * An already-exited process whose stdout is a precomputed buffer, served straight from memory.
+ * <p>
+ * The SU-bridge/root-mocking branches of {@link ShizukuService#newProcess} only ever fake an
+ * answer ({@code su -v}, {@code id}, {@code getprop ...}, mocked {@code chmod}/{@code supolicy}),
+ * but used to fork a real {@code echo}/{@code true} to deliver it. Root-detection-heavy apps fire
+ * dozens of these probes at launch, each one a full fork/exec on the device; this serves the same
+ * bytes and exit code through a pipe with no child process at all.
+ * <p>
+ * Output is written by {@link PipeFeeder}, so a client that never reads it ties up no server
+ * thread.
+ */
+public class SyntheticRemoteProcess extends IRemoteProcess.Stub {
+
+    private static final String TAG = "SyntheticRemoteProcess";
+
+    private final byte[] stdout;
+    private final int exitValue;
+
+    private ParcelFileDescriptor in;
+    private ParcelFileDescriptor out;
+    private ParcelFileDescriptor err;
+
+    public SyntheticRemoteProcess(byte[] stdout, int exitValue) {
+        this.stdout = stdout;
+        this.exitValue = exitValue;
+    }
+
+    /**
+     * Same output as spawning {@code echo value}: the value followed by a newline, exit code 0.
+     */
+    public static SyntheticRemoteProcess echo(String value) {
+        return new SyntheticRemoteProcess((value + "\n").getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    /**
+     * Same as spawning {@code true} (0) or {@code false} (1): no output, just the exit code.
+     */
+    public static SyntheticRemoteProcess exit(int exitValue) {
+        return new SyntheticRemoteProcess(new byte[0], exitValue);
+    }
+
+    @Override
+    public synchronized ParcelFileDescriptor getOutputStream() {
+        if (out == null) {
+            try {
+                // Nothing consumes stdin - close our read end so writes fail fast with EPIPE,
+                // exactly as they would against an echo that has already exited.
+                ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+                pipe[0].close();
+                out = pipe[1];
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to create stdin pipe", e);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public synchronized ParcelFileDescriptor getInputStream() {
+        if (in == null) {
+            in = servePipe(stdout);
+        }
+        return in;
+    }
+
+    @Override
+    public synchronized ParcelFileDescriptor getErrorStream() {
+        if (err == null) {
+            err = servePipe(new byte[0]);
+        }
+        return err;
+    }
+
+    private static ParcelFileDescriptor servePipe(byte[] data) {
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create output pipe", e);
+            return null;
+        }
+        PipeFeeder.PipeSink sink;
+        try {
+            sink = new PipeFeeder.PipeSink(pipe[1]);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to make output pipe non-blocking", e);
+            closeQuietly(pipe[0]);
+            closeQuietly(pipe[1]);
+            return null;
+        }
+        PipeFeeder.getShared().feed(sink, data);
+        return pipe[0];
+    }
+
+    @Override
+    public int waitFor() {
+        return exitValue;
+    }
+
+    @Override
+    public int exitValue() {
+        return exitValue;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        closeQuietly(in);
+        closeQuietly(out);
+        closeQuietly(err);
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        if (pfd == null) return;
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close ParcelFileDescriptor in destroy()", e);
+        }
+    }
+
+    @Override
+    public boolean alive() {
+        return false;
+    }
+
+    @Override
+    public boolean waitForTimeout(long timeout, String unitName) {
+        return true;
+    }
+}
@@ -2,6 +2,7 @@ package rikka.shizuku.server
 
 import android.content.Context
 import android.os.Bundle
+import android.os.Parcel
 import android.os.ServiceManager
 import android.util.Log
 import af.shizuku.server.IVirtualMachineManager
@@ -408,4 +409,7 @@ class VirtualMachineManagerImpl : IVirtualMachineManager.Stub() {
             else -> "Unknown ($status)"
         }
     }
+
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_VIRTUAL_MACHINE_MANAGER, code) { super.onTransact(code, data, reply, flags) }
 }
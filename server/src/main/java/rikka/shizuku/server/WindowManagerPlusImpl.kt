@@ -3,6 +3,7 @@ package rikka.shizuku.server
 import android.graphics.Rect
 import android.os.Bundle
 import android.os.IBinder
+import android.os.Parcel
 import android.os.ServiceManager
 import android.util.Log
 import af.shizuku.server.IWindowManagerPlus
@@ -64,10 +65,7 @@ class WindowManagerPlusImpl : IWindowManagerPlus.Stub() {
 
             // Fallback: Use settings command
             val value = if (enabled) "1" else "0"
-            val process = Runtime.getRuntime().exec(
-                arrayOf("settings", "put", "global", "force_resizable_activities", value)
-            )
-            process.waitFor()
+            ShellPool.exec("settings", "put", "global", "force_resizable_activities", value)
             Log.d(TAG, "Set force_resizable_activities setting to $value")
         } catch (e: Exception) {
             Log.e(TAG, "Failed to set force resizable for $packageName", e)
@@ -120,10 +118,7 @@ class WindowManagerPlusImpl : IWindowManagerPlus.Stub() {
 
             // Fallback: Use am command
             if (region != null) {
-                val process = Runtime.getRuntime().exec(
-                    arrayOf("am", "task", "lock", taskId.toString())
-                )
-                process.waitFor()
+                ShellPool.exec("am", "task", "lock", taskId.toString())
                 Log.d(TAG, "Locked task $taskId using am command")
             }
         } catch (e: Exception) {
@@ -204,23 +199,14 @@ class WindowManagerPlusImpl : IWindowManagerPlus.Stub() {
 
         try {
             // Store bubble bar settings in secure settings
-            val process = Runtime.getRuntime().exec(
-                arrayOf("settings", "put", "secure", "bubble_bar_position", position)
-            )
-            process.waitFor()
+            ShellPool.exec("settings", "put", "secure", "bubble_bar_position", position)
 
             settings?.getString("visibility")?.let { vis ->
-                val proc = Runtime.getRuntime().exec(
-                    arrayOf("settings", "put", "secure", "bubble_bar_visibility", vis)
-                )
-                proc.waitFor()
+                ShellPool.exec("settings", "put", "secure", "bubble_bar_visibility", vis)
             }
 
             settings?.getString("size")?.let { sz ->
-                val proc = Runtime.getRuntime().exec(
-                    arrayOf("settings", "put", "secure", "bubble_bar_size", sz)
-                )
-                proc.waitFor()
+                ShellPool.exec("settings", "put", "secure", "bubble_bar_size", sz)
             }
 
             Log.d(TAG, "Bubble bar configuration saved")
@@ -298,10 +284,7 @@ class WindowManagerPlusImpl : IWindowManagerPlus.Stub() {
 
             // Fallback: Try cmd window command (may not work on all devices)
             val state = if (enabled) "true" else "false"
-            val process = Runtime.getRuntime().exec(
-                arrayOf("cmd", "window", "set-always-on-top", taskId.toString(), state)
-            )
-            process.waitFor()
+            ShellPool.exec("cmd", "window", "set-always-on-top", taskId.toString(), state)
             Log.d(TAG, "Executed cmd window command for always-on-top")
         } catch (e: Exception) {
             Log.e(TAG, "Failed to set always-on-top for task $taskId", e)
@@ -312,7 +295,7 @@ class WindowManagerPlusImpl : IWindowManagerPlus.Stub() {
         try {
             val value = if (enabled) "full" else "none"
             // Use 'policy' command if available, otherwise fallback to settings
-            Runtime.getRuntime().exec(arrayOf("settings", "put", "global", "policy_control", "immersive.full=*=$value")).waitFor()
+            ShellPool.exec("settings", "put", "global", "policy_control", "immersive.full=*=$value")
         } catch (e: Exception) {
             // Ignore
         }
@@ -322,10 +305,10 @@ class WindowManagerPlusImpl : IWindowManagerPlus.Stub() {
         try {
             // Samsung DeX often locks to 60Hz. Bypassing SemRefreshRateManager via settings.
             val value = if (enabled) "1" else "0"
-            Runtime.getRuntime().exec(arrayOf("settings", "put", "system", "min_refresh_rate", if (enabled) "120.0" else "60.0")).waitFor()
-            Runtime.getRuntime().exec(arrayOf("settings", "put", "system", "peak_refresh_rate", if (enabled) "120.0" else "60.0")).waitFor()
+            ShellPool.exec("settings", "put", "system", "min_refresh_rate", if (enabled) "120.0" else "60.0")
+            ShellPool.exec("settings", "put", "system", "peak_refresh_rate", if (enabled) "120.0" else "60.0")
             // Samsung specific DeX flag
-            Runtime.getRuntime().exec(arrayOf("settings", "put", "global", "dex_force_high_refresh_rate", value)).waitFor()
+            ShellPool.exec("settings", "put", "global", "dex_force_high_refresh_rate", value)
         } catch (e: Exception) {
             // Ignore
         }
@@ -434,4 +417,7 @@ class WindowManagerPlusImpl : IWindowManagerPlus.Stub() {
             null
         }
     }
+
+    override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean =
+        BinderMetrics.measure(BinderMetrics.SERVICE_WINDOW_MANAGER, code) { super.onTransact(code, data, reply, flags) }
 }
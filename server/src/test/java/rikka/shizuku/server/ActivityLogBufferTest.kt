@@ -0,0 +1,84 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class ActivityLogBufferTest {
+
+    @Test
+    fun `capacity rounds up to a power of two`() {
+        assertEquals(128, ActivityLogBuffer(100).capacity())
+        assertEquals(64, ActivityLogBuffer(64).capacity())
+    }
+
+    @Test
+    fun `oldest records are overwritten once full`() {
+        val buffer = ActivityLogBuffer(4)
+        repeat(6) { buffer.add("com.example", ActivityLogBuffer.ACTION_SU, "cmd$it") }
+
+        assertEquals(listOf("su cmd2", "su cmd3", "su cmd4", "su cmd5"), buffer.since(0).map { it.describeAction() })
+        assertEquals(listOf("su cmd5"), buffer.since(5).map { it.describeAction() })
+        assertTrue(buffer.since(6).isEmpty())
+    }
+
+    @Test
+    fun `format keeps the getRecentLogs line shape`() {
+        val buffer = ActivityLogBuffer(4)
+        buffer.add("com.example", ActivityLogBuffer.ACTION_SU, "su -c id")
+
+        val line = buffer.format(4).single()
+        assertTrue(Regex("""\[\d\d:\d\d:\d\d] com\.example: su su -c id""").matches(line), line)
+    }
+
+    @Test
+    fun `package names are interned`() {
+        val buffer = ActivityLogBuffer(4)
+        buffer.add(String(charArrayOf('a', '.', 'b')), ActivityLogBuffer.ACTION_SU, null)
+        buffer.add(String(charArrayOf('a', '.', 'b')), ActivityLogBuffer.ACTION_SU, null)
+
+        val (first, second) = buffer.since(0)
+        assertSame(first.packageName, second.packageName)
+        assertTrue(first.sameEvent(second))
+    }
+
+    @Test
+    fun `concurrent writers never produce torn or duplicate records`() {
+        val buffer = ActivityLogBuffer(256)
+        val writers = (0 until 4).map { w ->
+            thread { repeat(1000) { buffer.add("pkg$w", ActivityLogBuffer.ACTION_SU, "$it") } }
+        }
+        writers.forEach { it.join() }
+
+        val records = buffer.since(0)
+        assertEquals(256, records.size)
+        assertEquals(records.map { it.sequence }.sorted(), records.map { it.sequence })
+        assertEquals(4000L, buffer.nextSequence())
+    }
+
+    @Test
+    fun `format returns at most the requested number of lines`() {
+        val buffer = ActivityLogBuffer(100)
+        repeat(120) { buffer.add("com.example", ActivityLogBuffer.ACTION_SU, "cmd$it") }
+
+        val lines = buffer.format(100)
+        assertEquals(100, lines.size)
+        assertTrue(lines.first().endsWith("su cmd20"), lines.first())
+    }
+
+    @Test
+    fun `published records stop at one still being written`() {
+        val buffer = ActivityLogBuffer(8)
+        buffer.add("com.example", ActivityLogBuffer.ACTION_SU, "first")
+        val pending = buffer.claim()
+        buffer.add("com.example", ActivityLogBuffer.ACTION_SU, "third")
+
+        assertEquals(listOf("su first"), buffer.publishedSince(0).map { it.describeAction() })
+        assertEquals(listOf("su first", "su third"), buffer.since(0).map { it.describeAction() })
+
+        buffer.publish(pending, "com.example", ActivityLogBuffer.ACTION_SU, "second")
+        assertEquals(listOf("su second", "su third"), buffer.publishedSince(pending).map { it.describeAction() })
+    }
+}
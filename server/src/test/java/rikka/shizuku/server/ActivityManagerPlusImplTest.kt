@@ -0,0 +1,72 @@
+package rikka.shizuku.server
+
+import android.util.Log
+import io.mockk.every
+import io.mockk.mockkObject
+import io.mockk.mockkStatic
+import io.mockk.unmockkAll
+import io.mockk.verify
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+// No system services exist on the JVM, so these exercise the shell fallback the binder paths
+// degrade to, and the batch entry points built on top of the single-package calls.
+class ActivityManagerPlusImplTest {
+
+    private val impl = ActivityManagerPlusImpl()
+
+    @BeforeEach
+    fun setup() {
+        mockkStatic(Log::class)
+        every { Log.w(any(), any<String>()) } returns 0
+        every { Log.w(any(), any<String>(), any()) } returns 0
+        mockkObject(ShellPool)
+    }
+
+    @AfterEach
+    fun teardown() {
+        unmockkAll()
+    }
+
+    @Test
+    fun `freezeApps reports a result per package in order`() {
+        every { ShellPool.exec("pm", "disable-user", "--user", "0", "com.example.a") } returns ShellPool.Result(0, emptyList())
+        every { ShellPool.exec("pm", "disable-user", "--user", "0", "com.example.b") } returns ShellPool.Result(1, emptyList())
+
+        assertContentEquals(
+            booleanArrayOf(true, false),
+            impl.freezeApps(listOf("com.example.a", "com.example.b")),
+        )
+    }
+
+    @Test
+    fun `unfreezeApps falls back to pm enable`() {
+        every { ShellPool.exec(*anyVararg()) } returns ShellPool.Result(0, emptyList())
+
+        assertContentEquals(booleanArrayOf(true), impl.unfreezeApps(listOf("com.example.a")))
+        verify { ShellPool.exec("pm", "enable", "--user", "0", "com.example.a") }
+    }
+
+    @Test
+    fun `isAppFrozen fallback matches the exact package only`() {
+        every { ShellPool.exec("pm", "list", "packages", "-d", "com.example") } returns
+            ShellPool.Result(0, listOf("package:com.example.other"))
+        every { ShellPool.exec("pm", "list", "packages", "-d", "com.example.other") } returns
+            ShellPool.Result(0, listOf("package:com.example.other"))
+
+        assertFalse(impl.isAppFrozen("com.example"))
+        assertTrue(impl.isAppFrozen("com.example.other"))
+    }
+
+    @Test
+    fun `never bucket is clamped to restricted`() {
+        every { ShellPool.exec(*anyVararg()) } returns ShellPool.Result(0, emptyList())
+
+        assertContentEquals(booleanArrayOf(true, true), impl.setAppsStandbyBucket(listOf("a", "b"), 50))
+        verify(exactly = 2) { ShellPool.exec("am", "set-standby-bucket", any(), "restricted") }
+    }
+}
@@ -0,0 +1,119 @@
+package rikka.shizuku.server
+
+import af.shizuku.common.compat.Android17Compat
+import af.shizuku.common.compat.InstalledPackagesCompat
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkStatic
+import io.mockk.unmockkAll
+import io.mockk.verify
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import rikka.hidden.compat.PackageManagerApis
+import rikka.hidden.compat.UserManagerApis
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class ApplicationsCacheTest {
+
+    // userId -> installed packages
+    private val installed = mutableMapOf<Int, MutableList<PackageInfo>>()
+    private val entries = mutableListOf<ShizukuConfig.PackageEntry>()
+
+    private val configManager = mockk<ShizukuConfigManager> {
+        every { getEntries() } answers { entries.toList() }
+        every { find(any()) } answers { entries.firstOrNull { it.uid == firstArg<Int>() } }
+    }
+
+    private fun pkg(name: String, uid: Int, requestsPermission: Boolean = true, updated: Long = 1) = PackageInfo().apply {
+        packageName = name
+        lastUpdateTime = updated
+        applicationInfo = ApplicationInfo().apply { this.uid = uid }
+        requestedPermissions = if (requestsPermission) arrayOf(ServerConstants.PERMISSION) else null
+    }
+
+    private fun install(userId: Int, pi: PackageInfo) {
+        val list = installed.getOrPut(userId) { mutableListOf() }
+        list.removeAll { it.packageName == pi.packageName }
+        list.add(pi)
+    }
+
+    @BeforeEach
+    fun setUp() {
+        mockkStatic(UserManagerApis::class, PackageManagerApis::class, InstalledPackagesCompat::class, Android17Compat::class, PackageChangeCursor::class)
+        every { UserManagerApis.getUserIdsNoThrow() } returns listOf(0, 10)
+        every { PackageManagerApis.getPackagesForUidNoThrow(any()) } returns emptyList()
+        every { InstalledPackagesCompat.getInstalledPackagesNoThrow(any(), any()) } answers {
+            installed[secondArg<Int>()].orEmpty().toList()
+        }
+        every { Android17Compat.getPackageInfo(any(), any(), any()) } answers {
+            installed[thirdArg<Int>()]?.firstOrNull { it.packageName == firstArg<String>() }
+        }
+        // Change tracking available, with nothing changed unless a test says so
+        every { PackageChangeCursor.currentSequenceNumber(any()) } returns 1
+        every { PackageChangeCursor.getChangedPackages(any(), any()) } returns null
+    }
+
+    @AfterEach
+    fun tearDown() {
+        unmockkAll()
+    }
+
+    @Test
+    fun `each user is listed once and then served from the cache`() {
+        install(0, pkg("com.a", 10_100))
+        install(10, pkg("com.b", 1_010_101))
+        val cache = ApplicationsCache(configManager)
+
+        assertEquals(listOf("com.a", "com.b"), cache.getApplications(listOf(0, 10)).map { it.packageName })
+        assertEquals(listOf("com.a", "com.b"), cache.getApplications(listOf(0, 10)).map { it.packageName })
+
+        verify(exactly = 1) { InstalledPackagesCompat.getInstalledPackagesNoThrow(any(), 0) }
+        verify(exactly = 1) { InstalledPackagesCompat.getInstalledPackagesNoThrow(any(), 10) }
+    }
+
+    @Test
+    fun `packages reported only for a config decision are looked up once until they change`() {
+        install(0, pkg("com.decided", 10_200, requestsPermission = false))
+        entries.add(ShizukuConfig.PackageEntry(10_200, ConfigManager.FLAG_ALLOWED).apply { packages.add("com.decided") })
+        val cache = ApplicationsCache(configManager)
+
+        repeat(3) {
+            assertEquals(listOf("com.decided"), cache.getApplications(listOf(0)).map { it.packageName })
+        }
+        verify(exactly = 1) { Android17Compat.getPackageInfo("com.decided", any(), 0) }
+
+        val updated = pkg("com.decided", 10_200, requestsPermission = false, updated = 2)
+        install(0, updated)
+        cache.onPackageChanged("com.decided", 0)
+        assertSame(updated, cache.getApplications(listOf(0)).single())
+        verify(exactly = 2) { Android17Compat.getPackageInfo("com.decided", any(), 0) }
+    }
+
+    @Test
+    fun `a package change is recorded for its own user only`() {
+        install(0, pkg("com.a", 10_100))
+        install(10, pkg("com.a", 1_010_100))
+        val cache = ApplicationsCache(configManager)
+        val start = cache.getDelta(listOf(0, 10), 0)
+        assertTrue(start.full)
+        assertEquals(listOf(10_100, 1_010_100), start.updated.map { it.applicationInfo.uid })
+
+        install(10, pkg("com.a", 1_010_100, updated = 2))
+        cache.onPackageChanged("com.a", 10)
+
+        val user0 = cache.getDelta(listOf(0), start.version)
+        assertFalse(user0.full)
+        assertTrue(user0.updated.isEmpty())
+
+        val user10 = cache.getDelta(listOf(10), start.version)
+        assertFalse(user10.full)
+        assertEquals(listOf(2L), user10.updated.map { it.lastUpdateTime })
+        assertEquals(1_010_100, user10.updated.single().applicationInfo.uid)
+    }
+}
@@ -0,0 +1,109 @@
+package rikka.shizuku.server
+
+import android.os.Binder
+import io.mockk.mockk
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class BinderDeliveryPoolTest {
+
+    private val binder = mockk<Binder>(relaxed = true)
+    private val killed = Collections.synchronizedList(mutableListOf<String>())
+    private var pool: BinderDeliveryPool? = null
+
+    @AfterEach
+    fun tearDown() {
+        pool?.shutdown()
+    }
+
+    private fun pool(deadlineMillis: Long = 1000, send: (String) -> Boolean) =
+        BinderDeliveryPool({ _, packageName, _ -> send(packageName) }, { packageName, _ -> killed.add(packageName) }, 2, deadlineMillis)
+            .also { pool = it }
+
+    private fun BinderDeliveryPool.runBatch(vararg deliveries: Pair<String, BinderDeliveryPool.RetryPolicy>): BinderDeliveryPool.Batch {
+        val done = CountDownLatch(1)
+        val batch = newBatch("test", binder) { done.countDown() }
+        deliveries.forEach { (packageName, policy) -> batch.add(packageName, 0, policy) }
+        batch.seal()
+        assertTrue(done.await(10, TimeUnit.SECONDS), "batch didn't finish")
+        return batch
+    }
+
+    @Test
+    fun `batch finishes once every delivery settles`() {
+        val batch = pool { true }.runBatch("a" to BinderDeliveryPool.CLIENT, "b" to BinderDeliveryPool.CLIENT, "c" to BinderDeliveryPool.CLIENT)
+        assertEquals(3, batch.delivered())
+        assertEquals(0, batch.failed())
+        assertTrue(batch.timeToFirstMillis() in 0..batch.timeToAllMillis())
+    }
+
+    @Test
+    fun `empty batch finishes on seal`() {
+        val batch = pool { true }.runBatch()
+        assertEquals(0, batch.total())
+        assertEquals(-1, batch.timeToFirstMillis())
+    }
+
+    @Test
+    fun `clients retry without force-stop`() {
+        val attempts = AtomicInteger()
+        val batch = pool { attempts.incrementAndGet() > 1 }.runBatch("client" to BinderDeliveryPool.CLIENT)
+        assertEquals(1, batch.delivered())
+        assertEquals(2, attempts.get())
+        assertTrue(killed.isEmpty())
+    }
+
+    @Test
+    fun `manager is force-stopped before its only retry`() {
+        val attempts = AtomicInteger()
+        val batch = pool { attempts.incrementAndGet(); false }.runBatch("manager" to BinderDeliveryPool.MANAGER)
+        assertEquals(1, batch.failed())
+        assertEquals(2, attempts.get())
+        assertEquals(listOf("manager"), killed.toList())
+    }
+
+    @Test
+    fun `a hung delivery fails at its deadline`() {
+        val release = CountDownLatch(1)
+        val noRetry = BinderDeliveryPool.RetryPolicy(false)
+        val batch = pool(deadlineMillis = 100) { it != "hung" || release.await(10, TimeUnit.SECONDS) }
+            .runBatch("hung" to noRetry, "fine" to noRetry)
+        release.countDown()
+        assertEquals(1, batch.delivered())
+        assertEquals(1, batch.failed())
+    }
+
+    @Test
+    fun `the deadline only starts once a delivery runs`() {
+        val noRetry = BinderDeliveryPool.RetryPolicy(false)
+        // Two workers, six 150 ms sends: the last ones queue for far longer than the deadline
+        val batch = pool(deadlineMillis = 300) { Thread.sleep(150); true }
+            .runBatch(*Array(6) { "app$it" to noRetry })
+        assertEquals(6, batch.delivered())
+        assertEquals(0, batch.failed())
+    }
+
+    @Test
+    fun `hung workers are replaced so queued deliveries still run`() {
+        val release = CountDownLatch(1)
+        val noRetry = BinderDeliveryPool.RetryPolicy(false)
+        val pool = pool(deadlineMillis = 100) { !it.startsWith("hung") || release.await(10, TimeUnit.SECONDS) }
+        val batch = pool.runBatch("hung1" to noRetry, "hung2" to noRetry, "a" to noRetry, "b" to noRetry, "c" to noRetry)
+        assertEquals(3, batch.delivered())
+        assertEquals(2, batch.failed())
+        assertEquals(2, pool.hungWorkers())
+
+        release.countDown()
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+        while (pool.hungWorkers() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10)
+        }
+        assertEquals(0, pool.hungWorkers())
+    }
+}
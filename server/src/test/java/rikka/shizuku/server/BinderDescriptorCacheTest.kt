@@ -0,0 +1,60 @@
+package rikka.shizuku.server
+
+import android.os.IBinder
+import android.os.RemoteException
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class BinderDescriptorCacheTest {
+
+    @Test
+    fun `descriptor is fetched once per binder until it dies`() {
+        val recipient = slot<IBinder.DeathRecipient>()
+        val binder = mockk<IBinder>(relaxed = true) {
+            every { interfaceDescriptor } returns "android.content.pm.IPackageManager"
+            every { linkToDeath(capture(recipient), 0) } returns Unit
+        }
+        val cache = BinderDescriptorCache(8)
+
+        repeat(3) { assertEquals("android.content.pm.IPackageManager", cache.get(binder)) }
+        verify(exactly = 1) { binder.interfaceDescriptor }
+
+        recipient.captured.binderDied()
+        assertEquals(0, cache.size())
+        cache.get(binder)
+        verify(exactly = 2) { binder.interfaceDescriptor }
+    }
+
+    @Test
+    fun `dead and descriptor-less binders are not kept`() {
+        val dead = mockk<IBinder>(relaxed = true) {
+            every { interfaceDescriptor } returns "android.app.IActivityManager"
+            every { linkToDeath(any(), 0) } throws RemoteException()
+        }
+        val anonymous = mockk<IBinder>(relaxed = true) {
+            every { interfaceDescriptor } returns null
+        }
+        val cache = BinderDescriptorCache(8)
+
+        assertEquals("android.app.IActivityManager", cache.get(dead))
+        assertNull(cache.get(anonymous))
+        assertEquals(0, cache.size())
+    }
+
+    @Test
+    fun `cache is reset rather than grown past its bound`() {
+        val cache = BinderDescriptorCache(2)
+        val binders = List(3) { i ->
+            mockk<IBinder>(relaxed = true) { every { interfaceDescriptor } returns "I$i" }
+        }
+        binders.forEach { cache.get(it) }
+
+        assertEquals(1, cache.size())
+        verify { binders[0].unlinkToDeath(any(), 0) }
+    }
+}
@@ -0,0 +1,57 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class BinderMetricsTest {
+
+    @Test
+    fun `buckets are contiguous and bound their values`() {
+        var previousUpper = -1L
+        for (bucket in 0 until 200) {
+            val upper = BinderMetrics.upperBoundOf(bucket)
+            assertEquals(bucket, BinderMetrics.bucketOf(previousUpper + 1), "lower edge of bucket $bucket")
+            assertEquals(bucket, BinderMetrics.bucketOf(upper), "upper edge of bucket $bucket")
+            previousUpper = upper
+        }
+        assertEquals(BinderMetrics.bucketOf(Long.MAX_VALUE), BinderMetrics.bucketOf(Long.MAX_VALUE - 1))
+    }
+
+    @Test
+    fun `percentiles stay within a quarter of the true value`() {
+        val stat = BinderMetrics.Stat()
+        for (micros in 1L..1000L) stat.record(micros * 1000, false)
+
+        for ((quantile, expected) in listOf(0.5 to 500_000L, 0.9 to 900_000L, 0.99 to 990_000L)) {
+            val actual = stat.percentile(quantile)
+            assertTrue(actual >= expected && actual <= expected * 5 / 4, "p$quantile = $actual")
+        }
+        assertEquals(1_000_000L, stat.percentile(1.0))
+    }
+
+    @Test
+    fun `table returns one stat per key and overflows once full`() {
+        val table = BinderMetrics.StatTable(4)
+        val stats = (0L until 4L).map { table[it] }
+        assertEquals(stats, (0L until 4L).map { table[it] })
+        assertSame(table.overflow, table[99])
+    }
+
+    @Test
+    fun `measure counts failures and rethrows`() {
+        val code = 0x7fff0001
+        val stat = BinderMetrics.stat(BinderMetrics.SERVICE_STORAGE_PROXY, code)
+        val before = stat.count.get()
+
+        assertTrue(BinderMetrics.measure(BinderMetrics.SERVICE_STORAGE_PROXY, code) { true })
+        assertFailsWith<IllegalStateException> {
+            BinderMetrics.measure(BinderMetrics.SERVICE_STORAGE_PROXY, code) { throw IllegalStateException() }
+        }
+
+        assertEquals(before + 2, stat.count.get())
+        assertEquals(1, stat.errors.get())
+    }
+}
@@ -0,0 +1,86 @@
+package rikka.shizuku.server
+
+import af.shizuku.common.util.CommandBatch
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+// Runs real processes on the host, like ShellPoolTest - only POSIX sh, printf and sleep are needed.
+class CommandBatchRunnerTest {
+
+    private fun sh(script: String) = arrayOf("sh", "-c", script)
+
+    @Test
+    fun `results come back in order with exit codes and both streams`() {
+        val results = CommandBatchRunner.run(
+            listOf(sh("printf out; printf err >&2"), sh("exit 3"), arrayOf("printf", "%s", "it's \$HOME")),
+            0, 0,
+        )
+        assertEquals(3, results.size)
+        assertEquals("out", results[0].stdout)
+        assertEquals("err", results[0].stderr)
+        assertTrue(results[0].isSuccess)
+        assertEquals(CommandBatch.STATUS_OK, results[1].status)
+        assertEquals(3, results[1].exitCode)
+        assertEquals("it's \$HOME", results[2].stdout)
+    }
+
+    @Test
+    fun `stop on failure skips the rest`() {
+        val results = CommandBatchRunner.run(
+            listOf(sh("true"), sh("false"), sh("printf never")),
+            CommandBatch.FLAG_STOP_ON_FAILURE, 0,
+        )
+        assertEquals(listOf(CommandBatch.STATUS_OK, CommandBatch.STATUS_OK, CommandBatch.STATUS_SKIPPED), results.map { it.status })
+        assertEquals("", results[2].stdout)
+    }
+
+    @Test
+    fun `blocked and unstartable commands don't run`() {
+        val results = CommandBatchRunner.run(
+            listOf(sh("printf blocked"), arrayOf("/nonexistent/binary"), sh("printf ok")),
+            0, 0,
+        ) { argv -> argv.last() == "printf blocked" }
+        assertEquals(CommandBatch.STATUS_BLOCKED, results[0].status)
+        assertEquals(CommandBatch.STATUS_FAILED_TO_START, results[1].status)
+        assertEquals("ok", results[2].stdout)
+    }
+
+    @Test
+    fun `parallel commands overlap`() {
+        val start = System.nanoTime()
+        val results = CommandBatchRunner.run(List(4) { sh("sleep 1; printf $it") }, CommandBatch.FLAG_PARALLEL, 0)
+        val elapsedMs = (System.nanoTime() - start) / 1_000_000
+        assertEquals(listOf("0", "1", "2", "3"), results.map { it.stdout })
+        assertTrue(elapsedMs < 3000, "took ${elapsedMs}ms")
+    }
+
+    @Test
+    fun `timed out command is killed and reported`() {
+        val results = CommandBatchRunner.run(listOf(arrayOf("sleep", "5"), sh("printf after")), 0, 200)
+        assertEquals(CommandBatch.STATUS_TIMED_OUT, results[0].status)
+        assertEquals("after", results[1].stdout)
+    }
+
+    // A desktop JDK closes a process's pipes itself once it exits; Android's doesn't, which is
+    // what the bounded join covers. Either way the call must come back with the output so far.
+    @Test
+    fun `a background child holding stdout doesn't hold the call`() {
+        val start = System.nanoTime()
+        val results = CommandBatchRunner.run(listOf(sh("sleep 5 & printf done"), sh("sleep 5 & sleep 5")), 0, 200)
+        val elapsedMs = (System.nanoTime() - start) / 1_000_000
+        assertEquals(CommandBatch.STATUS_OK, results[0].status)
+        assertEquals("done", results[0].stdout)
+        assertEquals(CommandBatch.STATUS_TIMED_OUT, results[1].status)
+        assertTrue(elapsedMs < 4000, "took ${elapsedMs}ms")
+    }
+
+    @Test
+    fun `output past the per-stream limit is truncated`() {
+        val limit = CommandBatchRunner.streamLimit(1)
+        val result = CommandBatchRunner.run(listOf(sh("head -c ${limit * 2} /dev/zero | tr '\\0' x")), 0, 0)[0]
+        assertTrue(result.truncated)
+        assertEquals(limit, result.stdout.length)
+        assertEquals(0, result.exitCode)
+    }
+}
@@ -0,0 +1,68 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.test.assertFalse
+
+/**
+ * Per-call cost of deciding whether newProcess has to run its interception chain, for the
+ * compiled [CommandInterceptionTable] against the chain it replaced ([LegacyInterceptionChain]),
+ * with every feature the chain knows about turned on. Prints ns/op for each; excluded from
+ * regular runs, see the server build.gradle.
+ */
+@Tag("benchmark")
+class CommandInterceptionBenchmark {
+
+    private val features = ConcurrentHashMap(
+        listOf(
+            "shell_interceptor", "su_bridge", "root_build_prop_redirect", "root_magisk_mocking",
+            "root_busybox_mocking", "root_iptables_mocking", "root_auto_grant", "root_file_interceptor",
+            "experimental_root", "storage_proxy", "root_kernel_ghosting_enabled", "root_power_ghosting_enabled",
+        ).associateWith { true },
+    )
+
+    // What clients mostly spawn: commands no rule acts on
+    private val passThrough = arrayOf(
+        arrayOf("toybox", "uptime"),
+        arrayOf("/system/bin/input", "tap", "100", "200"),
+        arrayOf("logcat", "-d", "-t", "100"),
+        arrayOf("ps", "-A", "-o", "PID,NAME"),
+        arrayOf("cmd", "package", "list", "packages", "-3"),
+        arrayOf("busybox", "df", "-h"),
+    )
+
+    @Volatile
+    private var interceptionTable = CommandInterceptionTable.compile(features, emptyMap())
+
+    private fun measure(label: String, op: (Array<String>) -> Boolean) {
+        var sink = 0
+        repeat(WARMUP) { i -> if (op(passThrough[i % passThrough.size])) sink++ }
+        for (round in 1..ROUNDS) {
+            val start = System.nanoTime()
+            repeat(ITERATIONS) { i -> if (op(passThrough[i % passThrough.size])) sink++ }
+            val nsPerOp = (System.nanoTime() - start).toDouble() / ITERATIONS
+            println("newProcess interception, $label, round $round: %.1f ns/op".format(nsPerOp))
+        }
+        // Nothing here is intercepted; a non-zero sink means the two paths disagree
+        assertFalse(sink > 0, "$label intercepted a pass-through command")
+    }
+
+    @Test
+    fun `decide whether to intercept`() {
+        val legacy = LegacyInterceptionChain(features)
+        measure("legacy chain", legacy::decide)
+        measure("compiled table") { cmd ->
+            val rules = interceptionTable
+            // newProcess unwraps busybox before consulting the table
+            val unwrapped = if (cmd[0] == "busybox" && cmd.size > 1 && !cmd[1].startsWith("-")) cmd.copyOfRange(1, cmd.size) else cmd
+            rules.intercepts(unwrapped)
+        }
+    }
+
+    private companion object {
+        const val WARMUP = 500_000
+        const val ITERATIONS = 2_000_000
+        const val ROUNDS = 5
+    }
+}
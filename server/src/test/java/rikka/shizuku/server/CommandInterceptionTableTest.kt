@@ -0,0 +1,70 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class CommandInterceptionTableTest {
+
+    private fun table(vararg enabled: String, settings: Map<String, String> = emptyMap()) =
+        CommandInterceptionTable.compile(enabled.associateWith { true }, settings)
+
+    @Test
+    fun `nothing is intercepted while the shell interceptor is off`() {
+        val rules = table("su_bridge", "root_magisk_mocking", "experimental_root")
+        assertFalse(rules.intercepts(arrayOf("id")))
+        assertFalse(rules.intercepts(arrayOf("am", "force-stop", "com.example")))
+    }
+
+    @Test
+    fun `plus optimizations are keyed without su bridge`() {
+        val rules = table("shell_interceptor")
+        assertTrue(rules.intercepts(arrayOf("am", "force-stop", "com.example")))
+        assertTrue(rules.intercepts(arrayOf("/system/bin/settings", "put", "global", "k", "v")))
+        assertFalse(rules.intercepts(arrayOf("id")))
+        assertFalse(rules.intercepts(arrayOf("ls", "/data/data/com.example")))
+    }
+
+    @Test
+    fun `sub flags narrow the su bridge command set`() {
+        val bridge = table("shell_interceptor", "su_bridge")
+        assertTrue(bridge.intercepts(arrayOf("id")))
+        assertTrue(bridge.intercepts(arrayOf("sh", "-c", "echo hi")))
+        assertFalse(bridge.intercepts(arrayOf("magisk", "-v")))
+        assertFalse(bridge.intercepts(arrayOf("chmod", "755", "/data/local/tmp/x")))
+
+        val magisk = table("shell_interceptor", "su_bridge", "root_magisk_mocking")
+        assertTrue(magisk.intercepts(arrayOf("/sbin/magisk", "-v")))
+        assertTrue(magisk.intercepts(arrayOf("[", "-e", "/sbin/.magisk")))
+    }
+
+    @Test
+    fun `experimental root scans arguments for destructive intents`() {
+        val rules = table("shell_interceptor", "su_bridge", "experimental_root")
+        assertTrue(rules.intercepts(arrayOf("am", "broadcast", "-a", "android.intent.action.MASTER_CLEAR")))
+        assertTrue(rules.intercepts(arrayOf("toybox", "wipe_data")))
+        assertFalse(rules.intercepts(arrayOf("toybox", "uptime")))
+    }
+
+    @Test
+    fun `feature keys resolve with or without the enabled suffix`() {
+        assertTrue(CommandInterceptionTable.isEnabled(mapOf("storage_proxy_enabled" to true), "storage_proxy"))
+        assertTrue(CommandInterceptionTable.isEnabled(mapOf("root_kernel_ghosting" to true), "root_kernel_ghosting_enabled"))
+        assertFalse(CommandInterceptionTable.isEnabled(mapOf("su_bridge" to false), "su_bridge_enabled"))
+    }
+
+    @Test
+    fun `custom su path falls back when blank`() {
+        assertTrue(table(settings = mapOf("custom_su_path" to "  ")).customSuPath == "/system/xbin/su")
+        assertTrue(table(settings = mapOf("custom_su_path" to "/debug_ramdisk/su")).customSuPath == "/debug_ramdisk/su")
+    }
+
+    @Test
+    fun `unhandled commands pass through with every feature on`() {
+        val rules = table("shell_interceptor", "su_bridge", "root_magisk_mocking", "experimental_root", "storage_proxy")
+        assertFalse(rules.intercepts(arrayOf("toybox", "uptime")))
+        assertFalse(rules.intercepts(arrayOf("/system/bin/input", "tap", "100", "200")))
+        assertFalse(rules.intercepts(arrayOf("logcat", "-d", "-t", "100")))
+        assertTrue(rules.intercepts(arrayOf("dumpsys", "meminfo")))
+    }
+}
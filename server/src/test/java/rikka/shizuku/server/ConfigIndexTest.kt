@@ -0,0 +1,80 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class ConfigIndexTest {
+
+    private fun entry(uid: Int, flags: Int = 0) = ShizukuConfig.PackageEntry(uid, flags)
+
+    private fun ConfigIndex.uids() = List(size()) { uidAt(it) }
+
+    @Test
+    fun `entries are kept sorted by uid and the last duplicate wins`() {
+        val second = entry(10001, 4)
+        val index = ConfigIndex.of(listOf(entry(10003), entry(10001, 2), entry(10002), second))
+        assertEquals(listOf(10001, 10002, 10003), index.uids())
+        assertSame(second, index.get(10001))
+        assertNull(index.get(10004))
+    }
+
+    @Test
+    fun `with and without leave the original untouched`() {
+        val original = ConfigIndex.of(listOf(entry(10001), entry(10003)))
+        val added = original.with(entry(10002))
+        val replaced = added.with(entry(10003, 2))
+        val removed = replaced.without(10001)
+
+        assertEquals(listOf(10001, 10003), original.uids())
+        assertEquals(listOf(10001, 10002, 10003), added.uids())
+        assertEquals(0, added.get(10003)!!.flags)
+        assertEquals(2, replaced.get(10003)!!.flags)
+        assertEquals(listOf(10002, 10003), removed.uids())
+        assertSame(removed, removed.without(10001))
+    }
+
+    @Test
+    fun `readers always see a consistent index while entries are removed and re-added`() {
+        val uids = (10000 until 10200).toList()
+        val published = AtomicReference(ConfigIndex.of(uids.map { entry(it) }))
+        val stop = AtomicBoolean()
+        val failure = AtomicReference<Throwable>()
+
+        val readers = List(4) {
+            Thread {
+                try {
+                    while (!stop.get()) {
+                        val index = published.get()
+                        var last = Int.MIN_VALUE
+                        for (i in 0 until index.size()) {
+                            val uid = index.uidAt(i)
+                            check(uid > last) { "uids out of order or duplicated at $i" }
+                            check(index.entryAt(i).uid == uid) { "entry doesn't match uid $uid" }
+                            check(index.get(uid) === index.entryAt(i)) { "lookup of $uid disagrees" }
+                            last = uid
+                        }
+                    }
+                } catch (t: Throwable) {
+                    failure.compareAndSet(null, t)
+                }
+            }.apply { start() }
+        }
+
+        repeat(20_000) { round ->
+            val uid = uids[round % uids.size]
+            published.set(published.get().without(uid))
+            published.set(published.get().with(entry(uid, round)))
+        }
+        stop.set(true)
+        readers.forEach(Thread::join)
+
+        failure.get()?.let { throw it }
+        assertEquals(uids, published.get().uids())
+        assertTrue(published.get().get(10000)!!.flags > 0)
+    }
+}
@@ -0,0 +1,99 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.io.RandomAccessFile
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class ConfigJournalTest {
+
+    @TempDir
+    lateinit var dir: File
+
+    private fun entry(uid: Int, flags: Int, vararg packages: String) =
+        ShizukuConfig.PackageEntry(uid, flags).apply { this.packages.addAll(packages) }
+
+    private fun List<ShizukuConfig.PackageEntry>.describe() =
+        map { "${it.uid}:${it.flags}:${it.packages.joinToString(",")}" }
+
+    @Test
+    fun `missing journal reads as null`() {
+        assertNull(ConfigJournal(File(dir, "shizuku.journal")).read())
+    }
+
+    @Test
+    fun `appended changes replay over the compacted base`() {
+        val file = File(dir, "shizuku.journal")
+        val journal = ConfigJournal(file)
+        journal.compact(listOf(entry(10001, 2, "com.a"), entry(10002, 2, "com.b")))
+        journal.append(listOf(entry(10001, 4, "com.a"), entry(10003, 2, "com.c", "com.c2")), intArrayOf(10002))
+
+        val reloaded = ConfigJournal(file)
+        assertEquals(
+            listOf("10001:4:com.a", "10003:2:com.c,com.c2"),
+            reloaded.read()!!.sortedBy { it.uid }.describe(),
+        )
+        assertEquals(5, reloaded.recordCount)
+    }
+
+    @Test
+    fun `torn tail is dropped and truncated so later appends survive`() {
+        val file = File(dir, "shizuku.journal")
+        val journal = ConfigJournal(file)
+        journal.compact(listOf(entry(10001, 2, "com.a")))
+        journal.append(listOf(entry(10002, 2, "com.b")), intArrayOf())
+        val intact = file.length()
+        journal.append(listOf(entry(10003, 2, "com.c")), intArrayOf())
+        // Simulate a crash part-way through the last append
+        RandomAccessFile(file, "rw").use { it.setLength(file.length() - 3) }
+
+        val reloaded = ConfigJournal(file)
+        assertEquals(listOf("10001:2:com.a", "10002:2:com.b"), reloaded.read()!!.describe())
+        assertEquals(intact, file.length())
+
+        reloaded.append(listOf(entry(10004, 2, "com.d")), intArrayOf())
+        assertEquals(
+            listOf("10001:2:com.a", "10002:2:com.b", "10004:2:com.d"),
+            ConfigJournal(file).read()!!.describe(),
+        )
+    }
+
+    @Test
+    fun `compaction is due once records outgrow live entries`() {
+        val journal = ConfigJournal(File(dir, "shizuku.journal"))
+        journal.compact(listOf(entry(10001, 2, "com.a")))
+        assertFalse(journal.needsCompaction(1))
+        repeat(100) { journal.append(listOf(entry(10001, if (it % 2 == 0) 4 else 2, "com.a")), intArrayOf()) }
+        assertTrue(journal.needsCompaction(1))
+
+        journal.compact(journal.read()!!)
+        assertEquals(1, journal.recordCount)
+        assertFalse(journal.needsCompaction(1))
+    }
+
+    @Test
+    fun `foreign file is rejected`() {
+        val file = File(dir, "shizuku.journal").apply { writeText("{\"version\":2,\"packages\":[]}") }
+        assertFailsWith<java.io.IOException> { ConfigJournal(file).read() }
+    }
+
+    @Test
+    fun `unreadable journal is moved aside and rewritten by the next write`() {
+        val file = File(dir, "shizuku.journal").apply { writeText("garbage that is not a journal") }
+        val journal = ConfigJournal(file)
+        assertFailsWith<java.io.IOException> { journal.read() }
+        assertFalse(file.exists())
+        assertTrue(File(dir, "shizuku.journal.corrupt").exists())
+        assertTrue(journal.needsCompaction(0))
+
+        journal.compact(listOf(entry(10001, 2, "com.a")))
+        assertFalse(journal.needsCompaction(1))
+        journal.append(listOf(entry(10002, 2, "com.b")), intArrayOf())
+        assertEquals(listOf("10001:2:com.a", "10002:2:com.b"), ConfigJournal(file).read()!!.describe())
+    }
+}
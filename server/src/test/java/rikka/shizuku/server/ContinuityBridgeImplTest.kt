@@ -7,6 +7,7 @@ import android.os.RemoteException
 import android.util.Log
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.mockkObject
 import io.mockk.mockkStatic
 import io.mockk.unmockkAll
 import io.mockk.verify
@@ -144,8 +145,8 @@ class ContinuityBridgeImplTest {
     @Test
     fun `listEligibleDevices returns empty list when fallback fails`() {
         setSdkInt(34) // Forcing fallback
-        mockkStatic(Runtime::class)
-        every { Runtime.getRuntime().exec(any<Array<String>>()) } throws RuntimeException("Fallback failed")
+        mockkObject(ShellPool)
+        every { ShellPool.exec(*anyVararg()) } throws java.io.IOException("Fallback failed")
 
         val bridge = ContinuityBridgeImpl()
         val devices = bridge.listEligibleDevices()
@@ -157,12 +158,8 @@ class ContinuityBridgeImplTest {
     @Test
     fun `listEligibleDevices uses fallback and returns empty list when stream returns empty`() {
         setSdkInt(34) // Forcing fallback
-        mockkStatic(Runtime::class)
-        val process = mockk<Process>(relaxed = true)
-        val inputStream = java.io.ByteArrayInputStream(ByteArray(0))
-        every { process.inputStream } returns inputStream
-        every { process.waitFor() } returns 0
-        every { Runtime.getRuntime().exec(any<Array<String>>()) } returns process
+        mockkObject(ShellPool)
+        every { ShellPool.exec(*anyVararg()) } returns ShellPool.Result(0, emptyList())
 
         val bridge = ContinuityBridgeImpl()
         val devices = bridge.listEligibleDevices()
@@ -174,13 +171,8 @@ class ContinuityBridgeImplTest {
     @Test
     fun `listEligibleDevices parses fallback output correctly`() {
         setSdkInt(34) // Forcing fallback
-        mockkStatic(Runtime::class)
-        val process = mockk<Process>(relaxed = true)
-        val outputStr = "device1,device2,device3"
-        val inputStream = java.io.ByteArrayInputStream(outputStr.toByteArray())
-        every { process.inputStream } returns inputStream
-        every { process.waitFor() } returns 0
-        every { Runtime.getRuntime().exec(any<Array<String>>()) } returns process
+        mockkObject(ShellPool)
+        every { ShellPool.exec(*anyVararg()) } returns ShellPool.Result(0, listOf("device1,device2,device3"))
 
         val bridge = ContinuityBridgeImpl()
         val devices = bridge.listEligibleDevices()
@@ -0,0 +1,75 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class FirewallPolicyTest {
+
+    private fun policy(settings: Map<String, String> = emptyMap(), previous: FirewallPolicy? = null) =
+        FirewallPolicy.compile(mapOf("binder_firewall" to true), settings, previous)
+
+    @Test
+    fun `built-in rules block only the listed codes`() {
+        val policy = policy()
+        assertTrue(policy.enabled)
+        assertTrue(policy.isBlocked(10123, "android.os.IPowerManager", 17))
+        assertFalse(policy.isBlocked(10123, "android.os.IPowerManager", 16))
+        assertTrue(policy.isBlocked(10123, "android.app.IActivityManager", 103))
+        assertNull(policy.match(10123, "android.content.pm.IPackageManager", 1))
+    }
+
+    @Test
+    fun `blocked descriptors deny every code`() {
+        val policy = policy(mapOf("firewall_blocked_descriptors" to " android.os.IVibratorService , android.os.IUserManager"))
+        assertTrue(policy.isBlocked(10123, "android.os.IVibratorService", 1))
+        assertTrue(policy.isBlocked(10123, "android.os.IUserManager", 42))
+    }
+
+    @Test
+    fun `caller-specific rules override broader ones`() {
+        val policy = policy(
+            mapOf(
+                "firewall_rules" to "deny * * *; allow android.os.IPowerManager 17 1010123\nallow * 1-5 20456",
+            )
+        )
+        // uid rule beats the built-in any-caller denial, for that user's copy of the app only
+        assertFalse(policy.isBlocked(1010123, "android.os.IPowerManager", 17))
+        assertTrue(policy.isBlocked(10123, "android.os.IPowerManager", 17))
+        // app-id rule matches in every user, but only for its codes
+        assertFalse(policy.isBlocked(1020456, "android.os.IUserManager", 3))
+        assertTrue(policy.isBlocked(1020456, "android.os.IUserManager", 6))
+        // the exact-descriptor built-in still beats the any-descriptor user rule for others
+        assertTrue(policy.isBlocked(10999, "android.os.IPowerManager", 18))
+        assertTrue(policy.isBlocked(10999, "android.os.ISomething", 1))
+    }
+
+    @Test
+    fun `rate limit allows a burst then blocks`() {
+        val policy = policy(mapOf("firewall_rules" to "limit:3/m android.os.IVibratorService"))
+        val results = (1..5).map { policy.isBlocked(10123, "android.os.IVibratorService", 1) }
+        assertEquals(listOf(false, false, false, true, true), results)
+        // Budgets are per caller
+        assertFalse(policy.isBlocked(10124, "android.os.IVibratorService", 1))
+    }
+
+    @Test
+    fun `hit counters survive recompiling unchanged rules`() {
+        val first = policy(mapOf("firewall_rules" to "deny android.os.IVibratorService"))
+        repeat(3) { first.isBlocked(10123, "android.os.IVibratorService", 1) }
+
+        val second = policy(mapOf("firewall_rules" to "deny android.os.IVibratorService; deny android.os.IUserManager"), first)
+        assertEquals(3, second.match(10123, "android.os.IVibratorService", 1)!!.hits)
+        assertEquals(0, second.match(10123, "android.os.IUserManager", 1)!!.hits)
+    }
+
+    @Test
+    fun `malformed rules are skipped`() {
+        val policy = policy(mapOf("firewall_rules" to "block foo; deny android.os.IUserManager 9-3; deny android.os.IVibratorService 1,x"))
+        assertNull(policy.match(10123, "android.os.IUserManager", 5))
+        assertNull(policy.match(10123, "android.os.IVibratorService", 1))
+        assertEquals(2, policy.describe().size)
+    }
+}
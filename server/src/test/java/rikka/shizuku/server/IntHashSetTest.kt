@@ -0,0 +1,52 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class IntHashSetTest {
+
+    @Test
+    fun `add and remove report membership changes`() {
+        val set = IntHashSet()
+        assertTrue(set.add(10123))
+        assertFalse(set.add(10123))
+        assertTrue(set.contains(10123))
+        assertTrue(set.remove(10123))
+        assertFalse(set.remove(10123))
+        assertTrue(set.isEmpty())
+    }
+
+    @Test
+    fun `sentinel value is an ordinary member`() {
+        val set = IntHashSet()
+        assertTrue(set.add(Int.MIN_VALUE))
+        assertTrue(set.contains(Int.MIN_VALUE))
+        assertEquals(listOf(Int.MIN_VALUE), set.toArray().toList())
+        assertTrue(set.remove(Int.MIN_VALUE))
+        assertFalse(set.contains(Int.MIN_VALUE))
+    }
+
+    @Test
+    fun `matches a reference set through growth and deletions`() {
+        val set = IntHashSet(2)
+        val reference = HashSet<Int>()
+        val random = Random(42)
+        repeat(20_000) {
+            // A narrow range keeps probe runs long and collisions frequent
+            val value = random.nextInt(-500, 500)
+            if (random.nextBoolean()) {
+                assertEquals(reference.add(value), set.add(value))
+            } else {
+                assertEquals(reference.remove(value), set.remove(value))
+            }
+        }
+        assertEquals(reference.size, set.size())
+        assertEquals(reference, set.toArray().toHashSet())
+        for (value in -500 until 500) {
+            assertEquals(value in reference, set.contains(value), "contains($value)")
+        }
+    }
+}
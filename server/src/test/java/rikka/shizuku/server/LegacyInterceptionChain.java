@@ -0,0 +1,166 @@
+package rikka.shizuku.server;
+
+import java.util.Map;
+
+/**
+ * The decision path {@link ShizukuService#newProcess} took before {@link CommandInterceptionTable}:
+ * every branch head of the shell_interceptor chain, in the original order and written the way it
+ * was, flags re-resolved through the suffix-normalizing lookup and argv re-joined at each head
+ * that scans it. Bodies aren't reproduced; {@link #decide} returns {@code true} at the first head
+ * that matches. For a command no head matches - the case the table speeds up - this is exactly
+ * the work the old chain did before falling through to {@code newProcessInternal}.
+ * <p>
+ * Only the benchmark uses it, as the baseline to compare the table against.
+ */
+final class LegacyInterceptionChain {
+
+    private final Map<String, Boolean> featureEnabledMap;
+
+    LegacyInterceptionChain(Map<String, Boolean> featureEnabledMap) {
+        this.featureEnabledMap = featureEnabledMap;
+    }
+
+    private boolean isFeatureEnabled(String key) {
+        if (featureEnabledMap.containsKey(key)) return featureEnabledMap.get(key);
+        if (key.endsWith("_enabled")) {
+            String stripped = key.substring(0, key.length() - "_enabled".length());
+            if (featureEnabledMap.containsKey(stripped)) return featureEnabledMap.get(stripped);
+        } else if (featureEnabledMap.containsKey(key + "_enabled")) {
+            return featureEnabledMap.get(key + "_enabled");
+        }
+        return featureEnabledMap.getOrDefault(key, false);
+    }
+
+    boolean decide(String[] cmd) {
+        if (isFeatureEnabled("shell_interceptor") && cmd != null && cmd.length > 0) {
+            if (cmd[0].equals("busybox") || cmd[0].endsWith("/busybox")) {
+                if (cmd.length == 1 || cmd[1].startsWith("-")) {
+                    if (isFeatureEnabled("root_busybox_mocking")) return true;
+                } else {
+                    String[] newCmd = new String[cmd.length - 1];
+                    System.arraycopy(cmd, 1, newCmd, 0, newCmd.length);
+                    cmd = newCmd;
+                }
+            }
+
+            String baseCmd = cmd[0];
+
+            if (isFeatureEnabled("su_bridge") && (baseCmd.equals("sh") || baseCmd.endsWith("/sh")) && cmd.length >= 3 && (cmd[1].equals("-c") || cmd[1].equals("--command"))) {
+                return true;
+            }
+
+            if (isFeatureEnabled("su_bridge")) {
+                if (baseCmd.equals("supolicy") || baseCmd.equals("magiskpolicy")) {
+                    return true;
+                } else if ((baseCmd.equals("iptables") || baseCmd.equals("ip6tables") || baseCmd.endsWith("/iptables") || baseCmd.endsWith("/ip6tables")) && isFeatureEnabled("root_iptables_mocking")) {
+                    return true;
+                } else if (baseCmd.equals("pm") && cmd.length > 1 && cmd[1].equals("list") && String.join(" ", cmd).contains("packages")) {
+                    return true;
+                } else if (baseCmd.equals("pm") && cmd.length > 2 && cmd[1].equals("path") && cmd[2].equals("com.topjohnwu.magisk")) {
+                    return true;
+                }
+
+                if (baseCmd.equals("id")) {
+                    return true;
+                } else if (baseCmd.equals("whoami")) {
+                    return true;
+                } else if (baseCmd.equals("getenforce")) {
+                    return true;
+                } else if (baseCmd.equals("setenforce") || baseCmd.equals("chcon") || baseCmd.equals("restorecon")) {
+                    return true;
+                } else if (baseCmd.equals("setprop") && cmd.length > 2) {
+                    return true;
+                } else if (baseCmd.equals("mount") && cmd.length > 1 && String.join(" ", cmd).contains("remount")) {
+                    return true;
+                } else if (baseCmd.equals("mount") && cmd.length > 3 && String.join(" ", cmd).contains("--bind")) {
+                    return true;
+                } else if (baseCmd.equals("losetup")) {
+                    return true;
+                } else if (baseCmd.equals("mke2fs") || baseCmd.equals("mkfs.ext4") || baseCmd.equals("make_ext4fs")) {
+                    return true;
+                } else if (baseCmd.equals("chroot")) {
+                    return true;
+                } else if ((baseCmd.equals("cp") || baseCmd.equals("mv") || baseCmd.equals("tar")) && (String.join(" ", cmd).contains("/data/data") || String.join(" ", cmd).contains("/system"))) {
+                    return true;
+                } else if (baseCmd.equals("magisk") || baseCmd.endsWith("/magisk")) {
+                    return true;
+                } else if (baseCmd.equals("pm") && cmd.length > 3 && cmd[1].equals("grant")) {
+                    return true;
+                } else if (baseCmd.equals("cat") && cmd.length > 1 && (cmd[1].equals("/sys/fs/selinux/enforce") || cmd[1].contains("/selinux/enforce"))) {
+                    return true;
+                } else if ((baseCmd.equals("test") || baseCmd.equals("[")) && cmd.length > 1 && (String.join(" ", cmd).contains("/sbin/.magisk") || String.join(" ", cmd).contains("/data/adb/magisk") || String.join(" ", cmd).contains("/dev/magisk") || String.join(" ", cmd).contains("/proc/self/mounts") || String.join(" ", cmd).matches(".*\\b(su|magisk)\\b.*"))) {
+                    return true;
+                } else if (baseCmd.equals("stat") && cmd.length > 1 && String.join(" ", cmd).matches(".*\\b(su|magisk)\\b.*")) {
+                    return true;
+                } else if (baseCmd.equals("ls") && cmd.length > 1 && (String.join(" ", cmd).contains("/su") || String.join(" ", cmd).contains("/sbin/.magisk") || String.join(" ", cmd).contains("/data/adb/magisk"))) {
+                    return true;
+                } else if (baseCmd.equals("resetprop")) {
+                    return true;
+                } else if (baseCmd.equals("which") && cmd.length > 1 && cmd[1].equals("su")) {
+                    return true;
+                } else if (baseCmd.equals("getprop") && cmd.length > 1) {
+                    return true;
+                } else if (isFeatureEnabled("experimental_root") && baseCmd.equals("setprop") && cmd.length == 3) {
+                    return true;
+                } else if (isFeatureEnabled("experimental_root")) {
+                    if (baseCmd.equals("pm") && cmd.length > 2 && cmd[1].equals("disable")) {
+                        return true;
+                    } else if (baseCmd.equals("rm") && (String.join(" ", cmd).contains("/system/app/") || String.join(" ", cmd).contains("/system/priv-app/") || String.join(" ", cmd).contains("/product/app/"))) {
+                        return true;
+                    } else if (baseCmd.equals("kill")) {
+                        return true;
+                    } else if (baseCmd.equals("pkill") || baseCmd.equals("killall")) {
+                        return true;
+                    } else if (baseCmd.equals("insmod") || baseCmd.equals("rmmod") || baseCmd.equals("modprobe")) {
+                        return true;
+                    } else if (baseCmd.equals("reboot")) {
+                        return true;
+                    } else if (baseCmd.equals("setprop") && cmd.length > 1 && cmd[1].startsWith("ctl.")) {
+                        return true;
+                    } else if (baseCmd.equals("dd") && String.join(" ", cmd).contains("/dev/block/")) {
+                        return true;
+                    } else if (baseCmd.equals("update_engine_client") && isFeatureEnabled("bootloader_flash_ota_enabled")) {
+                        return true;
+                    } else if (baseCmd.equals("svc") && cmd.length >= 3) {
+                        return true;
+                    } else if (baseCmd.equals("ifconfig") && cmd.length >= 3) {
+                        return true;
+                    } else if (baseCmd.equals("ip") && cmd.length >= 4 && cmd[1].equals("link") && cmd[2].equals("set")) {
+                        return true;
+                    } else if (baseCmd.equals("dumpsys") && cmd.length >= 2 && (cmd[1].equals("battery") || cmd[1].equals("deviceidle"))) {
+                        return true;
+                    } else if (String.join(" ", cmd).contains("MASTER_CLEAR") || String.join(" ", cmd).contains("wipe_data") || (baseCmd.equals("sm") && cmd.length > 1 && cmd[1].equals("format"))) {
+                        return true;
+                    } else if (baseCmd.equals("chattr")) {
+                        return true;
+                    } else if (baseCmd.equals("lsattr")) {
+                        return true;
+                    } else if (baseCmd.equals("chmod") || baseCmd.equals("chown")) {
+                        return true;
+                    } else if (baseCmd.equals("iptables") || baseCmd.equals("ip6tables")) {
+                        return true;
+                    } else if ((baseCmd.equals("tar") || baseCmd.equals("cp")) && (String.join(" ", cmd).contains("/data/data/") || String.join(" ", cmd).contains("/data/app/") || String.join(" ", cmd).contains("/data/user/"))) {
+                        return true;
+                    } else if (baseCmd.equals("screencap")) {
+                        return true;
+                    }
+                }
+            }
+
+            if (baseCmd.equals("am") && cmd.length >= 3) {
+                return true;
+            } else if (baseCmd.equals("settings") && cmd.length >= 5 && cmd[1].equals("put")) {
+                return true;
+            } else if (baseCmd.equals("pm") && cmd.length >= 2 && cmd[1].equals("install")) {
+                return true;
+            } else if (baseCmd.equals("appops") && cmd.length >= 5) {
+                return true;
+            } else if (baseCmd.equals("service") && cmd.length >= 4 && cmd[1].equals("call")) {
+                return true;
+            } else if (isFeatureEnabled("storage_proxy") && (baseCmd.equals("ls") || baseCmd.equals("rm") || baseCmd.equals("mkdir") || baseCmd.equals("cat") || baseCmd.equals("stat"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,56 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class PackageChangeCursorTest {
+
+    @TempDir
+    lateinit var dir: File
+
+    private val cursor = PackageChangeCursor("boot-1", "1234:5678", mapOf(0 to 40, 10 to 7))
+
+    @Test
+    fun `a cursor survives a write and read`() {
+        val file = File(dir, "cursor")
+        cursor.write(file)
+        val read = PackageChangeCursor.read(file)!!
+        assertEquals("boot-1", read.bootId)
+        assertEquals("1234:5678", read.systemServer)
+        assertEquals(mapOf(0 to 40, 10 to 7), read.sequences)
+    }
+
+    @Test
+    fun `a cursor written without a system_server reads back without one`() {
+        val file = File(dir, "cursor")
+        PackageChangeCursor("boot-1", null, mapOf(0 to 3)).write(file)
+        assertNull(PackageChangeCursor.read(file)!!.systemServer)
+    }
+
+    @Test
+    fun `valid in the same boot and system_server with sequences moved forward`() {
+        assertTrue(cursor.isValidFor("boot-1", "1234:5678", mapOf(0 to 40, 10 to 7)))
+        assertTrue(cursor.isValidFor("boot-1", "1234:5678", mapOf(0 to 52, 10 to 9)))
+    }
+
+    @Test
+    fun `a soft restart of system_server invalidates it`() {
+        // New system_server, sequence numbers counting from 0 again
+        assertFalse(cursor.isValidFor("boot-1", "2345:9012", mapOf(0 to 41, 10 to 8)))
+        // Even if its start can't be told, a sequence number going backwards gives it away
+        val unknown = PackageChangeCursor("boot-1", null, mapOf(0 to 40, 10 to 7))
+        assertFalse(unknown.isValidFor("boot-1", null, mapOf(0 to 3, 10 to 7)))
+    }
+
+    @Test
+    fun `another boot or another set of users invalidates it`() {
+        assertFalse(cursor.isValidFor("boot-2", "1234:5678", mapOf(0 to 40, 10 to 7)))
+        assertFalse(cursor.isValidFor("boot-1", "1234:5678", mapOf(0 to 40)))
+        assertFalse(cursor.isValidFor("boot-1", "1234:5678", mapOf(0 to 40, 10 to 7, 11 to 0)))
+    }
+}
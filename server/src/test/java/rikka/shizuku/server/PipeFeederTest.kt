@@ -0,0 +1,118 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class PipeFeederTest {
+
+    // Stands in for a pipe of [room] bytes; read() frees space the way a client draining it would.
+    private class FakePipe(private var room: Int) : PipeFeeder.Sink {
+        val received = ByteArrayOutputStream()
+        val closed = CountDownLatch(1)
+
+        @Volatile
+        var readerClosed = false
+
+        @Synchronized
+        override fun write(data: ByteArray, offset: Int, length: Int): Int {
+            if (readerClosed) throw IOException("EPIPE")
+            val n = minOf(room, length)
+            received.write(data, offset, n)
+            room -= n
+            return n
+        }
+
+        @Synchronized
+        fun read(n: Int) {
+            room += n
+        }
+
+        @Synchronized
+        fun receivedBytes(): ByteArray = received.toByteArray()
+
+        override fun close() {
+            closed.countDown()
+        }
+
+        fun awaitClosed() = closed.await(5, TimeUnit.SECONDS)
+    }
+
+    // poll() reports a pipe writable whenever its reader has made room; here the test says so via wake().
+    private class FakeIo : PipeFeeder.Io {
+        private val signal = Semaphore(0)
+
+        override fun await(sinks: List<PipeFeeder.Sink>, timeoutMs: Long) {
+            if (timeoutMs < 0) signal.acquire() else signal.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)
+            signal.drainPermits()
+        }
+
+        override fun wake() {
+            signal.release()
+        }
+    }
+
+    private val io = FakeIo()
+
+    private fun payload(size: Int) = ByteArray(size) { it.toByte() }
+
+    @Test
+    fun `output that fits is written and closed on the calling thread`() {
+        val pipe = FakePipe(4096)
+        PipeFeeder(io, 30_000).feed(pipe, payload(100))
+
+        assertEquals(0, pipe.closed.count)
+        assertContentEquals(payload(100), pipe.receivedBytes())
+    }
+
+    @Test
+    fun `large output is delivered in full as the reader drains`() {
+        val pipe = FakePipe(4096)
+        val data = payload(64 * 1024)
+        PipeFeeder(io, 30_000).feed(pipe, data)
+        assertEquals(1, pipe.closed.count)
+
+        val reader = Thread {
+            while (pipe.closed.count > 0) {
+                pipe.read(4096)
+                io.wake()
+                Thread.sleep(1)
+            }
+        }
+        reader.start()
+        assertTrue(pipe.awaitClosed())
+        reader.join()
+        assertContentEquals(data, pipe.receivedBytes())
+    }
+
+    @Test
+    fun `a reader closing early ends the write`() {
+        val pipe = FakePipe(4096)
+        PipeFeeder(io, 30_000).feed(pipe, payload(64 * 1024))
+        assertFalse(pipe.closed.count == 0L)
+
+        pipe.readerClosed = true
+        pipe.read(4096)
+        io.wake()
+        assertTrue(pipe.awaitClosed())
+        assertEquals(4096, pipe.receivedBytes().size)
+    }
+
+    @Test
+    fun `a reader that never reads is cut off at the deadline`() {
+        val pipe = FakePipe(0)
+        val start = System.nanoTime()
+        PipeFeeder(io, 200).feed(pipe, payload(10))
+
+        assertTrue(pipe.awaitClosed())
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 200)
+        assertEquals(0, pipe.receivedBytes().size)
+    }
+}
@@ -0,0 +1,45 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+
+class ShadowBinderPolicyTest {
+
+    private fun policy(vararg enabled: String, hidden: String? = null) =
+        ShadowBinderPolicy.compile(
+            enabled.associateWith { true },
+            if (hidden != null) mapOf("shadow_hidden_packages" to hidden) else emptyMap(),
+        )
+
+    @Test
+    fun `original shizuku package is always spoofed`() {
+        assertEquals(ShadowBinderPolicy.ACTION_SPOOF, policy().actionFor("moe.shizuku.privileged.api"))
+        assertEquals(ShadowBinderPolicy.ACTION_NONE, policy().actionFor("com.topjohnwu.magisk"))
+    }
+
+    @Test
+    fun `root managers are spoofed only with magisk mocking`() {
+        val policy = policy("root_magisk_mocking")
+        assertEquals(ShadowBinderPolicy.ACTION_SPOOF, policy.actionFor("com.topjohnwu.magisk"))
+        assertEquals(ShadowBinderPolicy.ACTION_SPOOF, policy.actionFor("org.lsposed.manager"))
+    }
+
+    @Test
+    fun `hidden packages need shadow binder or magisk mocking`() {
+        assertEquals(ShadowBinderPolicy.ACTION_NONE, policy(hidden = "com.bank.app").actionFor("com.bank.app"))
+
+        val policy = policy("shadow_binder", hidden = " com.bank.app ,, com.other ")
+        assertEquals(ShadowBinderPolicy.ACTION_HIDE, policy.actionFor("com.bank.app"))
+        assertEquals(ShadowBinderPolicy.ACTION_HIDE, policy.actionFor("com.other"))
+        assertEquals(ShadowBinderPolicy.ACTION_NONE, policy.actionFor("com.bank"))
+        assertEquals(ShadowBinderPolicy.ACTION_NONE, policy.actionFor(null))
+    }
+
+    @Test
+    fun `unresolved transaction codes are never handled`() {
+        // No IPackageManager stub on the JVM, so every code lookup failed
+        assertFalse(ShadowBinderPolicy.handlesCode(-1))
+        assertFalse(ShadowBinderPolicy.handlesCode(1))
+    }
+}
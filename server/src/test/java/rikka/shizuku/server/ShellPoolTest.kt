@@ -0,0 +1,60 @@
+package rikka.shizuku.server
+
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+// Runs against the host's real /bin/sh - the pool only relies on POSIX sh and printf.
+class ShellPoolTest {
+
+    @Test
+    fun `exit code and output lines are framed by the sentinel`() {
+        val result = ShellPool.exec("printf", "first\nsecond\n")
+        assertEquals(0, result.exitCode)
+        assertEquals(listOf("first", "second"), result.lines)
+
+        assertEquals(3, ShellPool.exec("sh", "-c", "exit 3").exitCode)
+    }
+
+    @Test
+    fun `output without a trailing newline is not merged with the sentinel`() {
+        val result = ShellPool.exec("printf", "no-newline")
+        assertEquals(listOf("no-newline"), result.lines)
+        assertTrue(ShellPool.exec("true").lines.isEmpty())
+    }
+
+    @Test
+    fun `arguments are passed verbatim without shell expansion`() {
+        val arg = "it's \$HOME; `id` \"quoted\""
+        assertEquals(listOf(arg), ShellPool.exec("printf", "%s\n", arg).lines)
+    }
+
+    @Test
+    fun `commands cannot read the pool's command stream`() {
+        // stdin is /dev/null, so cat must not swallow the next framed command.
+        assertEquals(0, ShellPool.exec("cat").exitCode)
+        assertEquals(listOf("after"), ShellPool.exec("echo", "after").lines)
+    }
+
+    @Test
+    fun `timed out command fails and the pool recovers`() {
+        assertFailsWith<java.io.IOException> {
+            ShellPool.exec(arrayOf("sleep", "2"), 200)
+        }
+        assertEquals(listOf("ok"), ShellPool.exec("echo", "ok").lines)
+    }
+
+    @Test
+    fun `time spent waiting for a shell counts against the timeout`() {
+        val busy = List(3) { Thread { ShellPool.exec("sleep", "1") }.apply { start() } }
+        Thread.sleep(100)
+        val start = System.nanoTime()
+        assertFailsWith<java.io.IOException> {
+            ShellPool.exec(arrayOf("sleep", "1"), 1500)
+        }
+        val elapsedMs = (System.nanoTime() - start) / 1_000_000
+        assertTrue(elapsedMs < 1900, "took ${elapsedMs}ms")
+        busy.forEach(Thread::join)
+    }
+}